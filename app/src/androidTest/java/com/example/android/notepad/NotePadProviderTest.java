@@ -20,19 +20,27 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
+import android.util.AtomicFile;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.List;
 
 /*
  */
@@ -790,6 +798,1510 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
     }
 
+    /*
+     * Tests writes through note ID URIs, which go through compiled statements: repeated writes
+     * of the same and of different columns, and a caller's selection, which must not reach
+     * other notes even when it has an OR in it.
+     */
+    public void testNoteIdWrites() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "First");
+        Uri firstUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Second");
+        Uri secondUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "Work");
+        Uri thirdUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        for (int i = 0; i < 3; i++) {
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "First " + i);
+            assertEquals(1, mMockResolver.update(firstUri, values, null, null));
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "Home " + i);
+            assertEquals(1, mMockResolver.update(firstUri, values, null, null));
+        }
+        assertEquals("First 2", title(firstUri));
+        assertEquals("Second", title(secondUri));
+
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        String selection = NotePad.Notes.COLUMN_NAME_TITLE + " = ? OR "
+                + NotePad.Notes.COLUMN_NAME_TITLE + " = ?";
+        assertEquals(1, mMockResolver.update(firstUri, values, selection,
+                new String[] { "First 2", "Second" }));
+        assertEquals("Second", title(secondUri));
+        assertEquals(0, mMockResolver.update(secondUri, values, selection,
+                new String[] { "Nothing", "Else" }));
+
+        assertEquals(1, mMockResolver.delete(secondUri, selection,
+                new String[] { "Second", "Renamed" }));
+        assertEquals("Renamed", title(firstUri));
+        assertEquals(1, mMockResolver.delete(thirdUri, null, null));
+        assertEquals(0, mMockResolver.delete(thirdUri, null, null));
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+    }
+
+    private String title(Uri noteUri) {
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests that edits through a note ID URI are recorded as revisions that can be read back,
+     * and that history is capped and dropped along with the note.
+     */
+    public void testRevisions() {
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, null);
+        long noteId = ContentUris.parseId(noteUri);
+        Uri revisionsUri = NotePad.Revisions.getContentUri(noteId);
+
+        assertEquals(NotePad.Revisions.CONTENT_TYPE, mMockResolver.getType(revisionsUri));
+        assertEquals(NotePad.Revisions.CONTENT_ITEM_TYPE,
+                mMockResolver.getType(NotePad.Revisions.getContentUri(noteId, 1)));
+
+        // Builds up a note one line at a time, editing the first line every so often, so that
+        // both appended text and changes in the middle of the note are recorded.
+        int edits = NoteRevisions.MAX_REVISIONS * 2;
+        String[] texts = new String[edits + 1];
+        StringBuilder text = new StringBuilder("First line\n");
+        ContentValues values = new ContentValues();
+        for (int i = 1; i <= edits; i++) {
+            if (i % 7 == 0) {
+                text.replace(0, text.indexOf("\n"), "First line, edit " + i);
+            } else {
+                text.append("Line ").append(i).append(" é😀\n");
+            }
+            texts[i] = text.toString();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, texts[i]);
+            assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        }
+
+        // Updates that don't change the text, or don't touch it, add no revision.
+        mMockResolver.update(noteUri, values, null, null);
+        ContentValues title = new ContentValues();
+        title.put(NotePad.Notes.COLUMN_NAME_TITLE, "A title");
+        mMockResolver.update(noteUri, title, null, null);
+
+        Cursor cursor = mMockResolver.query(revisionsUri, null, null, null, null);
+        int count = cursor.getCount();
+        assertTrue(count >= NoteRevisions.MAX_REVISIONS);
+        assertTrue(count < edits);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(edits, cursor.getInt(
+                cursor.getColumnIndex(NotePad.Revisions.COLUMN_NAME_REVISION)));
+        assertEquals(texts[edits].length(), cursor.getInt(
+                cursor.getColumnIndex(NotePad.Revisions.COLUMN_NAME_LENGTH)));
+        cursor.close();
+
+        // Every revision still kept reads back as the text that was saved at that point.
+        for (int i = edits - count + 1; i <= edits; i++) {
+            cursor = mMockResolver.query(NotePad.Revisions.getContentUri(noteId, i),
+                    null, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(texts[i], cursor.getString(
+                    cursor.getColumnIndex(NotePad.Revisions.COLUMN_NAME_NOTE)));
+            cursor.close();
+        }
+
+        // Compacted revisions are gone.
+        cursor = mMockResolver.query(NotePad.Revisions.getContentUri(noteId, 1),
+                null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Deleting the note for good deletes its history.
+        mMockResolver.delete(noteUri, null, null);
+        mMockResolver.delete(NotePad.Notes.getTrashUri(noteId), null, null);
+        cursor = mMockResolver.query(revisionsUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that a note outside ASCII gets a new snapshot only once its deltas add up to the
+     * size of the text in bytes, not in chars.
+     */
+    public void testRevisionSnapshotsOfWideText() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            text.append("今天的会议记录和待办事项\n");
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // Each edit appends a line of about 10 chars and a delta of about 27 bytes. After 30
+        // of them the deltas are past the note's chars but well under its bytes.
+        for (int i = 1; i <= 30; i++) {
+            text.append("第").append(i).append("行：新的内容\n");
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+            assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        }
+        assertEquals(1, DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM "
+                + NotePad.Revisions.TABLE_NAME + " WHERE "
+                + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ? AND (kind & 1) = 0",
+                new String[] { String.valueOf(ContentUris.parseId(noteUri)) }));
+    }
+
+    /*
+     * Tests that an update carrying the text it was edited from is merged with a change made
+     * since, and stored as it is when there was none.
+     */
+    public void testMergedUpdates() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Packing");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Passport\nCharger\n");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // A title change from elsewhere, then an edit of the text from before it.
+        ContentValues title = new ContentValues();
+        title.put(NotePad.Notes.COLUMN_NAME_TITLE, "Packing list");
+        mMockResolver.update(noteUri, title, null, null);
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Passport\nPhone charger\n");
+        values.put(NotePad.Notes.BASE_NOTE, "Passport\nCharger\n");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals("Packing list", title(noteUri));
+        assertEquals("Passport\nPhone charger\n", note(noteUri));
+
+        // Two edits from the same text: the second keeps the first.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Tickets\nPassport\nPhone charger\n");
+        values.put(NotePad.Notes.BASE_NOTE, "Passport\nPhone charger\n");
+        mMockResolver.update(noteUri, values, null, null);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Passport\nPhone charger and cable\n");
+        mMockResolver.update(noteUri, values, null, null);
+        assertEquals("Tickets\nPassport\nPhone charger and cable\n", note(noteUri));
+
+        // The merge is what is recorded as the new revision.
+        Cursor cursor = mMockResolver.query(
+                NotePad.Revisions.getContentUri(ContentUris.parseId(noteUri)),
+                new String[] { NotePad.Revisions.COLUMN_NAME_LENGTH }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Tickets\nPassport\nPhone charger and cable\n".length(),
+                    cursor.getInt(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests that large bodies are stored compressed when compression is on, that they read back
+     * unchanged, and that migrating with compression off restores them to plain text.
+     */
+    public void testCompressedBodies() {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < NoteBodyCodec.COMPRESSION_THRESHOLD * 2) {
+            builder.append("A line that repeats, so that it compresses well. é\n");
+        }
+        String large = builder.toString();
+
+        getProvider().setCompressLargeNotes(true);
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, large);
+        Uri largeUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Short");
+        Uri shortUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        assertEquals(NoteBodyCodec.FLAG_DEFLATE, storedFormat(largeUri));
+        assertEquals(NoteBodyCodec.FORMAT_PLAIN, storedFormat(shortUri));
+
+        // The format column is hidden, and the body comes back as text.
+        Cursor cursor = mMockResolver.query(largeUri, null, null, null, null);
+        assertEquals(-1, cursor.getColumnIndex(NoteBodyCodec.COLUMN_NAME_FORMAT));
+        assertTrue(cursor.moveToFirst());
+        int noteIndex = cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_NOTE);
+        assertEquals(Cursor.FIELD_TYPE_STRING, cursor.getType(noteIndex));
+        assertEquals(large, cursor.getString(noteIndex));
+        cursor.close();
+
+        // Turning compression off and migrating stores every body as text again.
+        getProvider().setCompressLargeNotes(false);
+        assertEquals(1, getProvider().migrateNoteBodies());
+        assertEquals(NoteBodyCodec.FORMAT_PLAIN, storedFormat(largeUri));
+        cursor = mMockResolver.query(largeUri, new String[] { NotePad.Notes.COLUMN_NAME_NOTE },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(large, cursor.getString(0));
+        cursor.close();
+    }
+
+    /*
+     * Tests that an oversized body is kept out of the notes table, that queries return only its
+     * start, and that the body URI streams all of it.
+     */
+    public void testOversizedBodies() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (int line = 0; builder.length() <= NoteBodyStore.EXTERNAL_THRESHOLD; line++) {
+            builder.append("Line ").append(line).append(" of a very long note\n");
+        }
+        String huge = builder.toString();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, huge);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long noteId = ContentUris.parseId(noteUri);
+        assertEquals(NoteBodyCodec.FLAG_EXTERNAL, storedFormat(noteUri));
+
+        String[] projection = new String[] {
+                NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_NOTE_TRUNCATED
+        };
+        Cursor cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(huge.substring(0, NoteBodyStore.HEAD_LENGTH), cursor.getString(0));
+        assertEquals(1, cursor.getInt(1));
+        cursor.close();
+
+        assertEquals(huge, readBody(noteId));
+
+        // Replacing it with a short body brings it back into the table.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Short again");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(NoteBodyCodec.FORMAT_PLAIN, storedFormat(noteUri));
+        cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Short again", cursor.getString(0));
+        assertEquals(0, cursor.getInt(1));
+        cursor.close();
+        assertEquals("Short again", readBody(noteId));
+    }
+
+    /*
+     * Tests that with encryption on, neither the body nor the snippet is stored as text, in the
+     * table or in a file, that reads still return the text, and that turning encryption off
+     * and migrating stores it as text again.
+     */
+    public void testEncryptedBodies() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (int line = 0; builder.length() <= NoteBodyStore.EXTERNAL_THRESHOLD; line++) {
+            builder.append("Secret line ").append(line).append('\n');
+        }
+        String huge = builder.toString();
+
+        getProvider().setEncryptNotes(true);
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Diary");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Dear diary, a secret");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, huge);
+        Uri hugeUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        assertEquals(NoteBodyCodec.FLAG_ENCRYPT, storedFormat(noteUri));
+        assertEquals(NoteBodyCodec.FLAG_ENCRYPT | NoteBodyCodec.FLAG_EXTERNAL,
+                storedFormat(hugeUri));
+        Cursor cursor = mDb.query(NotePad.Notes.TABLE_NAME, new String[] {
+                        NotePad.Notes.COLUMN_NAME_NOTE,
+                        NotePad.Notes.COLUMN_NAME_SNIPPET,
+                        NoteBodyStore.COLUMN_NAME_FILE,
+                        NotePad.Notes.COLUMN_NAME_TITLE
+                }, NotePad.Notes._ID + " = " + ContentUris.parseId(hugeUri),
+                null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(Cursor.FIELD_TYPE_BLOB, cursor.getType(0));
+        assertEquals(Cursor.FIELD_TYPE_BLOB, cursor.getType(1));
+        assertTrue(NoteBodyStore.isEncrypted(cursor.getString(2)));
+        assertEquals(Cursor.FIELD_TYPE_BLOB, cursor.getType(3));
+        cursor.close();
+
+        // Neither are the grams of the titles in the fuzzy search index.
+        assertEquals(0, DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM "
+                + NoteTrigrams.TABLE_NAME + " WHERE gram = 'dia'", null));
+
+        // Reads, list and search queries and the body URI all see the text.
+        assertEquals("Dear diary, a secret", note(noteUri));
+        assertEquals("Dear diary, a secret", snippet(noteUri));
+        assertEquals(huge, readBody(ContentUris.parseId(hugeUri)));
+        assertEquals("Dear diary, a secret", readBody(ContentUris.parseId(noteUri)));
+        cursor = mMockResolver.query(NotePad.Notes.getSearchUri("diary"), new String[] {
+                NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_SNIPPET
+        }, null, null, NotePad.Notes._ID + " ASC");
+        assertEquals(2, cursor.getColumnCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Dear diary, a secret", cursor.getString(1));
+        cursor.close();
+
+        // Only titles are searched, since bodies are opaque to SQL. Encrypted titles are
+        // searched by their keyed grams, then decrypted, so a term is found inside a word.
+        assertTrue(searchIds("secret").isEmpty());
+        assertEquals(Arrays.asList(ContentUris.parseId(noteUri), ContentUris.parseId(hugeUri)),
+                searchIds("IAR"));
+        assertTrue(searchIds("diaries").isEmpty());
+        assertEquals("Diary", title(noteUri));
+        cursor = mMockResolver.query(NotePad.Notes.getFuzzySearchUri("diray"),
+                new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE },
+                null, null, null);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Diary", cursor.getString(1));
+        cursor.close();
+
+        // The history is encrypted too, and still readable.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Dear diary, another secret");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals("Dear diary, a secret", revision(noteUri, 1));
+
+        // Turning encryption off and migrating stores the bodies and titles in the table as
+        // text again. The body in a file stays as it is until the note is next saved; its
+        // title doesn't.
+        getProvider().setEncryptNotes(false);
+        assertEquals(2, getProvider().migrateNoteBodies());
+        assertEquals(NoteBodyCodec.FORMAT_PLAIN, storedFormat(noteUri));
+        assertEquals("text", DatabaseUtils.stringForQuery(mDb, "SELECT typeof("
+                + NotePad.Notes.COLUMN_NAME_TITLE + ") FROM " + NotePad.Notes.TABLE_NAME
+                + " WHERE " + NotePad.Notes._ID + " = " + ContentUris.parseId(hugeUri), null));
+        assertEquals(Arrays.asList(ContentUris.parseId(noteUri), ContentUris.parseId(hugeUri)),
+                searchIds("diary"));
+        assertEquals("Dear diary, another secret", note(noteUri));
+        assertEquals("Dear diary, another secret", snippet(noteUri));
+        assertEquals("Dear diary, a secret", revision(noteUri, 1));
+        assertEquals(huge, readBody(ContentUris.parseId(hugeUri)));
+    }
+
+    /*
+     * Tests that the snippet follows the body on insert and update, ignores values from the
+     * caller, and is filled in for rows that were written without one.
+     */
+    public void testSnippets() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "  First line\n\n\tsecond   line  ");
+        values.put(NotePad.Notes.COLUMN_NAME_SNIPPET, "Not from the body");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals("First line second line", snippet(noteUri));
+
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < NoteSnippet.MAX_LENGTH * 2) {
+            builder.append("word ");
+        }
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, builder.toString());
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        String snippet = snippet(noteUri);
+        assertTrue(snippet.length() <= NoteSnippet.MAX_LENGTH);
+        assertTrue(builder.toString().startsWith(snippet));
+
+        // A title change leaves the snippet alone.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        values.put(NotePad.Notes.COLUMN_NAME_SNIPPET, "Not from the body");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(snippet, snippet(noteUri));
+
+        // Rows written before there were snippets are filled in by the migration.
+        ContentValues row = new ContentValues();
+        row.put(NotePad.Notes.COLUMN_NAME_NOTE, "Written\nwithout a snippet");
+        long rowId = mDb.insert(NotePad.Notes.TABLE_NAME, null, row);
+        Uri rowUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
+        assertNull(snippet(rowUri));
+        getProvider().migrateNoteBodies();
+        assertEquals("Written without a snippet", snippet(rowUri));
+    }
+
+    /*
+     * Tests that the search URI returns the matching notes, with where the first match is in
+     * the title and an excerpt of the content around its first match.
+     */
+    public void testSearch() {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            body.append("Filler sentence number ").append(i).append(". ");
+        }
+        int bodyMatch = body.length();
+        body.append("The Needle is here. More filler follows.");
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "A needle in the title");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Nothing to see");
+        long titleId = ContentUris.parseId(
+                mMockResolver.insert(NotePad.Notes.CONTENT_URI, values));
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Plain title");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body.toString());
+        long bodyId = ContentUris.parseId(
+                mMockResolver.insert(NotePad.Notes.CONTENT_URI, values));
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "No match at all");
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        String[] projection = new String[] {
+                NotePad.Notes._ID,
+                NotePad.Notes.COLUMN_NAME_TITLE_MATCH_START,
+                NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET,
+                NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET_START
+        };
+        Cursor cursor = mMockResolver.query(NotePad.Notes.getSearchUri("NEEDLE"), projection,
+                null, null, NotePad.Notes._ID + " ASC");
+        assertEquals(2, cursor.getCount());
+
+        assertTrue(cursor.moveToNext());
+        assertEquals(titleId, cursor.getLong(0));
+        assertEquals(2, cursor.getInt(1));
+        assertTrue(cursor.isNull(2));
+
+        assertTrue(cursor.moveToNext());
+        assertEquals(bodyId, cursor.getLong(0));
+        assertEquals(-1, cursor.getInt(1));
+        String snippet = cursor.getString(2);
+        int start = cursor.getInt(3);
+        assertTrue(snippet.length() < body.length());
+        assertTrue(snippet.startsWith("…"));
+        assertEquals("Needle", snippet.substring(start, start + "Needle".length()));
+        assertTrue(body.toString().contains(snippet.substring(1)));
+        assertTrue(bodyMatch > start);
+        cursor.close();
+
+        // The selection still applies.
+        cursor = mMockResolver.query(NotePad.Notes.getSearchUri("needle"), projection,
+                NotePad.Notes._ID + " = ?", new String[] { String.valueOf(bodyId) }, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests the filters, phrases and multiple words of the search text, and that filter values
+     * are bound rather than pasted into the SQL.
+     */
+    public void testSearchQueryLanguage() {
+        Calendar calendar = new GregorianCalendar(2026, Calendar.JANUARY, 15, 12, 0);
+        long january = calendar.getTimeInMillis();
+        calendar.set(Calendar.MONTH, Calendar.MARCH);
+        long march = calendar.getTimeInMillis();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Budget draft");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Review the travel costs");
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "Work");
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, january);
+        long januaryWork = ContentUris.parseId(
+                mMockResolver.insert(NotePad.Notes.CONTENT_URI, values));
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, march);
+        long marchWork = ContentUris.parseId(
+                mMockResolver.insert(NotePad.Notes.CONTENT_URI, values));
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Costs of the travel");
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "");
+        long marchUncategorized = ContentUris.parseId(
+                mMockResolver.insert(NotePad.Notes.CONTENT_URI, values));
+
+        assertEquals(Arrays.asList(marchWork), searchIds("cat:Work modified:>2026-01-31"));
+        assertEquals(Arrays.asList(januaryWork),
+                searchIds("budget modified:2026-01-01..2026-01-31"));
+        assertEquals(Arrays.asList(januaryWork), searchIds("modified:2026-01-15"));
+        assertEquals(Arrays.asList(marchUncategorized), searchIds("cat:未分组"));
+        assertEquals(Arrays.asList(januaryWork, marchWork, marchUncategorized),
+                searchIds("travel costs"));
+        assertEquals(Arrays.asList(januaryWork, marchWork), searchIds("\"travel costs\""));
+
+        // Filter values never end up in the SQL, and a word that isn't a filter is searched.
+        assertEquals(0, searchIds("cat:Work')OR(1=1").size());
+        assertEquals(0, searchIds("modified:>yesterday").size());
+
+        // The first word is the one whose matches are located.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.getSearchUri("cat:Work draft budget"),
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE_MATCH_START }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(7, cursor.getInt(0));
+        cursor.close();
+
+        // The filters apply to fuzzy searches too.
+        cursor = mMockResolver.query(NotePad.Notes.getFuzzySearchUri("bugdet cat:未分组"),
+                new String[] { NotePad.Notes._ID }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(marchUncategorized, cursor.getLong(0));
+        assertFalse(cursor.moveToNext());
+        cursor.close();
+    }
+
+    private List<Long> searchIds(String query) {
+        Cursor cursor = mMockResolver.query(NotePad.Notes.getSearchUri(query),
+                new String[] { NotePad.Notes._ID }, null, null, NotePad.Notes._ID + " ASC");
+        try {
+            List<Long> ids = new ArrayList<Long>();
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests that the fuzzy search URI finds notes despite typos, closest first, that the index
+     * follows updates and deletes, and that notes written around the provider get indexed by
+     * the migration.
+     */
+    public void testFuzzySearch() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Quarterly budget review");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Numbers");
+        long exactId = ContentUris.parseId(
+                mMockResolver.insert(NotePad.Notes.CONTENT_URI, values));
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Groceries");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Check the bugdet before shopping");
+        long typoId = ContentUris.parseId(
+                mMockResolver.insert(NotePad.Notes.CONTENT_URI, values));
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Garden");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Nothing alike");
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        String[] projection = new String[] {
+                NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_MATCH_DISTANCE
+        };
+        Cursor cursor = mMockResolver.query(NotePad.Notes.getFuzzySearchUri("Budget"),
+                projection, null, null, null);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToNext());
+        assertEquals(exactId, cursor.getLong(0));
+        assertEquals(0, cursor.getInt(1));
+        assertTrue(cursor.moveToNext());
+        assertEquals(typoId, cursor.getLong(0));
+        assertEquals(1, cursor.getInt(1));
+        cursor.close();
+
+        // Queries that are too short match nothing.
+        cursor = mMockResolver.query(NotePad.Notes.getFuzzySearchUri("bu"), projection,
+                null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // The index follows updates and deletes.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Check the list before shopping");
+        mMockResolver.update(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                typoId), values, null, null);
+        mMockResolver.delete(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                exactId), null, null);
+        cursor = mMockResolver.query(NotePad.Notes.getFuzzySearchUri("budget"), projection,
+                null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Notes written straight to the database are indexed by the migration.
+        ContentValues row = new ContentValues();
+        row.put(NotePad.Notes.COLUMN_NAME_TITLE, "Budget written around the provider");
+        long rowId = mDb.insert(NotePad.Notes.TABLE_NAME, null, row);
+        getProvider().migrateNoteBodies();
+        cursor = mMockResolver.query(NotePad.Notes.getFuzzySearchUri("budgte"), projection,
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(rowId, cursor.getLong(0));
+        cursor.close();
+
+        // Notes in the trash, and those the selection leaves out, share as many grams but don't
+        // take the places of the notes searched.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Budget");
+        for (int i = 0; i < NoteTrigrams.MAX_CANDIDATES; i++) {
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI, NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+                new String[] { "Budget" });
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "todo_pending");
+        for (int i = 0; i < NoteTrigrams.MAX_CANDIDATES; i++) {
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+        cursor = mMockResolver.query(NotePad.Notes.getFuzzySearchUri("budget"), projection,
+                "IFNULL(" + NotePad.Notes.COLUMN_NAME_CATEGORY
+                        + ", '') NOT IN ('todo_pending', 'todo_completed')", null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(rowId, cursor.getLong(0));
+        cursor.close();
+    }
+
+    /*
+     * Tests that a change to a note drops only the cached searches it could affect: those that
+     * list the note, and those the note now matches, with or without a typo.
+     */
+    public void testSearchCache() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Budget");
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "Work");
+        Uri budgetUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Garden");
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "Home");
+        Uri gardenUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        SearchCache cache = new SearchCache();
+        assertNull(cache.get("budget", null));
+        cache.put("budget", null, results(ContentUris.parseId(budgetUri)));
+        cache.put("budget", "Home", results());
+        cache.put("rose", null, results());
+        cache.put("roses", null, results());
+        assertNotNull(cache.get("budget", null));
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+
+        // The garden note now mentions roses, with a typo; only the searches it could show up
+        // in are dropped.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Plant the rsoes");
+        mMockResolver.update(gardenUri, values, null, null);
+        cache.invalidate(mMockResolver, gardenUri);
+        assertNotNull(cache.get("budget", null));
+        assertNotNull(cache.get("budget", "Home"));
+        assertNull(cache.get("rose", null));
+        assertNull(cache.get("roses", null));
+
+        // Deleting a note drops the searches that list it.
+        mMockResolver.delete(budgetUri, null, null);
+        cache.invalidate(mMockResolver, budgetUri);
+        assertNull(cache.get("budget", null));
+        assertNotNull(cache.get("budget", "Home"));
+
+        // A change to more than one note drops everything.
+        cache.invalidate(mMockResolver, NotePad.Notes.CONTENT_URI);
+        assertEquals(0, cache.size());
+        assertEquals(4, cache.invalidationCount());
+    }
+
+    /*
+     * Tests the snapshot the home-screen widget is drawn from: the newest notes and pending
+     * todos, and that the file is only rewritten when they change.
+     */
+    public void testWidgetSnapshot() throws IOException {
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < WidgetSnapshot.MAX_NOTES + 1; i++) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note " + i);
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + i);
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Call the plumber");
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "todo_pending");
+        Uri todoUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Pay the rent");
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "todo_completed");
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        WidgetSnapshot snapshot = WidgetSnapshot.query(mDb);
+        assertEquals(WidgetSnapshot.MAX_NOTES, snapshot.notes.size());
+        assertEquals("Note " + WidgetSnapshot.MAX_NOTES, snapshot.notes.get(0).title);
+        assertEquals(1, snapshot.todos.size());
+        assertEquals(ContentUris.parseId(todoUri), snapshot.todos.get(0).id);
+
+        File file = File.createTempFile("widget_snapshot", null);
+        try {
+            assertTrue(file.delete());
+            assertTrue(snapshot.writeTo(file, false));
+            assertFalse(WidgetSnapshot.query(mDb).writeTo(file, false));
+
+            WidgetSnapshot read = WidgetSnapshot.readFrom(file);
+            assertEquals(snapshot.notes.size(), read.notes.size());
+            assertEquals(snapshot.notes.get(0).title, read.notes.get(0).title);
+            assertEquals(snapshot.todos.get(0).id, read.todos.get(0).id);
+
+            // Completing the todo takes it off the widget.
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "todo_completed");
+            mMockResolver.update(todoUri, values, null, null);
+            assertTrue(WidgetSnapshot.query(mDb).writeTo(file, false));
+            assertTrue(WidgetSnapshot.readFrom(file).todos.isEmpty());
+
+            // Encrypted, the file no longer holds the titles, but reads the same. It's
+            // rewritten when the mode changes, not when it's written again unchanged.
+            assertTrue(WidgetSnapshot.query(mDb).writeTo(file, true));
+            assertFalse(new String(new AtomicFile(file).readFully(), "ISO-8859-1").contains("Note"));
+            assertFalse(WidgetSnapshot.query(mDb).writeTo(file, true));
+            read = WidgetSnapshot.readFrom(file);
+            assertEquals(snapshot.notes.get(0).title, read.notes.get(0).title);
+            assertTrue(WidgetSnapshot.query(mDb).writeTo(file, false));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /*
+     * Tests the trash: that a deleted note is only listed there, can't be changed, and can be
+     * restored, and that it is deleted for good, body file included, once it has expired.
+     */
+    public void testTrash() {
+        StringBuilder builder = new StringBuilder();
+        for (int line = 0; builder.length() <= NoteBodyStore.EXTERNAL_THRESHOLD; line++) {
+            builder.append("Line ").append(line).append(" of a very long note\n");
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Huge");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, builder.toString());
+        Uri hugeUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long hugeId = ContentUris.parseId(hugeUri);
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Small");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Small note");
+        Uri smallUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        Uri hugeTrashUri = NotePad.Notes.getTrashUri(hugeId);
+
+        assertEquals(NotePad.Notes.CONTENT_TYPE, mMockResolver.getType(NotePad.Notes.TRASH_URI));
+        assertEquals(NotePad.Notes.CONTENT_ITEM_TYPE, mMockResolver.getType(hugeTrashUri));
+        // Only a note in the trash can be deleted for good.
+        assertEquals(0, mMockResolver.delete(hugeTrashUri, null, null));
+
+        assertEquals(1, mMockResolver.delete(hugeUri, null, null));
+        assertEquals(0, mMockResolver.delete(hugeUri, null, null));
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(hugeUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Changed");
+        assertEquals(0, mMockResolver.update(hugeUri, values, null, null));
+
+        cursor = mMockResolver.query(NotePad.Notes.TRASH_URI, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(hugeId, cursor.getLong(cursor.getColumnIndex(NotePad.Notes._ID)));
+        assertEquals("Huge", cursor.getString(
+                cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        assertFalse(cursor.isNull(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_DELETED_AT)));
+        cursor.close();
+
+        // Restoring takes nothing but the cleared column.
+        try {
+            mMockResolver.update(hugeTrashUri, values, null, null);
+            fail("updated a note in the trash");
+        } catch (IllegalArgumentException expected) {
+        }
+        ContentValues restore = new ContentValues();
+        restore.putNull(NotePad.Notes.COLUMN_NAME_DELETED_AT);
+        assertEquals(1, mMockResolver.update(hugeTrashUri, restore, null, null));
+        assertEquals(0, mMockResolver.update(hugeTrashUri, restore, null, null));
+        assertEquals("Huge", title(hugeUri));
+
+        // Notes only expire after a while.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null);
+        assertEquals(0, getProvider().purgeTrash());
+        cursor = mMockResolver.query(NotePad.Notes.TRASH_URI, null, null, null, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+
+        String bodyFile = DatabaseUtils.stringForQuery(mDb, "SELECT "
+                + NoteBodyStore.COLUMN_NAME_FILE + " FROM " + NotePad.Notes.TABLE_NAME
+                + " WHERE " + NotePad.Notes._ID + " = " + hugeId, null);
+        File file = new File(getProvider().getContext().getDatabasePath("note_pad.db").getPath()
+                + "-bodies", bodyFile);
+        assertTrue(file.exists());
+        ContentValues expired = new ContentValues();
+        expired.put(NotePad.Notes.COLUMN_NAME_DELETED_AT,
+                System.currentTimeMillis() - NoteTrash.RETENTION_MILLIS - 1);
+        mDb.update(NotePad.Notes.TABLE_NAME, expired,
+                NotePad.Notes._ID + " = " + hugeId, null);
+        assertEquals(1, getProvider().purgeTrash());
+        assertFalse(file.exists());
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+
+        // Emptying the trash deletes the rest right away.
+        assertEquals(1, mMockResolver.delete(NotePad.Notes.TRASH_URI, null, null));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+        assertEquals(0, mMockResolver.delete(smallUri, null, null));
+    }
+
+    /*
+     * Tests the reminders of todos: that the next one is the earliest of those still to come,
+     * through the index, that notes in the trash and completed todos have none, and that the
+     * reminders are cleared once taken.
+     */
+    public void testReminders() {
+        long now = System.currentTimeMillis();
+        assertEquals(0, TodoReminders.next(mDb));
+        Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN SELECT MIN("
+                + NotePad.Notes.COLUMN_NAME_REMIND_AT + ") FROM " + NotePad.Notes.TABLE_NAME
+                + " WHERE " + TodoReminders.PENDING, null);
+        assertTrue(plan.moveToFirst());
+        String detail = plan.getString(plan.getColumnIndex("detail"));
+        plan.close();
+        assertTrue(detail, detail.contains("notes_reminders"));
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "todo_pending");
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Overdue");
+        values.put(NotePad.Notes.COLUMN_NAME_DUE_DATE, now - 1000);
+        values.put(NotePad.Notes.COLUMN_NAME_REMIND_AT, now - 1000);
+        Uri overdueUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Tomorrow");
+        values.put(NotePad.Notes.COLUMN_NAME_DUE_DATE, now + 86400000);
+        values.put(NotePad.Notes.COLUMN_NAME_REMIND_AT, now + 86400000);
+        Uri tomorrowUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Next week");
+        values.put(NotePad.Notes.COLUMN_NAME_DUE_DATE, now + 7 * 86400000L);
+        values.put(NotePad.Notes.COLUMN_NAME_REMIND_AT, now + 7 * 86400000L);
+        Uri nextWeekUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals(now - 1000, TodoReminders.next(mDb));
+
+        // Only what is due is taken, once.
+        List<TodoReminders.Reminder> due = getProvider().takeDueReminders();
+        assertEquals(1, due.size());
+        assertEquals(ContentUris.parseId(overdueUri), due.get(0).id);
+        assertEquals("Overdue", due.get(0).title);
+        assertEquals(0, getProvider().takeDueReminders().size());
+        assertEquals(now + 86400000, TodoReminders.next(mDb));
+
+        // The due date stays.
+        Cursor cursor = mMockResolver.query(overdueUri, new String[] {
+                NotePad.Notes.COLUMN_NAME_DUE_DATE, NotePad.Notes.COLUMN_NAME_REMIND_AT
+        }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(now - 1000, cursor.getLong(0));
+        assertTrue(cursor.isNull(1));
+        cursor.close();
+
+        mMockResolver.delete(tomorrowUri, null, null);
+        assertEquals(now + 7 * 86400000L, TodoReminders.next(mDb));
+        ContentValues restore = new ContentValues();
+        restore.putNull(NotePad.Notes.COLUMN_NAME_DELETED_AT);
+        mMockResolver.update(NotePad.Notes.getTrashUri(ContentUris.parseId(tomorrowUri)),
+                restore, null, null);
+        assertEquals(now + 86400000, TodoReminders.next(mDb));
+
+        // Completing a todo clears its reminder, one at a time or in bulk.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "todo_completed");
+        mMockResolver.update(tomorrowUri, values, null, null);
+        assertEquals(now + 7 * 86400000L, TodoReminders.next(mDb));
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Next week" });
+        assertEquals(0, TodoReminders.next(mDb));
+        cursor = mMockResolver.query(nextWeekUri, new String[] {
+                NotePad.Notes.COLUMN_NAME_DUE_DATE, NotePad.Notes.COLUMN_NAME_REMIND_AT
+        }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(now + 7 * 86400000L, cursor.getLong(0));
+        assertTrue(cursor.isNull(1));
+        cursor.close();
+    }
+
+    /*
+     * Tests the order of todos: that new todos and todos changing status go on top, that a
+     * move between two others writes a key between theirs, and that rebalancing keeps the
+     * order while giving keys to todos without one.
+     */
+    public void testTodoRanks() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "todo_pending");
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "C");
+        Uri cUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "B");
+        Uri bUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "A");
+        Uri aUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals(Arrays.asList("A", "B", "C"), todoTitles("todo_pending"));
+        assertFalse(TodoRank.isUnbalanced(mDb));
+
+        // Moves A between B and C, writing A alone.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_RANK, TodoRank.between(rank(bUri), rank(cUri)));
+        assertEquals(1, mMockResolver.update(aUri, values, null, null));
+        assertEquals(Arrays.asList("B", "A", "C"), todoTitles("todo_pending"));
+
+        // Keys stay in order, and short, through many moves into the same gap.
+        String low = rank(bUri);
+        String high = rank(aUri);
+        for (int i = 0; i < 50; i++) {
+            String key = TodoRank.between(low, high);
+            assertTrue(low.compareTo(key) < 0 && key.compareTo(high) < 0);
+            high = key;
+        }
+        assertTrue(high, high.length() <= 12);
+
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "todo_completed");
+        mMockResolver.update(cUri, values, null, null);
+        mMockResolver.update(bUri, values, null, null);
+        assertEquals(Arrays.asList("B", "C"), todoTitles("todo_completed"));
+        assertEquals(Arrays.asList("A"), todoTitles("todo_pending"));
+
+        // Todos from before ranks are listed first, and ranked in that order.
+        ContentValues row = new ContentValues();
+        row.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "todo_pending");
+        row.put(NotePad.Notes.COLUMN_NAME_TITLE, "Old");
+        mDb.insert(NotePad.Notes.TABLE_NAME, null, row);
+        assertTrue(TodoRank.isUnbalanced(mDb));
+        assertEquals(Arrays.asList("Old", "A"), todoTitles("todo_pending"));
+        assertEquals(4, getProvider().rebalanceTodoRanks());
+        assertEquals(0, getProvider().rebalanceTodoRanks());
+        assertEquals(Arrays.asList("Old", "A"), todoTitles("todo_pending"));
+        assertEquals(Arrays.asList("B", "C"), todoTitles("todo_completed"));
+    }
+
+    private List<String> todoTitles(String category) {
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE },
+                NotePad.Notes.COLUMN_NAME_CATEGORY + " = ?", new String[] { category },
+                NotePad.Notes.RANK_SORT_ORDER);
+        try {
+            List<String> titles = new ArrayList<String>();
+            while (cursor.moveToNext()) {
+                titles.add(cursor.getString(0));
+            }
+            return titles;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String rank(Uri noteUri) {
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_RANK }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests subtasks: that the progress of every todo above a subtask follows it being added
+     * and ticked off, that a todo goes to the trash and back with its subtasks, and that a
+     * status is read as one tree, through the parent index.
+     */
+    public void testSubtasks() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "todo_pending");
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Trip");
+        Uri tripUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_PARENT_ID, ContentUris.parseId(tripUri));
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Tickets");
+        Uri ticketsUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Packing");
+        Uri packingUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_PARENT_ID, ContentUris.parseId(packingUri));
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "todo_completed");
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Passport");
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals("1/3", progress(tripUri));
+        assertEquals("1/1", progress(packingUri));
+
+        // A subtask is listed under its todo whatever its status, newest first.
+        List<String> tree = Arrays.asList("Trip", " Packing", "  Passport", " Tickets");
+        assertEquals(tree, todoTree("todo_pending"));
+        assertEquals(Collections.emptyList(), todoTree("todo_completed"));
+
+        // Ticking a subtask off counts for every todo above it; the counts can't be written.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "todo_completed");
+        values.put(NotePad.Notes.COLUMN_NAME_SUBTASKS, 10);
+        values.put(NotePad.Notes.COLUMN_NAME_PARENT_ID, ContentUris.parseId(packingUri));
+        assertEquals(1, mMockResolver.update(ticketsUri, values, null, null));
+        assertEquals("2/3", progress(tripUri));
+        assertEquals("0/0", progress(ticketsUri));
+        assertEquals(tree, todoTree("todo_pending"));
+
+        try {
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_PARENT_ID, 1000);
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+            fail("Added a subtask to a missing todo");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            values.put(NotePad.Notes.COLUMN_NAME_PARENT_ID,
+                    ContentUris.parseId(insertNote("Plain note", null, null)));
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+            fail("Added a subtask to a note that isn't a todo");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        // Its subtasks go to the trash with a todo, and come back with it.
+        assertEquals(1, mMockResolver.delete(packingUri, null, null));
+        assertEquals(Arrays.asList("Trip", " Tickets"), todoTree("todo_pending"));
+        assertEquals("1/1", progress(tripUri));
+        values.clear();
+        values.putNull(NotePad.Notes.COLUMN_NAME_DELETED_AT);
+        assertEquals(1, mMockResolver.update(
+                NotePad.Notes.getTrashUri(ContentUris.parseId(packingUri)), values, null, null));
+        assertEquals(tree, todoTree("todo_pending"));
+        assertEquals("2/3", progress(tripUri));
+
+        // So they do when the todo is deleted, and restored, with a selection.
+        String[] tripArgs = new String[] { String.valueOf(ContentUris.parseId(tripUri)) };
+        assertEquals(1, mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes._ID + " = ?", tripArgs));
+        assertEquals(Collections.emptyList(), todoTree("todo_pending"));
+        assertEquals(Collections.emptyList(), todoTree("todo_completed"));
+        assertEquals(1, mMockResolver.update(NotePad.Notes.TRASH_URI, values,
+                NotePad.Notes._ID + " = ?", tripArgs));
+        assertEquals(tree, todoTree("todo_pending"));
+        assertEquals("2/3", progress(tripUri));
+
+        Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN " + TodoTree.TREE_SQL,
+                new String[] { "todo_pending" });
+        StringBuilder details = new StringBuilder();
+        while (plan.moveToNext()) {
+            details.append(plan.getString(plan.getColumnIndex("detail"))).append('\n');
+        }
+        plan.close();
+        assertTrue(details.toString(), details.toString().contains("notes_parent"));
+    }
+
+    // The titles of a todo tree, indented by depth.
+    private List<String> todoTree(String status) {
+        Cursor cursor = mMockResolver.query(NotePad.Notes.getTodoTreeUri(status), null, null,
+                null, null);
+        try {
+            List<String> titles = new ArrayList<String>();
+            int depth = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_DEPTH);
+            int title = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
+            while (cursor.moveToNext()) {
+                titles.add(new String(new char[cursor.getInt(depth)]).replace('\0', ' ')
+                        + cursor.getString(title));
+            }
+            return titles;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String progress(Uri noteUri) {
+        Cursor cursor = mMockResolver.query(noteUri, new String[] {
+                NotePad.Notes.COLUMN_NAME_SUBTASKS_DONE, NotePad.Notes.COLUMN_NAME_SUBTASKS
+        }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0) + "/" + cursor.getInt(1);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests tags: that tagging counts the notes of each tag, that names differing in case are
+     * one tag, that notes are filtered by all or any of several tags, and that tags come off
+     * notes deleted for good.
+     */
+    public void testTags() {
+        Uri aUri = insertNote("A", null, null);
+        Uri bUri = insertNote("B", null, null);
+        Uri cUri = insertNote("C", null, null);
+        tag(aUri, "work");
+        tag(aUri, "home");
+        tag(bUri, "work");
+        tag(cUri, "Home");
+        tag(cUri, "urgent");
+        assertEquals(Arrays.asList("home 2", "urgent 1", "work 2"), tags(NotePad.Tags.CONTENT_URI));
+        assertEquals(Arrays.asList("home 2", "work 2"),
+                tags(NotePad.Tags.getContentUri(ContentUris.parseId(aUri))));
+
+        assertEquals(Arrays.asList("A"), taggedTitles(true, "work", "home"));
+        assertEquals(Arrays.asList("A", "C"), taggedTitles(true, "home", "HOME"));
+        assertEquals(Arrays.asList("A", "B", "C"), taggedTitles(false, "work", "urgent"));
+        assertEquals(Collections.emptyList(), taggedTitles(true, "work", "none"));
+        assertEquals(Arrays.asList("A", "B", "C"), taggedTitles(false, "none", "work", "home"));
+
+        // Notes with all the tags are found from the list of the rarest, through the key.
+        List<String> args = new ArrayList<String>();
+        String where = NoteTags.filter(mDb, Arrays.asList("work", "urgent"), true, args);
+        assertEquals(String.valueOf(tagId("urgent")), args.get(0));
+        Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN SELECT " + NotePad.Notes._ID + " FROM "
+                + NotePad.Notes.TABLE_NAME + " WHERE " + where, args.toArray(new String[0]));
+        StringBuilder details = new StringBuilder();
+        while (plan.moveToNext()) {
+            details.append(plan.getString(plan.getColumnIndex("detail"))).append('\n');
+        }
+        plan.close();
+        assertTrue(details.toString(), details.toString().contains("tag_id=? AND note_id=?"));
+
+        assertEquals(1, mMockResolver.delete(ContentUris.withAppendedId(
+                NotePad.Tags.getContentUri(ContentUris.parseId(aUri)), tagId("home")), null, null));
+        assertEquals(Arrays.asList("C"), taggedTitles(true, "home"));
+
+        // Notes in the trash aren't listed, and lose their tags once deleted for good.
+        assertEquals(1, mMockResolver.delete(cUri, null, null));
+        assertEquals(Collections.emptyList(), taggedTitles(false, "home", "urgent"));
+        assertEquals(1, mMockResolver.delete(
+                NotePad.Notes.getTrashUri(ContentUris.parseId(cUri)), null, null));
+        assertEquals(Arrays.asList("home 0", "urgent 0", "work 2"), tags(NotePad.Tags.CONTENT_URI));
+
+        assertEquals(1, mMockResolver.delete(
+                ContentUris.withAppendedId(NotePad.Tags.CONTENT_URI, tagId("work")), null, null));
+        assertEquals(Collections.emptyList(), taggedTitles(false, "work"));
+        assertEquals(Collections.emptyList(),
+                tags(NotePad.Tags.getContentUri(ContentUris.parseId(bUri))));
+
+        try {
+            tag(cUri, "work");
+            fail("Tagged a note that was deleted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    // Inserts a note; a null text or category is left to the provider's default.
+    private Uri insertNote(String title, String text, String category) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
+        if (text != null) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        }
+        if (category != null) {
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, category);
+        }
+        return mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+    }
+
+    private void tag(Uri noteUri, String name) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Tags.COLUMN_NAME_NAME, name);
+        assertNotNull(mMockResolver.insert(
+                NotePad.Tags.getContentUri(ContentUris.parseId(noteUri)), values));
+    }
+
+    private long tagId(String name) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT " + NotePad.Tags._ID + " FROM "
+                + NotePad.Tags.TABLE_NAME + " WHERE " + NotePad.Tags.COLUMN_NAME_NAME + " = ?",
+                new String[] { name });
+    }
+
+    // The names of the tags of a URI, each followed by its number of notes.
+    private List<String> tags(Uri uri) {
+        Cursor cursor = mMockResolver.query(uri, new String[] {
+                NotePad.Tags.COLUMN_NAME_NAME, NotePad.Tags.COLUMN_NAME_NOTE_COUNT
+        }, null, null, null);
+        try {
+            List<String> tags = new ArrayList<String>();
+            while (cursor.moveToNext()) {
+                tags.add(cursor.getString(0) + " " + cursor.getInt(1));
+            }
+            return tags;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private List<String> taggedTitles(boolean all, String... tags) {
+        Cursor cursor = mMockResolver.query(NotePad.Notes.getTaggedUri(all, tags),
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE }, null, null,
+                NotePad.Notes.COLUMN_NAME_TITLE);
+        try {
+            List<String> titles = new ArrayList<String>();
+            while (cursor.moveToNext()) {
+                titles.add(cursor.getString(0));
+            }
+            return titles;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests smart folders: that a new folder is filled with the notes its search text matches,
+     * that notes move in and out of folders as they are written, one at a time or in bulk, that
+     * the trash hides them without taking them out, and that changing the search text fills the
+     * folder again.
+     */
+    public void testSmartFolders() {
+        Uri aUri = insertNote("Weekly report", "draft", "work");
+        Uri bUri = insertNote("Groceries", "milk, and the report on prices", null);
+        insertNote("Send report", "", "todo_pending");
+        long reports = insertSmartFolder("Work reports", "cat:work report");
+        long all = insertSmartFolder("All", null);
+        assertEquals(Arrays.asList("Weekly report"), folderTitles(reports));
+        assertEquals(Arrays.asList("Groceries", "Weekly report"), folderTitles(all));
+
+        // A new note, and a note changed on its own, are filed as they are written.
+        Uri cUri = insertNote("Report for Q3", "", "work");
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "work");
+        assertEquals(1, mMockResolver.update(bUri, values, null, null));
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Weekly summary");
+        assertEquals(1, mMockResolver.update(aUri, values, null, null));
+        assertEquals(Arrays.asList("Groceries", "Report for Q3"), folderTitles(reports));
+
+        // The notes of a folder are read from its list, through the key.
+        Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN SELECT " + NotePad.Notes._ID + " FROM "
+                + NotePad.Notes.TABLE_NAME + " WHERE " + NoteFolders.FOLDER_NOTES_WHERE,
+                new String[] { String.valueOf(reports) });
+        StringBuilder details = new StringBuilder();
+        while (plan.moveToNext()) {
+            details.append(plan.getString(plan.getColumnIndex("detail"))).append('\n');
+        }
+        plan.close();
+        assertTrue(details.toString(), details.toString().contains("folder_id=?"));
+
+        // So are notes changed in bulk.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "home");
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Groceries" }));
+        assertEquals(Arrays.asList("Report for Q3"), folderTitles(reports));
+
+        // Notes in the trash aren't listed, and are again once restored.
+        assertEquals(1, mMockResolver.delete(cUri, null, null));
+        assertEquals(Collections.<String>emptyList(), folderTitles(reports));
+        values.clear();
+        values.putNull(NotePad.Notes.COLUMN_NAME_DELETED_AT);
+        assertEquals(1, mMockResolver.update(
+                NotePad.Notes.getTrashUri(ContentUris.parseId(cUri)), values, null, null));
+        assertEquals(Arrays.asList("Report for Q3"), folderTitles(reports));
+
+        Uri reportsUri = ContentUris.withAppendedId(NotePad.SmartFolders.CONTENT_ID_URI_BASE,
+                reports);
+        values.clear();
+        values.put(NotePad.SmartFolders.COLUMN_NAME_QUERY, "cat:home");
+        assertEquals(1, mMockResolver.update(reportsUri, values, null, null));
+        assertEquals(Arrays.asList("Groceries"), folderTitles(reports));
+
+        assertEquals(1, mMockResolver.delete(reportsUri, null, null));
+        assertEquals(0, DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM "
+                + NoteFolders.TABLE_NAME + " WHERE folder_id = ?",
+                new String[] { String.valueOf(reports) }));
+        Cursor folders = mMockResolver.query(NotePad.SmartFolders.CONTENT_URI, null, null, null,
+                null);
+        assertEquals(1, folders.getCount());
+        folders.close();
+
+        try {
+            insertSmartFolder(" ", "report");
+            fail("Saved a smart folder without a name");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private long insertSmartFolder(String name, String query) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.SmartFolders.COLUMN_NAME_NAME, name);
+        values.put(NotePad.SmartFolders.COLUMN_NAME_QUERY, query);
+        return ContentUris.parseId(
+                mMockResolver.insert(NotePad.SmartFolders.CONTENT_URI, values));
+    }
+
+    private List<String> folderTitles(long folderId) {
+        Cursor cursor = mMockResolver.query(NotePad.SmartFolders.getNotesUri(folderId),
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE }, null, null,
+                NotePad.Notes.COLUMN_NAME_TITLE);
+        try {
+            List<String> titles = new ArrayList<String>();
+            while (cursor.moveToNext()) {
+                titles.add(cursor.getString(0));
+            }
+            return titles;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests database maintenance: that a new database is already in incremental vacuum mode,
+     * that the pages freed by a mass delete are given back, and that the planner statistics
+     * are only gathered again once the note count has changed enough.
+     */
+    public void testMaintenance() {
+        assertEquals(2, DatabaseUtils.longForQuery(mDb, "PRAGMA auto_vacuum", null));
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, new String(new char[2000]).replace('\0', 'x'));
+        for (int i = 0; i < 500; i++) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note " + i);
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+        assertTrue(NoteMaintenance.isAnalysisStale(mDb));
+        NoteMaintenance.Report report = getProvider().runMaintenance();
+        assertFalse(report.rebuilt);
+        assertTrue(report.analyzed);
+        assertFalse(NoteMaintenance.isAnalysisStale(mDb));
+
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null);
+        mMockResolver.delete(NotePad.Notes.TRASH_URI, null, null);
+        assertTrue(DatabaseUtils.longForQuery(mDb, "PRAGMA freelist_count", null)
+                >= NoteMaintenance.MIN_FREE_PAGES);
+        report = getProvider().runMaintenance();
+        assertTrue(report.pagesFreed >= NoteMaintenance.MIN_FREE_PAGES);
+        assertEquals(0, report.after.freePages);
+        assertTrue(report.after.fileBytes < report.before.fileBytes);
+        assertTrue(report.analyzed);
+    }
+
+    /*
+     * Tests the sync engine against an in-process server: that only changed notes are sent,
+     * that changes from another device are applied without being sent back, and that a note
+     * changed on both sides keeps the local change.
+     */
+    public void testSync() throws IOException {
+        LocalSyncServer server = new LocalSyncServer();
+        NoteSync sync = new NoteSync(mDb, mMockResolver, server, false);
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Groceries");
+        Uri groceriesUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Travel");
+        Uri travelUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals(2, sync.push());
+        assertEquals(0, NoteChangeLog.size(mDb));
+
+        // Edits in between syncs are sent once per note.
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Groceries for Sunday");
+        mMockResolver.update(groceriesUri, values, null, null);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Milk, eggs");
+        mMockResolver.update(groceriesUri, values, null, null);
+        assertEquals(1, sync.push());
+        assertEquals(0, sync.push());
+
+        // Another device sees both notes, edits one and adds one.
+        SyncBatch remote = SyncBatch.decode(server.pull("other", 0, NoteSync.BATCH_SIZE));
+        assertEquals(2, remote.changes.size());
+        String travelId = null;
+        String groceriesId = null;
+        for (SyncBatch.Change change : remote.changes) {
+            if ("Travel".equals(change.title)) {
+                travelId = change.syncId;
+            } else {
+                groceriesId = change.syncId;
+                assertEquals("Milk, eggs", change.note);
+            }
+        }
+        List<SyncBatch.Change> changes = new ArrayList<SyncBatch.Change>();
+        changes.add(new SyncBatch.Change(travelId, "Travel to Lisbon", "", null, 1, 2));
+        changes.add(new SyncBatch.Change("new-note", "Books", "Dune", "Home", 1, 2));
+        server.push("other", new SyncBatch(0, false, changes).encode());
+
+        assertEquals(2, sync.pull());
+        assertEquals("Travel to Lisbon", title(travelUri));
+        assertEquals(0, NoteChangeLog.size(mDb));
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE },
+                NotePad.Notes.COLUMN_NAME_TITLE + " = 'Books'", null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Dune", cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+
+        // Both sides edit the same note: the texts are merged, the local title is kept, and
+        // the result is sent.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Groceries for Monday");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Oat milk, eggs");
+        mMockResolver.update(groceriesUri, values, null, null);
+        changes.clear();
+        changes.add(new SyncBatch.Change(groceriesId, "Groceries for Tuesday",
+                "Milk, eggs, bread", null, 1, 3));
+        changes.add(SyncBatch.Change.deletion("new-note"));
+        server.push("other", new SyncBatch(0, false, changes).encode());
+        sync.sync();
+        assertEquals("Groceries for Monday", title(groceriesUri));
+        assertEquals("Oat milk, eggs, bread", note(groceriesUri));
+        assertEquals("Groceries for Monday", server.get(groceriesId).title);
+        assertEquals("Oat milk, eggs, bread", server.get(groceriesId).note);
+        assertEquals(2, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+
+        // A local delete is sent as one.
+        mMockResolver.delete(travelUri, null, null);
+        assertEquals(1, sync.push());
+        assertTrue(server.get(travelId).deleted);
+    }
+
+    /*
+     * Tests that a client that encrypts its notes sends their titles and texts sealed, which
+     * the server passes on as they are, and opens the sealed changes it gets back.
+     */
+    public void testSealedSync() throws IOException {
+        getProvider().setEncryptNotes(true);
+        LocalSyncServer server = new LocalSyncServer();
+        NoteSync sync = new NoteSync(mDb, mMockResolver, server, true);
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Diary");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Dear diary");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals(1, sync.push());
+
+        SyncBatch remote = SyncBatch.decode(server.pull("other", 0, NoteSync.BATCH_SIZE));
+        assertEquals(1, remote.changes.size());
+        SyncBatch.Change change = remote.changes.get(0);
+        assertTrue(change.sealed);
+        assertNull(change.title);
+        assertNull(change.note);
+        SyncBatch.Change opened = change.open(NoteCipher.get());
+        assertEquals("Diary", opened.title);
+        assertEquals("Dear diary", opened.note);
+
+        // Another device with the same key edits the note.
+        List<SyncBatch.Change> changes = new ArrayList<SyncBatch.Change>();
+        changes.add(new SyncBatch.Change(change.syncId, "Diary, day two", "Dear diary, again",
+                null, 1, 2).seal(NoteCipher.get()));
+        server.push("other", new SyncBatch(0, false, changes).encode());
+        assertEquals(1, sync.pull());
+        assertEquals("Diary, day two", title(noteUri));
+        assertEquals("Dear diary, again", note(noteUri));
+        getProvider().setEncryptNotes(false);
+    }
+
+    private static List<NotesFragment.Group> results(long... noteIds) {
+        List<NotesFragment.Note> notes = new ArrayList<NotesFragment.Note>();
+        for (long noteId : noteIds) {
+            notes.add(new NotesFragment.Note(noteId, "", 0, ""));
+        }
+        return Collections.singletonList(new NotesFragment.Group("Work", notes));
+    }
+
+    private String note(Uri noteUri) {
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String snippet(Uri noteUri) {
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_SNIPPET }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String revision(Uri noteUri, int revision) {
+        Cursor cursor = mMockResolver.query(
+                NotePad.Revisions.getContentUri(ContentUris.parseId(noteUri), revision),
+                null, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(cursor.getColumnIndex(NotePad.Revisions.COLUMN_NAME_NOTE));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String readBody(long noteId) throws IOException {
+        AssetFileDescriptor descriptor = mMockResolver.openTypedAssetFileDescriptor(
+                NotePad.Notes.getBodyUri(noteId), MIME_TYPE_TEXT, null);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                descriptor.createInputStream(), "UTF-8"));
+        try {
+            StringBuilder body = new StringBuilder();
+            char[] buffer = new char[8192];
+            int count;
+            while ((count = reader.read(buffer)) > 0) {
+                body.append(buffer, 0, count);
+            }
+            return body.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private int storedFormat(Uri noteUri) {
+        Cursor cursor = mDb.query(NotePad.Notes.TABLE_NAME,
+                new String[] { NoteBodyCodec.COLUMN_NAME_FORMAT },
+                NotePad.Notes._ID + " = " + ContentUris.parseId(noteUri), null, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
     // A utility for converting note data to a ContentValues map.
     private static class NoteInfo {
         String title;
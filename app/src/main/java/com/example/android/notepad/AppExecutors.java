@@ -0,0 +1,66 @@
+package com.example.android.notepad;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Shared executors for work that must stay off the main thread. All database reads issued by the
+ * UI go through a single background thread, so loads run in the order they were requested and a
+ * load queued behind the startup preload sees its result instead of repeating it.
+ */
+final class AppExecutors {
+
+    private static final ExecutorService sDiskIO = Executors.newSingleThreadExecutor(
+            backgroundThreads("notepad-disk-io"));
+
+    private static final ExecutorService sMaintenance = Executors.newSingleThreadExecutor(
+            backgroundThreads("notepad-maintenance"));
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    // This class cannot be instantiated
+    private AppExecutors() {
+    }
+
+    /**
+     * Returns the executor used for database and file access.
+     */
+    static ExecutorService diskIO() {
+        return sDiskIO;
+    }
+
+    /**
+     * Returns the executor for database maintenance, which can hold the database for long
+     * enough that the loads queued on {@link #diskIO()} shouldn't wait behind it.
+     */
+    static ExecutorService maintenance() {
+        return sMaintenance;
+    }
+
+    /**
+     * Posts the runnable to the main thread.
+     */
+    static void runOnMainThread(Runnable r) {
+        sMainHandler.post(r);
+    }
+
+    private static ThreadFactory backgroundThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, name);
+            }
+        };
+    }
+}
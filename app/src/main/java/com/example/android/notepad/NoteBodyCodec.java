@@ -0,0 +1,311 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes note bodies for storage. Each row of the notes table has a format column holding a set
+ * of flags that describe how its note column is stored; a plain row stores the text as TEXT, a
+ * row with {@link #FLAG_DEFLATE} set stores the UTF-8 text deflated, as a BLOB. Bodies too
+ * large for the table are kept in files, see {@link #FLAG_EXTERNAL}. A row with
+ * {@link #FLAG_ENCRYPT} set has its body, and its snippet, encrypted by {@link NoteCipher}.
+ *
+ * <p>Titles are encrypted in the same mode, but on their own: a title can be written without
+ * the body, so its storage type rather than the format column tells how it is stored. An
+ * encrypted title is a BLOB, see {@link #SEALED_TITLE}; a plain one is TEXT. SQL can neither
+ * sort nor match encrypted titles, so they are sorted in memory, see {@link TitleIndex}, and
+ * searched through keyed grams, see {@link NoteTrigrams}.
+ *
+ * <p>Only bodies of at least {@link #COMPRESSION_THRESHOLD} bytes are compressed, and only if
+ * deflating them saves enough space to pay for inflating them on every read. Short notes, which
+ * are most notes, are never touched.
+ *
+ * <p>SQL run directly against the note column, such as a LIKE selection, only sees the text of
+ * rows with none of the {@link #OPAQUE_FLAGS}. Compression and encryption are therefore opt-in
+ * storage modes, see {@code R.bool.config_compress_large_notes} and
+ * {@code R.bool.config_encrypt_notes}.
+ */
+final class NoteBodyCodec {
+
+    /**
+     * Column name for the storage format flags of the note column. Not part of the contract;
+     * clients never see it.
+     * <P>Type: INTEGER</P>
+     */
+    static final String COLUMN_NAME_FORMAT = "note_format";
+
+    /**
+     * The note column holds the text as is.
+     */
+    static final int FORMAT_PLAIN = 0;
+
+    /**
+     * The note column holds the UTF-8 text, deflated.
+     */
+    static final int FLAG_DEFLATE = 1;
+
+    /**
+     * The body is stored in a file, see {@link NoteBodyStore}. The note column holds the start
+     * of the text.
+     */
+    static final int FLAG_EXTERNAL = 2;
+
+    /**
+     * The note column holds what it otherwise would encrypted, as a BLOB; a compressed body is
+     * compressed first. So does the snippet column. For a body in a file, the file is encrypted
+     * too, see {@link NoteBodyStore#write(String, boolean)}.
+     */
+    static final int FLAG_ENCRYPT = 4;
+
+    /**
+     * The flags with which the note column doesn't hold the text as is.
+     */
+    static final int OPAQUE_FLAGS = FLAG_DEFLATE | FLAG_ENCRYPT;
+
+    /**
+     * Selects the rows whose title is encrypted.
+     */
+    static final String SEALED_TITLE = "typeof(" + NotePad.Notes.COLUMN_NAME_TITLE
+            + ") = 'blob'";
+
+    /**
+     * The smallest body, in UTF-8 bytes, that is worth compressing.
+     */
+    static final int COMPRESSION_THRESHOLD = 2048;
+
+    // Rows changed per transaction by migrate(), so the migration never holds the database for
+    // long while the user is editing.
+    private static final int MIGRATION_BATCH_SIZE = 50;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // This class cannot be instantiated
+    private NoteBodyCodec() {
+    }
+
+    /**
+     * If the values hold a note body, replaces it with its stored form and sets the format
+     * column to match. If the body is encrypted, so is the snippet in the values, if any.
+     *
+     * @param compress whether bodies over the threshold should be compressed.
+     * @param encrypt whether bodies should be encrypted.
+     */
+    static void encode(ContentValues values, boolean compress, boolean encrypt) {
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            return;
+        }
+        String text = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        byte[] deflated = compress && text != null ? deflate(text) : null;
+        int format = deflated != null ? FLAG_DEFLATE : FORMAT_PLAIN;
+        if (encrypt && text != null) {
+            NoteCipher cipher = NoteCipher.get();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE,
+                    cipher.encrypt(deflated != null ? deflated : text.getBytes(UTF_8)));
+            String snippet = values.getAsString(NotePad.Notes.COLUMN_NAME_SNIPPET);
+            if (snippet != null) {
+                values.put(NotePad.Notes.COLUMN_NAME_SNIPPET,
+                        cipher.encrypt(snippet.getBytes(UTF_8)));
+            }
+            format |= FLAG_ENCRYPT;
+        } else if (deflated != null) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, deflated);
+        }
+        values.put(COLUMN_NAME_FORMAT, format);
+    }
+
+    /**
+     * If the values hold a title and titles are to be encrypted, replaces it with its
+     * encrypted form.
+     */
+    static void encodeTitle(ContentValues values, boolean encrypt) {
+        String title = values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE);
+        if (encrypt && title != null) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE,
+                    NoteCipher.get().encrypt(title.getBytes(UTF_8)));
+        }
+    }
+
+    /**
+     * Returns whether the title column at the cursor's current row is encrypted.
+     */
+    static boolean isSealedTitle(Cursor c, int titleIndex) {
+        return c.getType(titleIndex) == Cursor.FIELD_TYPE_BLOB;
+    }
+
+    /**
+     * Returns the title column at the cursor's current row, decrypted if need be.
+     */
+    static String decodeTitle(Cursor c, int titleIndex) {
+        if (!isSealedTitle(c, titleIndex)) {
+            return c.getString(titleIndex);
+        }
+        return new String(NoteCipher.get().decrypt(c.getBlob(titleIndex)), UTF_8);
+    }
+
+    /**
+     * Returns the text of the note column at the cursor's current row. For a body stored in a
+     * file, that is the start of the text.
+     */
+    static String decode(Cursor c, int noteIndex, int format) {
+        if ((format & OPAQUE_FLAGS) == 0) {
+            return c.getString(noteIndex);
+        }
+        byte[] data = c.getBlob(noteIndex);
+        if ((format & FLAG_ENCRYPT) != 0) {
+            data = NoteCipher.get().decrypt(data);
+        }
+        return (format & FLAG_DEFLATE) != 0 ? inflate(data) : new String(data, UTF_8);
+    }
+
+    /**
+     * Returns the snippet column at the cursor's current row, the format column of which is
+     * given.
+     */
+    static String decodeSnippet(Cursor c, int snippetIndex, int format) {
+        if ((format & FLAG_ENCRYPT) == 0 || c.isNull(snippetIndex)) {
+            return c.getString(snippetIndex);
+        }
+        return new String(NoteCipher.get().decrypt(c.getBlob(snippetIndex)), UTF_8);
+    }
+
+    /**
+     * Rewrites the bodies and the titles that aren't stored the way the given modes would store
+     * them, a batch at a time. Runs off the main thread when a mode has changed since the rows
+     * were written, or when the database predates the format column.
+     *
+     * @return the number of rows rewritten.
+     */
+    static int migrate(SQLiteDatabase db, boolean compress, boolean encrypt) {
+        // Bodies in files are left alone; their rows only hold the start of the text. They are
+        // stored in the current mode when they are next saved. Their titles are rewritten.
+        String selection = NotePad.Notes._ID + " > ? AND ((" + COLUMN_NAME_FORMAT + " & "
+                + FLAG_EXTERNAL + ") = 0 AND ((" + COLUMN_NAME_FORMAT + " & " + FLAG_ENCRYPT
+                + (encrypt ? ") = 0" : ") != 0") + " OR " + (compress
+                ? "(" + COLUMN_NAME_FORMAT + " & " + FLAG_DEFLATE + ") = 0 AND LENGTH(CAST("
+                        + NotePad.Notes.COLUMN_NAME_NOTE + " AS BLOB)) >= "
+                        + COMPRESSION_THRESHOLD
+                : "(" + COLUMN_NAME_FORMAT + " & " + FLAG_DEFLATE + ") != 0") + ") OR "
+                + (encrypt ? "NOT " : "") + SEALED_TITLE + ")";
+        String[] columns = new String[] {
+                NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_NOTE, COLUMN_NAME_FORMAT,
+                NotePad.Notes.COLUMN_NAME_TITLE
+        };
+
+        // Walks the table in id order, so a body that doesn't compress well is looked at once
+        // rather than selected again by every batch.
+        long lastId = 0;
+        int migrated = 0;
+        while (true) {
+            int rows = 0;
+            db.beginTransaction();
+            try {
+                // A rewrite isn't an edit, so like a change from the server, it isn't logged
+                // to be sent.
+                db.execSQL(NoteChangeLog.BEGIN_REMOTE_SQL);
+                Cursor c = db.query(NotePad.Notes.TABLE_NAME, columns, selection,
+                        new String[] { String.valueOf(lastId) }, null, null,
+                        NotePad.Notes._ID + " ASC", String.valueOf(MIGRATION_BATCH_SIZE));
+                try {
+                    while (c.moveToNext()) {
+                        rows++;
+                        lastId = c.getLong(0);
+                        int format = c.getInt(2);
+                        int newFormat = format;
+                        ContentValues values = new ContentValues();
+                        if ((format & FLAG_EXTERNAL) == 0) {
+                            String text = decode(c, 1, format);
+                            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+                            values.put(NotePad.Notes.COLUMN_NAME_SNIPPET, NoteSnippet.of(text));
+                            encode(values, compress, encrypt);
+                            newFormat = values.getAsInteger(COLUMN_NAME_FORMAT);
+                            if (newFormat == format) {
+                                values.clear();
+                            }
+                        }
+                        boolean titleChanged = !c.isNull(3) && isSealedTitle(c, 3) != encrypt;
+                        if (titleChanged) {
+                            values.put(NotePad.Notes.COLUMN_NAME_TITLE, decodeTitle(c, 3));
+                            encodeTitle(values, encrypt);
+                        }
+                        if (values.size() > 0) {
+                            db.update(NotePad.Notes.TABLE_NAME, values, NotePad.Notes._ID + " = ?",
+                                    new String[] { String.valueOf(lastId) });
+                            // Only the title of an encrypted note is in the fuzzy search index,
+                            // and an encrypted title only by its keyed grams.
+                            if (titleChanged || ((newFormat ^ format) & FLAG_ENCRYPT) != 0) {
+                                NoteTrigrams.reindex(db, new long[] { lastId });
+                            }
+                            migrated++;
+                        }
+                    }
+                } finally {
+                    c.close();
+                }
+                db.execSQL(NoteChangeLog.END_REMOTE_SQL);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            if (rows < MIGRATION_BATCH_SIZE) {
+                return migrated;
+            }
+        }
+    }
+
+    /**
+     * Returns the deflated UTF-8 form of the text, or null if the text is too short to be worth
+     * compressing or doesn't compress by at least an eighth.
+     */
+    static byte[] deflate(String text) {
+        byte[] bytes = text.getBytes(UTF_8);
+        if (bytes.length < COMPRESSION_THRESHOLD) {
+            return null;
+        }
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.size() <= bytes.length - bytes.length / 8 ? out.toByteArray() : null;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns the text of a body deflated by {@link #deflate(String)}.
+     *
+     * @throws IllegalStateException if the data is corrupt.
+     */
+    static String inflate(byte[] data) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Truncated note body");
+                }
+                out.write(buffer, 0, count);
+            }
+            return new String(out.toByteArray(), UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt note body", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
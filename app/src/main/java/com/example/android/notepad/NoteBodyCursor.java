@@ -0,0 +1,151 @@
+package com.example.android.notepad;
+
+import android.database.CrossProcessCursorWrapper;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.DatabaseUtils;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Wraps a notes query, decoding the note column, the snippet column of an encrypted row and an
+ * encrypted title only when they are read. When the note or the snippet column is wrapped, the
+ * query's last column is the format column, which is hidden from the caller.
+ *
+ * <p>In the provider's own process the body of a row is decoded when the row's note is read,
+ * and not at all for rows that are only scrolled past. When the cursor is sent to another
+ * process, {@link #fillWindow(int, CursorWindow)} decodes just the rows that go into the window,
+ * instead of copying the stored bytes out of SQLite's window.
+ */
+class NoteBodyCursor extends CrossProcessCursorWrapper {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int mTitleIndex;
+    private final int mNoteIndex;
+    private final int mSnippetIndex;
+    private final int mFormatIndex;
+
+    // The last values decoded, so that getType() followed by getString() decodes once.
+    private int mDecodedPosition = -1;
+    private String mDecoded;
+    private int mDecodedSnippetPosition = -1;
+    private String mDecodedSnippet;
+    private int mDecodedTitlePosition = -1;
+    private String mDecodedTitle;
+
+    /**
+     * @param cursor the query result, with the format column last if there is a note or a
+     *        snippet column.
+     * @param titleIndex the index of the title column in the cursor, or -1 if there is none.
+     * @param noteIndex the index of the note column in the cursor, or -1 if there is none.
+     * @param snippetIndex the index of the snippet column in the cursor, or -1 if there is none.
+     */
+    NoteBodyCursor(Cursor cursor, int titleIndex, int noteIndex, int snippetIndex) {
+        super(cursor);
+        mTitleIndex = titleIndex;
+        mNoteIndex = noteIndex;
+        mSnippetIndex = snippetIndex;
+        mFormatIndex = noteIndex >= 0 || snippetIndex >= 0 ? cursor.getColumnCount() - 1 : -1;
+    }
+
+    private boolean isEncoded(int columnIndex) {
+        if (columnIndex == mTitleIndex) {
+            return NoteBodyCodec.isSealedTitle(getWrappedCursor(), columnIndex);
+        }
+        if (columnIndex == mNoteIndex) {
+            return (super.getInt(mFormatIndex) & NoteBodyCodec.OPAQUE_FLAGS) != 0;
+        }
+        return columnIndex == mSnippetIndex
+                && (super.getInt(mFormatIndex) & NoteBodyCodec.FLAG_ENCRYPT) != 0
+                && !super.isNull(columnIndex);
+    }
+
+    private String decoded(int columnIndex) {
+        int position = getPosition();
+        if (columnIndex == mTitleIndex) {
+            if (position != mDecodedTitlePosition) {
+                mDecodedTitle = NoteBodyCodec.decodeTitle(getWrappedCursor(), mTitleIndex);
+                mDecodedTitlePosition = position;
+            }
+            return mDecodedTitle;
+        }
+        int format = super.getInt(mFormatIndex);
+        if (columnIndex == mSnippetIndex) {
+            if (position != mDecodedSnippetPosition) {
+                mDecodedSnippet = NoteBodyCodec.decodeSnippet(getWrappedCursor(), mSnippetIndex,
+                        format);
+                mDecodedSnippetPosition = position;
+            }
+            return mDecodedSnippet;
+        }
+        if (position != mDecodedPosition) {
+            mDecoded = NoteBodyCodec.decode(getWrappedCursor(), mNoteIndex, format);
+            mDecodedPosition = position;
+        }
+        return mDecoded;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return mFormatIndex >= 0 ? mFormatIndex : super.getColumnCount();
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mFormatIndex >= 0
+                ? Arrays.copyOf(super.getColumnNames(), mFormatIndex) : super.getColumnNames();
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        int index = super.getColumnIndex(columnName);
+        return index == mFormatIndex ? -1 : index;
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String columnName) {
+        int index = getColumnIndex(columnName);
+        if (index < 0) {
+            throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+        }
+        return index;
+    }
+
+    @Override
+    public int getType(int columnIndex) {
+        return isEncoded(columnIndex) ? FIELD_TYPE_STRING : super.getType(columnIndex);
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        return isEncoded(columnIndex) ? decoded(columnIndex) : super.getString(columnIndex);
+    }
+
+    @Override
+    public byte[] getBlob(int columnIndex) {
+        return isEncoded(columnIndex)
+                ? decoded(columnIndex).getBytes(UTF_8) : super.getBlob(columnIndex);
+    }
+
+    @Override
+    public boolean isNull(int columnIndex) {
+        return !isEncoded(columnIndex) && super.isNull(columnIndex);
+    }
+
+    /**
+     * Returns null, so that a cross-process caller fills its window through
+     * {@link #fillWindow(int, CursorWindow)} instead of sharing SQLite's window, which holds the
+     * stored bytes.
+     */
+    @Override
+    public CursorWindow getWindow() {
+        return null;
+    }
+
+    @Override
+    public void fillWindow(int position, CursorWindow window) {
+        DatabaseUtils.cursorFillWindow(this, position, window);
+    }
+}
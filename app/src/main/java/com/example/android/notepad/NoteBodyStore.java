@@ -0,0 +1,320 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.ParcelFileDescriptor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Keeps oversized note bodies in files next to the database instead of in the notes table.
+ *
+ * <p>A row whose body is stored here has {@link NoteBodyCodec#FLAG_EXTERNAL} set in its format
+ * column, the name of the file in {@link #COLUMN_NAME_FILE}, and only the first
+ * {@link #HEAD_LENGTH} chars of the text in its note column. Queries therefore never put more
+ * than that into a CursorWindow; the full text is streamed from the file.
+ *
+ * <p>A body is encrypted if its row is, see {@link NoteBodyCodec#FLAG_ENCRYPT}; such a file has
+ * a name of its own suffix, and is decrypted as it is copied out.
+ *
+ * <p>A new body is always written to a new file before the row that references it is committed,
+ * and the file it replaces is deleted after. A crash in between leaves an unreferenced file
+ * behind, which {@link #sweep(SQLiteDatabase)} removes.
+ */
+final class NoteBodyStore {
+
+    /**
+     * Column name for the name of the file holding the note body, for rows with
+     * {@link NoteBodyCodec#FLAG_EXTERNAL} set. Not part of the contract.
+     * <P>Type: TEXT</P>
+     */
+    static final String COLUMN_NAME_FILE = "note_file";
+
+    /**
+     * The length, in chars, from which a body is stored in a file. Well under the 2 MB of a
+     * CursorWindow, even for text that takes three bytes a char.
+     */
+    static final int EXTERNAL_THRESHOLD = 128 * 1024;
+
+    /**
+     * The number of chars kept in the note column of a row whose body is in a file.
+     */
+    static final int HEAD_LENGTH = 1024;
+
+    // Unreferenced files younger than this may belong to a write that hasn't committed yet.
+    private static final long ORPHAN_AGE_MILLIS = 60 * 60 * 1000;
+
+    // The number of chars read per query when moving a body out of the notes table.
+    private static final int CHUNK_LENGTH = 64 * 1024;
+
+    private static final String SUFFIX = ".txt";
+    private static final String ENCRYPTED_SUFFIX = ".enc";
+
+    private final File mDir;
+
+    NoteBodyStore(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Returns whether the text is long enough to be stored in a file.
+     */
+    static boolean isOversized(String text) {
+        return text != null && text.length() >= EXTERNAL_THRESHOLD;
+    }
+
+    /**
+     * Returns the start of the text that is kept in the note column.
+     */
+    static String head(String text) {
+        int end = Math.min(HEAD_LENGTH, text.length());
+        if (end > 0 && end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) {
+            end--;
+        }
+        return text.substring(0, end);
+    }
+
+    /**
+     * Returns whether the named file holds an encrypted body.
+     */
+    static boolean isEncrypted(String name) {
+        return name.endsWith(ENCRYPTED_SUFFIX);
+    }
+
+    /**
+     * Writes the text to a new file, synced to disk, and returns the file's name.
+     *
+     * @param encrypt whether to encrypt the text, see {@link NoteCipher}.
+     */
+    String write(String text, boolean encrypt) throws IOException {
+        NewFile file = create(encrypt);
+        try {
+            file.writer.write(text);
+            file.finish();
+        } catch (IOException e) {
+            file.discard();
+            throw e;
+        }
+        return file.name;
+    }
+
+    /**
+     * Opens a new file for a body, under a name of its own.
+     */
+    private NewFile create(boolean encrypt) throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Unable to create " + mDir);
+        }
+        // Looked up first, so a missing key doesn't leave an open file behind.
+        NoteCipher cipher = encrypt ? NoteCipher.get() : null;
+        String name = UUID.randomUUID().toString() + (encrypt ? ENCRYPTED_SUFFIX : SUFFIX);
+        return new NewFile(name, new FileOutputStream(new File(mDir, name)), cipher);
+    }
+
+    /**
+     * Opens the file for reading. The caller gets the file itself, not a copy, so this is only
+     * for files that aren't encrypted.
+     */
+    ParcelFileDescriptor open(String name) throws FileNotFoundException {
+        return ParcelFileDescriptor.open(new File(mDir, name), ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * Copies the text in the file to the stream, a buffer at a time, decrypting it if need be.
+     */
+    void copyTo(String name, OutputStream out) throws IOException {
+        FileInputStream in = new FileInputStream(new File(mDir, name));
+        try {
+            if (isEncrypted(name)) {
+                NoteCipher.get().decrypt(new BufferedInputStream(in), out);
+                return;
+            }
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    void delete(String name) {
+        if (name != null) {
+            new File(mDir, name).delete();
+        }
+    }
+
+    /**
+     * Moves bodies that were stored in the notes table before this store existed, and are over
+     * the threshold, into files. Bodies are copied a chunk at a time, since a single one may not
+     * fit in a CursorWindow, and so no more than a chunk of one is held in memory.
+     *
+     * @param encrypt whether to encrypt the bodies moved.
+     * @return the number of bodies moved.
+     */
+    int moveOversized(SQLiteDatabase db, boolean encrypt) throws IOException {
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] { NotePad.Notes._ID },
+                NoteBodyCodec.COLUMN_NAME_FORMAT + " = " + NoteBodyCodec.FORMAT_PLAIN
+                        + " AND LENGTH(" + NotePad.Notes.COLUMN_NAME_NOTE + ") >= "
+                        + EXTERNAL_THRESHOLD,
+                null, null, null, null);
+        long[] ids;
+        try {
+            ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+            }
+        } finally {
+            c.close();
+        }
+
+        for (long id : ids) {
+            String[] idArgs = new String[] { String.valueOf(id) };
+            db.beginTransaction();
+            NewFile file = null;
+            try {
+                file = create(encrypt);
+                // Each chunk goes straight to the file; only the first is kept, for the head
+                // and the snippet, which it is longer than.
+                String first = null;
+                for (int start = 1; ; start += CHUNK_LENGTH) {
+                    c = db.rawQuery("SELECT SUBSTR(" + NotePad.Notes.COLUMN_NAME_NOTE + ", "
+                            + start + ", " + CHUNK_LENGTH + ") FROM " + NotePad.Notes.TABLE_NAME
+                            + " WHERE " + NotePad.Notes._ID + " = ?", idArgs);
+                    String chunk;
+                    try {
+                        chunk = c.moveToFirst() ? c.getString(0) : null;
+                    } finally {
+                        c.close();
+                    }
+                    if (chunk == null || chunk.length() == 0) {
+                        break;
+                    }
+                    if (first == null) {
+                        first = chunk;
+                    }
+                    file.writer.write(chunk);
+                }
+                if (first == null) {
+                    // Deleted since the ids were read.
+                    continue;
+                }
+                file.finish();
+
+                ContentValues values = new ContentValues();
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, head(first));
+                values.put(NotePad.Notes.COLUMN_NAME_SNIPPET, NoteSnippet.of(first));
+                NoteBodyCodec.encode(values, false, encrypt);
+                values.put(NoteBodyCodec.COLUMN_NAME_FORMAT, NoteBodyCodec.FLAG_EXTERNAL
+                        | values.getAsInteger(NoteBodyCodec.COLUMN_NAME_FORMAT));
+                values.put(COLUMN_NAME_FILE, file.name);
+                db.update(NotePad.Notes.TABLE_NAME, values, NotePad.Notes._ID + " = ?", idArgs);
+                db.setTransactionSuccessful();
+                file = null;
+            } finally {
+                db.endTransaction();
+                // Only set if the row wasn't updated.
+                if (file != null) {
+                    file.discard();
+                }
+            }
+        }
+        return ids.length;
+    }
+
+    /**
+     * Deletes files that no row references, and that are old enough not to belong to a write in
+     * progress.
+     *
+     * @return the number of files deleted.
+     */
+    int sweep(SQLiteDatabase db) {
+        File[] files = mDir.listFiles();
+        if (files == null || files.length == 0) {
+            return 0;
+        }
+
+        Set<String> referenced = new HashSet<String>();
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] { COLUMN_NAME_FILE },
+                COLUMN_NAME_FILE + " IS NOT NULL", null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                referenced.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+
+        long cutoff = System.currentTimeMillis() - ORPHAN_AGE_MILLIS;
+        int deleted = 0;
+        for (File file : files) {
+            if (!referenced.contains(file.getName()) && file.lastModified() < cutoff
+                    && file.delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * A body file being written. The text written to {@link #writer} is encoded as UTF-8, and
+     * sealed if the body is encrypted, on its way to the file.
+     */
+    private final class NewFile {
+
+        final String name;
+        final Writer writer;
+        private final FileOutputStream mOut;
+        private final NoteCipher.SealingOutputStream mSealed;
+
+        NewFile(String name, FileOutputStream out, NoteCipher cipher) throws IOException {
+            this.name = name;
+            mOut = out;
+            try {
+                mSealed = cipher != null ? cipher.seal(out) : null;
+            } catch (IOException e) {
+                discard();
+                throw e;
+            }
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    mSealed != null ? mSealed : out, "UTF-8"));
+        }
+
+        /**
+         * Writes out what's left of the text, syncs the file to disk and closes it.
+         */
+        void finish() throws IOException {
+            writer.flush();
+            if (mSealed != null) {
+                mSealed.finish();
+            }
+            mOut.getFD().sync();
+            mOut.close();
+        }
+
+        /**
+         * Closes the file, if it's still open, and deletes it.
+         */
+        void discard() {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+            }
+            delete(name);
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The log of note changes not yet sent to the sync server, kept by triggers on the notes table,
+ * and the rest of the sync engine's state.
+ *
+ * <p>Every insert, edit and delete of a note adds a row with a new, ever increasing sequence
+ * number, replacing the note's earlier row if it had one that wasn't sent yet, so the log holds
+ * at most one change per note: however often a note is edited between two syncs, it is sent
+ * once. Rows are deleted once the server has them, so the size of the log, and the cost of a
+ * sync, follows the number of notes changed rather than the number of notes.
+ *
+ * <p>A note is known to the server by a sync id, a random UUID assigned when it is first sent
+ * or, for notes that came from another device, the id it came with. The delete trigger moves
+ * the sync id into the log, since the note's local id may be reused afterwards. A note deleted
+ * before it was ever sent leaves nothing in the log. Moving a note to the trash counts as
+ * deleting it, and restoring it as adding a new note, so a note deleted here for good later
+ * has nothing left to send.
+ *
+ * <p>Next to its sync id, a note keeps its text as the server last had it, the base, so that a
+ * change from the server to a note that was also edited here can be merged with the local edit
+ * by {@link NoteMerge}. The base is stored compressed if that pays, encrypted if note bodies
+ * are, and not at all for oversized notes, whose local edits win instead.
+ *
+ * <p>Writes made to apply changes from the server set the {@link #APPLYING_REMOTE} flag for the
+ * length of the write, in the same transaction, and the triggers log nothing while it is set.
+ * Rewrites of a body into another storage form, such as compression, aren't changes either.
+ */
+final class NoteChangeLog {
+
+    static final String TABLE_NAME = "change_log";
+    static final String SYNC_IDS_TABLE_NAME = "sync_ids";
+    static final String STATE_TABLE_NAME = "sync_state";
+
+    static final String COLUMN_NAME_SEQUENCE = "seq";
+    static final String COLUMN_NAME_NOTE_ID = "note_id";
+    static final String COLUMN_NAME_DELETED = "deleted";
+
+    /**
+     * The sync id of a note. Also the key of the values of a sync adapter insert that holds
+     * the id the note came with.
+     */
+    static final String COLUMN_NAME_SYNC_ID = "sync_id";
+
+    // The text of a note as the server last had it: TEXT if stored as it is, a BLOB of its
+    // NoteBodyCodec format and the stored bytes if not.
+    private static final String COLUMN_BASE = "base";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String COLUMN_KEY = "key";
+    private static final String COLUMN_VALUE = "value";
+
+    /**
+     * The state keys: this device's id at the server, the last sequence number the server
+     * acknowledged, and the server's position in the changes of other devices already applied.
+     */
+    static final String STATE_CLIENT_ID = "client_id";
+    static final String STATE_ACKNOWLEDGED = "acknowledged";
+    static final String STATE_SERVER_CURSOR = "server_cursor";
+
+    // Set while a change from the server is written.
+    private static final String APPLYING_REMOTE = "applying_remote";
+
+    static final String BEGIN_REMOTE_SQL = "INSERT OR REPLACE INTO " + STATE_TABLE_NAME
+            + " (" + COLUMN_KEY + ", " + COLUMN_VALUE + ") VALUES ('" + APPLYING_REMOTE
+            + "', 1)";
+    static final String END_REMOTE_SQL = "DELETE FROM " + STATE_TABLE_NAME + " WHERE "
+            + COLUMN_KEY + " = '" + APPLYING_REMOTE + "'";
+
+    static final String BIND_SQL = "INSERT OR REPLACE INTO " + SYNC_IDS_TABLE_NAME + " ("
+            + COLUMN_NAME_NOTE_ID + ", " + COLUMN_NAME_SYNC_ID + ") VALUES (?, ?)";
+
+    static final String LOCAL_CHANGE_SQL = "SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE "
+            + COLUMN_NAME_NOTE_ID + " = ? AND " + COLUMN_NAME_DELETED + " = 0";
+
+    private static final String NOT_APPLYING_REMOTE = "NOT EXISTS (SELECT 1 FROM "
+            + STATE_TABLE_NAME + " WHERE " + COLUMN_KEY + " = '" + APPLYING_REMOTE + "')";
+
+    // Logs the note as changed, in place of any earlier change.
+    private static final String LOG_NEW = " DELETE FROM " + TABLE_NAME + " WHERE "
+            + COLUMN_NAME_NOTE_ID + " = new." + NotePad.Notes._ID + " AND "
+            + COLUMN_NAME_DELETED + " = 0;"
+            + " INSERT INTO " + TABLE_NAME + " (" + COLUMN_NAME_NOTE_ID + ", "
+            + COLUMN_NAME_DELETED + ") VALUES (new." + NotePad.Notes._ID + ", 0);";
+
+    // Logs the note as deleted, if the server has it, and forgets its sync id.
+    private static final String LOG_DELETE = " DELETE FROM " + TABLE_NAME + " WHERE "
+            + COLUMN_NAME_NOTE_ID + " = old." + NotePad.Notes._ID + " AND "
+            + COLUMN_NAME_DELETED + " = 0;"
+            + " INSERT INTO " + TABLE_NAME + " (" + COLUMN_NAME_NOTE_ID + ", "
+            + COLUMN_NAME_DELETED + ", " + COLUMN_NAME_SYNC_ID + ") SELECT old."
+            + NotePad.Notes._ID + ", 1, " + COLUMN_NAME_SYNC_ID + " FROM "
+            + SYNC_IDS_TABLE_NAME + " WHERE " + COLUMN_NAME_NOTE_ID + " = old."
+            + NotePad.Notes._ID + " AND " + NOT_APPLYING_REMOTE + ";"
+            + " DELETE FROM " + SYNC_IDS_TABLE_NAME + " WHERE " + COLUMN_NAME_NOTE_ID
+            + " = old." + NotePad.Notes._ID + ";";
+
+    // This class cannot be instantiated
+    private NoteChangeLog() {
+    }
+
+    /**
+     * A change waiting to be sent.
+     */
+    static final class Entry {
+        final long sequence;
+        final long noteId;
+        final boolean deleted;
+
+        // Null for a note that was never sent.
+        final String syncId;
+
+        Entry(long sequence, long noteId, boolean deleted, String syncId) {
+            this.sequence = sequence;
+            this.noteId = noteId;
+            this.deleted = deleted;
+            this.syncId = syncId;
+        }
+    }
+
+    /**
+     * Creates the tables and the triggers that fill the log, and logs the notes already in the
+     * database, so that the first sync sends them.
+     */
+    static void createTables(SQLiteDatabase db) {
+        // AUTOINCREMENT, so a sequence number is never handed out twice, even after the rows
+        // with the highest ones were deleted.
+        db.execSQL("CREATE TABLE " + TABLE_NAME + " ("
+                + COLUMN_NAME_SEQUENCE + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+                + COLUMN_NAME_DELETED + " INTEGER NOT NULL,"
+                + COLUMN_NAME_SYNC_ID + " TEXT"
+                + ");");
+        db.execSQL("CREATE INDEX " + TABLE_NAME + "_note ON " + TABLE_NAME + " ("
+                + COLUMN_NAME_NOTE_ID + ");");
+        db.execSQL("CREATE TABLE " + SYNC_IDS_TABLE_NAME + " ("
+                + COLUMN_NAME_NOTE_ID + " INTEGER PRIMARY KEY,"
+                + COLUMN_NAME_SYNC_ID + " TEXT NOT NULL UNIQUE,"
+                + COLUMN_BASE + " BLOB"
+                + ");");
+        db.execSQL("CREATE TABLE " + STATE_TABLE_NAME + " ("
+                + COLUMN_KEY + " TEXT PRIMARY KEY,"
+                + COLUMN_VALUE + " TEXT"
+                + ");");
+
+        db.execSQL("CREATE TRIGGER change_log_insert AFTER INSERT ON "
+                + NotePad.Notes.TABLE_NAME + " WHEN " + NOT_APPLYING_REMOTE
+                + " BEGIN" + LOG_NEW + " END;");
+        db.execSQL("CREATE TRIGGER change_log_update AFTER UPDATE OF "
+                + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE + ", "
+                + NotePad.Notes.COLUMN_NAME_CATEGORY + ", "
+                + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " ON " + NotePad.Notes.TABLE_NAME
+                + " WHEN " + NOT_APPLYING_REMOTE + " AND ("
+                + changed(NotePad.Notes.COLUMN_NAME_TITLE) + " OR "
+                + changed(NotePad.Notes.COLUMN_NAME_CATEGORY) + " OR "
+                + changed(NotePad.Notes.COLUMN_NAME_CREATE_DATE) + " OR "
+                + changed(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE) + " OR ("
+                + changed(NotePad.Notes.COLUMN_NAME_NOTE) + " AND old."
+                + NoteBodyCodec.COLUMN_NAME_FORMAT + " = new." + NoteBodyCodec.COLUMN_NAME_FORMAT
+                + "))"
+                + " BEGIN" + LOG_NEW + " END;");
+        db.execSQL("CREATE TRIGGER change_log_delete AFTER DELETE ON "
+                + NotePad.Notes.TABLE_NAME + " BEGIN" + LOG_DELETE + " END;");
+
+        db.execSQL("INSERT INTO " + TABLE_NAME + " (" + COLUMN_NAME_NOTE_ID + ", "
+                + COLUMN_NAME_DELETED + ") SELECT " + NotePad.Notes._ID + ", 0 FROM "
+                + NotePad.Notes.TABLE_NAME + " ORDER BY " + NotePad.Notes._ID);
+    }
+
+    /**
+     * Creates the triggers that log moving a note to the trash as deleting it, and restoring it
+     * as adding it. The trash column must exist.
+     */
+    static void createTrashTriggers(SQLiteDatabase db) {
+        String deletedAt = NotePad.Notes.COLUMN_NAME_DELETED_AT;
+        db.execSQL("CREATE TRIGGER change_log_trash AFTER UPDATE OF " + deletedAt + " ON "
+                + NotePad.Notes.TABLE_NAME + " WHEN old." + deletedAt + " IS NULL AND new."
+                + deletedAt + " IS NOT NULL BEGIN" + LOG_DELETE + " END;");
+        db.execSQL("CREATE TRIGGER change_log_restore AFTER UPDATE OF " + deletedAt + " ON "
+                + NotePad.Notes.TABLE_NAME + " WHEN old." + deletedAt + " IS NOT NULL AND new."
+                + deletedAt + " IS NULL AND " + NOT_APPLYING_REMOTE + " BEGIN" + LOG_NEW
+                + " END;");
+    }
+
+    /**
+     * Adds the base column to sync id tables created before it existed.
+     */
+    static void addBaseColumn(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + SYNC_IDS_TABLE_NAME + " ADD COLUMN " + COLUMN_BASE
+                + " BLOB;");
+    }
+
+    private static String changed(String column) {
+        return "old." + column + " IS NOT new." + column;
+    }
+
+    /**
+     * Returns the changes logged after the given sequence number, oldest first, at most
+     * {@code limit} of them.
+     */
+    static List<Entry> pending(SQLiteDatabase db, long after, int limit) {
+        List<Entry> entries = new ArrayList<Entry>();
+        Cursor c = db.rawQuery("SELECT c." + COLUMN_NAME_SEQUENCE + ", c." + COLUMN_NAME_NOTE_ID
+                + ", c." + COLUMN_NAME_DELETED + ", IFNULL(c." + COLUMN_NAME_SYNC_ID + ", s."
+                + COLUMN_NAME_SYNC_ID + ") FROM " + TABLE_NAME + " c LEFT JOIN "
+                + SYNC_IDS_TABLE_NAME + " s ON c." + COLUMN_NAME_DELETED + " = 0 AND s."
+                + COLUMN_NAME_NOTE_ID + " = c." + COLUMN_NAME_NOTE_ID + " WHERE c."
+                + COLUMN_NAME_SEQUENCE + " > ? ORDER BY c." + COLUMN_NAME_SEQUENCE + " LIMIT "
+                + limit, new String[] { String.valueOf(after) });
+        try {
+            while (c.moveToNext()) {
+                entries.add(new Entry(c.getLong(0), c.getLong(1), c.getInt(2) != 0,
+                        c.getString(3)));
+            }
+        } finally {
+            c.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Drops the changes up to the given sequence number, which the server now has, and
+     * remembers it.
+     */
+    static void acknowledge(SQLiteDatabase db, long through) {
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_NAME, COLUMN_NAME_SEQUENCE + " <= ?",
+                    new String[] { String.valueOf(through) });
+            putState(db, STATE_ACKNOWLEDGED, String.valueOf(through));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the number of changes waiting to be sent.
+     */
+    static long size(SQLiteDatabase db) {
+        return DatabaseUtils.queryNumEntries(db, TABLE_NAME);
+    }
+
+    /**
+     * Returns whether the note was edited since it was last sent.
+     */
+    static boolean hasLocalChange(SQLiteDatabase db, long noteId) {
+        return DatabaseUtils.longForQuery(db, LOCAL_CHANGE_SQL,
+                new String[] { String.valueOf(noteId) }) > 0;
+    }
+
+    /**
+     * Returns whether the note with the sync id was deleted here and the delete wasn't sent yet.
+     */
+    static boolean hasLocalDelete(SQLiteDatabase db, String syncId) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE "
+                + COLUMN_NAME_SYNC_ID + " = ? AND " + COLUMN_NAME_DELETED + " = 1",
+                new String[] { syncId }) > 0;
+    }
+
+    /**
+     * Returns the local id of the note with the sync id, or -1 if there is none.
+     */
+    static long noteId(SQLiteDatabase db, String syncId) {
+        Cursor c = db.rawQuery("SELECT " + COLUMN_NAME_NOTE_ID + " FROM " + SYNC_IDS_TABLE_NAME
+                + " WHERE " + COLUMN_NAME_SYNC_ID + " = ?", new String[] { syncId });
+        try {
+            return c.moveToFirst() ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Gives the note the sync id, if the note still exists.
+     *
+     * @return whether it does.
+     */
+    static boolean bindIfExists(SQLiteDatabase db, long noteId, String syncId) {
+        // One statement, so a delete can't slip in between the check and the insert and leave
+        // the id to the next note that reuses the row id.
+        db.execSQL("INSERT OR REPLACE INTO " + SYNC_IDS_TABLE_NAME + " ("
+                + COLUMN_NAME_NOTE_ID + ", " + COLUMN_NAME_SYNC_ID + ") SELECT ?, ? WHERE EXISTS"
+                + " (SELECT 1 FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID
+                + " = ?)", new Object[] { noteId, syncId, noteId });
+        return syncId.equals(syncId(db, noteId));
+    }
+
+    private static String syncId(SQLiteDatabase db, long noteId) {
+        Cursor c = db.rawQuery("SELECT " + COLUMN_NAME_SYNC_ID + " FROM " + SYNC_IDS_TABLE_NAME
+                + " WHERE " + COLUMN_NAME_NOTE_ID + " = ?",
+                new String[] { String.valueOf(noteId) });
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Remembers the text of the note as the server now has it. Forgets it for an oversized
+     * note. A base that is compressed or encrypted is stored as a BLOB of its
+     * {@link NoteBodyCodec} format, in one byte, followed by the stored bytes.
+     *
+     * @param encrypt whether to encrypt the base.
+     */
+    static void putBase(SQLiteDatabase db, long noteId, String text, boolean encrypt) {
+        Object base = null;
+        if (text != null && !NoteBodyStore.isOversized(text)) {
+            byte[] deflated = NoteBodyCodec.deflate(text);
+            int format = deflated != null
+                    ? NoteBodyCodec.FLAG_DEFLATE : NoteBodyCodec.FORMAT_PLAIN;
+            byte[] data = deflated;
+            if (encrypt) {
+                data = NoteCipher.get().encrypt(
+                        deflated != null ? deflated : text.getBytes(UTF_8));
+                format |= NoteBodyCodec.FLAG_ENCRYPT;
+            }
+            if (data != null) {
+                byte[] blob = new byte[data.length + 1];
+                blob[0] = (byte) format;
+                System.arraycopy(data, 0, blob, 1, data.length);
+                base = blob;
+            } else {
+                base = text;
+            }
+        }
+        db.execSQL("UPDATE " + SYNC_IDS_TABLE_NAME + " SET " + COLUMN_BASE + " = ? WHERE "
+                + COLUMN_NAME_NOTE_ID + " = ?", new Object[] { base, noteId });
+    }
+
+    /**
+     * Returns the text of the note as the server last had it, or null if it isn't known.
+     */
+    static String base(SQLiteDatabase db, long noteId) {
+        Cursor c = db.rawQuery("SELECT " + COLUMN_BASE + " FROM " + SYNC_IDS_TABLE_NAME
+                + " WHERE " + COLUMN_NAME_NOTE_ID + " = ?",
+                new String[] { String.valueOf(noteId) });
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            if (c.getType(0) != Cursor.FIELD_TYPE_BLOB) {
+                return c.getString(0);
+            }
+            byte[] blob = c.getBlob(0);
+            int format = blob[0];
+            byte[] data = Arrays.copyOfRange(blob, 1, blob.length);
+            if ((format & NoteBodyCodec.FLAG_ENCRYPT) != 0) {
+                data = NoteCipher.get().decrypt(data);
+            }
+            return (format & NoteBodyCodec.FLAG_DEFLATE) != 0
+                    ? NoteBodyCodec.inflate(data) : new String(data, UTF_8);
+        } finally {
+            c.close();
+        }
+    }
+
+    static String getState(SQLiteDatabase db, String key) {
+        Cursor c = db.rawQuery("SELECT " + COLUMN_VALUE + " FROM " + STATE_TABLE_NAME + " WHERE "
+                + COLUMN_KEY + " = ?", new String[] { key });
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    static void putState(SQLiteDatabase db, String key, String value) {
+        db.execSQL("INSERT OR REPLACE INTO " + STATE_TABLE_NAME + " (" + COLUMN_KEY + ", "
+                + COLUMN_VALUE + ") VALUES (?, ?)", new Object[] { key, value });
+    }
+}
@@ -0,0 +1,556 @@
+package com.example.android.notepad;
+
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts note text at rest with AES-256 in GCM mode, which also detects any change to the
+ * stored bytes. See {@link NoteBodyCodec#FLAG_ENCRYPT}.
+ *
+ * <p>The key is derived with PBKDF2 from a random secret and salt made on first use and kept
+ * in the app's no-backup directory, so a copy of the database or of its body files, as in a
+ * backup or a file pulled off the device, can't be read without that file. From API 23 the
+ * file holds the secret wrapped with an AES key that stays in the Android key store, so the
+ * file is no use without the device either; before that it holds the secret as is. Deriving
+ * the key is slow on purpose, so it is done once per process and the key cached; encrypting
+ * or decrypting a row after that costs about as much as copying it.
+ *
+ * <p>A value in the database is sealed whole: a random IV followed by the ciphertext and its
+ * tag. A body file is sealed in chunks of {@link #CHUNK_LENGTH} bytes, each with a tag of its
+ * own, so it is encrypted as it is written and decrypted as it is read, with no more than a chunk
+ * in memory. Each chunk's IV is a random prefix for the file and the chunk's index, and the last
+ * chunk is marked as such, so chunks that were dropped, reordered or taken from another file are
+ * detected too.
+ */
+final class NoteCipher {
+
+    /**
+     * The name of the file holding the salt and the secret the key is derived from, wrapped
+     * with a key from the Android key store.
+     */
+    static final String KEY_FILE_NAME = "note_key";
+
+    /**
+     * The number of PBKDF2 iterations.
+     */
+    static final int ITERATIONS = 10000;
+
+    /**
+     * The number of plaintext bytes in each chunk of a sealed stream.
+     */
+    static final int CHUNK_LENGTH = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int KEY_BITS = 256;
+    private static final int SALT_LENGTH = 16;
+    private static final int SECRET_LENGTH = 32;
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+
+    // Where the key that wraps the key file's secret is kept, under what alias, and the first
+    // byte of a key file whose secret is wrapped.
+    private static final String KEY_STORE = "AndroidKeyStore";
+    private static final String WRAPPING_KEY_ALIAS = "note_key_wrap";
+    private static final byte WRAPPED = 1;
+
+    // The random part of a stream's chunk IVs; the chunk's index makes up the rest.
+    private static final int STREAM_PREFIX_LENGTH = IV_LENGTH - 4;
+
+    // The associated data of a stream's chunks, telling the last one from the others.
+    private static final byte[] CHUNK_MORE = new byte[] { 0 };
+    private static final byte[] CHUNK_LAST = new byte[] { 1 };
+
+    // The keyed hash of the search index, the bytes of a hash kept, and what the index key is
+    // derived from the note key with.
+    private static final String INDEX_ALGORITHM = "HmacSHA256";
+    private static final int INDEX_LENGTH = 8;
+    private static final byte[] INDEX_KEY_LABEL = "note search index".getBytes(UTF_8);
+
+    private static final Object sLock = new Object();
+    private static File sKeyFile;
+    private static NoteCipher sInstance;
+
+    private final SecretKey mKey;
+    private final SecureRandom mRandom = new SecureRandom();
+
+    // Looking up a Cipher is costly, and one can't be shared between threads.
+    private final ThreadLocal<Cipher> mCiphers = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance(TRANSFORMATION);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES/GCM is not available", e);
+            }
+        }
+    };
+
+    // Hashes grams for the search index with a key of their own, derived from the note key.
+    private final ThreadLocal<Mac> mMacs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                Mac derive = Mac.getInstance(INDEX_ALGORITHM);
+                derive.init(new SecretKeySpec(mKey.getEncoded(), INDEX_ALGORITHM));
+                Mac mac = Mac.getInstance(INDEX_ALGORITHM);
+                mac.init(new SecretKeySpec(derive.doFinal(INDEX_KEY_LABEL), INDEX_ALGORITHM));
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HMAC-SHA256 is not available", e);
+            }
+        }
+    };
+
+    NoteCipher(SecretKey key) {
+        mKey = key;
+    }
+
+    /**
+     * Sets where the key's secret is kept. Called by the provider when it's created; the file
+     * is only read, or made, when something is first encrypted or decrypted.
+     */
+    static void setKeyFile(File keyFile) {
+        synchronized (sLock) {
+            if (!keyFile.equals(sKeyFile)) {
+                sKeyFile = keyFile;
+                sInstance = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the cipher with the app's key, deriving the key on first use.
+     *
+     * @throws IllegalStateException if the key file can't be read or made.
+     */
+    static NoteCipher get() {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                if (sKeyFile == null) {
+                    throw new IllegalStateException("No key file set");
+                }
+                try {
+                    byte[] keyData = readOrCreateKeyData(sKeyFile);
+                    sInstance = new NoteCipher(deriveKey(
+                            Arrays.copyOfRange(keyData, SALT_LENGTH, keyData.length),
+                            Arrays.copyOf(keyData, SALT_LENGTH)));
+                } catch (IOException e) {
+                    throw new IllegalStateException("Unable to read the note key", e);
+                }
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Derives an AES key from the secret and the salt with PBKDF2.
+     */
+    static SecretKey deriveKey(byte[] secret, byte[] salt) {
+        // PBKDF2 takes a password as chars; each byte of the secret becomes two hex digits.
+        char[] password = new char[secret.length * 2];
+        for (int i = 0; i < secret.length; i++) {
+            password[2 * i] = Character.forDigit((secret[i] >> 4) & 0xF, 16);
+            password[2 * i + 1] = Character.forDigit(secret[i] & 0xF, 16);
+        }
+        PBEKeySpec spec = new PBEKeySpec(password, salt, ITERATIONS, KEY_BITS);
+        try {
+            byte[] key = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1")
+                    .generateSecret(spec).getEncoded();
+            return new SecretKeySpec(key, "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2 is not available", e);
+        } finally {
+            spec.clearPassword();
+            Arrays.fill(password, '\0');
+        }
+    }
+
+    /**
+     * Returns the salt and the secret from the key file, making the file if there is none yet.
+     * A new file is written under another name and renamed, so it's never seen half written.
+     * A file written before secrets were wrapped is rewritten wrapped.
+     */
+    private static byte[] readOrCreateKeyData(File keyFile) throws IOException {
+        byte[] data = new byte[SALT_LENGTH + SECRET_LENGTH];
+        if (!keyFile.exists()) {
+            new SecureRandom().nextBytes(data);
+            // Only the first process to get here makes the key; any other reads it.
+            if (writeKeyFile(keyFile, wrap(data), false)) {
+                return data;
+            }
+        }
+        byte[] stored = new byte[(int) keyFile.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(keyFile));
+        try {
+            in.readFully(stored);
+        } finally {
+            in.close();
+        }
+        if (stored.length != data.length) {
+            return unwrap(stored);
+        }
+        byte[] wrapped = wrap(stored);
+        if (wrapped != stored) {
+            writeKeyFile(keyFile, wrapped, true);
+        }
+        return stored;
+    }
+
+    /**
+     * Writes the key file under another name and renames it into place.
+     *
+     * @param replace whether to replace a key file that is already there.
+     * @return whether the file was renamed into place.
+     */
+    private static boolean writeKeyFile(File keyFile, byte[] contents, boolean replace)
+            throws IOException {
+        File dir = keyFile.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        File temp = new File(keyFile.getPath() + ".new");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(contents);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if ((replace || !keyFile.exists()) && temp.renameTo(keyFile)) {
+            return true;
+        }
+        temp.delete();
+        return false;
+    }
+
+    /**
+     * Returns the salt and the secret sealed with the key store's wrapping key: a marker byte,
+     * the IV, then the ciphertext with its tag. Returns them as they are where there is no key
+     * store to keep the wrapping key in.
+     */
+    private static byte[] wrap(byte[] data) throws IOException {
+        SecretKey wrappingKey = wrappingKey();
+        if (wrappingKey == null) {
+            return data;
+        }
+        try {
+            // A key store key picks its own IV.
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, wrappingKey);
+            byte[] iv = cipher.getIV();
+            byte[] sealed = cipher.doFinal(data);
+            byte[] wrapped = new byte[1 + iv.length + sealed.length];
+            wrapped[0] = WRAPPED;
+            System.arraycopy(iv, 0, wrapped, 1, iv.length);
+            System.arraycopy(sealed, 0, wrapped, 1 + iv.length, sealed.length);
+            return wrapped;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to wrap the note key", e);
+        }
+    }
+
+    /**
+     * Returns the salt and the secret from a key file written by {@link #wrap(byte[])}.
+     */
+    private static byte[] unwrap(byte[] wrapped) throws IOException {
+        if (wrapped.length != 1 + IV_LENGTH + SALT_LENGTH + SECRET_LENGTH + TAG_LENGTH
+                || wrapped[0] != WRAPPED) {
+            throw new IOException("Unknown note key format");
+        }
+        SecretKey wrappingKey = wrappingKey();
+        if (wrappingKey == null) {
+            throw new IOException("No key store to unwrap the note key with");
+        }
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, wrappingKey,
+                    new GCMParameterSpec(TAG_LENGTH * 8, wrapped, 1, IV_LENGTH));
+            return cipher.doFinal(wrapped, 1 + IV_LENGTH, wrapped.length - 1 - IV_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to unwrap the note key", e);
+        }
+    }
+
+    /**
+     * Returns the AES key in the Android key store that the key file's secret is wrapped with,
+     * making it on first use, or null before API 23, which can't keep AES keys there, and where
+     * there is no key store, as in JVM tests. The key never leaves the key store, or the
+     * secure hardware where the device has it, so a copy of the app's files alone can't unwrap
+     * the secret.
+     */
+    private static SecretKey wrappingKey() throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return null;
+        }
+        KeyStore keyStore;
+        try {
+            keyStore = KeyStore.getInstance(KEY_STORE);
+        } catch (KeyStoreException e) {
+            return null;
+        }
+        try {
+            keyStore.load(null);
+            Key key = keyStore.getKey(WRAPPING_KEY_ALIAS, null);
+            if (key instanceof SecretKey) {
+                return (SecretKey) key;
+            }
+            KeyGenerator generator =
+                    KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEY_STORE);
+            generator.init(new KeyGenParameterSpec.Builder(WRAPPING_KEY_ALIAS,
+                    KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                    .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                    .setKeySize(KEY_BITS)
+                    .build());
+            return generator.generateKey();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to get the key wrapping key", e);
+        }
+    }
+
+    /**
+     * Returns the bytes sealed: a random IV, then the ciphertext with its tag.
+     */
+    byte[] encrypt(byte[] plain) {
+        byte[] sealed = new byte[IV_LENGTH + plain.length + TAG_LENGTH];
+        byte[] iv = new byte[IV_LENGTH];
+        mRandom.nextBytes(iv);
+        System.arraycopy(iv, 0, sealed, 0, IV_LENGTH);
+        try {
+            Cipher cipher = mCiphers.get();
+            cipher.init(Cipher.ENCRYPT_MODE, mKey, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+            cipher.doFinal(plain, 0, plain.length, sealed, IV_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to encrypt", e);
+        }
+        return sealed;
+    }
+
+    /**
+     * Returns the bytes sealed by {@link #encrypt(byte[])}.
+     *
+     * @throws IllegalStateException if they were changed, or sealed with another key.
+     */
+    byte[] decrypt(byte[] sealed) {
+        if (sealed.length < IV_LENGTH + TAG_LENGTH) {
+            throw new IllegalStateException("Truncated note data");
+        }
+        try {
+            Cipher cipher = mCiphers.get();
+            cipher.init(Cipher.DECRYPT_MODE, mKey,
+                    new GCMParameterSpec(TAG_LENGTH * 8, sealed, 0, IV_LENGTH));
+            return cipher.doFinal(sealed, IV_LENGTH, sealed.length - IV_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Corrupt note data", e);
+        }
+    }
+
+    /**
+     * Returns a keyed hash of the text, for an index that finds the text without holding it:
+     * equal texts hash alike, but what a hash stands for can't be told without the key. The
+     * hash is in hex, so it's stored as TEXT like the text it stands for.
+     */
+    String blindIndex(String text) {
+        byte[] hash = mMacs.get().doFinal(text.getBytes(UTF_8));
+        char[] hex = new char[INDEX_LENGTH * 2];
+        for (int i = 0; i < INDEX_LENGTH; i++) {
+            hex[2 * i] = Character.forDigit((hash[i] >> 4) & 0xF, 16);
+            hex[2 * i + 1] = Character.forDigit(hash[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Writes the bytes to the stream sealed in chunks.
+     */
+    void encrypt(byte[] plain, OutputStream out) throws IOException {
+        SealingOutputStream sealed = seal(out);
+        sealed.write(plain);
+        sealed.finish();
+    }
+
+    /**
+     * Returns a stream that writes what is written to it to the output sealed in chunks, as
+     * {@link #encrypt(byte[], OutputStream)} does.
+     */
+    SealingOutputStream seal(OutputStream out) throws IOException {
+        return new SealingOutputStream(out);
+    }
+
+    /**
+     * Copies a stream sealed by {@link #encrypt(byte[], OutputStream)} or a
+     * {@link SealingOutputStream} to the output, decrypted,
+     * a chunk at a time. Nothing of a chunk is written unless it checks out.
+     *
+     * @throws IOException if the stream was changed, cut short, or sealed with another key.
+     */
+    void decrypt(InputStream in, OutputStream out) throws IOException {
+        byte[] prefix = new byte[STREAM_PREFIX_LENGTH];
+        if (readFully(in, prefix) < prefix.length) {
+            throw new EOFException("Truncated note body");
+        }
+
+        PushbackInputStream chunks = new PushbackInputStream(in, 1);
+        Cipher cipher = mCiphers.get();
+        byte[] chunk = new byte[CHUNK_LENGTH + TAG_LENGTH];
+        byte[] plain = new byte[CHUNK_LENGTH];
+        int index = 0;
+        boolean last = false;
+        while (!last) {
+            int count = readFully(chunks, chunk);
+            // A chunk is the last if it's short, or if nothing follows it.
+            if (count == chunk.length) {
+                int next = chunks.read();
+                if (next >= 0) {
+                    chunks.unread(next);
+                } else {
+                    last = true;
+                }
+            } else {
+                last = true;
+            }
+            if (count < TAG_LENGTH) {
+                throw new EOFException("Truncated note body");
+            }
+            try {
+                initChunk(cipher, Cipher.DECRYPT_MODE, prefix, index++, last);
+                out.write(plain, 0, cipher.doFinal(chunk, 0, count, plain, 0));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Corrupt note body", e);
+            }
+        }
+    }
+
+    private void initChunk(Cipher cipher, int mode, byte[] prefix, int index, boolean last)
+            throws GeneralSecurityException {
+        byte[] iv = Arrays.copyOf(prefix, IV_LENGTH);
+        iv[STREAM_PREFIX_LENGTH] = (byte) (index >>> 24);
+        iv[STREAM_PREFIX_LENGTH + 1] = (byte) (index >>> 16);
+        iv[STREAM_PREFIX_LENGTH + 2] = (byte) (index >>> 8);
+        iv[STREAM_PREFIX_LENGTH + 3] = (byte) index;
+        cipher.init(mode, mKey, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+        cipher.updateAAD(last ? CHUNK_LAST : CHUNK_MORE);
+    }
+
+    /**
+     * Seals what is written to it in chunks as they fill, so text of any length can be
+     * encrypted with no more than a chunk of it in memory. {@link #finish()} writes the last
+     * chunk; until it's called the output can't be decrypted.
+     */
+    final class SealingOutputStream extends FilterOutputStream {
+
+        private final byte[] mPrefix = new byte[STREAM_PREFIX_LENGTH];
+        private final byte[] mPlain = new byte[CHUNK_LENGTH];
+        private final byte[] mChunk = new byte[CHUNK_LENGTH + TAG_LENGTH];
+        private int mCount;
+        private int mIndex;
+        private boolean mFinished;
+
+        SealingOutputStream(OutputStream out) throws IOException {
+            super(out);
+            mRandom.nextBytes(mPrefix);
+            out.write(mPrefix);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mFinished) {
+                throw new IOException("Stream already finished");
+            }
+            while (len > 0) {
+                // A full chunk is only sealed once more follows it, as the last one is marked.
+                if (mCount == mPlain.length) {
+                    sealChunk(false);
+                }
+                int count = Math.min(len, mPlain.length - mCount);
+                System.arraycopy(b, off, mPlain, mCount, count);
+                mCount += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        /**
+         * Seals the last chunk, which is empty if nothing was written, and flushes the output
+         * without closing it.
+         */
+        void finish() throws IOException {
+            if (!mFinished) {
+                mFinished = true;
+                sealChunk(true);
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                finish();
+            } finally {
+                out.close();
+            }
+        }
+
+        private void sealChunk(boolean last) throws IOException {
+            // The cipher is looked up each time, in case the stream is passed between threads.
+            Cipher cipher = mCiphers.get();
+            try {
+                initChunk(cipher, Cipher.ENCRYPT_MODE, mPrefix, mIndex++, last);
+                out.write(mChunk, 0, cipher.doFinal(mPlain, 0, mCount, mChunk, 0));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to encrypt", e);
+            }
+            mCount = 0;
+        }
+    }
+
+    /**
+     * Reads until the buffer is full or the stream ends, and returns the number of bytes read.
+     */
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int count = 0;
+        while (count < buffer.length) {
+            int read = in.read(buffer, count, buffer.length - count);
+            if (read < 0) {
+                break;
+            }
+            count += read;
+        }
+        return count;
+    }
+}
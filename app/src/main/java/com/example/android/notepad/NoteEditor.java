@@ -17,13 +17,18 @@
 package com.example.android.notepad;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.content.ClipData;
+import android.content.ClipDescription;
 import android.content.ClipboardManager;
 import android.content.ComponentName;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Canvas;
@@ -42,10 +47,16 @@ import android.widget.ArrayAdapter;
 import android.widget.AutoCompleteTextView;
 import android.widget.EditText;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 
@@ -72,7 +83,8 @@ public class NoteEditor extends Activity {
                     NotePad.Notes._ID,
                     NotePad.Notes.COLUMN_NAME_TITLE,
                     NotePad.Notes.COLUMN_NAME_NOTE,
-                    NotePad.Notes.COLUMN_NAME_CATEGORY
+                    NotePad.Notes.COLUMN_NAME_CATEGORY,
+                    NotePad.Notes.COLUMN_NAME_NOTE_TRUNCATED
             };
 
     // A label for the saved state of the activity
@@ -93,6 +105,18 @@ public class NoteEditor extends Activity {
     private String mOriginalContent;
     private FloatingActionButton mFabSaveNote;
     private String mCurrentCategory = "";
+
+    // Set while the body of an oversized note is read in; the editor only has its start until
+    // then. Each load gets a new generation, so a load that was overtaken is dropped.
+    private boolean mBodyLoading;
+    private int mBodyGeneration;
+
+    // The title and text as last read from or written to the provider. A save only sends the
+    // title if it was changed here, so it doesn't undo a rename made in TitleEditor, and sends
+    // the text along with the one it was edited from, so the provider can merge in any edit
+    // made elsewhere in the meantime.
+    private String mSavedTitle;
+    private String mSavedContent;
     
     // Category list for autocomplete
     private List<String> mCategoryList;
@@ -333,9 +357,16 @@ public class NoteEditor extends Activity {
             // Gets the note's content from the cursor
             String note = mCursor.getString(colNoteIndex);
             String category = mCursor.getString(colCategoryIndex);
+            boolean truncated = mCursor.getInt(
+                    mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE_TRUNCATED)) != 0;
 
-            // Sets the editor's content
+            // Sets the editor's content. For an oversized note that's only the start of it,
+            // until the rest is loaded.
             mText.setText(note);
+            mSavedContent = truncated ? null : note;
+            if (truncated) {
+                loadBody();
+            }
             
             // 设置分组信息
             mCurrentCategory = category != null ? category : "";
@@ -343,11 +374,12 @@ public class NoteEditor extends Activity {
 
 
             // Sets the title text
-            mTitleText.setText(mCursor.getString(mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+            mSavedTitle = mCursor.getString(mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE));
+            mTitleText.setText(mSavedTitle);
 
 
             // If the original content has not been backed up,
-            if (mOriginalContent == null) {
+            if (mOriginalContent == null && !truncated) {
                 // do a backup.
                 mOriginalContent = note;
             }
@@ -369,8 +401,10 @@ public class NoteEditor extends Activity {
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         // Save away the original text, so we still have it if the activity
-        // needs to be killed while paused.
-        outState.putString(ORIGINAL_CONTENT, mOriginalContent);
+        // needs to be killed while paused. An oversized note's doesn't fit in the saved state.
+        if (!NoteBodyStore.isOversized(mOriginalContent)) {
+            outState.putString(ORIGINAL_CONTENT, mOriginalContent);
+        }
     }
 
     /**
@@ -407,7 +441,7 @@ public class NoteEditor extends Activity {
             if (isFinishing() && (length == 0)) {
                 // If the text is empty, cancels the note edit and sets the status to CANCELED.
                 setResult(RESULT_CANCELED);
-                deleteNote();
+                discardNote();
 
             /*
              * If the Activity is not finishing, and the text is not empty, then the result
@@ -447,6 +481,7 @@ public class NoteEditor extends Activity {
         if (mState == STATE_INSERT) {
             menu.findItem(R.id.menu_revert).setVisible(false);
             menu.findItem(R.id.menu_delete).setVisible(false);
+            menu.findItem(R.id.menu_history).setVisible(false);
         }
 
         // Hide the old save menu item to prefer the FAB
@@ -475,6 +510,9 @@ public class NoteEditor extends Activity {
             // The user wants to revert the changes.
             cancelNote();
             return true;
+        } else if (itemId == R.id.menu_history) {
+            showHistory();
+            return true;
         } else {
             return super.onOptionsItemSelected(item);
         }
@@ -588,14 +626,20 @@ public class NoteEditor extends Activity {
                 }
             }
         }
-        // If the title is not null, add it to the values map
-        if (title != null) {
+        // If the title is not null, and new, add it to the values map
+        if (title != null && (mState == STATE_INSERT || !title.equals(mSavedTitle))) {
             values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
+            mSavedTitle = title;
         }
 
-        // If the note text is not null, add it to the values map
+        // If the note text is not null, add it to the values map, with the text it replaces
+        // as far as this editor knows
         if (text != null) {
             values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+            if (mSavedContent != null) {
+                values.put(NotePad.Notes.BASE_NOTE, mSavedContent);
+            }
+            mSavedContent = text;
         }
 
         // If the category is not null, add it to the values map
@@ -632,7 +676,143 @@ public class NoteEditor extends Activity {
     }
 
     /**
-     * This helper method deletes the note.
+     * Reads the whole body of an oversized note on the disk thread, and puts it in the editor.
+     * The text can't be edited until then.
+     */
+    private void loadBody() {
+        final int generation = ++mBodyGeneration;
+        final Uri bodyUri = NotePad.Notes.getBodyUri(ContentUris.parseId(mUri));
+        final ContentResolver resolver = getContentResolver();
+        mBodyLoading = true;
+        mText.setEnabled(false);
+
+        AppExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                final String body = readBody(resolver, bodyUri);
+                AppExecutors.runOnMainThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mBodyGeneration || body == null || isFinishing()) {
+                            return;
+                        }
+                        mText.setTextKeepState(body);
+                        mText.setEnabled(true);
+                        mBodyLoading = false;
+                        mSavedContent = body;
+                        if (mOriginalContent == null) {
+                            mOriginalContent = body;
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Reads a note body from its stream, a buffer at a time. Returns null if it can't be read.
+     */
+    private static String readBody(ContentResolver resolver, Uri bodyUri) {
+        try {
+            AssetFileDescriptor descriptor = resolver.openTypedAssetFileDescriptor(bodyUri,
+                    ClipDescription.MIMETYPE_TEXT_PLAIN, null);
+            Reader reader = new InputStreamReader(descriptor.createInputStream(), "UTF-8");
+            try {
+                StringBuilder body = new StringBuilder(NoteBodyStore.EXTERNAL_THRESHOLD);
+                char[] buffer = new char[8192];
+                int count;
+                while ((count = reader.read(buffer)) > 0) {
+                    body.append(buffer, 0, count);
+                }
+                return body.toString();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + bodyUri, e);
+            return null;
+        }
+    }
+
+    /**
+     * Shows the note's revisions, newest first. Picking one puts its text in the editor; the
+     * note is only changed when it is saved, so the restore itself becomes a new revision.
+     */
+    private void showHistory() {
+        final long noteId = ContentUris.parseId(mUri);
+        Cursor cursor = getContentResolver().query(
+                NotePad.Revisions.getContentUri(noteId),
+                new String[] {
+                        NotePad.Revisions.COLUMN_NAME_REVISION,
+                        NotePad.Revisions.COLUMN_NAME_CREATE_DATE,
+                        NotePad.Revisions.COLUMN_NAME_LENGTH
+                },
+                null, null, null);
+        if (cursor == null) {
+            return;
+        }
+
+        final int[] revisions = new int[cursor.getCount()];
+        String[] labels = new String[revisions.length];
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        try {
+            for (int i = 0; cursor.moveToNext(); i++) {
+                revisions[i] = cursor.getInt(0);
+                labels[i] = getString(R.string.revision_label, revisions[i],
+                        format.format(new Date(cursor.getLong(1))), cursor.getInt(2));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (revisions.length == 0) {
+            Toast.makeText(this, R.string.no_revisions, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.title_history)
+                .setItems(labels, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        restoreRevision(noteId, revisions[which]);
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    private void restoreRevision(long noteId, int revision) {
+        Cursor cursor = getContentResolver().query(
+                NotePad.Revisions.getContentUri(noteId, revision),
+                new String[] { NotePad.Revisions.COLUMN_NAME_NOTE },
+                null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            if (cursor.moveToFirst()) {
+                String text = cursor.getString(
+                        cursor.getColumnIndex(NotePad.Revisions.COLUMN_NAME_NOTE));
+                mText.setTextKeepState(text);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Deletes the empty note the editor is closed on for good, rather than leaving it in the
+     * trash. Only a note that is in the trash can be deleted for good.
+     */
+    private final void discardNote() {
+        long noteId = ContentUris.parseId(mUri);
+        getContentResolver().delete(mUri, null, null);
+        getContentResolver().delete(NotePad.Notes.getTrashUri(noteId), null, null);
+    }
+
+    /**
+     * This helper method moves the note to the trash.
      */
     private final void deleteNote() {
         // Deletes the note from the provider.
@@ -648,10 +828,12 @@ public class NoteEditor extends Activity {
 
     private void updateNote(){
         String title = mTitleText.getText().toString();
-        String text = mText.getText().toString();
+        // While an oversized note is loading, the editor only has its start, which must not be
+        // saved over the whole note.
+        String text = mBodyLoading ? null : mText.getText().toString();
         
         // If title is empty, generate one from the note text
-        if (title.isEmpty() && !text.isEmpty()) {
+        if (title.isEmpty() && text != null && !text.isEmpty()) {
             // Get the note's length
             int length = text.length();
             
@@ -0,0 +1,213 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The notes in the smart folders. A folder is saved search text, see {@link NoteQuery}, and
+ * which notes match it is kept in a table of one row per folder and note, keyed by the folder,
+ * so opening a folder reads its notes from the primary key rather than searching them all. A
+ * second index, by note, finds the folders of a note, and lets a trigger drop them when the
+ * note is deleted for good.
+ *
+ * <p>The provider files each note it writes again: its row alone is read and tested against
+ * every folder, in the same transaction as the write; see {@link #refile}. A folder is only
+ * filled by testing every note when it is created, or its search text changes.
+ *
+ * <p>Notes match the way the notes list filters them: todos never, and the words in the
+ * title or in the text, however it is stored, of which a body kept in a file only has its
+ * start. Whether a note is in the trash isn't part of it; the folder's notes are read without
+ * those in the trash, so deleting and restoring notes leaves the folders as they are.
+ */
+final class NoteFolders {
+
+    static final String TABLE_NAME = "smart_folder_notes";
+
+    private static final String COLUMN_FOLDER_ID = "folder_id";
+    private static final String COLUMN_NOTE_ID = "note_id";
+
+    private static final String INSERT_SQL = "INSERT OR IGNORE INTO " + TABLE_NAME + " ("
+            + COLUMN_FOLDER_ID + ", " + COLUMN_NOTE_ID + ") VALUES (?, ?)";
+
+    private static final String DELETE_NOTE_SQL = "DELETE FROM " + TABLE_NAME
+            + " WHERE " + COLUMN_NOTE_ID + " = ?";
+
+    // What a note is tested on.
+    private static final String[] NOTE_COLUMNS = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NoteBodyCodec.COLUMN_NAME_FORMAT,
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+    };
+
+    // The note columns a folder's search text looks at; an update of none of them can't move
+    // a note in or out of a folder.
+    private static final String[] FILED_COLUMNS = new String[] {
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+    };
+
+    /**
+     * The where clause on the note ID of the notes in the folder given as its parameter.
+     */
+    static final String FOLDER_NOTES_WHERE = NotePad.Notes._ID + " IN (SELECT " + COLUMN_NOTE_ID
+            + " FROM " + TABLE_NAME + " WHERE " + COLUMN_FOLDER_ID + " = ?)";
+
+    // This class cannot be instantiated
+    private NoteFolders() {
+    }
+
+    /**
+     * Creates the tables, and a trigger that takes a note out of its folders when the note is
+     * deleted.
+     */
+    static void createTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + NotePad.SmartFolders.TABLE_NAME + " ("
+                + NotePad.SmartFolders._ID + " INTEGER PRIMARY KEY,"
+                + NotePad.SmartFolders.COLUMN_NAME_NAME + " TEXT NOT NULL,"
+                + NotePad.SmartFolders.COLUMN_NAME_QUERY + " TEXT NOT NULL DEFAULT ''"
+                + ");");
+        db.execSQL("CREATE TABLE " + TABLE_NAME + " ("
+                + COLUMN_FOLDER_ID + " INTEGER NOT NULL,"
+                + COLUMN_NOTE_ID + " INTEGER NOT NULL,"
+                + "PRIMARY KEY (" + COLUMN_FOLDER_ID + ", " + COLUMN_NOTE_ID + ")"
+                + ") WITHOUT ROWID;");
+        db.execSQL("CREATE INDEX " + TABLE_NAME + "_note ON " + TABLE_NAME
+                + " (" + COLUMN_NOTE_ID + ");");
+        db.execSQL("CREATE TRIGGER smart_folder_notes_note_delete AFTER DELETE ON "
+                + NotePad.Notes.TABLE_NAME + " BEGIN"
+                + " DELETE FROM " + TABLE_NAME
+                + " WHERE " + COLUMN_NOTE_ID + " = old." + NotePad.Notes._ID
+                + "; END;");
+    }
+
+    /**
+     * Returns whether an update with the values could move notes in or out of a folder.
+     */
+    static boolean affects(ContentValues values) {
+        for (String column : FILED_COLUMNS) {
+            if (values.containsKey(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fills the folder with the notes its search text matches, in place of those it had.
+     * Expects to be called inside a transaction.
+     */
+    static void fill(SQLiteDatabase db, long folderId, String query) {
+        String[] args = new String[] { String.valueOf(folderId) };
+        db.delete(TABLE_NAME, COLUMN_FOLDER_ID + " = ?", args);
+
+        NoteQuery parsed = NoteQuery.parse(query);
+        SQLiteStatement insert = db.compileStatement(INSERT_SQL);
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, NOTE_COLUMNS, null, null, null, null,
+                null);
+        try {
+            insert.bindLong(1, folderId);
+            while (c.moveToNext()) {
+                if (matches(parsed, c)) {
+                    insert.bindLong(2, c.getLong(0));
+                    insert.executeInsert();
+                }
+            }
+        } finally {
+            c.close();
+            insert.close();
+        }
+    }
+
+    /**
+     * Tests each of the notes against every folder, and puts it in those it matches, and in
+     * no other. Does nothing if there are no folders. Expects to be called inside a
+     * transaction.
+     */
+    static void refile(SQLiteDatabase db, long[] noteIds) {
+        List<Long> folderIds = new ArrayList<Long>();
+        List<NoteQuery> queries = new ArrayList<NoteQuery>();
+        Cursor folders = db.query(NotePad.SmartFolders.TABLE_NAME, new String[] {
+                NotePad.SmartFolders._ID, NotePad.SmartFolders.COLUMN_NAME_QUERY
+        }, null, null, null, null, null);
+        try {
+            while (folders.moveToNext()) {
+                folderIds.add(folders.getLong(0));
+                queries.add(NoteQuery.parse(folders.getString(1)));
+            }
+        } finally {
+            folders.close();
+        }
+        if (folderIds.isEmpty()) {
+            return;
+        }
+
+        SQLiteStatement delete = db.compileStatement(DELETE_NOTE_SQL);
+        SQLiteStatement insert = db.compileStatement(INSERT_SQL);
+        try {
+            for (long noteId : noteIds) {
+                delete.bindLong(1, noteId);
+                delete.executeUpdateDelete();
+
+                Cursor c = db.query(NotePad.Notes.TABLE_NAME, NOTE_COLUMNS,
+                        NotePad.Notes._ID + " = ?", new String[] { String.valueOf(noteId) },
+                        null, null, null);
+                try {
+                    if (!c.moveToFirst()) {
+                        continue;
+                    }
+                    insert.bindLong(2, noteId);
+                    for (int i = 0; i < queries.size(); i++) {
+                        if (matches(queries.get(i), c)) {
+                            insert.bindLong(1, folderIds.get(i));
+                            insert.executeInsert();
+                        }
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+        } finally {
+            delete.close();
+            insert.close();
+        }
+    }
+
+    /**
+     * Deletes the folder. Its notes stay as they are. Expects to be called inside a
+     * transaction.
+     *
+     * @return the number of folders deleted, 0 or 1.
+     */
+    static int delete(SQLiteDatabase db, long folderId) {
+        String[] args = new String[] { String.valueOf(folderId) };
+        db.delete(TABLE_NAME, COLUMN_FOLDER_ID + " = ?", args);
+        return db.delete(NotePad.SmartFolders.TABLE_NAME, NotePad.SmartFolders._ID + " = ?",
+                args);
+    }
+
+    /**
+     * Returns whether the note at the cursor's current row, read with {@link #NOTE_COLUMNS},
+     * matches the search text.
+     */
+    private static boolean matches(NoteQuery query, Cursor note) {
+        String category = note.getString(4);
+        if (TodoRank.isTodo(category)) {
+            return false;
+        }
+        return query.matchesFilters(category, note.getLong(5), note.getLong(6))
+                && query.containsTerms(NoteBodyCodec.decodeTitle(note, 1),
+                        NoteBodyCodec.decode(note, 2, note.getInt(3)));
+    }
+}
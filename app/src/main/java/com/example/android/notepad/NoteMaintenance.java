@@ -0,0 +1,192 @@
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.File;
+
+/**
+ * Keeps the database compact and its query planner informed: the work of
+ * {@link NoteMaintenanceService}, which runs it while the device is idle and charging.
+ *
+ * <p>A run does the following, each only when it is due:
+ * <ul>
+ * <li>Switches the database to incremental auto-vacuum with a one-time VACUUM, if it was
+ * created before that mode. {@code PRAGMA auto_vacuum} only takes effect on an empty
+ * database or through a VACUUM, and VACUUM can't run in the upgrade transaction; rebuilding
+ * here keeps it off the first open after an upgrade.</li>
+ * <li>Gives free pages back to the file system with {@code PRAGMA incremental_vacuum}, once
+ * there are at least {@link #MIN_FREE_PAGES} of them. It frees {@link #VACUUM_STEP_PAGES} pages
+ * per statement, so other writers wait a step at a time and never for a whole rebuild.</li>
+ * <li>Runs ANALYZE when the number of notes has changed by more than a tenth since the last
+ * one, as after an import or a mass delete, then {@code PRAGMA optimize}. SQLite versions
+ * before 3.18 ignore the pragma.</li>
+ * <li>Checkpoints the write-ahead log and truncates it.</li>
+ * </ul>
+ *
+ * <p>Each run measures the database before and after, see {@link Report}, with pragmas that
+ * read the file header only. Timing queries is left to {@code MaintenanceBenchmark}.
+ */
+final class NoteMaintenance {
+
+    /**
+     * The number of free pages from which they are given back.
+     */
+    static final int MIN_FREE_PAGES = 64;
+
+    /**
+     * The number of pages freed per incremental vacuum statement.
+     */
+    static final int VACUUM_STEP_PAGES = 256;
+
+    // ANALYZE is rerun once the note count has moved by this fraction and this many rows.
+    private static final double ANALYZE_CHANGE_FRACTION = 0.1;
+    private static final int ANALYZE_MIN_CHANGE = 100;
+
+    // The value of PRAGMA auto_vacuum for incremental vacuum.
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    // This class cannot be instantiated
+    private NoteMaintenance() {
+    }
+
+    /**
+     * The state of the database at one point of a maintenance run.
+     */
+    static final class Snapshot {
+        /** The size of the database file, in bytes. */
+        final long fileBytes;
+        /** The size of the write-ahead log, in bytes. */
+        final long walBytes;
+        /** The number of free pages in the database file. */
+        final long freePages;
+
+        Snapshot(long fileBytes, long walBytes, long freePages) {
+            this.fileBytes = fileBytes;
+            this.walBytes = walBytes;
+            this.freePages = freePages;
+        }
+
+        @Override
+        public String toString() {
+            return "file " + fileBytes + " B, wal " + walBytes + " B, " + freePages
+                    + " free pages";
+        }
+    }
+
+    /**
+     * What a maintenance run did, and the database before and after it.
+     */
+    static final class Report {
+        Snapshot before;
+        Snapshot after;
+        boolean rebuilt;
+        long pagesFreed;
+        boolean analyzed;
+        long durationMillis;
+
+        @Override
+        public String toString() {
+            return "Maintenance in " + durationMillis + " ms: "
+                    + (rebuilt ? "rebuilt for incremental vacuum, " : "")
+                    + "freed " + pagesFreed + " pages, "
+                    + (analyzed ? "analyzed" : "statistics current")
+                    + "; before: " + before + "; after: " + after;
+        }
+    }
+
+    /**
+     * Runs the maintenance that is due. Blocks until done, so must not be called on the main
+     * thread, and must not be called inside a transaction.
+     */
+    static Report run(SQLiteDatabase db) {
+        long start = System.nanoTime();
+        Report report = new Report();
+        report.before = snapshot(db);
+
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                != AUTO_VACUUM_INCREMENTAL) {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+            report.rebuilt = true;
+        } else {
+            long free = freePages(db);
+            if (free >= MIN_FREE_PAGES) {
+                while (free > 0) {
+                    // Run as a query, since each step of the statement frees a single page.
+                    drain(db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_STEP_PAGES + ")",
+                            null));
+                    long left = freePages(db);
+                    if (left >= free) {
+                        break;
+                    }
+                    report.pagesFreed += free - left;
+                    free = left;
+                }
+            }
+        }
+
+        if (isAnalysisStale(db)) {
+            db.execSQL("ANALYZE");
+            report.analyzed = true;
+        }
+        drain(db.rawQuery("PRAGMA optimize", null));
+
+        if (db.isWriteAheadLoggingEnabled()) {
+            drain(db.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null));
+        }
+
+        report.after = snapshot(db);
+        report.durationMillis = (System.nanoTime() - start) / 1000000;
+        return report;
+    }
+
+    /**
+     * Returns whether the number of notes has moved away from the one the planner's statistics
+     * were gathered with, or there are none.
+     */
+    static boolean isAnalysisStale(SQLiteDatabase db) {
+        long rows = DatabaseUtils.queryNumEntries(db, NotePad.Notes.TABLE_NAME);
+        if (DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master WHERE name ="
+                + " 'sqlite_stat1'", null) == 0) {
+            return rows > 0;
+        }
+        // The first number of a table's statistics is its row count when it was analyzed.
+        String stat = DatabaseUtils.stringForQuery(db, "SELECT IFNULL(MAX(stat), '') FROM"
+                + " sqlite_stat1 WHERE tbl = ?", new String[] { NotePad.Notes.TABLE_NAME });
+        int end = stat.indexOf(' ');
+        long analyzed;
+        try {
+            analyzed = Long.parseLong(end >= 0 ? stat.substring(0, end) : stat);
+        } catch (NumberFormatException e) {
+            return rows > 0;
+        }
+        long change = Math.abs(rows - analyzed);
+        return change >= ANALYZE_MIN_CHANGE && change > analyzed * ANALYZE_CHANGE_FRACTION;
+    }
+
+    private static Snapshot snapshot(SQLiteDatabase db) {
+        long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+        long pages = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+        File wal = new File(db.getPath() + "-wal");
+        return new Snapshot(pages * pageSize, wal.length(), freePages(db));
+    }
+
+    private static long freePages(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+    }
+
+    /**
+     * Steps the statement behind the cursor to its end, and closes it.
+     */
+    private static void drain(Cursor c) {
+        try {
+            while (c.moveToNext()) {
+                // Nothing to read; stepping is the point.
+            }
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.android.notepad;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.ContentProviderClient;
+import android.content.Context;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link NoteMaintenance} on the notes database about once a day, while the device is
+ * idle and charging, so the work never competes with the user for the disk or the battery.
+ * Notes that have been in the trash too long are deleted for good first, so the same run
+ * gives their pages back, and the ranks of todos are rebalanced if they have grown long.
+ * The job runs on {@link AppExecutors#maintenance()}, so loads for the UI don't queue behind it.
+ */
+public class NoteMaintenanceService extends JobService {
+
+    private static final String TAG = "NoteMaintenance";
+
+    // The id of the maintenance job, unique within the app.
+    private static final int JOB_ID = 1;
+
+    private static final long PERIOD_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * Schedules the maintenance job, unless it is already scheduled. Rescheduling would restart
+     * its period, and an app opened more often than that would never get maintained.
+     */
+    static void schedule(Context context) {
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+        scheduler.schedule(new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, NoteMaintenanceService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(PERIOD_MILLIS)
+                .build());
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        AppExecutors.maintenance().execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean retry = false;
+                ContentProviderClient client = getContentResolver()
+                        .acquireContentProviderClient(NotePad.AUTHORITY);
+                try {
+                    NotePadProvider provider = (NotePadProvider) client.getLocalContentProvider();
+                    int purged = provider.purgeTrash();
+                    if (purged > 0) {
+                        Log.i(TAG, "Deleted " + purged + " notes from the trash");
+                    }
+                    provider.rebalanceTodoRanks();
+                    Log.i(TAG, provider.runMaintenance().toString());
+                } catch (RuntimeException e) {
+                    // Such as the database being locked for longer than SQLite waits.
+                    Log.w(TAG, "Maintenance failed", e);
+                    retry = true;
+                } finally {
+                    client.release();
+                }
+                jobFinished(params, retry);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * The run can't be stopped half way; each of its steps leaves the database consistent,
+     * and the next run picks up what is left.
+     */
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        return false;
+    }
+}
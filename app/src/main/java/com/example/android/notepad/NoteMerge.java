@@ -0,0 +1,357 @@
+package com.example.android.notepad;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges two edits of a note's text made from the same earlier text, the base, keeping both.
+ *
+ * <p>Each edited text is diffed against the base line by line. Changes to different parts of
+ * the base are all applied; where both texts changed the same lines, or lines next to each
+ * other, those lines are merged again word by word, which is what lets two edits of one
+ * paragraph both survive. A word is a run of letters and digits of an alphabetic script; any
+ * other char, such as a CJK ideograph, a space or punctuation, is a word of its own. Words
+ * rather than chars, so that a word typed on one side isn't matched up with chars it happens
+ * to share with the base and split by an edit from the other side. Only changes to the very
+ * same words are a conflict, and then both versions of the lines are kept, ours first, so that
+ * nothing typed on either side is lost. The result depends only on its three inputs.
+ *
+ * <p>The diff is Myers' O((N + M) D) algorithm on what is left after removing the common start
+ * and end, so merging small edits of a large note costs little more than comparing the texts.
+ * Texts that differ in more than {@link #MAX_EDITS} places are treated as wholly rewritten.
+ */
+final class NoteMerge {
+
+    /**
+     * The most insertions and deletions a diff looks for before it gives up and treats the
+     * rest of the text as replaced. Bounds the diff's memory, which grows with its square.
+     */
+    static final int MAX_EDITS = 1024;
+
+    // Conflicting lines are merged word by word only up to this length, in chars.
+    private static final int MAX_WORD_MERGE_LENGTH = 16 * 1024;
+
+    // This class cannot be instantiated
+    private NoteMerge() {
+    }
+
+    /**
+     * Returns the text with the changes from {@code base} to {@code ours} and from
+     * {@code base} to {@code theirs}.
+     */
+    static String merge(String base, String ours, String theirs) {
+        if (ours.equals(theirs) || theirs.equals(base)) {
+            return ours;
+        }
+        if (ours.equals(base)) {
+            return theirs;
+        }
+
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        return merge(Tokens.lines(base, ids), Tokens.lines(ours, ids), Tokens.lines(theirs, ids),
+                true);
+    }
+
+    /**
+     * Merges token sequences. Where both sides changed the same lines, merges them again as
+     * words; returns null for conflicting words, if {@code lines} is false, so the caller can
+     * keep both versions of the lines instead.
+     */
+    private static String merge(Tokens base, Tokens ours, Tokens theirs, boolean lines) {
+        List<Hunk> ourHunks = diff(base.ids, ours.ids);
+        List<Hunk> theirHunks = diff(base.ids, theirs.ids);
+        StringBuilder merged = new StringBuilder();
+
+        // How far each side's positions are ahead of the base's, before the current hunk.
+        int ourShift = 0;
+        int theirShift = 0;
+        int position = 0;
+        int i = 0;
+        int j = 0;
+        while (i < ourHunks.size() || j < theirHunks.size()) {
+            // A block starts at the next hunk of either side, and takes in every hunk that
+            // overlaps or touches it, from both sides, until there is none.
+            int start = Math.min(
+                    i < ourHunks.size() ? ourHunks.get(i).baseStart : Integer.MAX_VALUE,
+                    j < theirHunks.size() ? theirHunks.get(j).baseStart : Integer.MAX_VALUE);
+            int end = start;
+            int ourStart = start + ourShift;
+            int theirStart = start + theirShift;
+            boolean ourChange = false;
+            boolean theirChange = false;
+            boolean grew = true;
+            while (grew) {
+                grew = false;
+                while (i < ourHunks.size() && ourHunks.get(i).baseStart <= end) {
+                    Hunk hunk = ourHunks.get(i++);
+                    end = Math.max(end, hunk.baseEnd);
+                    ourShift += hunk.shift();
+                    ourChange = true;
+                    grew = true;
+                }
+                while (j < theirHunks.size() && theirHunks.get(j).baseStart <= end) {
+                    Hunk hunk = theirHunks.get(j++);
+                    end = Math.max(end, hunk.baseEnd);
+                    theirShift += hunk.shift();
+                    theirChange = true;
+                    grew = true;
+                }
+            }
+
+            base.append(merged, position, start);
+            if (!theirChange) {
+                ours.append(merged, ourStart, end + ourShift);
+            } else if (!ourChange) {
+                theirs.append(merged, theirStart, end + theirShift);
+            } else {
+                String resolved = resolve(base.text(start, end),
+                        ours.text(ourStart, end + ourShift),
+                        theirs.text(theirStart, end + theirShift), lines);
+                if (resolved == null) {
+                    return null;
+                }
+                merged.append(resolved);
+            }
+            position = end;
+        }
+        base.append(merged, position, base.ids.length);
+        return merged.toString();
+    }
+
+    /**
+     * Returns the merge of a part of the texts that both sides changed.
+     */
+    private static String resolve(String base, String ours, String theirs, boolean lines) {
+        if (ours.equals(theirs)) {
+            return ours;
+        }
+        if (!lines) {
+            return null;
+        }
+        if (base.length() + ours.length() + theirs.length() <= MAX_WORD_MERGE_LENGTH) {
+            Map<String, Integer> ids = new HashMap<String, Integer>();
+            String merged = merge(Tokens.words(base, ids), Tokens.words(ours, ids),
+                    Tokens.words(theirs, ids), false);
+            if (merged != null) {
+                return merged;
+            }
+        }
+        if (ours.length() == 0) {
+            return theirs;
+        }
+        if (theirs.length() == 0) {
+            return ours;
+        }
+        return ours.endsWith("\n") ? ours + theirs : ours + "\n" + theirs;
+    }
+
+    /**
+     * A change of the base: the tokens from {@code baseStart} to {@code baseEnd} replaced by
+     * {@code length} other tokens.
+     */
+    private static final class Hunk {
+        final int baseStart;
+        final int baseEnd;
+        final int length;
+
+        Hunk(int baseStart, int baseEnd, int length) {
+            this.baseStart = baseStart;
+            this.baseEnd = baseEnd;
+            this.length = length;
+        }
+
+        int shift() {
+            return length - (baseEnd - baseStart);
+        }
+    }
+
+    /**
+     * Returns the changes that turn {@code a} into {@code b}, in order.
+     */
+    private static List<Hunk> diff(int[] a, int[] b) {
+        int prefix = 0;
+        int max = Math.min(a.length, b.length);
+        while (prefix < max && a[prefix] == b[prefix]) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix
+                && a[a.length - 1 - suffix] == b[b.length - 1 - suffix]) {
+            suffix++;
+        }
+
+        List<Hunk> hunks = new ArrayList<Hunk>();
+        int n = a.length - prefix - suffix;
+        int m = b.length - prefix - suffix;
+        if (n == 0 && m == 0) {
+            return hunks;
+        }
+
+        // The matched tokens of the middle parts, as pairs of positions in a and b, last
+        // first, or null if the parts are too different to bother.
+        int[] matches = n > 0 && m > 0 ? matches(a, b, prefix, n, m) : new int[0];
+        if (matches == null) {
+            hunks.add(new Hunk(prefix, prefix + n, m));
+            return hunks;
+        }
+
+        // The changes are the gaps between matches.
+        int x = prefix;
+        int y = prefix;
+        for (int k = matches.length - 2; k >= -2; k -= 2) {
+            int nextX = k >= 0 ? matches[k] : prefix + n;
+            int nextY = k >= 0 ? matches[k + 1] : prefix + m;
+            if (nextX > x || nextY > y) {
+                hunks.add(new Hunk(x, nextX, nextY - y));
+            }
+            x = nextX + 1;
+            y = nextY + 1;
+        }
+        return hunks;
+    }
+
+    /**
+     * Runs Myers' diff on {@code a[offset, offset + n)} and {@code b[offset, offset + m)}.
+     * Returns the positions of the matched tokens, from the last match to the first, as pairs
+     * of a and b positions, or null if the parts differ in more than {@link #MAX_EDITS} places.
+     */
+    private static int[] matches(int[] a, int[] b, int offset, int n, int m) {
+        int maxEdits = Math.min(n + m, MAX_EDITS);
+        int[] v = new int[2 * maxEdits + 3];
+        int center = maxEdits + 1;
+        List<int[]> trace = new ArrayList<int[]>();
+
+        for (int d = 0; d <= maxEdits; d++) {
+            // What the furthest reaching paths were before this round, for the backtrack.
+            trace.add(Arrays.copyOfRange(v, center - d - 1, center + d + 2));
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || (k != d && v[center + k - 1] < v[center + k + 1])
+                        ? v[center + k + 1] : v[center + k - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[offset + x] == b[offset + y]) {
+                    x++;
+                    y++;
+                }
+                v[center + k] = x;
+                if (x >= n && y >= m) {
+                    return backtrack(trace, a, b, offset, n, m);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static int[] backtrack(List<int[]> trace, int[] a, int[] b, int offset, int n,
+            int m) {
+        int[] matches = new int[2 * Math.min(n, m)];
+        int count = 0;
+        int x = n;
+        int y = m;
+        for (int d = trace.size() - 1; d >= 0; d--) {
+            int[] v = trace.get(d);
+            int k = x - y;
+            int prevX;
+            int prevY;
+            if (d == 0) {
+                prevX = 0;
+                prevY = 0;
+            } else {
+                // v holds the paths for k from -d - 1 to d + 1.
+                int prevK = k == -d || (k != d && v[k - 1 + d + 1] < v[k + 1 + d + 1])
+                        ? k + 1 : k - 1;
+                prevX = v[prevK + d + 1];
+                prevY = prevX - prevK;
+            }
+            // The snake: the matches after the edit made in this round.
+            int snakeStartX = d == 0 ? 0 : (prevX - prevY < k ? prevX + 1 : prevX);
+            while (x > snakeStartX) {
+                x--;
+                y--;
+                matches[count++] = offset + x;
+                matches[count++] = offset + y;
+            }
+            x = prevX;
+            y = prevY;
+        }
+        return Arrays.copyOf(matches, count);
+    }
+
+    /**
+     * A text cut into lines or words, each with an id that is the same for equal pieces of the
+     * texts being merged.
+     */
+    private static final class Tokens {
+        final String text;
+        final int[] ids;
+
+        // Where each token starts in the text, and where the text ends.
+        final int[] starts;
+
+        private Tokens(String text, int[] ids, int[] starts) {
+            this.text = text;
+            this.ids = ids;
+            this.starts = starts;
+        }
+
+        static Tokens lines(String text, Map<String, Integer> ids) {
+            List<Integer> starts = new ArrayList<Integer>();
+            int start = 0;
+            while (start < text.length()) {
+                starts.add(start);
+                int newline = text.indexOf('\n', start);
+                start = newline >= 0 ? newline + 1 : text.length();
+            }
+            return of(text, starts, ids);
+        }
+
+        static Tokens words(String text, Map<String, Integer> ids) {
+            List<Integer> starts = new ArrayList<Integer>();
+            boolean inWord = false;
+            for (int i = 0; i < text.length(); i += Character.charCount(text.codePointAt(i))) {
+                boolean wordChar = isWordChar(text.codePointAt(i));
+                if (!inWord || !wordChar) {
+                    starts.add(i);
+                }
+                inWord = wordChar;
+            }
+            return of(text, starts, ids);
+        }
+
+        /**
+         * Returns whether the char is part of a longer word: a letter or digit of a script
+         * that separates words with spaces. CJK and the other scripts from U+2E80 on don't.
+         */
+        private static boolean isWordChar(int codePoint) {
+            return codePoint < 0x2E80 && Character.isLetterOrDigit(codePoint);
+        }
+
+        private static Tokens of(String text, List<Integer> starts, Map<String, Integer> ids) {
+            int[] tokenIds = new int[starts.size()];
+            int[] tokenStarts = new int[starts.size() + 1];
+            for (int i = 0; i < tokenIds.length; i++) {
+                tokenStarts[i] = starts.get(i);
+                int end = i + 1 < tokenIds.length ? starts.get(i + 1) : text.length();
+                String piece = text.substring(tokenStarts[i], end);
+                Integer id = ids.get(piece);
+                if (id == null) {
+                    id = ids.size();
+                    ids.put(piece, id);
+                }
+                tokenIds[i] = id;
+            }
+            tokenStarts[tokenIds.length] = text.length();
+            return new Tokens(text, tokenIds, tokenStarts);
+        }
+
+        String text(int from, int to) {
+            return text.substring(starts[from], starts[to]);
+        }
+
+        void append(StringBuilder out, int from, int to) {
+            out.append(text, starts[from], starts[to]);
+        }
+    }
+}
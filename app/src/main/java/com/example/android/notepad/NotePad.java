@@ -28,6 +28,14 @@ import android.provider.BaseColumns;
 public final class NotePad {
     public static final String AUTHORITY = "com.google.provider.NotePad";
 
+    /**
+     * A query parameter that, set to {@code true}, marks an insert, update or delete as made by
+     * the sync engine to apply a change from another device. Such a change isn't logged to be
+     * sent back out, and an update or delete of a single note changed here since it was last
+     * synced does nothing.
+     */
+    public static final String CALLER_IS_SYNC_ADAPTER = "caller_is_syncadapter";
+
     // This class cannot be instantiated
     private NotePad() {
     }
@@ -78,6 +86,36 @@ public final class NotePad {
          */
         private static final String PATH_LIVE_FOLDER = "/live_folders/notes";
 
+        /**
+         * Path part for the search URI
+         */
+        private static final String PATH_SEARCH = "/notes/search";
+
+        /**
+         * Path part for the fuzzy search URI
+         */
+        private static final String PATH_FUZZY_SEARCH = "/notes/fuzzy";
+
+        /**
+         * Path part for the trash URI
+         */
+        private static final String PATH_TRASH = "/notes/trash";
+
+        /**
+         * 0-relative position of a note ID segment in the path part of a trash note URI
+         */
+        public static final int TRASH_ID_PATH_POSITION = 2;
+
+        /**
+         * Path part for the tagged notes URI
+         */
+        private static final String PATH_TAGGED = "/notes/tagged";
+
+        /**
+         * Path part for the todo tree URI
+         */
+        private static final String PATH_TODO_TREE = "/notes/tree";
+
         /**
          * Path part for the categories URI
          */
@@ -102,6 +140,150 @@ public final class NotePad {
         public static final Uri CONTENT_ID_URI_PATTERN
             = Uri.parse(SCHEME + AUTHORITY + PATH_NOTE_ID + "/#");
 
+        /**
+         * Path part appended to a note ID URI for the note's body, as a text/plain stream
+         */
+        public static final String CONTENT_BODY_DIRECTORY = "body";
+
+        /**
+         * Returns the URI of the body of a note. It can only be opened as a text/plain stream,
+         * with {@link android.content.ContentResolver#openTypedAssetFileDescriptor} or
+         * {@link android.content.ContentResolver#openInputStream}, and holds the whole body even
+         * when {@link #COLUMN_NAME_NOTE} doesn't.
+         */
+        public static Uri getBodyUri(long noteId) {
+            return CONTENT_ID_URI_BASE.buildUpon()
+                    .appendPath(String.valueOf(noteId))
+                    .appendPath(CONTENT_BODY_DIRECTORY)
+                    .build();
+        }
+
+        /**
+         * The content Uri for searching notes. Takes the search text in the
+         * {@link #SEARCH_QUERY_PARAMETER} query parameter; see {@link #getSearchUri(String)}.
+         * Returns the notes whose title or content contains the text, ignoring ASCII case, with
+         * {@link #COLUMN_NAME_TITLE_MATCH_START}, {@link #COLUMN_NAME_MATCH_SNIPPET} and
+         * {@link #COLUMN_NAME_MATCH_SNIPPET_START} describing where. The content column itself is
+         * not available.
+         */
+        public static final Uri SEARCH_URI = Uri.parse(SCHEME + AUTHORITY + PATH_SEARCH);
+
+        /**
+         * The query parameter of {@link #SEARCH_URI} and {@link #FUZZY_SEARCH_URI} holding the
+         * search text. Besides words, which must all match, the text may hold
+         * {@code "quoted phrases"}, and filters such as {@code cat:work},
+         * {@code modified:>2026-01-01}, {@code created:<=2026-03-31} and
+         * {@code modified:2026-01-01..2026-01-31}. The match columns describe the first word or
+         * phrase; a fuzzy search matches the words and phrases together, and applies the
+         * filters as they are.
+         */
+        public static final String SEARCH_QUERY_PARAMETER = "q";
+
+        /**
+         * Returns the URI that searches the notes for the given text.
+         */
+        public static Uri getSearchUri(String query) {
+            return SEARCH_URI.buildUpon()
+                    .appendQueryParameter(SEARCH_QUERY_PARAMETER, query)
+                    .build();
+        }
+
+        /**
+         * The content Uri for a typo-tolerant search of the notes. Takes the search text in the
+         * {@link #SEARCH_QUERY_PARAMETER} query parameter; see {@link #getFuzzySearchUri(String)}.
+         * Returns the notes whose title or the start of whose content is within a few edits of
+         * the text, closest first, with {@link #COLUMN_NAME_MATCH_DISTANCE}. Texts shorter than
+         * three characters match nothing. Only the columns of {@link #SEARCH_URI} that don't
+         * describe a match are available.
+         */
+        public static final Uri FUZZY_SEARCH_URI = Uri.parse(SCHEME + AUTHORITY + PATH_FUZZY_SEARCH);
+
+        /**
+         * Returns the URI that searches the notes for text close to the given text.
+         */
+        public static Uri getFuzzySearchUri(String query) {
+            return FUZZY_SEARCH_URI.buildUpon()
+                    .appendQueryParameter(SEARCH_QUERY_PARAMETER, query)
+                    .build();
+        }
+
+        /**
+         * The content Uri for the trash. Deleting notes through {@link #CONTENT_URI} or a note
+         * ID URI only moves them here, stamped with {@link #COLUMN_NAME_DELETED_AT}; they are
+         * no longer returned by any other URI, and are deleted for good after a month. Query it
+         * for the notes in the trash, most recently deleted first. Update it, or the URI of a
+         * note in it, with {@link #COLUMN_NAME_DELETED_AT} set to null to restore notes; no
+         * other update is allowed. Delete from it to delete notes for good, right away.
+         */
+        public static final Uri TRASH_URI = Uri.parse(SCHEME + AUTHORITY + PATH_TRASH);
+
+        /**
+         * Returns the URI of a note in the trash.
+         */
+        public static Uri getTrashUri(long noteId) {
+            return TRASH_URI.buildUpon().appendPath(String.valueOf(noteId)).build();
+        }
+
+        /**
+         * The content Uri for the notes with given tags. Takes the names of the tags in
+         * {@link #TAG_QUERY_PARAMETER} parameters, and whether the notes must have all of them,
+         * or any, in {@link #MATCH_QUERY_PARAMETER}; see {@link #getTaggedUri(boolean, String...)}.
+         * Returns the same columns as {@link #CONTENT_URI}, and takes a selection and sort order
+         * the same way. Names of no tag match nothing.
+         */
+        public static final Uri TAGGED_URI = Uri.parse(SCHEME + AUTHORITY + PATH_TAGGED);
+
+        /**
+         * The query parameter of {@link #TAGGED_URI} holding the name of a tag, once per tag.
+         */
+        public static final String TAG_QUERY_PARAMETER = "tag";
+
+        /**
+         * The query parameter of {@link #TAGGED_URI} saying whether the notes must have
+         * {@link #MATCH_ALL} of the tags, or {@link #MATCH_ANY}. All, if it is missing.
+         */
+        public static final String MATCH_QUERY_PARAMETER = "match";
+
+        /**
+         * The value of {@link #MATCH_QUERY_PARAMETER} for notes with all the tags.
+         */
+        public static final String MATCH_ALL = "all";
+
+        /**
+         * The value of {@link #MATCH_QUERY_PARAMETER} for notes with any of the tags.
+         */
+        public static final String MATCH_ANY = "any";
+
+        /**
+         * Returns the URI of the notes with all, or any, of the tags of the given names.
+         */
+        public static Uri getTaggedUri(boolean all, String... tags) {
+            Uri.Builder builder = TAGGED_URI.buildUpon()
+                    .appendQueryParameter(MATCH_QUERY_PARAMETER, all ? MATCH_ALL : MATCH_ANY);
+            for (String tag : tags) {
+                builder.appendQueryParameter(TAG_QUERY_PARAMETER, tag);
+            }
+            return builder.build();
+        }
+
+        /**
+         * The content Uri for the todos of a status with their subtasks, see
+         * {@link #getTodoTreeUri(String)}.
+         */
+        public static final Uri TODO_TREE_URI = Uri.parse(SCHEME + AUTHORITY + PATH_TODO_TREE);
+
+        /**
+         * Returns the URI of the todos of a status, each followed by its subtasks, to any
+         * depth, in the order of their ranks, as a checklist is shown, read in one query. A
+         * subtask is listed under its parent whatever its own status; a todo is listed at the
+         * top if it has no parent outside the trash. Each row holds the ID, title, category,
+         * due date, rank, parent ID and subtask counts of the todo, and its
+         * {@link #COLUMN_NAME_DEPTH}. The projection, selection and sort order are ignored.
+         */
+        public static Uri getTodoTreeUri(String status) {
+            return TODO_TREE_URI.buildUpon().appendPath(status).build();
+        }
+
         /**
          * The content Uri for categories
          */
@@ -134,6 +316,16 @@ public final class NotePad {
          */
         public static final String DEFAULT_SORT_ORDER = "modified DESC";
 
+        /**
+         * The default sort order of {@link #TRASH_URI}
+         */
+        public static final String TRASH_SORT_ORDER = "deleted_at DESC";
+
+        /**
+         * The order the user gave the todos of a status, see {@link #COLUMN_NAME_RANK}
+         */
+        public static final String RANK_SORT_ORDER = "rank";
+
         /*
          * Column definitions
          */
@@ -145,11 +337,68 @@ public final class NotePad {
         public static final String COLUMN_NAME_TITLE = "title";
 
         /**
-         * Column name of the note content
+         * Column name of the note content. For very large notes, queries only return the start
+         * of the content, see {@link #COLUMN_NAME_NOTE_TRUNCATED}.
          * <P>Type: TEXT</P>
          */
         public static final String COLUMN_NAME_NOTE = "note";
 
+        /**
+         * Column name for whether {@link #COLUMN_NAME_NOTE} only holds the start of the note's
+         * content. The whole content is then read from {@link #getBodyUri(long)}. Read-only.
+         * <P>Type: INTEGER (boolean)</P>
+         */
+        public static final String COLUMN_NAME_NOTE_TRUNCATED = "note_truncated";
+
+        /**
+         * Column name for a short preview of the note's content: its start, with runs of
+         * whitespace collapsed to single spaces. Kept up to date by the provider. Read-only.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_SNIPPET = "snippet";
+
+        /**
+         * Key for the text a new {@link #COLUMN_NAME_NOTE} was edited from, in an update of a
+         * note ID URI. Not a column. If the note was changed by someone else since, the
+         * provider stores the 3-way merge of both edits instead of the new text, so neither is
+         * lost.
+         * <P>Type: TEXT</P>
+         */
+        public static final String BASE_NOTE = "base_note";
+
+        /*
+         * Columns returned by SEARCH_URI only. Offsets count characters the way SQLite does, by
+         * Unicode code point; String.offsetByCodePoints() turns them into Java string indexes.
+         * A match is as many code points long as the search text.
+         */
+
+        /**
+         * Column name for the offset of the first match in the title, or -1 if the title
+         * doesn't match.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_TITLE_MATCH_START = "title_match_start";
+
+        /**
+         * Column name for an excerpt of the content around its first match, or null if the
+         * content doesn't match.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_MATCH_SNIPPET = "match_snippet";
+
+        /**
+         * Column name for the offset of the match in {@link #COLUMN_NAME_MATCH_SNIPPET}.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_MATCH_SNIPPET_START = "match_snippet_start";
+
+        /**
+         * Column name for the number of edits between the search text and the closest part of
+         * the note. Returned by {@link #FUZZY_SEARCH_URI} only.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_MATCH_DISTANCE = "match_distance";
+
         /**
          * Column name for the creation timestamp
          * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
@@ -167,5 +416,314 @@ public final class NotePad {
          * <P>Type: TEXT</P>
          */
         public static final String COLUMN_NAME_CATEGORY = "category";
+
+        /**
+         * Column name for when a todo is due, or null if it has no due date
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_DUE_DATE = "due_date";
+
+        /**
+         * Column name for when to remind the user of a todo, or null if there is no reminder
+         * to come. Cleared once the reminder has been shown, and by the provider when the todo
+         * is completed.
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_REMIND_AT = "remind_at";
+
+        /**
+         * Column name for the place of a todo in the order the user gave the todos of its
+         * status: a key compared as text, see {@link #RANK_SORT_ORDER}. A todo is moved by
+         * setting a key between those of its new neighbours, from
+         * {@code TodoRank.between()}. A todo added, or changed to another status, without one
+         * goes on top.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_RANK = "rank";
+
+        /**
+         * Column name for the todo a subtask belongs to, or null if it isn't a subtask. Only
+         * set when the subtask is added, to a todo that isn't in the trash. Moving a todo to
+         * the trash moves its subtasks with it, and restoring it restores them.
+         * <P>Type: INTEGER (long)</P>
+         */
+        public static final String COLUMN_NAME_PARENT_ID = "parent_id";
+
+        /**
+         * Column name for the number of subtasks below a todo, to any depth, outside the trash.
+         * Kept by the provider; read-only.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_SUBTASKS = "subtasks";
+
+        /**
+         * Column name for how many of {@link #COLUMN_NAME_SUBTASKS} are completed. Kept by the
+         * provider; read-only.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_SUBTASKS_DONE = "subtasks_done";
+
+        /**
+         * Column name for how deep a todo is in {@link #getTodoTreeUri(String)}, 0 at the top.
+         * Only in that URI.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_DEPTH = "depth";
+
+        /**
+         * Column name for when the note was moved to the trash, or null if it isn't in it. Set
+         * by deleting the note; only cleared through {@link #TRASH_URI}.
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_DELETED_AT = "deleted_at";
+    }
+
+    /**
+     * Revision history contract. Every time a note's text is changed through its note ID URI,
+     * the provider records the new text as a revision. Revisions are read through
+     * {@link #getContentUri(long)} for the list of a note's revisions, and through
+     * {@link #getContentUri(long, int)} for the text of one revision.
+     */
+    public static final class Revisions implements BaseColumns {
+
+        // This class cannot be instantiated
+        private Revisions() {}
+
+        /**
+         * The table name offered by this provider
+         */
+        public static final String TABLE_NAME = "revisions";
+
+        /**
+         * Path part appended to a note ID URI for the note's revisions
+         */
+        public static final String CONTENT_DIRECTORY = "revisions";
+
+        /**
+         * The MIME type of a directory of revisions.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.note.revision";
+
+        /**
+         * The MIME type of a single revision.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/vnd.google.note.revision";
+
+        /**
+         * The default sort order, newest revision first
+         */
+        public static final String DEFAULT_SORT_ORDER = "revision DESC";
+
+        /**
+         * Returns the URI of the list of revisions of a note.
+         */
+        public static Uri getContentUri(long noteId) {
+            return Notes.CONTENT_ID_URI_BASE.buildUpon()
+                    .appendPath(String.valueOf(noteId))
+                    .appendPath(CONTENT_DIRECTORY)
+                    .build();
+        }
+
+        /**
+         * Returns the URI of one revision of a note. Querying it returns the note text as it was
+         * at that revision, in {@link #COLUMN_NAME_NOTE}.
+         */
+        public static Uri getContentUri(long noteId, int revision) {
+            return getContentUri(noteId).buildUpon()
+                    .appendPath(String.valueOf(revision))
+                    .build();
+        }
+
+        /*
+         * Column definitions
+         */
+
+        /**
+         * Column name for the ID of the note the revision belongs to
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_ID = "note_id";
+
+        /**
+         * Column name for the revision number. Revisions of a note are numbered from 1 upwards.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_REVISION = "revision";
+
+        /**
+         * Column name for the time the revision was recorded
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_CREATE_DATE = "created";
+
+        /**
+         * Column name for the length of the note text at this revision, in chars
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_LENGTH = "length";
+
+        /**
+         * Column name for the note text at this revision. Only returned when querying a single
+         * revision.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_NOTE = "note";
+    }
+
+    /**
+     * Tags contract. A note may have any number of tags, and the same tag may be on any number
+     * of notes. {@link #CONTENT_URI} lists every tag, and the URI of a tag in it deletes the tag
+     * from all its notes. The tags of a note are in {@link #getContentUri(long)}: query it for
+     * them, insert a {@link #COLUMN_NAME_NAME} into it to tag the note, creating the tag if
+     * there is none of that name, and delete the URI of one of them to take it off the note.
+     * The notes with given tags are queried through {@link Notes#TAGGED_URI}.
+     */
+    public static final class Tags implements BaseColumns {
+
+        // This class cannot be instantiated
+        private Tags() {}
+
+        /**
+         * The table name offered by this provider
+         */
+        public static final String TABLE_NAME = "tags";
+
+        /**
+         * Path part appended to a note ID URI for the note's tags
+         */
+        public static final String CONTENT_DIRECTORY = "tags";
+
+        /**
+         * The content Uri of all the tags
+         */
+        public static final Uri CONTENT_URI = Uri.parse(Notes.SCHEME + AUTHORITY + "/tags");
+
+        /**
+         * The MIME type of a directory of tags.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.note.tag";
+
+        /**
+         * The MIME type of a single tag.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/vnd.google.note.tag";
+
+        /**
+         * The default sort order, by name
+         */
+        public static final String DEFAULT_SORT_ORDER = "name";
+
+        /**
+         * Returns the URI of the tags of a note.
+         */
+        public static Uri getContentUri(long noteId) {
+            return Notes.CONTENT_ID_URI_BASE.buildUpon()
+                    .appendPath(String.valueOf(noteId))
+                    .appendPath(CONTENT_DIRECTORY)
+                    .build();
+        }
+
+        /*
+         * Column definitions
+         */
+
+        /**
+         * Column name for the name of the tag. Names that differ only in the case of ASCII
+         * letters are the same tag.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_NAME = "name";
+
+        /**
+         * Column name for the number of notes with the tag, those in the trash included. Kept
+         * by the provider; read-only.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_COUNT = "note_count";
+    }
+
+    /**
+     * Smart folders contract. A smart folder is search text, in the syntax of
+     * {@link Notes#SEARCH_URI}, saved under a name. {@link #CONTENT_URI} lists the folders, and
+     * a {@link #COLUMN_NAME_NAME} and {@link #COLUMN_NAME_QUERY} inserted into it create one;
+     * the URI of a folder in it updates or deletes the folder. The notes of a folder, those
+     * outside the trash that match its search text, are in {@link #getNotesUri(long)}. The
+     * provider keeps them as notes are written, so reading them doesn't search the notes.
+     */
+    public static final class SmartFolders implements BaseColumns {
+
+        // This class cannot be instantiated
+        private SmartFolders() {}
+
+        /**
+         * The table name offered by this provider
+         */
+        public static final String TABLE_NAME = "smart_folders";
+
+        /**
+         * The content Uri of all the smart folders
+         */
+        public static final Uri CONTENT_URI =
+                Uri.parse(Notes.SCHEME + AUTHORITY + "/smart_folders");
+
+        /**
+         * The content URI base for a single smart folder. Callers must append a numeric folder
+         * id to this Uri.
+         */
+        public static final Uri CONTENT_ID_URI_BASE =
+                Uri.parse(Notes.SCHEME + AUTHORITY + "/smart_folders/");
+
+        /**
+         * Path part appended to a smart folder URI for the folder's notes
+         */
+        public static final String NOTES_DIRECTORY = "notes";
+
+        /**
+         * The MIME type of a directory of smart folders.
+         */
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/vnd.google.note.smartfolder";
+
+        /**
+         * The MIME type of a single smart folder.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/vnd.google.note.smartfolder";
+
+        /**
+         * The default sort order, by name
+         */
+        public static final String DEFAULT_SORT_ORDER = "name";
+
+        /**
+         * Returns the URI of the notes of a smart folder. Returns the same columns as
+         * {@link Notes#CONTENT_URI}, and takes a selection and sort order the same way.
+         */
+        public static Uri getNotesUri(long folderId) {
+            return CONTENT_ID_URI_BASE.buildUpon()
+                    .appendPath(String.valueOf(folderId))
+                    .appendPath(NOTES_DIRECTORY)
+                    .build();
+        }
+
+        /*
+         * Column definitions
+         */
+
+        /**
+         * Column name for the name of the folder
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_NAME = "name";
+
+        /**
+         * Column name for the search text the notes of the folder match, such as
+         * {@code cat:work "weekly report" modified:>=2026-01-01}. Todos are never in a folder.
+         * Empty for all the notes.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_QUERY = "query";
     }
 }
@@ -0,0 +1,20 @@
+package com.example.android.notepad;
+
+import android.app.Application;
+
+/**
+ * Starts loading the notes list as soon as the process starts. The provider is created before
+ * this class, but it doesn't open its database until first used; the preload opens it and reads
+ * the notes list on a background thread while the main thread inflates {@link NotesList}.
+ * Also makes sure the database maintenance job is scheduled.
+ */
+public class NotePadApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        StartupTrace.onApplicationCreate();
+        NotesFragment.preload(this);
+        NoteMaintenanceService.schedule(this);
+    }
+}
@@ -28,10 +28,12 @@ import android.content.ContentProvider.PipeDataWriter;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
@@ -39,13 +41,22 @@ import android.provider.LiveFolders;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Provides access to a database of notes. Each note has a title, the note
@@ -63,7 +74,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     /**
      * The database version
      */
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 17;
 
     /**
      * A projection map used to select columns from the database
@@ -77,6 +88,76 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
     private static HashMap<String, String> sCategoriesProjectionMap;
 
+    /**
+     * A projection map used to select columns from the revisions table
+     */
+    private static HashMap<String, String> sRevisionsProjectionMap;
+
+    /**
+     * A projection map used to select columns from the tags table
+     */
+    private static HashMap<String, String> sTagsProjectionMap;
+
+    /**
+     * A projection map used to select columns from the smart folders table
+     */
+    private static HashMap<String, String> sSmartFoldersProjectionMap;
+
+    /**
+     * A projection map used to select columns from search results
+     */
+    private static HashMap<String, String> sSearchProjectionMap;
+
+    /**
+     * A projection map used to select columns from fuzzy search results
+     */
+    private static HashMap<String, String> sFuzzySearchProjectionMap;
+
+    /**
+     * How each URI pattern is queried, by its UriMatcher code, and how a search with filters
+     * only is.
+     */
+    private static QueryPlan[] sQueryPlans;
+    private static QueryPlan sFilterPlan;
+
+    // How the columns of the notes a fuzzy search ranked are read.
+    private static QueryPlan sFuzzyPlan;
+
+    /*
+     * Search finds the first match in the title and in the body with INSTR(), in the same query
+     * that selects the notes, so matches are located once per hit and no body leaves SQLite.
+     * LOWER() folds ASCII only, like the LIKE operator. Compressed and encrypted bodies aren't
+     * searched, nor are notes in the trash. Encrypted titles are matched outside SQL, by
+     * NoteTrigrams.sealedTitlesContaining(), and have no match position.
+     */
+    private static final String SEARCH_TITLE_POSITION = "title_pos";
+    private static final String SEARCH_NOTE_POSITION = "note_pos";
+    private static final String SEARCH_TABLES = "(SELECT *, CASE WHEN "
+            + NoteBodyCodec.SEALED_TITLE + " THEN 0 ELSE INSTR(LOWER("
+            + NotePad.Notes.COLUMN_NAME_TITLE + "), LOWER(?)) END AS " + SEARCH_TITLE_POSITION
+            + ", CASE WHEN (" + NoteBodyCodec.COLUMN_NAME_FORMAT + " & "
+            + NoteBodyCodec.OPAQUE_FLAGS + ") = 0 THEN INSTR(LOWER("
+            + NotePad.Notes.COLUMN_NAME_NOTE + "), LOWER(?)) ELSE 0 END AS "
+            + SEARCH_NOTE_POSITION + " FROM " + NotePad.Notes.TABLE_NAME + " WHERE "
+            + NoteTrash.NOT_IN_TRASH + ")";
+
+    // For a search with filters only, which has no match to locate.
+    private static final String FILTER_TABLES = "(SELECT *, NULL AS " + SEARCH_TITLE_POSITION
+            + ", NULL AS " + SEARCH_NOTE_POSITION + " FROM " + NotePad.Notes.TABLE_NAME
+            + " WHERE " + NoteTrash.NOT_IN_TRASH + ")";
+
+    /**
+     * The index serving the category and date filters of a search, and the notes list's queries
+     * by category, newest first. Notes in the trash aren't in it.
+     */
+    private static final String CATEGORY_MODIFIED_INDEX = "notes_category_modified";
+
+    /**
+     * The number of characters of the body returned before and including a match
+     */
+    private static final int SEARCH_SNIPPET_CONTEXT = 24;
+    private static final int SEARCH_SNIPPET_LENGTH = 96;
+
     /**
      * Standard projection for the interesting columns of a normal note.
      */
@@ -88,6 +169,73 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     private static final int READ_NOTE_NOTE_INDEX = 1;
     private static final int READ_NOTE_TITLE_INDEX = 2;
 
+    /**
+     * The columns returned for a fuzzy search that doesn't name its columns.
+     */
+    private static final String[] DEFAULT_FUZZY_SEARCH_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+            NotePad.Notes.COLUMN_NAME_MATCH_DISTANCE
+    };
+
+    /**
+     * The columns read to rank the candidates of a fuzzy search.
+     */
+    private static final String[] FUZZY_RANK_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NoteBodyCodec.COLUMN_NAME_FORMAT
+    };
+
+    /**
+     * The columns returned for a search that doesn't name its columns.
+     */
+    private static final String[] DEFAULT_SEARCH_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+            NotePad.Notes.COLUMN_NAME_SNIPPET,
+            NotePad.Notes.COLUMN_NAME_TITLE_MATCH_START,
+            NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET,
+            NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET_START
+    };
+
+    /**
+     * The columns returned for a notes query that doesn't name its columns.
+     */
+    private static final String[] DEFAULT_NOTES_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY
+    };
+
+    /**
+     * The columns returned for a trash query that doesn't name its columns.
+     */
+    private static final String[] DEFAULT_TRASH_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+            NotePad.Notes.COLUMN_NAME_SNIPPET,
+            NotePad.Notes.COLUMN_NAME_DELETED_AT
+    };
+
+    /**
+     * The columns returned for a live folder query that doesn't name its columns.
+     */
+    private static final String[] LIVE_FOLDER_PROJECTION = new String[] {
+            LiveFolders._ID,
+            LiveFolders.NAME
+    };
+
     /*
      * Constants used by the Uri matcher to choose an action based on the pattern
      * of the incoming URI
@@ -104,6 +252,59 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // The incoming URI matches the Categories URI pattern
     private static final int CATEGORIES = 4;
 
+    // The incoming URI matches the revisions of a note
+    private static final int NOTE_REVISIONS = 5;
+
+    // The incoming URI matches a single revision of a note
+    private static final int NOTE_REVISION_ID = 6;
+
+    // The incoming URI matches the body of a note, as a stream
+    private static final int NOTE_BODY = 7;
+
+    // The incoming URI matches the search URI pattern
+    private static final int SEARCH = 8;
+
+    // The incoming URI matches the fuzzy search URI pattern
+    private static final int FUZZY_SEARCH = 9;
+
+    // The incoming URI matches the trash URI pattern
+    private static final int TRASH = 10;
+
+    // The incoming URI matches a single note in the trash
+    private static final int TRASH_ID = 11;
+
+    // The incoming URI matches the todo tree URI pattern
+    private static final int TODO_TREE = 12;
+
+    // The incoming URI matches the tags URI pattern
+    private static final int TAGS = 13;
+
+    // The incoming URI matches a single tag
+    private static final int TAG_ID = 14;
+
+    // The incoming URI matches the tags of a note
+    private static final int NOTE_TAGS = 15;
+
+    // The incoming URI matches a single tag of a note
+    private static final int NOTE_TAG_ID = 16;
+
+    // The incoming URI matches the tagged notes URI pattern
+    private static final int TAGGED = 17;
+
+    // The incoming URI matches the smart folders URI pattern
+    private static final int SMART_FOLDERS = 18;
+
+    // The incoming URI matches a single smart folder
+    private static final int SMART_FOLDER_ID = 19;
+
+    // The incoming URI matches the notes of a smart folder
+    private static final int SMART_FOLDER_NOTES = 20;
+
+    /**
+     * 0-relative position of the revision number segment in the path part of a revision URI
+     */
+    private static final int REVISION_PATH_POSITION = 3;
+
     /**
      * A UriMatcher instance
      */
@@ -112,6 +313,21 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // Handle to a new DatabaseHelper.
     private DatabaseHelper mOpenHelper;
 
+    // Whether large note bodies are stored compressed, see NoteBodyCodec.
+    private volatile boolean mCompressLargeNotes;
+
+    // Whether note bodies are stored encrypted, see NoteBodyCodec.
+    private volatile boolean mEncryptNotes;
+
+    // Where oversized note bodies are kept.
+    private NoteBodyStore mBodyStore;
+
+    // Whether a widget update is queued and hasn't started yet, see scheduleWidgetUpdate().
+    private final AtomicBoolean mWidgetUpdatePending = new AtomicBoolean();
+
+    // Whether re-arming the reminder alarm is queued, see scheduleReminderUpdate().
+    private final AtomicBoolean mReminderUpdatePending = new AtomicBoolean();
+
 
     /**
      * A block that instantiates and sets static objects
@@ -138,6 +354,51 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Add a pattern that routes URIs terminated with "categories" to a CATEGORIES operation
         sUriMatcher.addURI(NotePad.AUTHORITY, "categories", CATEGORIES);
 
+        // Add patterns that route a note ID URI plus "revisions", optionally followed by a
+        // revision number, to the note's revision history
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Revisions.CONTENT_DIRECTORY,
+                NOTE_REVISIONS);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Revisions.CONTENT_DIRECTORY
+                + "/#", NOTE_REVISION_ID);
+
+        // Add a pattern that routes a note ID URI plus "body" to the note's body stream
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Notes.CONTENT_BODY_DIRECTORY,
+                NOTE_BODY);
+
+        // Add a pattern that routes URIs terminated with "notes/search" to a search
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/search", SEARCH);
+
+        // Add a pattern that routes URIs terminated with "notes/fuzzy" to a fuzzy search
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/fuzzy", FUZZY_SEARCH);
+
+        // Add patterns that route URIs terminated with "notes/trash", optionally followed by a
+        // note ID, to the trash
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/trash", TRASH);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/trash/#", TRASH_ID);
+
+        // Add a pattern that routes URIs terminated with "notes/tree" and a status to the todos
+        // of that status with their subtasks
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/tree/*", TODO_TREE);
+
+        // Add patterns that route URIs terminated with "tags", optionally followed by a tag ID,
+        // to the tags, and a note ID URI plus "tags", likewise, to the note's tags
+        sUriMatcher.addURI(NotePad.AUTHORITY, "tags", TAGS);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "tags/#", TAG_ID);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Tags.CONTENT_DIRECTORY,
+                NOTE_TAGS);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Tags.CONTENT_DIRECTORY
+                + "/#", NOTE_TAG_ID);
+
+        // Add a pattern that routes URIs terminated with "notes/tagged" to the notes with tags
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/tagged", TAGGED);
+
+        // Add patterns that route URIs terminated with "smart_folders", optionally followed by
+        // a folder ID, to the smart folders, and a folder ID URI plus "notes" to its notes
+        sUriMatcher.addURI(NotePad.AUTHORITY, "smart_folders", SMART_FOLDERS);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "smart_folders/#", SMART_FOLDER_ID);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "smart_folders/#/"
+                + NotePad.SmartFolders.NOTES_DIRECTORY, SMART_FOLDER_NOTES);
+
         /*
          * Creates and initializes a projection map that returns all columns
          */
@@ -167,6 +428,46 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Maps "category" to "category"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY, NotePad.Notes.COLUMN_NAME_CATEGORY);
 
+        // The storage format of the note column. Only selected by the provider itself, to decode
+        // the note column; see query().
+        sNotesProjectionMap.put(NoteBodyCodec.COLUMN_NAME_FORMAT, NoteBodyCodec.COLUMN_NAME_FORMAT);
+
+        // Maps "note_truncated" to whether the body is kept in a file, in which case the note
+        // column only holds its start
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE_TRUNCATED,
+                "(" + NoteBodyCodec.COLUMN_NAME_FORMAT + " & " + NoteBodyCodec.FLAG_EXTERNAL
+                + ") != 0 AS " + NotePad.Notes.COLUMN_NAME_NOTE_TRUNCATED);
+
+        // Maps "snippet" to "snippet"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_SNIPPET, NotePad.Notes.COLUMN_NAME_SNIPPET);
+
+        // Maps "deleted_at" to "deleted_at"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_DELETED_AT,
+                NotePad.Notes.COLUMN_NAME_DELETED_AT);
+
+        // Maps "due_date" to "due_date"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_DUE_DATE,
+                NotePad.Notes.COLUMN_NAME_DUE_DATE);
+
+        // Maps "remind_at" to "remind_at"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_REMIND_AT,
+                NotePad.Notes.COLUMN_NAME_REMIND_AT);
+
+        // Maps "rank" to "rank"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_RANK, NotePad.Notes.COLUMN_NAME_RANK);
+
+        // Maps "parent_id" to "parent_id"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_PARENT_ID,
+                NotePad.Notes.COLUMN_NAME_PARENT_ID);
+
+        // Maps "subtasks" to "subtasks"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_SUBTASKS,
+                NotePad.Notes.COLUMN_NAME_SUBTASKS);
+
+        // Maps "subtasks_done" to "subtasks_done"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_SUBTASKS_DONE,
+                NotePad.Notes.COLUMN_NAME_SUBTASKS_DONE);
+
         /*
          * Creates an initializes a projection map for handling Live Folders
          */
@@ -187,6 +488,265 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         sCategoriesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY, 
                 "CASE WHEN " + NotePad.Notes.COLUMN_NAME_CATEGORY + " IS NULL OR " + NotePad.Notes.COLUMN_NAME_CATEGORY + " = '' THEN NULL ELSE " + NotePad.Notes.COLUMN_NAME_CATEGORY + " END AS " + NotePad.Notes.COLUMN_NAME_CATEGORY);
         sCategoriesProjectionMap.put("COUNT(*)", "COUNT(*)");
+
+        // Creates a new projection map instance for revision lists. The stored revision data
+        // is not exposed; the text of a revision is only returned for a single revision URI.
+        sRevisionsProjectionMap = new HashMap<String, String>();
+        sRevisionsProjectionMap.put(NotePad.Revisions._ID, NotePad.Revisions._ID);
+        sRevisionsProjectionMap.put(NotePad.Revisions.COLUMN_NAME_REVISION,
+                NotePad.Revisions.COLUMN_NAME_REVISION);
+        sRevisionsProjectionMap.put(NotePad.Revisions.COLUMN_NAME_CREATE_DATE,
+                NotePad.Revisions.COLUMN_NAME_CREATE_DATE);
+        sRevisionsProjectionMap.put(NotePad.Revisions.COLUMN_NAME_LENGTH,
+                NotePad.Revisions.COLUMN_NAME_LENGTH);
+
+        // Creates a new projection map instance for tags
+        sTagsProjectionMap = new HashMap<String, String>();
+        sTagsProjectionMap.put(NotePad.Tags._ID, NotePad.Tags._ID);
+        sTagsProjectionMap.put(NotePad.Tags.COLUMN_NAME_NAME, NotePad.Tags.COLUMN_NAME_NAME);
+        sTagsProjectionMap.put(NotePad.Tags.COLUMN_NAME_NOTE_COUNT,
+                NotePad.Tags.COLUMN_NAME_NOTE_COUNT);
+
+        // Creates a new projection map instance for smart folders
+        sSmartFoldersProjectionMap = new HashMap<String, String>();
+        sSmartFoldersProjectionMap.put(NotePad.SmartFolders._ID, NotePad.SmartFolders._ID);
+        sSmartFoldersProjectionMap.put(NotePad.SmartFolders.COLUMN_NAME_NAME,
+                NotePad.SmartFolders.COLUMN_NAME_NAME);
+        sSmartFoldersProjectionMap.put(NotePad.SmartFolders.COLUMN_NAME_QUERY,
+                NotePad.SmartFolders.COLUMN_NAME_QUERY);
+
+        // Creates a new projection map instance for search results. The body isn't returned;
+        // an excerpt around its first match is, preceded by an ellipsis if it doesn't start
+        // the body.
+        sSearchProjectionMap = new HashMap<String, String>();
+        sSearchProjectionMap.put(NotePad.Notes._ID, NotePad.Notes._ID);
+        sSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_TITLE);
+        sSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+                NotePad.Notes.COLUMN_NAME_CREATE_DATE);
+        sSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+        sSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY,
+                NotePad.Notes.COLUMN_NAME_CATEGORY);
+        sSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_SNIPPET,
+                NotePad.Notes.COLUMN_NAME_SNIPPET);
+        // Only selected by the provider itself, to decrypt the snippet; see query().
+        sSearchProjectionMap.put(NoteBodyCodec.COLUMN_NAME_FORMAT,
+                NoteBodyCodec.COLUMN_NAME_FORMAT);
+
+        // A fuzzy search returns the same columns, less those describing an exact match. Its
+        // distance column is computed in Java; see queryFuzzy().
+        sFuzzySearchProjectionMap = new HashMap<String, String>(sSearchProjectionMap);
+
+        sSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_TITLE_MATCH_START,
+                "IFNULL(" + SEARCH_TITLE_POSITION + ", 0) - 1 AS "
+                + NotePad.Notes.COLUMN_NAME_TITLE_MATCH_START);
+        String snippetFrom = "MAX(1, " + SEARCH_NOTE_POSITION + " - " + SEARCH_SNIPPET_CONTEXT
+                + ")";
+        String ellipsis = "CASE WHEN " + snippetFrom + " > 1 THEN '\u2026' ELSE '' END";
+        sSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET,
+                "CASE WHEN " + SEARCH_NOTE_POSITION + " > 0 THEN " + ellipsis + " || SUBSTR("
+                + NotePad.Notes.COLUMN_NAME_NOTE + ", " + snippetFrom + ", "
+                + SEARCH_SNIPPET_LENGTH + ") END AS " + NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET);
+        sSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET_START,
+                "CASE WHEN " + SEARCH_NOTE_POSITION + " > 0 THEN " + SEARCH_NOTE_POSITION
+                + " - " + snippetFrom + " + LENGTH(" + ellipsis + ") END AS "
+                + NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET_START);
+
+        /*
+         * Works out how each URI pattern is queried, now rather than on every query. Only the
+         * trash URIs see the notes in the trash.
+         */
+        sQueryPlans = new QueryPlan[SMART_FOLDER_NOTES + 1];
+        sQueryPlans[NOTES] = new QueryPlan(NotePad.Notes.TABLE_NAME, sNotesProjectionMap,
+                NoteTrash.NOT_IN_TRASH, null, NotePad.Notes.DEFAULT_SORT_ORDER, false);
+        sQueryPlans[NOTE_ID] = new QueryPlan(NotePad.Notes.TABLE_NAME, sNotesProjectionMap,
+                noteIdSelection(null), null, NotePad.Notes.DEFAULT_SORT_ORDER, false);
+        sQueryPlans[LIVE_FOLDER_NOTES] = new QueryPlan(NotePad.Notes.TABLE_NAME,
+                sLiveFolderProjectionMap, NoteTrash.NOT_IN_TRASH, null,
+                NotePad.Notes.DEFAULT_SORT_ORDER, false);
+        // Grouped by category, treating null and empty as a single group
+        sQueryPlans[CATEGORIES] = new QueryPlan(NotePad.Notes.TABLE_NAME, sCategoriesProjectionMap,
+                NoteTrash.NOT_IN_TRASH, "CASE WHEN " + NotePad.Notes.COLUMN_NAME_CATEGORY + " IS NULL OR "
+                + NotePad.Notes.COLUMN_NAME_CATEGORY + " = '' THEN NULL ELSE "
+                + NotePad.Notes.COLUMN_NAME_CATEGORY + " END",
+                NotePad.Notes.DEFAULT_SORT_ORDER, true);
+        sQueryPlans[NOTE_REVISIONS] = new QueryPlan(NotePad.Revisions.TABLE_NAME,
+                sRevisionsProjectionMap, NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ?", null,
+                NotePad.Revisions.DEFAULT_SORT_ORDER, false);
+        sQueryPlans[SEARCH] = new QueryPlan(SEARCH_TABLES, sSearchProjectionMap, null, null,
+                NotePad.Notes.DEFAULT_SORT_ORDER, false);
+        sFilterPlan = new QueryPlan(FILTER_TABLES, sSearchProjectionMap, null, null,
+                NotePad.Notes.DEFAULT_SORT_ORDER, false);
+        sFuzzyPlan = new QueryPlan(NotePad.Notes.TABLE_NAME, sFuzzySearchProjectionMap, null,
+                null, null, false);
+        sQueryPlans[TRASH] = new QueryPlan(NotePad.Notes.TABLE_NAME, sNotesProjectionMap,
+                NoteTrash.IN_TRASH, null, NotePad.Notes.TRASH_SORT_ORDER, false);
+        sQueryPlans[TRASH_ID] = new QueryPlan(NotePad.Notes.TABLE_NAME, sNotesProjectionMap,
+                trashIdSelection(null), null, NotePad.Notes.TRASH_SORT_ORDER, false);
+        sQueryPlans[TAGS] = new QueryPlan(NotePad.Tags.TABLE_NAME, sTagsProjectionMap, null,
+                null, NotePad.Tags.DEFAULT_SORT_ORDER, false);
+        sQueryPlans[TAG_ID] = new QueryPlan(NotePad.Tags.TABLE_NAME, sTagsProjectionMap,
+                NotePad.Tags._ID + " = ?", null, NotePad.Tags.DEFAULT_SORT_ORDER, false);
+        sQueryPlans[NOTE_TAGS] = new QueryPlan(NotePad.Tags.TABLE_NAME, sTagsProjectionMap,
+                NoteTags.NOTE_TAGS_WHERE, null, NotePad.Tags.DEFAULT_SORT_ORDER, false);
+        sQueryPlans[TAGGED] = new QueryPlan(NotePad.Notes.TABLE_NAME, sNotesProjectionMap,
+                NoteTrash.NOT_IN_TRASH, null, NotePad.Notes.DEFAULT_SORT_ORDER, false);
+        sQueryPlans[SMART_FOLDERS] = new QueryPlan(NotePad.SmartFolders.TABLE_NAME,
+                sSmartFoldersProjectionMap, null, null, NotePad.SmartFolders.DEFAULT_SORT_ORDER,
+                false);
+        sQueryPlans[SMART_FOLDER_ID] = new QueryPlan(NotePad.SmartFolders.TABLE_NAME,
+                sSmartFoldersProjectionMap, NotePad.SmartFolders._ID + " = ?", null,
+                NotePad.SmartFolders.DEFAULT_SORT_ORDER, false);
+        sQueryPlans[SMART_FOLDER_NOTES] = new QueryPlan(NotePad.Notes.TABLE_NAME,
+                sNotesProjectionMap, NoteFolders.FOLDER_NOTES_WHERE + " AND "
+                + NoteTrash.NOT_IN_TRASH, null, NotePad.Notes.DEFAULT_SORT_ORDER, false);
+    }
+
+    /**
+     * How the notes of one URI pattern are queried: the tables, the projection map, the where
+     * clause the URI itself adds, and the grouping. Each plan keeps the SQL it has built, by
+     * projection, selection and sort order, so a query that is run again, as most are, only
+     * binds its parameters.
+     */
+    private static final class QueryPlan {
+
+        // The most SQL strings kept per plan. Clients use a handful of fixed queries; beyond
+        // this, the least recently used is dropped, so one-off selections don't crowd them out.
+        private static final int MAX_SQL = 32;
+
+        final String tables;
+        final HashMap<String, String> projectionMap;
+        final String where;
+        final String groupBy;
+        final String defaultOrderBy;
+        final boolean distinct;
+
+        // The columns selected when the caller doesn't name any: all those of the map.
+        private final String mAllColumns;
+
+        // Guarded by itself. Ordered by access, the least recently used first.
+        private final LinkedHashMap<SqlKey, String> mSql =
+                new LinkedHashMap<SqlKey, String>(MAX_SQL, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<SqlKey, String> eldest) {
+                        return size() > MAX_SQL;
+                    }
+                };
+
+        QueryPlan(String tables, HashMap<String, String> projectionMap, String where,
+                String groupBy, String defaultOrderBy, boolean distinct) {
+            this.tables = tables;
+            this.projectionMap = projectionMap;
+            this.where = where;
+            this.groupBy = groupBy;
+            this.defaultOrderBy = defaultOrderBy;
+            this.distinct = distinct;
+            mAllColumns = TextUtils.join(", ", projectionMap.values());
+        }
+
+        /**
+         * Returns the SQL of a query of the given columns, selected by the plan's where
+         * clause, the extra where clause if any, and the selection.
+         *
+         * @throws IllegalArgumentException if a column isn't in the projection map.
+         */
+        String sql(String[] projection, String extraWhere, String selection, String orderBy) {
+            SqlKey key = new SqlKey(projection, extraWhere, selection, orderBy);
+            String sql;
+            synchronized (mSql) {
+                sql = mSql.get(key);
+            }
+            if (sql == null) {
+                sql = build(projection, extraWhere, selection, orderBy);
+                synchronized (mSql) {
+                    // The caller may reuse its projection array; the key keeps a copy.
+                    mSql.put(new SqlKey(projection != null ? projection.clone() : null,
+                            extraWhere, selection, orderBy), sql);
+                }
+            }
+            return sql;
+        }
+
+        private String build(String[] projection, String extraWhere, String selection,
+                String orderBy) {
+            StringBuilder sql = new StringBuilder(distinct ? "SELECT DISTINCT " : "SELECT ");
+            if (projection == null || projection.length == 0) {
+                sql.append(mAllColumns);
+            } else {
+                for (int i = 0; i < projection.length; i++) {
+                    sql.append(i == 0 ? "" : ", ").append(column(projection[i]));
+                }
+            }
+            sql.append(" FROM ").append(tables);
+
+            // Each condition is parenthesized on its own, the way SQLiteQueryBuilder does.
+            String conjunction = " WHERE ";
+            for (String condition : new String[] { where, extraWhere, selection }) {
+                if (!TextUtils.isEmpty(condition)) {
+                    sql.append(conjunction).append('(').append(condition).append(')');
+                    conjunction = " AND ";
+                }
+            }
+            if (groupBy != null) {
+                sql.append(" GROUP BY ").append(groupBy);
+            }
+            if (!TextUtils.isEmpty(orderBy)) {
+                sql.append(" ORDER BY ").append(orderBy);
+            }
+            return sql.toString();
+        }
+
+        /**
+         * Returns what the projection map maps the column to. A column with an alias of its
+         * own, such as "COUNT(*) AS count", is taken as it is.
+         */
+        private String column(String column) {
+            String mapped = projectionMap.get(column);
+            if (mapped != null) {
+                return mapped;
+            }
+            if (column.contains(" AS ") || column.contains(" as ")) {
+                return column;
+            }
+            throw new IllegalArgumentException("Invalid column " + column);
+        }
+    }
+
+    /**
+     * What the SQL of a query depends on, besides its plan.
+     */
+    private static final class SqlKey {
+        final String[] projection;
+        final String extraWhere;
+        final String selection;
+        final String orderBy;
+
+        SqlKey(String[] projection, String extraWhere, String selection, String orderBy) {
+            this.projection = projection;
+            this.extraWhere = extraWhere;
+            this.selection = selection;
+            this.orderBy = orderBy;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SqlKey)) {
+                return false;
+            }
+            SqlKey other = (SqlKey) o;
+            return Arrays.equals(projection, other.projection)
+                    && TextUtils.equals(extraWhere, other.extraWhere)
+                    && TextUtils.equals(selection, other.selection)
+                    && TextUtils.equals(orderBy, other.orderBy);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = Arrays.hashCode(projection);
+            hash = 31 * hash + (extraWhere != null ? extraWhere.hashCode() : 0);
+            hash = 31 * hash + (selection != null ? selection.hashCode() : 0);
+            return 31 * hash + (orderBy != null ? orderBy.hashCode() : 0);
+        }
     }
 
     /**
@@ -196,10 +756,19 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     */
    static class DatabaseHelper extends SQLiteOpenHelper {
 
+       // The provider's single-row writes, compiled once for as long as the database is open.
+       final NoteStatements statements = new NoteStatements();
+
+       // Whether onCreate() just made the database, and onOpen() has yet to see it.
+       private boolean mCreated;
+
        DatabaseHelper(Context context) {
 
            // calls the super constructor, requesting the default cursor factory.
            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+           // Readers don't block the writer, nor it them; see NoteMaintenance for checkpoints.
+           setWriteAheadLoggingEnabled(true);
        }
 
        /**
@@ -209,14 +778,65 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         */
        @Override
        public void onCreate(SQLiteDatabase db) {
+           mCreated = true;
            db.execSQL("CREATE TABLE " + NotePad.Notes.TABLE_NAME + " ("
                    + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
                    + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
                    + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
                    + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
-                   + NotePad.Notes.COLUMN_NAME_CATEGORY + " TEXT"
+                   + NotePad.Notes.COLUMN_NAME_CATEGORY + " TEXT,"
+                   + NoteBodyCodec.COLUMN_NAME_FORMAT + " INTEGER NOT NULL DEFAULT 0,"
+                   + NoteBodyStore.COLUMN_NAME_FILE + " TEXT,"
+                   + NotePad.Notes.COLUMN_NAME_SNIPPET + " TEXT,"
+                   + NotePad.Notes.COLUMN_NAME_DELETED_AT + " INTEGER,"
+                   + NotePad.Notes.COLUMN_NAME_DUE_DATE + " INTEGER,"
+                   + NotePad.Notes.COLUMN_NAME_REMIND_AT + " INTEGER,"
+                   + NotePad.Notes.COLUMN_NAME_RANK + " TEXT,"
+                   + NotePad.Notes.COLUMN_NAME_PARENT_ID + " INTEGER,"
+                   + NotePad.Notes.COLUMN_NAME_SUBTASKS + " INTEGER NOT NULL DEFAULT 0,"
+                   + NotePad.Notes.COLUMN_NAME_SUBTASKS_DONE + " INTEGER NOT NULL DEFAULT 0"
                    + ");");
+           NoteRevisions.createTable(db);
+           NoteTrigrams.createTable(db);
+           createCategoryModifiedIndex(db);
+           NoteTrash.createIndexes(db);
+           TodoReminders.createIndex(db);
+           TodoRank.createIndex(db);
+           TodoTree.createIndex(db);
+           NoteTags.createTables(db);
+           NoteFolders.createTables(db);
+           NoteChangeLog.createTables(db);
+           NoteChangeLog.createTrashTriggers(db);
+       }
+
+       /**
+        * Switches a database that was just created to incremental vacuum, see
+        * {@link NoteMaintenance}. The mode can only be set through a VACUUM once the file
+        * has been written to, which opening it in WAL mode does, and a VACUUM can't run in the
+        * transaction of onCreate(). Databases from before are switched by the first maintenance
+        * run, in the background.
+        */
+       @Override
+       public void onOpen(SQLiteDatabase db) {
+           if (mCreated && !db.isReadOnly()) {
+               mCreated = false;
+               db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+               db.execSQL("VACUUM");
+           }
+       }
+
+       @Override
+       public synchronized void close() {
+           statements.close();
+           super.close();
+       }
+
+       private static void createCategoryModifiedIndex(SQLiteDatabase db) {
+           db.execSQL("CREATE INDEX " + CATEGORY_MODIFIED_INDEX + " ON "
+                   + NotePad.Notes.TABLE_NAME + " (" + NotePad.Notes.COLUMN_NAME_CATEGORY + ", "
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ") WHERE "
+                   + NoteTrash.NOT_IN_TRASH + ";");
        }
 
        /**
@@ -238,6 +858,89 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                        NotePad.Notes.COLUMN_NAME_CATEGORY + " TEXT;");
            }
 
+           if (oldVersion < 4) {
+               NoteRevisions.createTable(db);
+           }
+
+           // Existing bodies are all plain text. If compression is turned on, they are
+           // compressed in the background after the provider starts.
+           if (oldVersion < 5) {
+               db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                       + NoteBodyCodec.COLUMN_NAME_FORMAT + " INTEGER NOT NULL DEFAULT 0;");
+           }
+
+           // Oversized bodies already in the table are moved to files in the background.
+           if (oldVersion < 6) {
+               db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                       + NoteBodyStore.COLUMN_NAME_FILE + " TEXT;");
+           }
+
+           // Snippets of existing notes are filled in in the background.
+           if (oldVersion < 7) {
+               db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                       + NotePad.Notes.COLUMN_NAME_SNIPPET + " TEXT;");
+           }
+
+           // Existing notes are indexed in the background.
+           if (oldVersion < 8) {
+               NoteTrigrams.createTable(db);
+           }
+
+           // Existing notes are logged as changed, so the first sync sends them. The tables
+           // are created with the base column; only those of version 10 lack it.
+           if (oldVersion < 10) {
+               NoteChangeLog.createTables(db);
+           } else if (oldVersion < 11) {
+               NoteChangeLog.addBaseColumn(db);
+           }
+
+           // The category index of versions 9 to 11 is replaced by one that leaves out the
+           // notes in the trash.
+           if (oldVersion < 12) {
+               db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                       + NotePad.Notes.COLUMN_NAME_DELETED_AT + " INTEGER;");
+               db.execSQL("DROP INDEX IF EXISTS " + CATEGORY_MODIFIED_INDEX);
+               createCategoryModifiedIndex(db);
+               NoteTrash.createIndexes(db);
+               NoteChangeLog.createTrashTriggers(db);
+           }
+
+           if (oldVersion < 13) {
+               db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                       + NotePad.Notes.COLUMN_NAME_DUE_DATE + " INTEGER;");
+               db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                       + NotePad.Notes.COLUMN_NAME_REMIND_AT + " INTEGER;");
+               TodoReminders.createIndex(db);
+           }
+
+           // Existing todos are given ranks in their current order in the background.
+           if (oldVersion < 14) {
+               db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                       + NotePad.Notes.COLUMN_NAME_RANK + " TEXT;");
+               TodoRank.createIndex(db);
+           }
+
+           // The parent column is declared INTEGER so the walks up and down the tree use its
+           // index and the primary key.
+           if (oldVersion < 15) {
+               db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                       + NotePad.Notes.COLUMN_NAME_PARENT_ID + " INTEGER;");
+               db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                       + NotePad.Notes.COLUMN_NAME_SUBTASKS + " INTEGER NOT NULL DEFAULT 0;");
+               db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                       + NotePad.Notes.COLUMN_NAME_SUBTASKS_DONE
+                       + " INTEGER NOT NULL DEFAULT 0;");
+               TodoTree.createIndex(db);
+           }
+
+           if (oldVersion < 16) {
+               NoteTags.createTables(db);
+           }
+
+           if (oldVersion < 17) {
+               NoteFolders.createTables(db);
+           }
+
            // Kills the table and existing data
            // db.execSQL("DROP TABLE IF EXISTS notes");
 
@@ -259,6 +962,43 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
        // something tries to access it, and it's only created if it doesn't already exist.
        mOpenHelper = new DatabaseHelper(getContext());
 
+       // Oversized bodies are kept in a directory next to the database file.
+       mBodyStore = new NoteBodyStore(new File(
+               getContext().getDatabasePath(DATABASE_NAME).getPath() + "-bodies"));
+
+       // Brings stored bodies in line with the storage mode, in case it changed since they
+       // were written. Posted to the main thread first so the migration is queued behind the
+       // startup preload, which the application submits when it is created.
+       mCompressLargeNotes =
+               getContext().getResources().getBoolean(R.bool.config_compress_large_notes);
+       mEncryptNotes = getContext().getResources().getBoolean(R.bool.config_encrypt_notes);
+
+       // The secret the encryption key is derived from is kept out of backups, so that a
+       // backup of the database can't be read on its own.
+       NoteCipher.setKeyFile(new File(getContext().getNoBackupFilesDir(),
+               NoteCipher.KEY_FILE_NAME));
+       AppExecutors.runOnMainThread(new Runnable() {
+           @Override
+           public void run() {
+               AppExecutors.diskIO().execute(new Runnable() {
+                   @Override
+                   public void run() {
+                       migrateNoteBodies();
+                       rebalanceTodoRanks();
+
+                       // The notes may have changed while the process wasn't running, as
+                       // when the database was restored.
+                       NotesWidgetProvider.update(getContext(),
+                               mOpenHelper.getReadableDatabase(), mEncryptNotes);
+
+                       // The reminder alarm is dropped by a reboot or a force stop, so each
+                       // process arms it once.
+                       rearmReminders();
+                   }
+               });
+           }
+       });
+
        // Assumes that any failures will be reported by a thrown exception.
        return true;
    }
@@ -276,55 +1016,140 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
            String sortOrder) {
 
-       // Constructs a new query builder and sets its table name
-       SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-       qb.setTables(NotePad.Notes.TABLE_NAME);
+       // The URI is matched once. Revisions and fuzzy searches aren't plain queries; every
+       // other URI pattern has a plan, worked out when the class is loaded.
+       int match = sUriMatcher.match(uri);
+       switch (match) {
+           case NOTE_REVISION_ID:
+               // The text of a revision isn't stored as such, so it's rebuilt rather than queried.
+               return queryRevision(uri);
 
-       /**
-        * Choose the projection and adjust the "where" clause based on URI pattern-matching.
-        */
-       switch (sUriMatcher.match(uri)) {
-           // If the incoming URI is for notes, chooses the Notes projection
-           case NOTES:
-               qb.setProjectionMap(sNotesProjectionMap);
-               break;
+           case FUZZY_SEARCH:
+               return queryFuzzy(uri, projection, selection, selectionArgs);
+
+           case TODO_TREE:
+               return queryTodoTree(uri);
+       }
+       QueryPlan plan = match >= 0 && match < sQueryPlans.length ? sQueryPlans[match] : null;
+       if (plan == null) {
+           // If the URI doesn't match any of the known patterns, throw an exception.
+           throw new IllegalArgumentException("Unknown URI " + uri);
+       }
 
-           /* If the incoming URI is for a single note identified by its ID, chooses the
-            * note ID projection, and appends "_ID = <noteID>" to the where clause, so that
-            * it selects that single note
-            */
+       // The parameters of the plan's own where clause, which come before those of the
+       // selection.
+       List<String> planArgs = Collections.emptyList();
+       String searchWhere = null;
+       switch (match) {
+           // The note ID is bound, so the statement is the same for every note.
            case NOTE_ID:
-               qb.setProjectionMap(sNotesProjectionMap);
-               qb.appendWhere(
-                   NotePad.Notes._ID +    // the name of the ID column
-                   "=" +
-                   // the position of the note ID itself in the incoming URI
-                   uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+           case NOTE_REVISIONS:
+           case NOTE_TAGS:
+               planArgs = Collections.singletonList(
+                       uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
                break;
 
-           case LIVE_FOLDER_NOTES:
-               // If the incoming URI is from a live folder, chooses the live folder projection.
-               qb.setProjectionMap(sLiveFolderProjectionMap);
+           case TAG_ID:
+           case SMART_FOLDER_ID:
+               planArgs = Collections.singletonList(uri.getLastPathSegment());
                break;
 
-           case CATEGORIES:
-               qb.setProjectionMap(sCategoriesProjectionMap);
-               qb.setDistinct(true);
+           // The folder's notes are read from its list, rather than searched for.
+           case SMART_FOLDER_NOTES:
+               planArgs = Collections.singletonList(uri.getPathSegments().get(1));
                break;
 
-           default:
-               // If the URI doesn't match any of the known patterns, throw an exception.
-               throw new IllegalArgumentException("Unknown URI " + uri);
+           case TAGGED:
+               // The tags are looked up first, to walk the shortest of their lists.
+               planArgs = new ArrayList<String>();
+               searchWhere = NoteTags.filter(mOpenHelper.getReadableDatabase(),
+                       uri.getQueryParameters(NotePad.Notes.TAG_QUERY_PARAMETER),
+                       !NotePad.Notes.MATCH_ANY.equals(
+                               uri.getQueryParameter(NotePad.Notes.MATCH_QUERY_PARAMETER)),
+                       planArgs);
+               break;
+
+           case TRASH_ID:
+               planArgs = Collections.singletonList(
+                       uri.getPathSegments().get(NotePad.Notes.TRASH_ID_PATH_POSITION));
+               break;
+
+           case SEARCH:
+               // The first word or phrase is bound twice in the tables subquery, which locates
+               // its matches. The parameters of the subquery come first, then those of the
+               // other words and the filters.
+               NoteQuery search = NoteQuery.parse(
+                       uri.getQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER));
+               planArgs = new ArrayList<String>();
+               List<String> where = new ArrayList<String>();
+               // Titles are only encrypted while encryption is on, or until they're migrated.
+               List<long[]> titleMatches = null;
+               if (mEncryptNotes) {
+                   titleMatches = new ArrayList<long[]>();
+                   SQLiteDatabase searched = mOpenHelper.getReadableDatabase();
+                   for (String term : search.terms()) {
+                       titleMatches.add(NoteTrigrams.sealedTitlesContaining(searched, term));
+                   }
+               }
+               String firstTerm = search.firstTerm();
+               if (firstTerm != null) {
+                   planArgs.add(firstTerm);
+                   planArgs.add(firstTerm);
+                   where.add(NoteQuery.orIdIn(SEARCH_TITLE_POSITION + " > 0 OR "
+                           + SEARCH_NOTE_POSITION + " > 0",
+                           titleMatches != null ? titleMatches.get(0) : null));
+               } else {
+                   plan = sFilterPlan;
+               }
+               String terms = search.termSelection(1, planArgs, titleMatches);
+               if (terms != null) {
+                   where.add(terms);
+               }
+               String filters = search.filterSelection(planArgs);
+               if (filters != null) {
+                   where.add(filters);
+               }
+               if (!where.isEmpty()) {
+                   searchWhere = "(" + TextUtils.join(") AND (", where) + ")";
+               }
+               break;
+       }
+
+       // When the note or the snippet column is returned, the format is fetched as an extra,
+       // last column, so they can be decoded when they're read; see NoteBodyCursor. So is an
+       // encrypted title, which needs no format.
+       int titleIndex = -1;
+       int noteIndex = -1;
+       int snippetIndex = -1;
+       if (match == LIVE_FOLDER_NOTES) {
+           if (projection == null) {
+               projection = LIVE_FOLDER_PROJECTION;
+           }
+           titleIndex = Arrays.asList(projection).indexOf(LiveFolders.NAME);
+       } else if (match == NOTES || match == NOTE_ID || match == SEARCH || match == TRASH
+               || match == TRASH_ID || match == TAGGED || match == SMART_FOLDER_NOTES) {
+           if (projection == null) {
+               projection = match == SEARCH ? DEFAULT_SEARCH_PROJECTION
+                       : match == TRASH || match == TRASH_ID ? DEFAULT_TRASH_PROJECTION
+                       : DEFAULT_NOTES_PROJECTION;
+           }
+           List<String> columns = Arrays.asList(projection);
+           titleIndex = columns.indexOf(NotePad.Notes.COLUMN_NAME_TITLE);
+           noteIndex = match == SEARCH ? -1 : columns.indexOf(NotePad.Notes.COLUMN_NAME_NOTE);
+           snippetIndex = columns.indexOf(NotePad.Notes.COLUMN_NAME_SNIPPET);
+           if (noteIndex >= 0 || snippetIndex >= 0) {
+               projection = Arrays.copyOf(projection, projection.length + 1);
+               projection[projection.length - 1] = NoteBodyCodec.COLUMN_NAME_FORMAT;
+           }
        }
 
+       // If no sort order is specified, uses the plan's default
+       String orderBy = TextUtils.isEmpty(sortOrder) ? plan.defaultOrderBy : sortOrder;
 
-       String orderBy;
-       // If no sort order is specified, uses the default
-       if (TextUtils.isEmpty(sortOrder)) {
-           orderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
-       } else {
-           // otherwise, uses the incoming sort order
-           orderBy = sortOrder;
+       String[] args = planArgs.toArray(new String[planArgs.size()
+               + (selectionArgs != null ? selectionArgs.length : 0)]);
+       if (selectionArgs != null) {
+           System.arraycopy(selectionArgs, 0, args, planArgs.size(), selectionArgs.length);
        }
 
        // Opens the database object in "read" mode, since no writes need to be done.
@@ -335,25 +1160,205 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         * object is returned; otherwise, the cursor variable contains null. If no records were
         * selected, then the Cursor object is empty, and Cursor.getCount() returns 0.
         */
-       
-       String groupBy = null;
-       // Only group by category when querying categories
-       if (sUriMatcher.match(uri) == CATEGORIES) {
-           // Group by category, treating null/empty as a single group
-           groupBy = "CASE WHEN " + NotePad.Notes.COLUMN_NAME_CATEGORY + " IS NULL OR " + NotePad.Notes.COLUMN_NAME_CATEGORY + " = '' THEN NULL ELSE " + NotePad.Notes.COLUMN_NAME_CATEGORY + " END";
+       Cursor c = db.rawQuery(plan.sql(projection, searchWhere, selection, orderBy), args);
+
+       if (titleIndex >= 0 || noteIndex >= 0 || snippetIndex >= 0) {
+           c = new NoteBodyCursor(c, titleIndex, noteIndex, snippetIndex);
        }
-       
-       Cursor c = qb.query(
-           db,            // The database to query
-           projection,    // The columns to return from the query
-           selection,     // The columns for the where clause
-           selectionArgs, // The values for the where clause
-           groupBy,       // group the rows by category only for CATEGORIES URI
-           null,          // don't filter by row groups
-           orderBy        // The sort order
-       );
-
-       // Tells the Cursor what URI to watch, so it knows when its source data changes
+
+       // Tells the Cursor what URI to watch, so it knows when its source data changes. Search
+       // results depend on every note, and so does the trash, which deleting any note adds to.
+       c.setNotificationUri(getContext().getContentResolver(),
+               match == SEARCH || match == TRASH || match == TAGGED
+                       || match == SMART_FOLDER_NOTES ? NotePad.Notes.CONTENT_URI : uri);
+       return c;
+   }
+
+   /**
+    * Returns the todos of the status in a todo tree URI, each followed by its subtasks, in one
+    * recursive query; see {@link TodoTree#TREE_SQL}.
+    */
+   private Cursor queryTodoTree(Uri uri) {
+       Cursor c = new NoteBodyCursor(mOpenHelper.getReadableDatabase().rawQuery(
+               TodoTree.TREE_SQL, new String[] { uri.getLastPathSegment() }),
+               TodoTree.TITLE_INDEX, -1, -1);
+
+       // Any note may be added under one of the todos, or be one of their subtasks.
+       c.setNotificationUri(getContext().getContentResolver(), NotePad.Notes.CONTENT_URI);
+       return c;
+   }
+
+   /**
+    * Returns the notes close to the search text of a fuzzy search URI, closest first. Only the
+    * candidates the trigram index picks among the notes that pass the selection are read and
+    * ranked.
+    */
+   private Cursor queryFuzzy(Uri uri, String[] projection, String selection,
+           String[] selectionArgs) {
+       if (projection == null) {
+           projection = DEFAULT_FUZZY_SEARCH_PROJECTION;
+       }
+       // The words and phrases are matched as one text; the filters go in the selection.
+       NoteQuery search = NoteQuery.parse(
+               uri.getQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER));
+       String query = NoteTrigrams.normalize(search.text());
+       List<String> args = new ArrayList<String>();
+       String filters = search.filterSelection(args);
+       if (filters != null) {
+           if (selectionArgs != null) {
+               args.addAll(Arrays.asList(selectionArgs));
+           }
+           selection = TextUtils.isEmpty(selection) ? filters
+                   : filters + " AND (" + selection + ")";
+           selectionArgs = args.toArray(new String[args.size()]);
+       }
+       SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+
+       // Ranks the candidates by their distance to the query, keeping the index's order, most
+       // grams shared first, among those at the same distance.
+       final HashMap<Long, Integer> distances = new HashMap<Long, Integer>();
+       List<Long> ranked = new ArrayList<Long>();
+       long[] candidates = query.length() >= NoteTrigrams.MIN_QUERY_LENGTH
+               ? NoteTrigrams.candidates(db, query, selection, selectionArgs, mEncryptNotes)
+               : new long[0];
+       if (candidates.length > 0) {
+           int maxEdits = NoteTrigrams.maxEdits(query.length());
+           Cursor c = db.query(NotePad.Notes.TABLE_NAME, FUZZY_RANK_PROJECTION,
+                   NotePad.Notes._ID + " IN (" + joinIds(candidates) + ")", null, null, null,
+                   null);
+           try {
+               while (c.moveToNext()) {
+                   int distance = Math.min(
+                           NoteTrigrams.distance(query, NoteBodyCodec.decodeTitle(c, 1),
+                                   maxEdits),
+                           NoteTrigrams.distance(query, NoteTrigrams.indexedText(
+                                   NoteBodyCodec.decode(c, 2, c.getInt(3))), maxEdits));
+                   if (distance != Integer.MAX_VALUE) {
+                       distances.put(c.getLong(0), distance);
+                   }
+               }
+           } finally {
+               c.close();
+           }
+           for (long id : candidates) {
+               if (distances.containsKey(id)) {
+                   ranked.add(id);
+               }
+           }
+           Collections.sort(ranked, new Comparator<Long>() {
+               @Override
+               public int compare(Long a, Long b) {
+                   return distances.get(a) - distances.get(b);
+               }
+           });
+       }
+
+       // Reads the requested columns of the matches, plus the id to put them in rank order and
+       // the format to decrypt the snippet. An encrypted title is decrypted as it's read.
+       List<String> columns = new ArrayList<String>(Arrays.asList(projection));
+       int distanceIndex = columns.indexOf(NotePad.Notes.COLUMN_NAME_MATCH_DISTANCE);
+       if (distanceIndex >= 0) {
+           columns.remove(distanceIndex);
+       }
+       int titleIndex = columns.indexOf(NotePad.Notes.COLUMN_NAME_TITLE);
+       int snippetIndex = columns.indexOf(NotePad.Notes.COLUMN_NAME_SNIPPET);
+       columns.add(NotePad.Notes._ID);
+       columns.add(NoteBodyCodec.COLUMN_NAME_FORMAT);
+       HashMap<Long, Object[]> rows = new HashMap<Long, Object[]>();
+       if (!ranked.isEmpty()) {
+           // The plan keeps the SQL of the columns; the ids differ with every search, so they
+           // are appended rather than kept.
+           String sql = sFuzzyPlan.sql(columns.toArray(new String[columns.size()]), null, null,
+                   null) + " WHERE " + NotePad.Notes._ID + " IN (" + TextUtils.join(",", ranked)
+                   + ")";
+           Cursor c = new NoteBodyCursor(db.rawQuery(sql, null), titleIndex, -1, snippetIndex);
+           try {
+               int idIndex = columns.size() - 2;
+               while (c.moveToNext()) {
+                   long id = c.getLong(idIndex);
+                   Object[] row = new Object[projection.length];
+                   for (int i = 0, column = 0; i < row.length; i++) {
+                       row[i] = i == distanceIndex ? distances.get(id) : value(c, column++);
+                   }
+                   rows.put(id, row);
+               }
+           } finally {
+               c.close();
+           }
+       }
+
+       // The reads aren't in one transaction, so a note may have been deleted for good since it
+       // was ranked, as by the maintenance job emptying the trash; it is left out.
+       MatrixCursor result = new MatrixCursor(projection, rows.size());
+       for (long id : ranked) {
+           Object[] row = rows.get(id);
+           if (row != null) {
+               result.addRow(row);
+           }
+       }
+       result.setNotificationUri(getContext().getContentResolver(), NotePad.Notes.CONTENT_URI);
+       return result;
+   }
+
+   /**
+    * Returns the value of the column at the cursor's current row, as the type it is stored as.
+    */
+   private static Object value(Cursor c, int column) {
+       switch (c.getType(column)) {
+           case Cursor.FIELD_TYPE_INTEGER:
+               return c.getLong(column);
+           case Cursor.FIELD_TYPE_FLOAT:
+               return c.getDouble(column);
+           case Cursor.FIELD_TYPE_STRING:
+               return c.getString(column);
+           case Cursor.FIELD_TYPE_BLOB:
+               return c.getBlob(column);
+           default:
+               return null;
+       }
+   }
+
+   /**
+    * Returns the ids separated by commas, for an IN clause.
+    */
+   private static String joinIds(long[] ids) {
+       StringBuilder joined = new StringBuilder();
+       for (long id : ids) {
+           if (joined.length() > 0) {
+               joined.append(',');
+           }
+           joined.append(id);
+       }
+       return joined.toString();
+   }
+
+   /**
+    * Returns a single row cursor holding the number, date and text of the revision identified by
+    * the URI. The cursor is empty if the note has no such revision.
+    */
+   private Cursor queryRevision(Uri uri) {
+       long noteId = Long.parseLong(
+               uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+       int revision = Integer.parseInt(uri.getPathSegments().get(REVISION_PATH_POSITION));
+
+       MatrixCursor c = new MatrixCursor(new String[] {
+               NotePad.Revisions.COLUMN_NAME_REVISION,
+               NotePad.Revisions.COLUMN_NAME_CREATE_DATE,
+               NotePad.Revisions.COLUMN_NAME_NOTE
+       });
+
+       SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+       String text = NoteRevisions.reconstruct(db, noteId, revision);
+       if (text != null) {
+           long created = DatabaseUtils.longForQuery(db,
+                   "SELECT " + NotePad.Revisions.COLUMN_NAME_CREATE_DATE
+                   + " FROM " + NotePad.Revisions.TABLE_NAME
+                   + " WHERE " + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ? AND "
+                   + NotePad.Revisions.COLUMN_NAME_REVISION + " = ?",
+                   new String[] { String.valueOf(noteId), String.valueOf(revision) });
+           c.addRow(new Object[] { revision, created, text });
+       }
+
        c.setNotificationUri(getContext().getContentResolver(), uri);
        return c;
    }
@@ -381,11 +1386,41 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
            // If the pattern is for note IDs, returns the note ID content type.
            case NOTE_ID:
+           case TRASH_ID:
                return NotePad.Notes.CONTENT_ITEM_TYPE;
 
            case CATEGORIES:
+           case SEARCH:
+           case FUZZY_SEARCH:
+           case TRASH:
+           case TODO_TREE:
+           case TAGGED:
+           case SMART_FOLDER_NOTES:
                return NotePad.Notes.CONTENT_TYPE;
 
+           case TAGS:
+           case NOTE_TAGS:
+               return NotePad.Tags.CONTENT_TYPE;
+
+           case TAG_ID:
+           case NOTE_TAG_ID:
+               return NotePad.Tags.CONTENT_ITEM_TYPE;
+
+           case SMART_FOLDERS:
+               return NotePad.SmartFolders.CONTENT_TYPE;
+
+           case SMART_FOLDER_ID:
+               return NotePad.SmartFolders.CONTENT_ITEM_TYPE;
+
+           case NOTE_REVISIONS:
+               return NotePad.Revisions.CONTENT_TYPE;
+
+           case NOTE_REVISION_ID:
+               return NotePad.Revisions.CONTENT_ITEM_TYPE;
+
+           case NOTE_BODY:
+               return ClipDescription.MIMETYPE_TEXT_PLAIN;
+
            // If the URI pattern doesn't match any permitted patterns, throws an exception.
            default:
                throw new IllegalArgumentException("Unknown URI " + uri);
@@ -422,11 +1457,25 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             case NOTES:
             case LIVE_FOLDER_NOTES:
             case CATEGORIES:
+            case NOTE_REVISIONS:
+            case NOTE_REVISION_ID:
+            case TRASH:
+            case TRASH_ID:
+            case TODO_TREE:
+            case TAGS:
+            case TAG_ID:
+            case NOTE_TAGS:
+            case NOTE_TAG_ID:
+            case TAGGED:
+            case SMART_FOLDERS:
+            case SMART_FOLDER_ID:
+            case SMART_FOLDER_NOTES:
                 return null;
 
             // If the pattern is for note IDs and the MIME filter is text/plain, then return
             // text/plain
             case NOTE_ID:
+            case NOTE_BODY:
                 return NOTE_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
 
                 // If the URI pattern doesn't match any permitted patterns, throws an exception.
@@ -457,6 +1506,11 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Checks to see if the MIME type filter matches a supported MIME type.
         String[] mimeTypes = getStreamTypes(uri, mimeTypeFilter);
 
+        // The body of a note is streamed on its own, straight from its file if it has one.
+        if (mimeTypes != null && sUriMatcher.match(uri) == NOTE_BODY) {
+            return new AssetFileDescriptor(openBody(uri), 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+
         // If the MIME type is supported
         if (mimeTypes != null) {
 
@@ -496,23 +1550,90 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     }
 
     /**
-     * Implementation of {@link android.content.ContentProvider.PipeDataWriter}
-     * to perform the actual work of converting the data in one of cursors to a
-     * stream of data for the client to read.
+     * Opens the body URI of a note for reading, so that
+     * {@link android.content.ContentResolver#openInputStream(Uri)} works on it too.
      */
     @Override
-    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
-            Bundle opts, Cursor c) {
-        // We currently only support conversion-to-text from a single note entry,
-        // so no need for cursor data type checking here.
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != NOTE_BODY || !"r".equals(mode)) {
+            throw new FileNotFoundException("Unable to open " + uri + " in mode " + mode);
+        }
+        return openBody(uri);
+    }
+
+    /**
+     * Returns a descriptor the body of the note can be read from, as UTF-8 text. A body kept in
+     * a file is opened directly, unless it's encrypted; any other body is written into a pipe.
+     */
+    private ParcelFileDescriptor openBody(Uri uri) throws FileNotFoundException {
+        long noteId = Long.parseLong(
+                uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+        String file = bodyFile(noteId);
+        if (file != null && !NoteBodyStore.isEncrypted(file)) {
+            return mBodyStore.open(file);
+        }
+
+        Cursor c = query(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId),
+                READ_NOTE_PROJECTION, null, null, null);
+        if (!c.moveToFirst()) {
+            c.close();
+            throw new FileNotFoundException("Unable to query " + uri);
+        }
+        return openPipeHelper(uri, ClipDescription.MIMETYPE_TEXT_PLAIN, null, c, this);
+    }
+
+    /**
+     * Returns the name of the file holding the body of the note, or null if the body is in the
+     * notes table or the note is in the trash.
+     */
+    private String bodyFile(long noteId) {
+        Cursor c = mOpenHelper.getReadableDatabase().query(NotePad.Notes.TABLE_NAME,
+                new String[] { NoteBodyStore.COLUMN_NAME_FILE },
+                NotePad.Notes._ID + " = " + noteId + " AND " + NoteTrash.NOT_IN_TRASH,
+                null, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Implementation of {@link android.content.ContentProvider.PipeDataWriter}
+     * to perform the actual work of converting the data in one of cursors to a
+     * stream of data for the client to read.
+     */
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+            Bundle opts, Cursor c) {
+        // We currently only support conversion-to-text from a single note entry,
+        // so no need for cursor data type checking here.
         FileOutputStream fout = new FileOutputStream(output.getFileDescriptor());
         PrintWriter pw = null;
         try {
             pw = new PrintWriter(new OutputStreamWriter(fout, "UTF-8"));
-            pw.println(c.getString(READ_NOTE_TITLE_INDEX));
-            pw.println("");
-            pw.println(c.getString(READ_NOTE_NOTE_INDEX));
-        } catch (UnsupportedEncodingException e) {
+            if (sUriMatcher.match(uri) == NOTE_BODY) {
+                // Of the bodies in files, only encrypted ones are piped, see openBody()
+                String file = bodyFile(c.getLong(0));
+                if (file != null) {
+                    mBodyStore.copyTo(file, fout);
+                } else {
+                    pw.print(c.getString(READ_NOTE_NOTE_INDEX));
+                }
+            } else {
+                pw.println(c.getString(READ_NOTE_TITLE_INDEX));
+                pw.println("");
+                String file = bodyFile(c.getLong(0));
+                if (file != null) {
+                    // Copies an oversized body from its file, rather than loading it whole.
+                    pw.flush();
+                    mBodyStore.copyTo(file, fout);
+                    pw.println();
+                } else {
+                    pw.println(c.getString(READ_NOTE_NOTE_INDEX));
+                }
+            }
+        } catch (IOException e) {
             Log.w(TAG, "Ooops", e);
         } finally {
             c.close();
@@ -539,8 +1660,16 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     @Override
     public Uri insert(Uri uri, ContentValues initialValues) {
 
-        // Validates the incoming URI. Only the full provider URI is allowed for inserts.
-        if (sUriMatcher.match(uri) != NOTES) {
+        // Validates the incoming URI. Only the full provider URI is allowed for inserts, the
+        // tags of a note for tagging it, and the smart folders for saving one.
+        int match = sUriMatcher.match(uri);
+        if (match == NOTE_TAGS) {
+            return insertTag(uri, initialValues);
+        }
+        if (match == SMART_FOLDERS) {
+            return insertSmartFolder(uri, initialValues);
+        }
+        if (match != NOTES) {
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
@@ -575,17 +1704,71 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
         }
 
+        // A note is only put in the trash by deleting it.
+        values.remove(NotePad.Notes.COLUMN_NAME_DELETED_AT);
+
+        // The subtask counts are kept by the provider.
+        values.remove(NotePad.Notes.COLUMN_NAME_SUBTASKS);
+        values.remove(NotePad.Notes.COLUMN_NAME_SUBTASKS_DONE);
+        Long parentId = values.getAsLong(NotePad.Notes.COLUMN_NAME_PARENT_ID);
+
+        // A note from another device comes with the id the other devices know it by.
+        boolean syncAdapter = isSyncAdapter(uri);
+        String syncId = values.getAsString(NoteChangeLog.COLUMN_NAME_SYNC_ID);
+        values.remove(NoteChangeLog.COLUMN_NAME_SYNC_ID);
+
+        // Stores the title and the body in the current storage mode.
+        NoteBodyCodec.encodeTitle(values, mEncryptNotes);
+        String bodyFile = storeBody(values, true);
+
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
-        // Performs the insert and returns the ID of the new note.
-        long rowId = db.insert(
-            NotePad.Notes.TABLE_NAME,        // The table to insert into.
-            NotePad.Notes.COLUMN_NAME_NOTE,  // A hack, SQLite sets this column value to null
-                                             // if values is empty.
-            values                           // A map of column names, and the values to insert
-                                             // into the columns.
-        );
+        // Performs the insert and returns the ID of the new note. The note is indexed for
+        // fuzzy search in the same transaction.
+        long rowId;
+        db.beginTransaction();
+        try {
+            if (syncAdapter) {
+                mOpenHelper.statements.get(db, NoteChangeLog.BEGIN_REMOTE_SQL).execute();
+            }
+            // A new todo goes on top of its status, unless it comes with a place.
+            String category = values.getAsString(NotePad.Notes.COLUMN_NAME_CATEGORY);
+            if (TodoRank.isTodo(category)
+                    && !values.containsKey(NotePad.Notes.COLUMN_NAME_RANK)) {
+                values.put(NotePad.Notes.COLUMN_NAME_RANK, TodoRank.first(db, category));
+            }
+            // A subtask goes under a todo outside the trash.
+            if (parentId != null && !TodoRank.isTodo(liveCategory(db, parentId))) {
+                throw new IllegalArgumentException("No todo " + parentId + " to add a subtask to");
+            }
+            rowId = mOpenHelper.statements.insert(db, values);
+            if (rowId > 0) {
+                reindex(db, new long[] { rowId });
+                NoteFolders.refile(db, new long[] { rowId });
+
+                // Counts towards the progress of every todo above it.
+                if (parentId != null) {
+                    TodoTree.adjust(db, rowId, 1, TodoTree.completed(category));
+                }
+                if (syncAdapter && syncId != null) {
+                    SQLiteStatement bind = mOpenHelper.statements.get(db, NoteChangeLog.BIND_SQL);
+                    bind.bindLong(1, rowId);
+                    bind.bindString(2, syncId);
+                    bind.executeInsert();
+                    bind.clearBindings();
+                }
+            }
+            if (syncAdapter) {
+                mOpenHelper.statements.get(db, NoteChangeLog.END_REMOTE_SQL).execute();
+            }
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            mBodyStore.delete(bodyFile);
+            throw e;
+        } finally {
+            db.endTransaction();
+        }
 
         // If the insert succeeded, the row ID exists.
         if (rowId > 0) {
@@ -594,20 +1777,29 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
             // Notifies observers registered against this provider that the data changed.
             getContext().getContentResolver().notifyChange(noteUri, null);
+            scheduleWidgetUpdate();
+            if (values.get(NotePad.Notes.COLUMN_NAME_REMIND_AT) != null) {
+                scheduleReminderUpdate();
+            }
             return noteUri;
         }
 
         // If the insert didn't succeed, then the rowID is <= 0. Throws an exception.
+        mBodyStore.delete(bodyFile);
         throw new SQLException("Failed to insert row into " + uri);
     }
 
     /**
      * This is called when a client calls
      * {@link android.content.ContentResolver#delete(Uri, String, String[])}.
-     * Deletes records from the database. If the incoming URI matches the note ID URI pattern,
-     * this method deletes the one record specified by the ID in the URI. Otherwise, it deletes a
-     * a set of records. The record or records must also match the input selection criteria
-     * specified by where and whereArgs.
+     * Moves notes to the trash, or deletes notes in the trash for good. If the incoming URI
+     * matches the note ID URI pattern, this method moves the one record specified by the ID in
+     * the URI to the trash; a trash URI deletes the notes in the trash instead. Otherwise, it
+     * affects a set of records. The record or records must also match the input selection
+     * criteria specified by where and whereArgs.
+     *
+     * Moving notes to the trash only stamps them, so it takes no longer than an update; deleting
+     * them for good is done in batches, see {@link NoteTrash#purge}.
      *
      * If rows were deleted, then listeners are notified of the change.
      * @return If a "where" clause is used, the number of rows affected is returned, otherwise
@@ -620,20 +1812,19 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         String finalWhere;
+        long noteId = -1;
 
         int count;
 
         // Does the delete based on the incoming URI pattern.
-        switch (sUriMatcher.match(uri)) {
+        int match = sUriMatcher.match(uri);
+        switch (match) {
 
             // If the incoming pattern matches the general pattern for notes, does a delete
             // based on the incoming "where" columns and arguments.
             case NOTES:
-                count = db.delete(
-                    NotePad.Notes.TABLE_NAME,  // The database table name
-                    where,                     // The incoming where clause column names
-                    whereArgs                  // The incoming where clause values
-                );
+                finalWhere = where == null ? NoteTrash.NOT_IN_TRASH
+                        : NoteTrash.NOT_IN_TRASH + " AND (" + where + ")";
                 break;
 
                 // If the incoming URI matches a single note ID, does the delete based on the
@@ -641,45 +1832,363 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 // particular note ID.
             case NOTE_ID:
                 /*
-                 * Starts a final WHERE clause by restricting it to the
-                 * desired note ID.
+                 * Restricts the final WHERE clause to the desired note ID, bound as the first
+                 * parameter, so the statement is the same for every note.
                  */
-                finalWhere =
-                        NotePad.Notes._ID +                              // The ID column name
-                        " = " +                                          // test for equality
-                        uri.getPathSegments().                           // the incoming note ID
-                            get(NotePad.Notes.NOTE_ID_PATH_POSITION)
-                ;
-
-                // If there were additional selection criteria, append them to the final
-                // WHERE clause
-                if (where != null) {
-                    finalWhere = finalWhere + " AND " + where;
-                }
-
-                // Performs the delete.
-                count = db.delete(
-                    NotePad.Notes.TABLE_NAME,  // The database table name.
-                    finalWhere,                // The final WHERE clause
-                    whereArgs                  // The incoming where clause values.
-                );
+                noteId = Long.parseLong(
+                        uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+                finalWhere = noteIdSelection(where);
+                whereArgs = noteIdSelectionArgs(noteId, whereArgs);
                 break;
 
+            // Empties the trash, or the part of it the selection picks.
+            case TRASH:
+                count = NoteTrash.purge(db, mBodyStore, where, whereArgs);
+                notifyTrashChange(uri, count);
+                return count;
+
+            case TRASH_ID:
+                count = NoteTrash.purge(db, mBodyStore, trashIdSelection(where),
+                        noteIdSelectionArgs(Long.parseLong(uri.getPathSegments().get(
+                                NotePad.Notes.TRASH_ID_PATH_POSITION)), whereArgs));
+                notifyTrashChange(uri, count);
+                return count;
+
+            case TAG_ID:
+            case NOTE_TAG_ID:
+                return deleteTag(uri, db, match == NOTE_TAG_ID);
+
+            case SMART_FOLDER_ID:
+                return deleteSmartFolder(uri, db);
+
             // If the incoming pattern is invalid, throws an exception.
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
+        // Moves the notes to the trash. Their bodies, files included, stay until they are
+        // deleted for good.
+        long now = System.currentTimeMillis();
+        boolean syncAdapter = isSyncAdapter(uri);
+        db.beginTransaction();
+        try {
+            // A note changed here since it was last synced keeps the local change.
+            if (syncAdapter && noteId >= 0 && NoteChangeLog.hasLocalChange(db, noteId)) {
+                return 0;
+            }
+            if (syncAdapter) {
+                mOpenHelper.statements.get(db, NoteChangeLog.BEGIN_REMOTE_SQL).execute();
+            }
+            if (noteId >= 0 && where == null) {
+                SQLiteStatement trash = mOpenHelper.statements.get(db, NoteTrash.TRASH_NOTE_SQL);
+                trash.bindLong(1, now);
+                trash.bindLong(2, noteId);
+                count = trash.executeUpdateDelete();
+                trash.clearBindings();
+
+                // Its subtasks go with it.
+                if (count > 0) {
+                    TodoTree.trashSubtasks(db, noteId, now);
+                }
+            } else {
+                // Selected before the update, so that their subtasks go with them.
+                long[] trashedIds = TodoTree.hasSubtasks(db)
+                        ? noteIds(db, finalWhere, whereArgs) : null;
+                ContentValues values = new ContentValues();
+                values.put(NotePad.Notes.COLUMN_NAME_DELETED_AT, now);
+                count = db.update(
+                    NotePad.Notes.TABLE_NAME,  // The database table name.
+                    values,                    // The time the notes were deleted.
+                    finalWhere,                // The final WHERE clause
+                    whereArgs                  // The incoming where clause values.
+                );
+                if (count > 0 && trashedIds != null) {
+                    for (long trashedId : trashedIds) {
+                        TodoTree.trashSubtasks(db, trashedId, now);
+                    }
+                }
+            }
+            if (count > 0 && TodoTree.hasSubtasks(db)) {
+                TodoTree.recount(db);
+            }
+            if (syncAdapter) {
+                mOpenHelper.statements.get(db, NoteChangeLog.END_REMOTE_SQL).execute();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
         /*Gets a handle to the content resolver object for the current context, and notifies it
          * that the incoming URI changed. The object passes this along to the resolver framework,
          * and observers that have registered themselves for the provider are notified.
          */
         getContext().getContentResolver().notifyChange(uri, null);
 
+        // The notes in the trash leave the widget, and their reminders don't go off.
+        if (count > 0) {
+            scheduleWidgetUpdate();
+            scheduleReminderUpdate();
+        }
+
         // Returns the number of rows deleted.
         return count;
     }
 
+    /**
+     * Tags the note of a note tags URI with the tag named in the values, creating the tag if
+     * there is none of that name.
+     *
+     * @return the URI of the tag of the note.
+     * @throws IllegalArgumentException if there is no name, or no such note outside the trash.
+     */
+    private Uri insertTag(Uri uri, ContentValues values) {
+        String name = values != null ? values.getAsString(NotePad.Tags.COLUMN_NAME_NAME) : null;
+        if (name == null || name.trim().isEmpty()) {
+            throw new IllegalArgumentException("A tag needs a name");
+        }
+        long noteId = Long.parseLong(
+                uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long tagId;
+        db.beginTransaction();
+        try {
+            if (liveCategory(db, noteId) == null) {
+                throw new IllegalArgumentException("No note " + noteId + " to tag");
+            }
+            tagId = NoteTags.tag(db, noteId, name.trim());
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+        getContext().getContentResolver().notifyChange(NotePad.Tags.CONTENT_URI, null);
+        return ContentUris.withAppendedId(uri, tagId);
+    }
+
+    /**
+     * Takes the tag of a note tag URI off the note, or deletes the tag of a tag URI from all
+     * its notes.
+     *
+     * @return the number of tags taken off or deleted.
+     */
+    private int deleteTag(Uri uri, SQLiteDatabase db, boolean fromNote) {
+        long tagId = ContentUris.parseId(uri);
+        int count;
+        db.beginTransaction();
+        try {
+            count = fromNote ? NoteTags.untag(db, Long.parseLong(uri.getPathSegments().get(
+                    NotePad.Notes.NOTE_ID_PATH_POSITION)), tagId) : NoteTags.delete(db, tagId);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (count > 0) {
+            // The notes with the tag change too.
+            getContext().getContentResolver().notifyChange(
+                    fromNote ? uri : NotePad.Notes.CONTENT_URI, null);
+            getContext().getContentResolver().notifyChange(NotePad.Tags.CONTENT_URI, null);
+        }
+        return count;
+    }
+
+    /**
+     * Saves the smart folder in the values, and fills it with the notes its search text
+     * matches.
+     *
+     * @return the URI of the folder.
+     * @throws IllegalArgumentException if there is no name.
+     */
+    private Uri insertSmartFolder(Uri uri, ContentValues initialValues) {
+        ContentValues values = smartFolderValues(initialValues);
+        if (!values.containsKey(NotePad.SmartFolders.COLUMN_NAME_NAME)) {
+            throw new IllegalArgumentException("A smart folder needs a name");
+        }
+        if (!values.containsKey(NotePad.SmartFolders.COLUMN_NAME_QUERY)) {
+            values.put(NotePad.SmartFolders.COLUMN_NAME_QUERY, "");
+        }
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long folderId;
+        db.beginTransaction();
+        try {
+            folderId = db.insertOrThrow(NotePad.SmartFolders.TABLE_NAME, null, values);
+            NoteFolders.fill(db, folderId,
+                    values.getAsString(NotePad.SmartFolders.COLUMN_NAME_QUERY));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Uri folderUri = ContentUris.withAppendedId(NotePad.SmartFolders.CONTENT_ID_URI_BASE,
+                folderId);
+        getContext().getContentResolver().notifyChange(folderUri, null);
+        return folderUri;
+    }
+
+    /**
+     * Renames the smart folder of a folder URI, or changes its search text, which fills it
+     * again.
+     *
+     * @return the number of folders updated, 0 or 1.
+     * @throws IllegalArgumentException if the name is made empty.
+     */
+    private int updateSmartFolder(Uri uri, ContentValues initialValues) {
+        ContentValues values = smartFolderValues(initialValues);
+        if (values.size() == 0) {
+            return 0;
+        }
+        long folderId = ContentUris.parseId(uri);
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int count;
+        db.beginTransaction();
+        try {
+            count = db.update(NotePad.SmartFolders.TABLE_NAME, values,
+                    NotePad.SmartFolders._ID + " = ?",
+                    new String[] { String.valueOf(folderId) });
+            if (count > 0 && values.containsKey(NotePad.SmartFolders.COLUMN_NAME_QUERY)) {
+                NoteFolders.fill(db, folderId,
+                        values.getAsString(NotePad.SmartFolders.COLUMN_NAME_QUERY));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (count > 0) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return count;
+    }
+
+    /**
+     * Deletes the smart folder of a folder URI. Its notes stay.
+     *
+     * @return the number of folders deleted, 0 or 1.
+     */
+    private int deleteSmartFolder(Uri uri, SQLiteDatabase db) {
+        int count;
+        db.beginTransaction();
+        try {
+            count = NoteFolders.delete(db, ContentUris.parseId(uri));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (count > 0) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the name and the search text in the values, trimmed, and nothing else. A null
+     * search text is the empty one.
+     *
+     * @throws IllegalArgumentException if the name is there but empty.
+     */
+    private static ContentValues smartFolderValues(ContentValues initialValues) {
+        ContentValues values = new ContentValues();
+        if (initialValues == null) {
+            return values;
+        }
+        if (initialValues.containsKey(NotePad.SmartFolders.COLUMN_NAME_NAME)) {
+            String name = initialValues.getAsString(NotePad.SmartFolders.COLUMN_NAME_NAME);
+            if (name == null || name.trim().isEmpty()) {
+                throw new IllegalArgumentException("A smart folder needs a name");
+            }
+            values.put(NotePad.SmartFolders.COLUMN_NAME_NAME, name.trim());
+        }
+        if (initialValues.containsKey(NotePad.SmartFolders.COLUMN_NAME_QUERY)) {
+            String query = initialValues.getAsString(NotePad.SmartFolders.COLUMN_NAME_QUERY);
+            values.put(NotePad.SmartFolders.COLUMN_NAME_QUERY,
+                    query != null ? query.trim() : "");
+        }
+        return values;
+    }
+
+    /**
+     * Puts the notes in the trash that match the selection back, with the values, which may
+     * only clear the trash column.
+     *
+     * @throws IllegalArgumentException if the values do anything else.
+     */
+    private int restore(Uri uri, int match, ContentValues values, String where,
+            String[] whereArgs) {
+        if (values.size() != 1 || !values.containsKey(NotePad.Notes.COLUMN_NAME_DELETED_AT)
+                || values.get(NotePad.Notes.COLUMN_NAME_DELETED_AT) != null) {
+            throw new IllegalArgumentException("Notes in the trash can only be restored");
+        }
+        if (match == TRASH_ID) {
+            whereArgs = noteIdSelectionArgs(Long.parseLong(uri.getPathSegments().get(
+                    NotePad.Notes.TRASH_ID_PATH_POSITION)), whereArgs);
+            where = trashIdSelection(where);
+        } else {
+            where = where == null ? NoteTrash.IN_TRASH
+                    : NoteTrash.IN_TRASH + " AND (" + where + ")";
+        }
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int count;
+        db.beginTransaction();
+        try {
+            // The subtasks that went to the trash with a todo come back with it, so when each
+            // note went is read first.
+            long[] restoredIds = null;
+            long[] deletedAts = null;
+            if (TodoTree.hasSubtasks(db)) {
+                Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] {
+                        NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_DELETED_AT
+                }, where, whereArgs, null, null, null);
+                try {
+                    restoredIds = new long[c.getCount()];
+                    deletedAts = new long[restoredIds.length];
+                    for (int i = 0; c.moveToNext(); i++) {
+                        restoredIds[i] = c.getLong(0);
+                        deletedAts[i] = c.getLong(1);
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            count = db.update(NotePad.Notes.TABLE_NAME, values, where, whereArgs);
+            if (count > 0 && restoredIds != null) {
+                for (int i = 0; i < restoredIds.length; i++) {
+                    TodoTree.restoreSubtasks(db, restoredIds[i], deletedAts[i]);
+                }
+                TodoTree.recount(db);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (count > 0) {
+            getContext().getContentResolver().notifyChange(uri, null);
+            scheduleWidgetUpdate();
+            scheduleReminderUpdate();
+        }
+        return count;
+    }
+
+    /**
+     * Deletes for good the notes that have been in the trash too long. Blocks until done, so
+     * must not be called on the main thread.
+     *
+     * @return the number of notes deleted.
+     */
+    int purgeTrash() {
+        int count = NoteTrash.purgeExpired(mOpenHelper.getWritableDatabase(), mBodyStore,
+                System.currentTimeMillis());
+        notifyTrashChange(NotePad.Notes.TRASH_URI, count);
+        return count;
+    }
+
+    /**
+     * Notifies the observers of the trash, if notes in it were deleted for good. No other list
+     * changes.
+     */
+    private void notifyTrashChange(Uri uri, int count) {
+        if (count > 0) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
     /**
      * This is called when a client calls
      * {@link android.content.ContentResolver#update(Uri,ContentValues,String,String[])}
@@ -703,64 +2212,244 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     @Override
     public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
 
+        // The only update of the notes in the trash puts them back.
+        int match = sUriMatcher.match(uri);
+        if (match == TRASH || match == TRASH_ID) {
+            return restore(uri, match, values, where, whereArgs);
+        }
+        if (match == SMART_FOLDER_ID) {
+            return updateSmartFolder(uri, values);
+        }
+
+        // A note is only put in the trash by deleting it, a subtask only added under its todo,
+        // and the subtask counts are kept by the provider.
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_DELETED_AT)
+                || values.containsKey(NotePad.Notes.COLUMN_NAME_PARENT_ID)
+                || values.containsKey(NotePad.Notes.COLUMN_NAME_SUBTASKS)
+                || values.containsKey(NotePad.Notes.COLUMN_NAME_SUBTASKS_DONE)) {
+            values = new ContentValues(values);
+            values.remove(NotePad.Notes.COLUMN_NAME_DELETED_AT);
+            values.remove(NotePad.Notes.COLUMN_NAME_PARENT_ID);
+            values.remove(NotePad.Notes.COLUMN_NAME_SUBTASKS);
+            values.remove(NotePad.Notes.COLUMN_NAME_SUBTASKS_DONE);
+        }
+
+        // A completed todo doesn't remind, however it was completed.
+        if (TodoRank.CATEGORIES[1].equals(
+                values.getAsString(NotePad.Notes.COLUMN_NAME_CATEGORY))) {
+            values = new ContentValues(values);
+            values.putNull(NotePad.Notes.COLUMN_NAME_REMIND_AT);
+        }
+
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count;
         String finalWhere;
 
-        // Does the update based on the incoming URI pattern
-        switch (sUriMatcher.match(uri)) {
+        // The text of the new body, if there is one, before it's encoded for storage.
+        boolean hasBody = values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE);
+        String newText = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
 
-            // If the incoming URI matches the general notes pattern, does the update based on
-            // the incoming data.
-            case NOTES:
+        // The text the new body was edited from, to merge with any change made since.
+        String baseText = null;
+        if (values.containsKey(NotePad.Notes.BASE_NOTE)) {
+            values = new ContentValues(values);
+            baseText = values.getAsString(NotePad.Notes.BASE_NOTE);
+            values.remove(NotePad.Notes.BASE_NOTE);
+        }
 
-                // Does the update and returns the number of rows updated.
-                count = db.update(
-                    NotePad.Notes.TABLE_NAME, // The database table name.
-                    values,                   // A map of column names and new values to use.
-                    where,                    // The where clause column names.
-                    whereArgs                 // The where clause column values to select on.
-                );
-                break;
+        // The file written for an oversized body, and the files of the bodies it replaces.
+        String newFile = null;
+        List<String> oldFiles = Collections.emptyList();
 
-            // If the incoming URI matches a single note ID, does the update based on the incoming
-            // data, but modifies the where clause to restrict it to the particular note ID.
-            case NOTE_ID:
-                // From the incoming URI, get the note ID
-                String noteId = uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
+        // The notes changed, to reindex for fuzzy search when their title or body changes, and
+        // to file in the smart folders again when what they are filed by does.
+        boolean reindex = hasBody || values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE);
+        boolean refile = NoteFolders.affects(values);
+        long[] changedIds = null;
 
-                /*
-                 * Starts creating the final WHERE clause by restricting it to the incoming
-                 * note ID.
-                 */
-                finalWhere =
-                        NotePad.Notes._ID +                              // The ID column name
-                        " = " +                                          // test for equality
-                        uri.getPathSegments().                           // the incoming note ID
-                            get(NotePad.Notes.NOTE_ID_PATH_POSITION)
-                ;
-
-                // If there were additional selection criteria, append them to the final WHERE
-                // clause
-                if (where !=null) {
-                    finalWhere = finalWhere + " AND " + where;
-                }
+        boolean syncAdapter = isSyncAdapter(uri);
+        if (mEncryptNotes && values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE) != null) {
+            values = new ContentValues(values);
+            NoteBodyCodec.encodeTitle(values, true);
+        }
+        if (hasBody || values.containsKey(NotePad.Notes.COLUMN_NAME_SNIPPET)) {
+            values = new ContentValues(values);
+            // Only the body of a single note goes to a file; a file is never shared by rows.
+            newFile = storeBody(values, match == NOTE_ID);
+        }
 
+        db.beginTransaction();
+        try {
+            if (syncAdapter) {
+                mOpenHelper.statements.get(db, NoteChangeLog.BEGIN_REMOTE_SQL).execute();
+            }
 
-                // Does the update and returns the number of rows updated.
-                count = db.update(
-                    NotePad.Notes.TABLE_NAME, // The database table name.
-                    values,                   // A map of column names and new values to use.
-                    finalWhere,               // The final WHERE clause to use
-                                              // placeholders for whereArgs
-                    whereArgs                 // The where clause column values to select on, or
-                                              // null if the values are in the where argument.
-                );
-                break;
-            // If the incoming pattern is invalid, throws an exception.
-            default:
-                throw new IllegalArgumentException("Unknown URI " + uri);
+            // Does the update based on the incoming URI pattern
+            switch (match) {
+
+                // If the incoming URI matches the general notes pattern, does the update based
+                // on the incoming data.
+                case NOTES:
+                    // Notes in the trash aren't changed.
+                    finalWhere = where == null ? NoteTrash.NOT_IN_TRASH
+                            : NoteTrash.NOT_IN_TRASH + " AND (" + where + ")";
+                    if (hasBody) {
+                        oldFiles = bodyFiles(db, finalWhere, whereArgs);
+                    }
+                    // Selected before the update, which may change what the selection matches.
+                    if (reindex || refile) {
+                        changedIds = noteIds(db, finalWhere, whereArgs);
+                    }
+
+                    // Does the update and returns the number of rows updated.
+                    count = db.update(
+                        NotePad.Notes.TABLE_NAME, // The database table name.
+                        values,                   // A map of column names and new values to use.
+                        finalWhere,               // The where clause column names.
+                        whereArgs                 // The where clause column values to select on.
+                    );
+
+                    // Subtasks changed in bulk are counted again.
+                    if (count > 0 && values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY)
+                            && TodoTree.hasSubtasks(db)) {
+                        TodoTree.recount(db);
+                    }
+                    break;
+
+                // If the incoming URI matches a single note ID, does the update based on the
+                // incoming data, but modifies the where clause to restrict it to the particular
+                // note ID.
+                case NOTE_ID:
+                    // From the incoming URI, get the note ID
+                    long noteId = Long.parseLong(
+                            uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+
+                    /*
+                     * Restricts the final WHERE clause to the incoming note ID, bound as the
+                     * first parameter, so the statement is the same for every note.
+                     */
+                    finalWhere = noteIdSelection(where);
+                    String[] finalWhereArgs = noteIdSelectionArgs(noteId, whereArgs);
+
+                    // A note changed here since it was last synced keeps the local change.
+                    if (syncAdapter && NoteChangeLog.hasLocalChange(db, noteId)) {
+                        count = 0;
+                        break;
+                    }
+
+                    changedIds = new long[] { noteId };
+
+                    // A todo that changes status goes on top of its new one, unless it comes
+                    // with a place, and is counted as done, or no longer, by the todos above it.
+                    String category = values.getAsString(NotePad.Notes.COLUMN_NAME_CATEGORY);
+                    int doneChange = 0;
+                    if (TodoRank.isTodo(category)) {
+                        String oldCategory = liveCategory(db, noteId);
+                        if (!category.equals(oldCategory)) {
+                            if (!values.containsKey(NotePad.Notes.COLUMN_NAME_RANK)) {
+                                values = new ContentValues(values);
+                                values.put(NotePad.Notes.COLUMN_NAME_RANK,
+                                        TodoRank.first(db, category));
+                            }
+                            doneChange = TodoTree.completed(category)
+                                    - TodoTree.completed(oldCategory);
+                        }
+                    }
+
+                    // Title and category changes don't touch the note text, and have no
+                    // revision to record.
+                    if (!hasBody) {
+                        count = updateNote(db, noteId, values, where, finalWhere, finalWhereArgs);
+                        if (count > 0 && doneChange != 0) {
+                            TodoTree.adjust(db, noteId, 0, doneChange);
+                        }
+                        break;
+                    }
+
+                    // Reads the text being replaced, to record the change in the same
+                    // transaction, so the history can't get out of step with the note.
+                    String oldText = null;
+                    String oldFile = null;
+                    Cursor old = db.query(NotePad.Notes.TABLE_NAME,
+                            new String[] {
+                                    NotePad.Notes.COLUMN_NAME_NOTE,
+                                    NoteBodyCodec.COLUMN_NAME_FORMAT,
+                                    NoteBodyStore.COLUMN_NAME_FILE
+                            },
+                            finalWhere, finalWhereArgs, null, null, null);
+                    try {
+                        if (old.moveToFirst()) {
+                            oldText = NoteBodyCodec.decode(old, 0, old.getInt(1));
+                            oldFile = old.getString(2);
+                        }
+                    } finally {
+                        old.close();
+                    }
+
+                    // The note changed since the caller read it: stores both edits rather than
+                    // the caller's alone. The stored text is read in this transaction, so no
+                    // other edit can get in between.
+                    if (baseText != null && oldText != null && newText != null) {
+                        String current = oldFile != null ? readBodyFile(oldFile) : oldText;
+                        if (!baseText.equals(current)) {
+                            String merged = NoteMerge.merge(baseText, current, newText);
+                            if (!merged.equals(newText)) {
+                                newText = merged;
+                                values.put(NotePad.Notes.COLUMN_NAME_NOTE, merged);
+                                mBodyStore.delete(newFile);
+                                newFile = storeBody(values, true);
+                            }
+                        }
+                    }
+
+                    // Does the update and returns the number of rows updated.
+                    count = updateNote(db, noteId, values, where, finalWhere, finalWhereArgs);
+
+                    if (count > 0) {
+                        if (doneChange != 0) {
+                            TodoTree.adjust(db, noteId, 0, doneChange);
+                        }
+                        if (oldFile != null) {
+                            oldFiles = Collections.singletonList(oldFile);
+                        }
+                        // Oversized notes have no history, since a snapshot would put the whole
+                        // body back into the database.
+                        if (oldFile == null && newFile == null) {
+                            NoteRevisions.record(db, noteId, oldText, newText,
+                                    System.currentTimeMillis(), mEncryptNotes);
+                        }
+                    }
+                    break;
+                // If the incoming pattern is invalid, throws an exception.
+                default:
+                    throw new IllegalArgumentException("Unknown URI " + uri);
+            }
+            if (changedIds != null && count > 0) {
+                if (reindex) {
+                    reindex(db, changedIds);
+                }
+                if (refile) {
+                    NoteFolders.refile(db, changedIds);
+                }
+            }
+            if (syncAdapter) {
+                mOpenHelper.statements.get(db, NoteChangeLog.END_REMOTE_SQL).execute();
+            }
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            mBodyStore.delete(newFile);
+            throw e;
+        } finally {
+            db.endTransaction();
+        }
+
+        // The replaced bodies are only deleted once nothing refers to them.
+        for (String file : oldFiles) {
+            mBodyStore.delete(file);
+        }
+        if (count == 0) {
+            mBodyStore.delete(newFile);
         }
 
         /*Gets a handle to the content resolver object for the current context, and notifies it
@@ -768,11 +2457,184 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          * and observers that have registered themselves for the provider are notified.
          */
         getContext().getContentResolver().notifyChange(uri, null);
+        if (count > 0) {
+            // A write that changed nothing, such as a save of a deleted note, leaves the widget.
+            scheduleWidgetUpdate();
+        }
+        if (count > 0 && values.containsKey(NotePad.Notes.COLUMN_NAME_REMIND_AT)) {
+            scheduleReminderUpdate();
+        }
+
+        // Notes made todos in bulk are ranked in the background, and listed on top till then.
+        if (count > 0 && match == NOTES
+                && TodoRank.isTodo(values.getAsString(NotePad.Notes.COLUMN_NAME_CATEGORY))) {
+            AppExecutors.diskIO().execute(new Runnable() {
+                @Override
+                public void run() {
+                    rebalanceTodoRanks();
+                }
+            });
+        }
 
         // Returns the number of rows updated.
         return count;
     }
 
+    /**
+     * Replaces the note body in the values with the form it's stored in, and sets the snippet
+     * to match. If {@code allowExternal} is set, an oversized body is written to a file, and the
+     * name of the file is returned; the caller deletes the file if the row doesn't get written.
+     *
+     * @throws SQLException if the body file can't be written.
+     */
+    private String storeBody(ContentValues values, boolean allowExternal) {
+        // The snippet is derived from the body; it is never taken from the caller.
+        values.remove(NotePad.Notes.COLUMN_NAME_SNIPPET);
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            return null;
+        }
+        String text = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        values.put(NotePad.Notes.COLUMN_NAME_SNIPPET, NoteSnippet.of(text));
+        boolean encrypt = mEncryptNotes;
+        if (!allowExternal || !NoteBodyStore.isOversized(text)) {
+            NoteBodyCodec.encode(values, mCompressLargeNotes, encrypt);
+            values.putNull(NoteBodyStore.COLUMN_NAME_FILE);
+            return null;
+        }
+
+        String file;
+        try {
+            file = mBodyStore.write(text, encrypt);
+        } catch (IOException e) {
+            throw new SQLException("Unable to store note body", e);
+        }
+        // The head in the note column is stored, and encrypted, like any short body.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, NoteBodyStore.head(text));
+        NoteBodyCodec.encode(values, false, encrypt);
+        values.put(NoteBodyCodec.COLUMN_NAME_FORMAT, NoteBodyCodec.FLAG_EXTERNAL
+                | values.getAsInteger(NoteBodyCodec.COLUMN_NAME_FORMAT));
+        values.put(NoteBodyStore.COLUMN_NAME_FILE, file);
+        return file;
+    }
+
+    /**
+     * Returns the whole text of a body stored in a file.
+     *
+     * @throws SQLException if the file can't be read.
+     */
+    private String readBodyFile(String file) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            mBodyStore.copyTo(file, out);
+            return out.toString("UTF-8");
+        } catch (IOException e) {
+            throw new SQLException("Unable to read note body", e);
+        }
+    }
+
+    /**
+     * Returns the selection of a note ID URI: the note's id, as the first parameter, unless the
+     * note is in the trash, and the caller's selection if there is one.
+     */
+    private static String noteIdSelection(String where) {
+        String selection = NotePad.Notes._ID + " = ? AND " + NoteTrash.NOT_IN_TRASH;
+        return where == null ? selection : selection + " AND (" + where + ")";
+    }
+
+    /**
+     * Returns the category of a note outside the trash, the empty string if it has none, or
+     * null if there is no such note.
+     */
+    private static String liveCategory(SQLiteDatabase db, long noteId) {
+        return DatabaseUtils.stringForQuery(db, "SELECT (SELECT IFNULL("
+                + NotePad.Notes.COLUMN_NAME_CATEGORY + ", '') FROM " + NotePad.Notes.TABLE_NAME
+                + " WHERE " + NotePad.Notes._ID + " = ? AND " + NoteTrash.NOT_IN_TRASH + ")",
+                new String[] { String.valueOf(noteId) });
+    }
+
+    /**
+     * Returns the selection of a trash note URI, which is that of a note ID URI for a note in
+     * the trash.
+     */
+    private static String trashIdSelection(String where) {
+        String selection = NotePad.Notes._ID + " = ? AND " + NoteTrash.IN_TRASH;
+        return where == null ? selection : selection + " AND (" + where + ")";
+    }
+
+    /**
+     * Returns the parameters of {@link #noteIdSelection(String)} and
+     * {@link #trashIdSelection(String)}.
+     */
+    private static String[] noteIdSelectionArgs(long noteId, String[] whereArgs) {
+        if (whereArgs == null || whereArgs.length == 0) {
+            return new String[] { String.valueOf(noteId) };
+        }
+        String[] args = new String[whereArgs.length + 1];
+        args[0] = String.valueOf(noteId);
+        System.arraycopy(whereArgs, 0, args, 1, whereArgs.length);
+        return args;
+    }
+
+    /**
+     * Updates a single note, with a compiled statement unless the caller added a selection. An
+     * empty update is left to SQLiteDatabase to reject.
+     */
+    private int updateNote(SQLiteDatabase db, long noteId, ContentValues values, String where,
+            String finalWhere, String[] finalWhereArgs) {
+        if (where == null && values.size() > 0) {
+            return mOpenHelper.statements.update(db, noteId, values);
+        }
+        return db.update(NotePad.Notes.TABLE_NAME, values, finalWhere, finalWhereArgs);
+    }
+
+    /**
+     * Reindexes the notes for fuzzy search with the helper's compiled statements.
+     */
+    private void reindex(SQLiteDatabase db, long[] noteIds) {
+        NoteTrigrams.reindex(db, noteIds,
+                mOpenHelper.statements.get(db, NoteTrigrams.DELETE_SQL),
+                mOpenHelper.statements.get(db, NoteTrigrams.INSERT_SQL));
+    }
+
+    /**
+     * Returns the ids of the notes matching the selection.
+     */
+    private static long[] noteIds(SQLiteDatabase db, String where, String[] whereArgs) {
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] { NotePad.Notes._ID },
+                where, whereArgs, null, null, null);
+        try {
+            long[] ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Returns the names of the body files of the notes matching the selection.
+     */
+    private static List<String> bodyFiles(SQLiteDatabase db, String where, String[] whereArgs) {
+        String selection = NoteBodyStore.COLUMN_NAME_FILE + " IS NOT NULL";
+        if (where != null) {
+            selection = selection + " AND (" + where + ")";
+        }
+        List<String> files = new ArrayList<String>();
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME,
+                new String[] { NoteBodyStore.COLUMN_NAME_FILE },
+                selection, whereArgs, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                files.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return files;
+    }
+
     /**
      * A test package can call this to get a handle to the database underlying NotePadProvider,
      * so it can insert test data into the database. The test case class is responsible for
@@ -784,4 +2646,172 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     DatabaseHelper getOpenHelperForTest() {
         return mOpenHelper;
     }
+
+    /**
+     * Turns compression of large note bodies on or off. Only affects bodies written afterwards;
+     * call {@link #migrateNoteBodies()} to convert the existing ones.
+     */
+    void setCompressLargeNotes(boolean compress) {
+        mCompressLargeNotes = compress;
+    }
+
+    /**
+     * Turns encryption of note titles and bodies on or off. Only affects notes written
+     * afterwards; call {@link #migrateNoteBodies()} to convert the existing ones.
+     */
+    void setEncryptNotes(boolean encrypt) {
+        mEncryptNotes = encrypt;
+    }
+
+    /**
+     * Runs the database maintenance that is due, see {@link NoteMaintenance}. Blocks until
+     * done, so must not be called on the main thread.
+     */
+    NoteMaintenance.Report runMaintenance() {
+        return NoteMaintenance.run(mOpenHelper.getWritableDatabase());
+    }
+
+    /**
+     * Returns whether the URI marks the write as made by the sync engine, see
+     * {@link NotePad#CALLER_IS_SYNC_ADAPTER}.
+     */
+    private static boolean isSyncAdapter(Uri uri) {
+        return uri.getBooleanQueryParameter(NotePad.CALLER_IS_SYNC_ADAPTER, false);
+    }
+
+    /**
+     * Returns a sync engine for the notes of this provider, which syncs them through the given
+     * transport.
+     */
+    NoteSync newSync(SyncTransport transport) {
+        return new NoteSync(mOpenHelper.getWritableDatabase(), getContext().getContentResolver(),
+                transport, mEncryptNotes);
+    }
+
+    /**
+     * Queues an update of the home-screen widget's snapshot on the disk I/O thread, unless one
+     * is already queued. Writes in quick succession, such as the autosaves of the editor, then
+     * share a single update that sees all of them.
+     */
+    private void scheduleWidgetUpdate() {
+        if (!mWidgetUpdatePending.compareAndSet(false, true)) {
+            return;
+        }
+        AppExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                mWidgetUpdatePending.set(false);
+                NotesWidgetProvider.update(getContext(), mOpenHelper.getReadableDatabase(),
+                        mEncryptNotes);
+            }
+        });
+    }
+
+    /**
+     * Re-arms the reminder alarm on {@link AppExecutors#diskIO()}, after a change that may have
+     * moved the earliest reminder. Changes in quick succession share one lookup.
+     */
+    private void scheduleReminderUpdate() {
+        if (!mReminderUpdatePending.compareAndSet(false, true)) {
+            return;
+        }
+        AppExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                mReminderUpdatePending.set(false);
+                rearmReminders();
+            }
+        });
+    }
+
+    /**
+     * Arms the reminder alarm for the earliest reminder, or cancels it if there is none.
+     * Blocks on the database, so must not be called on the main thread.
+     */
+    void rearmReminders() {
+        TodoReminders.arm(getContext(), TodoReminders.next(mOpenHelper.getReadableDatabase()));
+    }
+
+    /**
+     * Returns the reminders that are due and clears them, then arms the alarm for the next.
+     * Blocks until done, so must not be called on the main thread.
+     */
+    List<TodoReminders.Reminder> takeDueReminders() {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        List<TodoReminders.Reminder> due = TodoReminders.takeDue(db, System.currentTimeMillis());
+        if (!due.isEmpty()) {
+            getContext().getContentResolver().notifyChange(NotePad.Notes.CONTENT_URI, null);
+        }
+        TodoReminders.arm(getContext(), TodoReminders.next(db));
+        return due;
+    }
+
+    /**
+     * Rekeys the todos if any has no rank or too long a one, see {@link TodoRank}. Blocks until
+     * done, so must not be called on the main thread.
+     *
+     * @return the number of todos rekeyed.
+     */
+    int rebalanceTodoRanks() {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        if (!TodoRank.isUnbalanced(db)) {
+            return 0;
+        }
+        int rekeyed = TodoRank.rebalance(db);
+        Log.i(TAG, "Rekeyed " + rekeyed + " todos");
+        getContext().getContentResolver().notifyChange(NotePad.Notes.CONTENT_URI, null);
+        return rekeyed;
+    }
+
+    /**
+     * Rewrites the stored note bodies and titles that don't match the current storage mode. Blocks until
+     * done, so must not be called on the main thread.
+     *
+     * @return the number of notes rewritten.
+     */
+    int migrateNoteBodies() {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean encrypt = mEncryptNotes;
+        int migrated = 0;
+
+        // Moves oversized bodies written before they were kept in files, first, so they aren't
+        // rewritten in the table only to be moved. Then cleans up files left behind by writes
+        // that never committed.
+        try {
+            int moved = mBodyStore.moveOversized(db, encrypt);
+            if (moved > 0) {
+                Log.i(TAG, "Moved " + moved + " oversized note bodies to files");
+                migrated += moved;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to move oversized note bodies to files", e);
+        }
+        mBodyStore.sweep(db);
+
+        int rewritten = NoteBodyCodec.migrate(db, mCompressLargeNotes, encrypt);
+        if (rewritten > 0) {
+            Log.i(TAG, "Rewrote " + rewritten + " notes, compression "
+                    + (mCompressLargeNotes ? "on" : "off") + ", encryption "
+                    + (encrypt ? "on" : "off"));
+            migrated += rewritten;
+        }
+        int revisions = NoteRevisions.migrate(db, encrypt);
+        if (revisions > 0) {
+            Log.i(TAG, "Rewrote " + revisions + " note revisions, encryption "
+                    + (encrypt ? "on" : "off"));
+        }
+
+        // Fills in the snippets of notes written before there were snippets.
+        int filled = NoteSnippet.backfill(db);
+        if (filled > 0) {
+            Log.i(TAG, "Filled in " + filled + " note snippets");
+        }
+
+        // Indexes notes written before there was a fuzzy search index.
+        int indexed = NoteTrigrams.backfill(db);
+        if (indexed > 0) {
+            Log.i(TAG, "Indexed " + indexed + " notes for fuzzy search");
+        }
+        return migrated;
+    }
 }
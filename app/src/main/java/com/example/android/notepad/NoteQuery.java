@@ -0,0 +1,358 @@
+package com.example.android.notepad;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The search text of the search URIs, parsed. Besides words, which must all be found in the
+ * title or the content, the text may hold:
+ *
+ * <ul>
+ * <li>{@code "exact phrase"}: a phrase that must be found as it is, spaces included;</li>
+ * <li>{@code cat:work} or {@code category:"my work"}: only notes in that category, or in any of
+ * them if given more than once. {@code cat:未分组} stands for notes without a category;</li>
+ * <li>{@code modified:>2026-01-01}, {@code created:<=2026-03-31}, or a range such as
+ * {@code modified:2026-01-01..2026-01-31}: only notes last modified, or created, in those days,
+ * in the device's time zone. {@code >} and {@code <} exclude the day itself; a bare date is
+ * that day.</li>
+ * </ul>
+ *
+ * A word that looks like a filter but isn't one, such as {@code to:do} or a misspelled date, is
+ * searched for as a word.
+ *
+ * <p>The parsed query turns into a selection with a {@code ?} for every value, so nothing the
+ * user types ends up in the SQL. Category and date filters are plain comparisons that the
+ * (category, modified) index serves.
+ */
+final class NoteQuery {
+
+    /**
+     * The category filter value that stands for notes without a category, the same name the
+     * notes list shows them under.
+     */
+    static final String UNCATEGORIZED = "未分组";
+
+    private final List<String> mTerms = new ArrayList<String>();
+    private final List<String> mCategories = new ArrayList<String>();
+    private final Range mModified = new Range(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+    private final Range mCreated = new Range(NotePad.Notes.COLUMN_NAME_CREATE_DATE);
+
+    private NoteQuery() {
+    }
+
+    /**
+     * Parses search text. Never fails: anything that isn't understood is searched for as text.
+     */
+    static NoteQuery parse(String text) {
+        NoteQuery query = new NoteQuery();
+        if (text == null) {
+            return query;
+        }
+
+        int i = 0;
+        while (i < text.length()) {
+            if (Character.isWhitespace(text.charAt(i))) {
+                i++;
+                continue;
+            }
+
+            // A token runs to the next space outside quotes. The quotes themselves are dropped,
+            // and a token that starts with one is always text.
+            boolean phrase = text.charAt(i) == '"';
+            boolean quoted = false;
+            StringBuilder token = new StringBuilder();
+            for (; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '"') {
+                    quoted = !quoted;
+                } else if (!quoted && Character.isWhitespace(c)) {
+                    break;
+                } else {
+                    token.append(c);
+                }
+            }
+            if (token.length() > 0 && (phrase || !query.addFilter(token.toString()))) {
+                query.mTerms.add(token.toString());
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Applies the token as a filter, and returns whether it is one.
+     */
+    private boolean addFilter(String token) {
+        int colon = token.indexOf(':');
+        if (colon <= 0 || colon == token.length() - 1) {
+            return false;
+        }
+        String field = token.substring(0, colon).toLowerCase(Locale.ROOT);
+        String value = token.substring(colon + 1);
+        if ("cat".equals(field) || "category".equals(field)) {
+            mCategories.add(value);
+            return true;
+        }
+        if ("modified".equals(field)) {
+            return mModified.restrict(value);
+        }
+        if ("created".equals(field)) {
+            return mCreated.restrict(value);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the words and phrases to search for, in the order they were given.
+     */
+    List<String> terms() {
+        return Collections.unmodifiableList(mTerms);
+    }
+
+    /**
+     * Returns the first word or phrase, the one whose matches are located and highlighted, or
+     * null if there is none.
+     */
+    String firstTerm() {
+        return mTerms.isEmpty() ? null : mTerms.get(0);
+    }
+
+    /**
+     * Returns the words and phrases separated by spaces, without the filters, for a fuzzy
+     * search.
+     */
+    String text() {
+        StringBuilder text = new StringBuilder();
+        for (String term : mTerms) {
+            if (text.length() > 0) {
+                text.append(' ');
+            }
+            text.append(term);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Returns the selection for the filters, or null if there are none, and adds the values
+     * of its parameters to {@code args}.
+     */
+    String filterSelection(List<String> args) {
+        List<String> clauses = new ArrayList<String>();
+        if (!mCategories.isEmpty()) {
+            StringBuilder in = new StringBuilder();
+            boolean uncategorized = false;
+            for (String category : mCategories) {
+                if (UNCATEGORIZED.equals(category)) {
+                    uncategorized = true;
+                    continue;
+                }
+                in.append(in.length() == 0 ? "?" : ", ?");
+                args.add(category);
+            }
+            StringBuilder clause = new StringBuilder();
+            if (in.length() > 0) {
+                clause.append(NotePad.Notes.COLUMN_NAME_CATEGORY).append(" IN (").append(in)
+                        .append(')');
+            }
+            if (uncategorized) {
+                clause.append(in.length() > 0 ? " OR " : "")
+                        .append(NotePad.Notes.COLUMN_NAME_CATEGORY).append(" IS NULL OR ")
+                        .append(NotePad.Notes.COLUMN_NAME_CATEGORY).append(" = ''");
+            }
+            clauses.add(clause.toString());
+        }
+        mModified.appendTo(clauses, args);
+        mCreated.appendTo(clauses, args);
+        return and(clauses);
+    }
+
+    /**
+     * Returns the selection requiring every word and phrase from the given one on to be in the
+     * title or the content stored as text, ignoring ASCII case, or null if there are none, and
+     * adds the values of its parameters to {@code args}.
+     */
+    String termSelection(int fromTerm, List<String> args) {
+        return termSelection(fromTerm, args, null);
+    }
+
+    /**
+     * Returns the selection of {@link #termSelection(int, List)}, in which a word or phrase is
+     * also found in the notes given for it. Encrypted titles can't be searched in SQL, so the
+     * notes whose encrypted titles hold each term are found beforehand, by
+     * {@link NoteTrigrams#sealedTitlesContaining}.
+     *
+     * @param titleMatches the ids of the notes found for each term, in the order of
+     *     {@link #terms()}, or null if there are none.
+     */
+    String termSelection(int fromTerm, List<String> args, List<long[]> titleMatches) {
+        List<String> clauses = new ArrayList<String>();
+        for (int i = fromTerm; i < mTerms.size(); i++) {
+            clauses.add(orIdIn("NOT " + NoteBodyCodec.SEALED_TITLE + " AND INSTR(LOWER("
+                    + NotePad.Notes.COLUMN_NAME_TITLE + "), LOWER(?)) > 0"
+                    + " OR (" + NoteBodyCodec.COLUMN_NAME_FORMAT + " & "
+                    + NoteBodyCodec.OPAQUE_FLAGS + ") = 0 AND INSTR(LOWER("
+                    + NotePad.Notes.COLUMN_NAME_NOTE + "), LOWER(?)) > 0",
+                    titleMatches != null ? titleMatches.get(i) : null));
+            args.add(mTerms.get(i));
+            args.add(mTerms.get(i));
+        }
+        return and(clauses);
+    }
+
+    /**
+     * Returns the clause, widened to the notes with the given ids if there are any.
+     */
+    static String orIdIn(String clause, long[] ids) {
+        if (ids == null || ids.length == 0) {
+            return clause;
+        }
+        StringBuilder selection = new StringBuilder(clause).append(" OR ")
+                .append(NotePad.Notes._ID).append(" IN (");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                selection.append(", ");
+            }
+            selection.append(ids[i]);
+        }
+        return selection.append(')').toString();
+    }
+
+    /**
+     * Returns whether a note in the category, with the given dates, passes the filters.
+     */
+    boolean matchesFilters(String category, long created, long modified) {
+        if (!mCategories.isEmpty()) {
+            boolean uncategorized = category == null || category.isEmpty();
+            boolean found = false;
+            for (String filter : mCategories) {
+                if (UNCATEGORIZED.equals(filter) ? uncategorized : filter.equals(category)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return mModified.contains(modified) && mCreated.contains(created);
+    }
+
+    /**
+     * Returns whether every word and phrase is in the title or the text, ignoring case. Unlike
+     * the selection, this looks into any text it is given, so it finds at least what the
+     * selection does.
+     */
+    boolean containsTerms(String title, String text) {
+        String lowerTitle = title != null ? title.toLowerCase(Locale.ROOT) : "";
+        String lowerText = text != null ? text.toLowerCase(Locale.ROOT) : "";
+        for (String term : mTerms) {
+            String lowerTerm = term.toLowerCase(Locale.ROOT);
+            if (!lowerTitle.contains(lowerTerm) && !lowerText.contains(lowerTerm)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String and(List<String> clauses) {
+        if (clauses.isEmpty()) {
+            return null;
+        }
+        StringBuilder selection = new StringBuilder();
+        for (String clause : clauses) {
+            if (selection.length() > 0) {
+                selection.append(" AND ");
+            }
+            selection.append('(').append(clause).append(')');
+        }
+        return selection.toString();
+    }
+
+    /**
+     * The times a date column may hold, from {@code from} inclusive to {@code to} exclusive, in
+     * milliseconds.
+     */
+    private static final class Range {
+        final String column;
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+
+        Range(String column) {
+            this.column = column;
+        }
+
+        /**
+         * Narrows the range to the days the value names, and returns whether it names any.
+         */
+        boolean restrict(String value) {
+            long start;
+            long end;
+            int dots = value.indexOf("..");
+            if (dots >= 0) {
+                start = dots > 0 ? dayStart(value.substring(0, dots), 0) : Long.MIN_VALUE;
+                end = dots + 2 < value.length()
+                        ? dayStart(value.substring(dots + 2), 1) : Long.MAX_VALUE;
+            } else if (value.startsWith(">=")) {
+                start = dayStart(value.substring(2), 0);
+                end = Long.MAX_VALUE;
+            } else if (value.startsWith("<=")) {
+                start = Long.MIN_VALUE;
+                end = dayStart(value.substring(2), 1);
+            } else if (value.startsWith(">")) {
+                start = dayStart(value.substring(1), 1);
+                end = Long.MAX_VALUE;
+            } else if (value.startsWith("<")) {
+                start = Long.MIN_VALUE;
+                end = dayStart(value.substring(1), 0);
+            } else {
+                String day = value.startsWith("=") ? value.substring(1) : value;
+                start = dayStart(day, 0);
+                end = dayStart(day, 1);
+            }
+            if (start == -1 || end == -1) {
+                return false;
+            }
+            from = Math.max(from, start);
+            to = Math.min(to, end);
+            return true;
+        }
+
+        boolean contains(long time) {
+            return time >= from && time < to;
+        }
+
+        void appendTo(List<String> clauses, List<String> args) {
+            if (from != Long.MIN_VALUE) {
+                clauses.add(column + " >= ?");
+                args.add(String.valueOf(from));
+            }
+            if (to != Long.MAX_VALUE) {
+                clauses.add(column + " < ?");
+                args.add(String.valueOf(to));
+            }
+        }
+
+        /**
+         * Returns the start of the day {@code days} after the given yyyy-MM-dd date, in the
+         * default time zone, or -1 if it isn't a date.
+         */
+        private static long dayStart(String date, int days) {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd", Locale.ROOT);
+            format.setLenient(false);
+            ParsePosition position = new ParsePosition(0);
+            Date parsed = format.parse(date, position);
+            if (parsed == null || position.getIndex() != date.length()) {
+                return -1;
+            }
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTime(parsed);
+            calendar.add(Calendar.DAY_OF_MONTH, days);
+            return calendar.getTimeInMillis();
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.nio.charset.Charset;
+
+/**
+ * Stores the revision history of note texts. Revisions are kept in the revisions table either as
+ * a full snapshot of the text or as a {@link TextDelta} against the revision before. A revision
+ * is rebuilt from the closest snapshot at or before it by applying the deltas that follow.
+ *
+ * <p>A new snapshot is only written once the deltas recorded since the last one add up to more
+ * than the size of the note, so the space used by history grows with the amount of text edited,
+ * not with the size of the note. Each note keeps at most {@link #MAX_REVISIONS} revisions; older
+ * ones are compacted away, turning the oldest kept revision into a snapshot if it wasn't one.
+ *
+ * <p>When note bodies are encrypted, so is the data of each revision, and its kind has
+ * {@link #FLAG_SEALED} set; see {@link NoteBodyCodec#FLAG_ENCRYPT}.
+ *
+ * <p>All methods but {@link #migrate(SQLiteDatabase, boolean)} expect to be called inside the
+ * provider's write transaction.
+ */
+final class NoteRevisions {
+
+    /**
+     * The number of revisions kept per note.
+     */
+    static final int MAX_REVISIONS = 50;
+
+    // Compaction runs once a note has this many revisions over the limit, so it isn't paid on
+    // every save.
+    private static final int COMPACTION_SLACK = 10;
+
+    private static final int KIND_SNAPSHOT = 0;
+    private static final int KIND_DELTA = 1;
+
+    // Set in the kind of a revision whose data is encrypted.
+    private static final int FLAG_SEALED = 2;
+
+    // Tells a snapshot from a delta in SQL, whether sealed or not.
+    private static final String IS_SNAPSHOT = "(kind & " + KIND_DELTA + ") = 0";
+    private static final String IS_DELTA = "(kind & " + KIND_DELTA + ") != 0";
+
+    // Revisions rewritten per transaction by migrate().
+    private static final int MIGRATION_BATCH_SIZE = 100;
+
+    private static final String COLUMN_KIND = "kind";
+    private static final String COLUMN_DATA = "data";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // This class cannot be instantiated
+    private NoteRevisions() {
+    }
+
+    /**
+     * Creates the revisions table, and a trigger that drops a note's history when the note is
+     * deleted.
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + NotePad.Revisions.TABLE_NAME + " ("
+                + NotePad.Revisions._ID + " INTEGER PRIMARY KEY,"
+                + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+                + NotePad.Revisions.COLUMN_NAME_REVISION + " INTEGER NOT NULL,"
+                + COLUMN_KIND + " INTEGER NOT NULL,"
+                + COLUMN_DATA + " BLOB,"
+                + NotePad.Revisions.COLUMN_NAME_LENGTH + " INTEGER,"
+                + NotePad.Revisions.COLUMN_NAME_CREATE_DATE + " INTEGER,"
+                + "UNIQUE (" + NotePad.Revisions.COLUMN_NAME_NOTE_ID + ", "
+                + NotePad.Revisions.COLUMN_NAME_REVISION + ")"
+                + ");");
+        db.execSQL("CREATE TRIGGER revisions_note_delete AFTER DELETE ON "
+                + NotePad.Notes.TABLE_NAME + " BEGIN"
+                + " DELETE FROM " + NotePad.Revisions.TABLE_NAME
+                + " WHERE " + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = old." + NotePad.Notes._ID
+                + "; END;");
+    }
+
+    /**
+     * Records a change of a note's text from {@code oldText} to {@code newText}. If the note has
+     * no history yet, its previous text is recorded first, so the change can be undone.
+     *
+     * @param encrypt whether to encrypt the revisions recorded.
+     */
+    static void record(SQLiteDatabase db, long noteId, String oldText, String newText, long now,
+            boolean encrypt) {
+        if (oldText == null) {
+            oldText = "";
+        }
+        if (newText == null || newText.equals(oldText)) {
+            return;
+        }
+
+        String[] noteArgs = new String[] { String.valueOf(noteId) };
+        int latest = (int) DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX("
+                + NotePad.Revisions.COLUMN_NAME_REVISION + "), 0) FROM "
+                + NotePad.Revisions.TABLE_NAME + " WHERE "
+                + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ?", noteArgs);
+
+        if (latest == 0) {
+            if (oldText.length() == 0) {
+                insert(db, noteId, 1, KIND_SNAPSHOT, newText.getBytes(UTF_8), newText.length(), now,
+                        encrypt);
+                return;
+            }
+            insert(db, noteId, 1, KIND_SNAPSHOT, oldText.getBytes(UTF_8), oldText.length(), now,
+                    encrypt);
+            latest = 1;
+        }
+
+        byte[] delta = TextDelta.diff(oldText, newText);
+        long chainBytes = DatabaseUtils.longForQuery(db, "SELECT IFNULL(SUM(LENGTH("
+                + COLUMN_DATA + ")), 0) FROM " + NotePad.Revisions.TABLE_NAME
+                + " WHERE " + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ? AND "
+                + IS_DELTA + " AND "
+                + NotePad.Revisions.COLUMN_NAME_REVISION + " > (SELECT MAX("
+                + NotePad.Revisions.COLUMN_NAME_REVISION + ") FROM "
+                + NotePad.Revisions.TABLE_NAME + " WHERE "
+                + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ? AND "
+                + IS_SNAPSHOT + ")",
+                new String[] { noteArgs[0], noteArgs[0] });
+
+        // Both sides in bytes: the chain is stored as bytes, and for text outside ASCII a
+        // char takes up to three of them.
+        byte[] snapshot = newText.getBytes(UTF_8);
+        if (chainBytes + delta.length > snapshot.length) {
+            insert(db, noteId, latest + 1, KIND_SNAPSHOT, snapshot, newText.length(), now,
+                    encrypt);
+        } else {
+            insert(db, noteId, latest + 1, KIND_DELTA, delta, newText.length(), now, encrypt);
+        }
+
+        long count = DatabaseUtils.queryNumEntries(db, NotePad.Revisions.TABLE_NAME,
+                NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ?", noteArgs);
+        if (count > MAX_REVISIONS + COMPACTION_SLACK) {
+            compact(db, noteId, latest + 1, encrypt);
+        }
+    }
+
+    /**
+     * Returns the note text at the given revision, or null if the note has no such revision.
+     */
+    static String reconstruct(SQLiteDatabase db, long noteId, int revision) {
+        String id = String.valueOf(noteId);
+        String rev = String.valueOf(revision);
+        Cursor c = db.query(
+                NotePad.Revisions.TABLE_NAME,
+                new String[] { NotePad.Revisions.COLUMN_NAME_REVISION, COLUMN_KIND, COLUMN_DATA },
+                NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ? AND "
+                        + NotePad.Revisions.COLUMN_NAME_REVISION + " <= ? AND "
+                        + NotePad.Revisions.COLUMN_NAME_REVISION + " >= (SELECT MAX("
+                        + NotePad.Revisions.COLUMN_NAME_REVISION + ") FROM "
+                        + NotePad.Revisions.TABLE_NAME + " WHERE "
+                        + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ? AND "
+                        + NotePad.Revisions.COLUMN_NAME_REVISION + " <= ? AND "
+                        + IS_SNAPSHOT + ")",
+                new String[] { id, rev, id, rev },
+                null,
+                null,
+                NotePad.Revisions.COLUMN_NAME_REVISION + " ASC");
+        try {
+            String text = null;
+            int last = 0;
+            while (c.moveToNext()) {
+                int kind = c.getInt(1);
+                if ((kind & KIND_DELTA) == 0) {
+                    text = new String(data(kind, c.getBlob(2)), UTF_8);
+                } else if (text != null) {
+                    text = TextDelta.apply(text, data(kind, c.getBlob(2)));
+                }
+                last = c.getInt(0);
+            }
+            return last == revision ? text : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Drops the revisions that are more than {@link #MAX_REVISIONS} behind the latest one. The
+     * oldest revision kept becomes a snapshot, since the revisions it was based on are gone.
+     */
+    private static void compact(SQLiteDatabase db, long noteId, int latest, boolean encrypt) {
+        int oldestKept = latest - MAX_REVISIONS + 1;
+        String id = String.valueOf(noteId);
+        String text = reconstruct(db, noteId, oldestKept);
+        if (text != null) {
+            ContentValues values = new ContentValues();
+            put(values, KIND_SNAPSHOT, text.getBytes(UTF_8), encrypt);
+            db.update(NotePad.Revisions.TABLE_NAME, values,
+                    NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ? AND "
+                            + NotePad.Revisions.COLUMN_NAME_REVISION + " = ? AND "
+                            + IS_DELTA,
+                    new String[] { id, String.valueOf(oldestKept) });
+        }
+        db.delete(NotePad.Revisions.TABLE_NAME,
+                NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ? AND "
+                        + NotePad.Revisions.COLUMN_NAME_REVISION + " < ?",
+                new String[] { id, String.valueOf(oldestKept) });
+    }
+
+    /**
+     * Encrypts or decrypts the revisions that aren't stored the way the given mode would store
+     * them, a batch at a time. Blocks until done, so must not be called on the main thread.
+     *
+     * @return the number of revisions rewritten.
+     */
+    static int migrate(SQLiteDatabase db, boolean encrypt) {
+        String selection = NotePad.Revisions._ID + " > ? AND (" + COLUMN_KIND + " & "
+                + FLAG_SEALED + (encrypt ? ") = 0" : ") != 0");
+        long lastId = 0;
+        int migrated = 0;
+        while (true) {
+            int rows = 0;
+            db.beginTransaction();
+            try {
+                Cursor c = db.query(NotePad.Revisions.TABLE_NAME,
+                        new String[] { NotePad.Revisions._ID, COLUMN_KIND, COLUMN_DATA },
+                        selection, new String[] { String.valueOf(lastId) }, null, null,
+                        NotePad.Revisions._ID + " ASC", String.valueOf(MIGRATION_BATCH_SIZE));
+                try {
+                    while (c.moveToNext()) {
+                        rows++;
+                        lastId = c.getLong(0);
+                        int kind = c.getInt(1);
+                        ContentValues values = new ContentValues();
+                        put(values, kind & ~FLAG_SEALED, data(kind, c.getBlob(2)), encrypt);
+                        db.update(NotePad.Revisions.TABLE_NAME, values,
+                                NotePad.Revisions._ID + " = ?",
+                                new String[] { String.valueOf(lastId) });
+                    }
+                } finally {
+                    c.close();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            migrated += rows;
+            if (rows < MIGRATION_BATCH_SIZE) {
+                return migrated;
+            }
+        }
+    }
+
+    private static void insert(SQLiteDatabase db, long noteId, int revision, int kind,
+            byte[] data, int length, long now, boolean encrypt) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Revisions.COLUMN_NAME_NOTE_ID, noteId);
+        values.put(NotePad.Revisions.COLUMN_NAME_REVISION, revision);
+        put(values, kind, data, encrypt);
+        values.put(NotePad.Revisions.COLUMN_NAME_LENGTH, length);
+        values.put(NotePad.Revisions.COLUMN_NAME_CREATE_DATE, now);
+        db.insertOrThrow(NotePad.Revisions.TABLE_NAME, null, values);
+    }
+
+    /**
+     * Puts the kind and the data of a revision in the values, encrypted if asked to.
+     */
+    private static void put(ContentValues values, int kind, byte[] data, boolean encrypt) {
+        if (encrypt) {
+            values.put(COLUMN_KIND, kind | FLAG_SEALED);
+            values.put(COLUMN_DATA, NoteCipher.get().encrypt(data));
+        } else {
+            values.put(COLUMN_KIND, kind);
+            values.put(COLUMN_DATA, data);
+        }
+    }
+
+    /**
+     * Returns the data of a revision of the given kind, decrypted if it's sealed.
+     */
+    private static byte[] data(int kind, byte[] stored) {
+        return (kind & FLAG_SEALED) != 0 ? NoteCipher.get().decrypt(stored) : stored;
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.nio.charset.Charset;
+
+/**
+ * Builds the preview of a note that the notes list shows under its title: the start of the text
+ * with every run of whitespace, line breaks included, collapsed to a single space. The provider
+ * stores it in the snippet column whenever the note text is written, so the list never has to
+ * read note bodies.
+ */
+final class NoteSnippet {
+
+    /**
+     * The longest snippet stored, in chars. About a line of the list.
+     */
+    static final int MAX_LENGTH = 120;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Rows filled in per transaction by backfill().
+    private static final int BACKFILL_BATCH_SIZE = 100;
+
+    // This class cannot be instantiated
+    private NoteSnippet() {
+    }
+
+    /**
+     * Returns the snippet of the given note text.
+     */
+    static String of(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder snippet = new StringBuilder(Math.min(text.length(), MAX_LENGTH));
+        boolean pendingSpace = false;
+        for (int i = 0; i < text.length() && snippet.length() < MAX_LENGTH; i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+                pendingSpace = snippet.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                snippet.append(' ');
+                pendingSpace = false;
+                if (snippet.length() == MAX_LENGTH) {
+                    break;
+                }
+            }
+            snippet.append(c);
+        }
+
+        int length = snippet.length();
+        if (length > 0 && (snippet.charAt(length - 1) == ' '
+                || Character.isHighSurrogate(snippet.charAt(length - 1)))) {
+            snippet.setLength(length - 1);
+        }
+        return snippet.toString();
+    }
+
+    /**
+     * Fills in the snippet of every note that doesn't have one yet, a batch at a time. Only
+     * notes written before the snippet column existed, or written straight to the database,
+     * lack one.
+     *
+     * @return the number of notes filled in.
+     */
+    static int backfill(SQLiteDatabase db) {
+        String[] columns = new String[] {
+                NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_NOTE, NoteBodyCodec.COLUMN_NAME_FORMAT
+        };
+        String selection = NotePad.Notes.COLUMN_NAME_SNIPPET + " IS NULL AND "
+                + NotePad.Notes._ID + " > ?";
+
+        long lastId = 0;
+        int filled = 0;
+        while (true) {
+            int rows = 0;
+            db.beginTransaction();
+            try {
+                Cursor c = db.query(NotePad.Notes.TABLE_NAME, columns, selection,
+                        new String[] { String.valueOf(lastId) }, null, null,
+                        NotePad.Notes._ID + " ASC", String.valueOf(BACKFILL_BATCH_SIZE));
+                try {
+                    while (c.moveToNext()) {
+                        rows++;
+                        lastId = c.getLong(0);
+                        // For a body kept in a file this decodes its head, which is plenty.
+                        int format = c.getInt(2);
+                        String snippet = of(NoteBodyCodec.decode(c, 1, format));
+                        ContentValues values = new ContentValues();
+                        if ((format & NoteBodyCodec.FLAG_ENCRYPT) != 0) {
+                            values.put(NotePad.Notes.COLUMN_NAME_SNIPPET,
+                                    NoteCipher.get().encrypt(snippet.getBytes(UTF_8)));
+                        } else {
+                            values.put(NotePad.Notes.COLUMN_NAME_SNIPPET, snippet);
+                        }
+                        db.update(NotePad.Notes.TABLE_NAME, values, NotePad.Notes._ID + " = ?",
+                                new String[] { String.valueOf(lastId) });
+                    }
+                } finally {
+                    c.close();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            filled += rows;
+            if (rows < BACKFILL_BATCH_SIZE) {
+                return filled;
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiled statements for the provider's single-row writes, kept by the database helper for as
+ * long as the database is open.
+ *
+ * <p>An insert or an update is compiled once per set of columns it writes, and looked up by the
+ * key set of the values, so a write of the same columns as before allocates no SQL and no
+ * statement, and binds every value, the note id included, as a parameter. Other statements are
+ * looked up by their SQL.
+ *
+ * <p>A compiled statement holds its bindings between calls, so the statements must only be used
+ * inside a transaction on the database they were compiled for; transactions on the one writable
+ * connection are what keeps two threads from binding the same statement at once. The bindings
+ * are cleared after each call, so that a cached statement doesn't keep the last note body it
+ * wrote in memory.
+ */
+final class NoteStatements {
+
+    /**
+     * The most inserts, and the most updates, kept compiled. Clients write only a few different
+     * sets of columns.
+     */
+    static final int MAX_WRITES = 8;
+
+    private SQLiteDatabase mDb;
+    private final Map<String, SQLiteStatement> mStatements = new HashMap<String, SQLiteStatement>();
+    private final Map<Set<String>, Write> mInserts = new WriteCache();
+    private final Map<Set<String>, Write> mUpdates = new WriteCache();
+
+    /**
+     * Inserts a note with the given values.
+     *
+     * @return the id of the new note, or -1 if it wasn't inserted.
+     */
+    synchronized long insert(SQLiteDatabase db, ContentValues values) {
+        attach(db);
+        Write insert = mInserts.get(values.keySet());
+        if (insert == null) {
+            String[] columns = values.keySet().toArray(new String[values.size()]);
+            StringBuilder sql = new StringBuilder("INSERT INTO " + NotePad.Notes.TABLE_NAME + " (");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i == 0 ? "" : ", ").append(columns[i]);
+            }
+            sql.append(") VALUES (");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            sql.append(')');
+            insert = new Write(columns, db.compileStatement(sql.toString()));
+            mInserts.put(new HashSet<String>(values.keySet()), insert);
+        }
+        insert.bind(values);
+        try {
+            return insert.statement.executeInsert();
+        } finally {
+            insert.statement.clearBindings();
+        }
+    }
+
+    /**
+     * Updates the columns of the values in the note with the given id, unless it is in the
+     * trash.
+     *
+     * @return the number of notes updated, 0 or 1.
+     */
+    synchronized int update(SQLiteDatabase db, long noteId, ContentValues values) {
+        attach(db);
+        Write update = mUpdates.get(values.keySet());
+        if (update == null) {
+            String[] columns = values.keySet().toArray(new String[values.size()]);
+            StringBuilder sql = new StringBuilder("UPDATE " + NotePad.Notes.TABLE_NAME + " SET ");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i == 0 ? "" : ", ").append(columns[i]).append(" = ?");
+            }
+            sql.append(" WHERE " + NotePad.Notes._ID + " = ? AND " + NoteTrash.NOT_IN_TRASH);
+            update = new Write(columns, db.compileStatement(sql.toString()));
+            mUpdates.put(new HashSet<String>(values.keySet()), update);
+        }
+        update.bind(values);
+        update.statement.bindLong(update.columns.length + 1, noteId);
+        try {
+            return update.statement.executeUpdateDelete();
+        } finally {
+            update.statement.clearBindings();
+        }
+    }
+
+    /**
+     * Returns the statement compiled from the given SQL, compiling it the first time. The
+     * caller binds it, clears its bindings once it has run, and must not close it.
+     */
+    synchronized SQLiteStatement get(SQLiteDatabase db, String sql) {
+        attach(db);
+        SQLiteStatement statement = mStatements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            mStatements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Closes every statement. Called when the database is closed.
+     */
+    synchronized void close() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        for (Write write : mInserts.values()) {
+            write.statement.close();
+        }
+        for (Write write : mUpdates.values()) {
+            write.statement.close();
+        }
+        mStatements.clear();
+        mInserts.clear();
+        mUpdates.clear();
+        mDb = null;
+    }
+
+    private void attach(SQLiteDatabase db) {
+        // Statements belong to the database they were compiled for; if it was reopened, the
+        // old ones are of no use.
+        if (db != mDb) {
+            close();
+            mDb = db;
+        }
+    }
+
+    /**
+     * A compiled insert or update, and the columns its parameters are for, in order.
+     */
+    private static final class Write {
+        final String[] columns;
+        final SQLiteStatement statement;
+
+        Write(String[] columns, SQLiteStatement statement) {
+            this.columns = columns;
+            this.statement = statement;
+        }
+
+        void bind(ContentValues values) {
+            for (int i = 0; i < columns.length; i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns[i]));
+            }
+        }
+    }
+
+    /**
+     * Compiled writes by the columns they write, closing the least recently used one beyond
+     * {@link #MAX_WRITES}.
+     */
+    private static final class WriteCache extends LinkedHashMap<Set<String>, Write> {
+        WriteCache() {
+            super(MAX_WRITES, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Set<String>, Write> eldest) {
+            if (size() > MAX_WRITES) {
+                eldest.getValue().statement.close();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Syncs the notes with a server through a {@link SyncTransport}: first applies the changes made
+ * on other devices since the last sync, then sends the ones made here, from
+ * {@link NoteChangeLog}, in batches of {@link #BATCH_SIZE}. Either way only changed notes are
+ * read or written, so a sync of a large library with a few edits costs a few edits.
+ *
+ * <p>Changes from the server are written through the provider as a sync adapter, so they are
+ * stored, indexed and recorded like any other edit, but not logged to be sent back. A note that
+ * was also changed here since it was last sent gets the server's text merged into the local
+ * edit by {@link NoteMerge}, against the text both started from, and keeps its local title and
+ * category; the merge is a local edit, which reaches the server and the other devices on the
+ * push that follows. Where that text isn't known, as for oversized notes, the local change is
+ * kept as it is.
+ *
+ * <p>Blocks on the database and the transport, so must not be called on the main thread.
+ */
+final class NoteSync {
+
+    /**
+     * The most changes sent, or asked for, at once.
+     */
+    static final int BATCH_SIZE = 100;
+
+    private static final String[] NOTE_PROJECTION = new String[] {
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+    };
+
+    private final SQLiteDatabase mDb;
+    private final ContentResolver mResolver;
+    private final SyncTransport mTransport;
+    private final boolean mEncrypt;
+
+    /**
+     * @param db the provider's database, for the change log and the sync state.
+     * @param resolver the resolver the notes are read and written through.
+     * @param encrypt whether notes are encrypted: then the note texts kept for merging are
+     *        encrypted, and the titles and texts sent are sealed.
+     */
+    NoteSync(SQLiteDatabase db, ContentResolver resolver, SyncTransport transport,
+            boolean encrypt) {
+        mDb = db;
+        mResolver = resolver;
+        mTransport = transport;
+        mEncrypt = encrypt;
+    }
+
+    /**
+     * Pulls the changes made elsewhere, then pushes the ones made here.
+     */
+    synchronized void sync() throws IOException {
+        pull();
+        push();
+    }
+
+    /**
+     * Applies the changes made on other devices since the last pull.
+     *
+     * @return the number of notes changed here.
+     */
+    synchronized int pull() throws IOException {
+        String clientId = clientId();
+        long cursor = longState(NoteChangeLog.STATE_SERVER_CURSOR);
+        int applied = 0;
+        SyncBatch batch;
+        do {
+            batch = SyncBatch.decode(mTransport.pull(clientId, cursor, BATCH_SIZE));
+            for (SyncBatch.Change change : batch.changes) {
+                // Sealed by a device that encrypts its notes, whether or not this one does.
+                if (change.sealed) {
+                    change = change.open(NoteCipher.get());
+                }
+                if (apply(change)) {
+                    applied++;
+                }
+            }
+            // Applying a change twice does no harm, so the position is saved after the batch
+            // rather than with each change.
+            cursor = batch.cursor;
+            NoteChangeLog.putState(mDb, NoteChangeLog.STATE_SERVER_CURSOR, String.valueOf(cursor));
+        } while (batch.more);
+        return applied;
+    }
+
+    /**
+     * Sends the changes made here since the last push.
+     *
+     * @return the number of notes sent.
+     */
+    synchronized int push() throws IOException {
+        String clientId = clientId();
+        long acknowledged = longState(NoteChangeLog.STATE_ACKNOWLEDGED);
+        int sent = 0;
+        List<NoteChangeLog.Entry> entries;
+        while (!(entries = NoteChangeLog.pending(mDb, acknowledged, BATCH_SIZE)).isEmpty()) {
+            List<SyncBatch.Change> changes = new ArrayList<SyncBatch.Change>(entries.size());
+            List<Long> noteIds = new ArrayList<Long>(entries.size());
+            for (NoteChangeLog.Entry entry : entries) {
+                SyncBatch.Change change = entry.deleted
+                        ? SyncBatch.Change.deletion(entry.syncId) : read(entry);
+                if (change != null) {
+                    changes.add(change);
+                    noteIds.add(entry.noteId);
+                }
+            }
+            long last = entries.get(entries.size() - 1).sequence;
+            if (!changes.isEmpty()) {
+                List<SyncBatch.Change> pushed = changes;
+                if (mEncrypt) {
+                    NoteCipher cipher = NoteCipher.get();
+                    pushed = new ArrayList<SyncBatch.Change>(changes.size());
+                    for (SyncBatch.Change change : changes) {
+                        pushed.add(change.seal(cipher));
+                    }
+                }
+                mTransport.push(clientId, new SyncBatch(last, false, pushed).encode());
+                // What the server has now is what later changes from it are merged against.
+                for (int i = 0; i < changes.size(); i++) {
+                    if (!changes.get(i).deleted) {
+                        NoteChangeLog.putBase(mDb, noteIds.get(i), changes.get(i).note, mEncrypt);
+                    }
+                }
+            }
+            // A note changed again while the batch was sent has a later entry by now, which
+            // this leaves in place.
+            NoteChangeLog.acknowledge(mDb, last);
+            acknowledged = last;
+            sent += changes.size();
+        }
+        return sent;
+    }
+
+    /**
+     * Writes a change from the server.
+     *
+     * @return whether a note was changed.
+     */
+    private boolean apply(SyncBatch.Change change) {
+        long noteId = NoteChangeLog.noteId(mDb, change.syncId);
+        if (change.deleted) {
+            return noteId >= 0 && mResolver.delete(syncAdapterUri(
+                    ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId)),
+                    null, null) > 0;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, change.title);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, change.note != null ? change.note : "");
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, change.category);
+        values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, change.created);
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, change.modified);
+        if (noteId >= 0) {
+            Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId);
+            if (mResolver.update(syncAdapterUri(noteUri), values, null, null) > 0) {
+                NoteChangeLog.putBase(mDb, noteId, change.note, mEncrypt);
+                return true;
+            }
+            // The provider refuses the change if the note was edited here too.
+            return merge(noteId, noteUri, change);
+        }
+
+        // Deleted here while it was edited elsewhere: the delete is on its way.
+        if (NoteChangeLog.hasLocalDelete(mDb, change.syncId)) {
+            return false;
+        }
+        values.put(NoteChangeLog.COLUMN_NAME_SYNC_ID, change.syncId);
+        Uri noteUri = mResolver.insert(syncAdapterUri(NotePad.Notes.CONTENT_URI), values);
+        if (noteUri == null) {
+            return false;
+        }
+        NoteChangeLog.putBase(mDb, ContentUris.parseId(noteUri), change.note, mEncrypt);
+        return true;
+    }
+
+    /**
+     * Merges a change from the server into the text of a note that was also edited here, as a
+     * local edit.
+     *
+     * @return whether the note was changed.
+     */
+    private boolean merge(long noteId, Uri noteUri, SyncBatch.Change change)
+            throws IOException {
+        String base = NoteChangeLog.base(mDb, noteId);
+        SyncBatch.Change local = base != null ? read(noteId, change.syncId) : null;
+        if (local == null) {
+            return false;
+        }
+        String remote = change.note != null ? change.note : "";
+        String localText = local.note != null ? local.note : "";
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, NoteMerge.merge(base, localText, remote));
+        // Should the note be edited again meanwhile, the provider merges that in as well.
+        values.put(NotePad.Notes.BASE_NOTE, localText);
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                Math.max(local.modified, change.modified));
+        if (mResolver.update(noteUri, values, null, null) == 0) {
+            return false;
+        }
+        NoteChangeLog.putBase(mDb, noteId, change.note, mEncrypt);
+        return true;
+    }
+
+    /**
+     * Reads the note the entry is for, giving it a sync id if it has none yet.
+     *
+     * @return the note, or null if it was deleted since.
+     */
+    private SyncBatch.Change read(NoteChangeLog.Entry entry) throws IOException {
+        String syncId = entry.syncId;
+        if (syncId == null) {
+            syncId = UUID.randomUUID().toString();
+            if (!NoteChangeLog.bindIfExists(mDb, entry.noteId, syncId)) {
+                return null;
+            }
+        }
+        return read(entry.noteId, syncId);
+    }
+
+    /**
+     * Reads a note, with the whole of its body.
+     *
+     * @return the note, or null if it doesn't exist.
+     */
+    private SyncBatch.Change read(long noteId, String syncId) throws IOException {
+        Cursor c = mResolver.query(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId),
+                NOTE_PROJECTION, null, null, null);
+        if (c == null) {
+            return null;
+        }
+        String title;
+        String note;
+        String category;
+        long created;
+        long modified;
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            title = c.getString(0);
+            note = c.getString(1);
+            category = c.getString(2);
+            created = c.getLong(3);
+            modified = c.getLong(4);
+        } finally {
+            c.close();
+        }
+
+        // Only the start of an oversized body is in the note column; the whole of it is
+        // streamed from the body URI.
+        if (note != null && note.length() >= NoteBodyStore.HEAD_LENGTH) {
+            note = readBody(noteId);
+        }
+        return new SyncBatch.Change(syncId, title, note, category, created, modified);
+    }
+
+    private String readBody(long noteId) throws IOException {
+        InputStream in = mResolver.openInputStream(NotePad.Notes.getBodyUri(noteId));
+        Reader reader = new InputStreamReader(in, "UTF-8");
+        try {
+            StringBuilder body = new StringBuilder();
+            char[] buffer = new char[8192];
+            int count;
+            while ((count = reader.read(buffer)) > 0) {
+                body.append(buffer, 0, count);
+            }
+            return body.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private String clientId() {
+        String clientId = NoteChangeLog.getState(mDb, NoteChangeLog.STATE_CLIENT_ID);
+        if (clientId == null) {
+            clientId = UUID.randomUUID().toString();
+            NoteChangeLog.putState(mDb, NoteChangeLog.STATE_CLIENT_ID, clientId);
+        }
+        return clientId;
+    }
+
+    private long longState(String key) {
+        String value = NoteChangeLog.getState(mDb, key);
+        return value != null ? Long.parseLong(value) : 0;
+    }
+
+    private static Uri syncAdapterUri(Uri uri) {
+        return uri.buildUpon()
+                .appendQueryParameter(NotePad.CALLER_IS_SYNC_ADAPTER, "true")
+                .build();
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The tags of the notes. A note has any number of tags, and a tag any number of notes; the
+ * names are in {@link NotePad.Tags#TABLE_NAME}, and which note has which tag in an inverted
+ * index: one row per tag and note, keyed by the tag and then the note, so the notes of a tag are
+ * a posting list read in order from the primary key alone. A second index, by note, finds the
+ * tags of a note, and lets a trigger drop them when the note is deleted for good.
+ *
+ * <p>Each tag keeps the number of notes it is on, the trash included. A filter on several tags
+ * that must all match walks the list of the rarest, and probes the primary key for each of the
+ * others, so it costs what the shortest list costs however long the others are; see
+ * {@link #filter}. A filter that any may match reads each list once.
+ */
+final class NoteTags {
+
+    static final String TABLE_NAME = "note_tags";
+
+    private static final String COLUMN_TAG_ID = "tag_id";
+    private static final String COLUMN_NOTE_ID = "note_id";
+
+    // Names differing only in case are the same tag.
+    private static final String TAG_ID_SQL = "SELECT " + NotePad.Tags._ID + " FROM "
+            + NotePad.Tags.TABLE_NAME + " WHERE " + NotePad.Tags.COLUMN_NAME_NAME + " = ?";
+
+    private static final String INSERT_SQL = "INSERT OR IGNORE INTO " + TABLE_NAME + " ("
+            + COLUMN_TAG_ID + ", " + COLUMN_NOTE_ID + ") VALUES (?, ?)";
+
+    private static final String TAG_SQL = "SELECT " + NotePad.Tags._ID + ", "
+            + NotePad.Tags.COLUMN_NAME_NOTE_COUNT + " FROM " + NotePad.Tags.TABLE_NAME
+            + " WHERE " + NotePad.Tags.COLUMN_NAME_NAME + " = ?";
+
+    /**
+     * The where clause of the tags of the note given as its parameter.
+     */
+    static final String NOTE_TAGS_WHERE = NotePad.Tags._ID + " IN (SELECT " + COLUMN_TAG_ID
+            + " FROM " + TABLE_NAME + " WHERE " + COLUMN_NOTE_ID + " = ?)";
+
+    // This class cannot be instantiated
+    private NoteTags() {
+    }
+
+    /**
+     * Creates the tables, and a trigger that drops a note's tags when the note is deleted.
+     */
+    static void createTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + NotePad.Tags.TABLE_NAME + " ("
+                + NotePad.Tags._ID + " INTEGER PRIMARY KEY,"
+                + NotePad.Tags.COLUMN_NAME_NAME + " TEXT NOT NULL UNIQUE COLLATE NOCASE,"
+                + NotePad.Tags.COLUMN_NAME_NOTE_COUNT + " INTEGER NOT NULL DEFAULT 0"
+                + ");");
+        db.execSQL("CREATE TABLE " + TABLE_NAME + " ("
+                + COLUMN_TAG_ID + " INTEGER NOT NULL,"
+                + COLUMN_NOTE_ID + " INTEGER NOT NULL,"
+                + "PRIMARY KEY (" + COLUMN_TAG_ID + ", " + COLUMN_NOTE_ID + ")"
+                + ") WITHOUT ROWID;");
+        db.execSQL("CREATE INDEX " + TABLE_NAME + "_note ON " + TABLE_NAME
+                + " (" + COLUMN_NOTE_ID + ");");
+        db.execSQL("CREATE TRIGGER note_tags_note_delete AFTER DELETE ON "
+                + NotePad.Notes.TABLE_NAME + " BEGIN"
+                + " UPDATE " + NotePad.Tags.TABLE_NAME + " SET "
+                + NotePad.Tags.COLUMN_NAME_NOTE_COUNT + " = "
+                + NotePad.Tags.COLUMN_NAME_NOTE_COUNT + " - 1 WHERE " + NotePad.Tags._ID
+                + " IN (SELECT " + COLUMN_TAG_ID + " FROM " + TABLE_NAME + " WHERE "
+                + COLUMN_NOTE_ID + " = old." + NotePad.Notes._ID + ");"
+                + " DELETE FROM " + TABLE_NAME
+                + " WHERE " + COLUMN_NOTE_ID + " = old." + NotePad.Notes._ID
+                + "; END;");
+    }
+
+    /**
+     * Gives the note the tag of that name, creating the tag if there is none. Expects to be
+     * called inside a transaction.
+     *
+     * @return the ID of the tag.
+     */
+    static long tag(SQLiteDatabase db, long noteId, String name) {
+        db.execSQL("INSERT OR IGNORE INTO " + NotePad.Tags.TABLE_NAME + " ("
+                + NotePad.Tags.COLUMN_NAME_NAME + ") VALUES (?)", new Object[] { name });
+        long tagId = DatabaseUtils.longForQuery(db, TAG_ID_SQL, new String[] { name });
+        SQLiteStatement insert = db.compileStatement(INSERT_SQL);
+        try {
+            insert.bindLong(1, tagId);
+            insert.bindLong(2, noteId);
+            if (insert.executeUpdateDelete() > 0) {
+                count(db, tagId, 1);
+            }
+        } finally {
+            insert.close();
+        }
+        return tagId;
+    }
+
+    /**
+     * Takes the tag off the note. The tag stays, if only with no notes. Expects to be called
+     * inside a transaction.
+     *
+     * @return the number of tags taken off, 0 or 1.
+     */
+    static int untag(SQLiteDatabase db, long noteId, long tagId) {
+        int count = db.delete(TABLE_NAME, COLUMN_TAG_ID + " = ? AND " + COLUMN_NOTE_ID + " = ?",
+                new String[] { String.valueOf(tagId), String.valueOf(noteId) });
+        if (count > 0) {
+            count(db, tagId, -count);
+        }
+        return count;
+    }
+
+    /**
+     * Deletes the tag, taking it off all its notes. Expects to be called inside a transaction.
+     *
+     * @return the number of tags deleted, 0 or 1.
+     */
+    static int delete(SQLiteDatabase db, long tagId) {
+        String[] args = new String[] { String.valueOf(tagId) };
+        db.delete(TABLE_NAME, COLUMN_TAG_ID + " = ?", args);
+        return db.delete(NotePad.Tags.TABLE_NAME, NotePad.Tags._ID + " = ?", args);
+    }
+
+    /**
+     * Returns a where clause on the note ID that selects the notes with all, or any, of the
+     * tags of the given names, and adds its parameters to {@code args}. Names of no tag match
+     * nothing.
+     *
+     * <p>The tags are looked up first, with the length of their lists. Notes with all of them
+     * are found by walking the shortest list and looking each note up in the others; notes with
+     * any by reading every list, in order, and dropping the notes seen before.
+     */
+    static String filter(SQLiteDatabase db, List<String> names, boolean all, List<String> args) {
+        // The ID and the length of the list of each tag.
+        List<long[]> tags = new ArrayList<long[]>();
+        for (String name : names) {
+            Cursor c = db.rawQuery(TAG_SQL, new String[] { name });
+            try {
+                if (c.moveToFirst()) {
+                    tags.add(new long[] { c.getLong(0), c.getLong(1) });
+                } else if (all) {
+                    return "0";
+                }
+            } finally {
+                c.close();
+            }
+        }
+        if (tags.isEmpty()) {
+            return "0";
+        }
+        Collections.sort(tags, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[1] < b[1] ? -1 : a[1] > b[1] ? 1 : 0;
+            }
+        });
+        // Names that differ only in case name the same tag.
+        Set<Long> ids = new LinkedHashSet<Long>();
+        for (long[] tag : tags) {
+            ids.add(tag[0]);
+        }
+        StringBuilder where = new StringBuilder(NotePad.Notes._ID + " IN (");
+        if (all) {
+            where.append("SELECT p0.").append(COLUMN_NOTE_ID).append(" FROM ").append(TABLE_NAME)
+                    .append(" p0 WHERE p0.").append(COLUMN_TAG_ID).append(" = ?");
+            for (int i = 1; i < ids.size(); i++) {
+                String p = "p" + i;
+                where.append(" AND EXISTS (SELECT 1 FROM ").append(TABLE_NAME).append(' ')
+                        .append(p).append(" WHERE ").append(p).append('.').append(COLUMN_TAG_ID)
+                        .append(" = ? AND ").append(p).append('.').append(COLUMN_NOTE_ID)
+                        .append(" = p0.").append(COLUMN_NOTE_ID).append(')');
+            }
+        } else {
+            where.append("SELECT ").append(COLUMN_NOTE_ID).append(" FROM ").append(TABLE_NAME)
+                    .append(" WHERE ").append(COLUMN_TAG_ID).append(" IN (");
+            for (int i = 0; i < ids.size(); i++) {
+                where.append(i > 0 ? ", ?" : "?");
+            }
+            where.append(')');
+        }
+        for (Long id : ids) {
+            args.add(String.valueOf(id));
+        }
+        return where.append(')').toString();
+    }
+
+    private static void count(SQLiteDatabase db, long tagId, int change) {
+        db.execSQL("UPDATE " + NotePad.Tags.TABLE_NAME + " SET "
+                + NotePad.Tags.COLUMN_NAME_NOTE_COUNT + " = "
+                + NotePad.Tags.COLUMN_NAME_NOTE_COUNT + " + ? WHERE " + NotePad.Tags._ID
+                + " = ?", new Object[] { change, tagId });
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The trash: deleting a note only stamps it with the time it was deleted, which takes it out of
+ * every list and search, and leaves it to be restored. Notes are deleted for good once they
+ * have been in the trash for {@link #RETENTION_MILLIS}, by the maintenance job, or when the
+ * trash is emptied.
+ *
+ * <p>Both sides have a partial index, so the lists only ever read notes that aren't in the
+ * trash, and the purge only the notes that are.
+ */
+final class NoteTrash {
+
+    /**
+     * How long a deleted note stays in the trash.
+     */
+    static final long RETENTION_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+    /**
+     * The most notes deleted for good per transaction. Writers wait a batch at a time at most.
+     */
+    static final int PURGE_BATCH_SIZE = 100;
+
+    /**
+     * Selects the notes that aren't in the trash. The partial indexes only serve a query that
+     * has it word for word.
+     */
+    static final String NOT_IN_TRASH = NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NULL";
+
+    /**
+     * Selects the notes in the trash.
+     */
+    static final String IN_TRASH = NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NOT NULL";
+
+    /**
+     * Moves a note to the trash, given the time and the note's id, unless it is there already.
+     */
+    static final String TRASH_NOTE_SQL = "UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+            + NotePad.Notes.COLUMN_NAME_DELETED_AT + " = ? WHERE " + NotePad.Notes._ID
+            + " = ? AND " + NOT_IN_TRASH;
+
+    // The index of the notes the lists read, newest first, when they don't pick a category.
+    private static final String MODIFIED_INDEX = "notes_modified";
+
+    // The index of the notes in the trash, by the time they were deleted.
+    private static final String TRASH_INDEX = "notes_trash";
+
+    // This class cannot be instantiated
+    private NoteTrash() {
+    }
+
+    /**
+     * Creates the indexes of both sides of the trash. The column must exist.
+     */
+    static void createIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + MODIFIED_INDEX + " ON " + NotePad.Notes.TABLE_NAME + " ("
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ") WHERE " + NOT_IN_TRASH + ";");
+        db.execSQL("CREATE INDEX " + TRASH_INDEX + " ON " + NotePad.Notes.TABLE_NAME + " ("
+                + NotePad.Notes.COLUMN_NAME_DELETED_AT + ") WHERE " + IN_TRASH + ";");
+    }
+
+    /**
+     * Deletes for good the notes that have been in the trash for longer than
+     * {@link #RETENTION_MILLIS}, see {@link #purge}.
+     */
+    static int purgeExpired(SQLiteDatabase db, NoteBodyStore bodyStore, long now) {
+        return purge(db, bodyStore, NotePad.Notes.COLUMN_NAME_DELETED_AT + " <= ?",
+                new String[] { String.valueOf(now - RETENTION_MILLIS) });
+    }
+
+    /**
+     * Deletes for good the notes in the trash that match the selection, oldest first, in
+     * batches of {@link #PURGE_BATCH_SIZE} that each have a transaction of their own. The files
+     * of their bodies are deleted once the batch is committed. Blocks until done, so must not
+     * be called on the main thread.
+     *
+     * @return the number of notes deleted.
+     */
+    static int purge(SQLiteDatabase db, NoteBodyStore bodyStore, String where,
+            String[] whereArgs) {
+        String selection = TextUtils.isEmpty(where) ? IN_TRASH
+                : IN_TRASH + " AND (" + where + ")";
+        String[] columns = new String[] { NotePad.Notes._ID, NoteBodyStore.COLUMN_NAME_FILE };
+        int purged = 0;
+        while (true) {
+            // Selected in the transaction, so a note restored meanwhile can't lose its body.
+            List<String> files = new ArrayList<String>();
+            int rows;
+            db.beginTransaction();
+            try {
+                StringBuilder ids = new StringBuilder();
+                Cursor c = db.query(NotePad.Notes.TABLE_NAME, columns, selection, whereArgs,
+                        null, null, NotePad.Notes.COLUMN_NAME_DELETED_AT,
+                        String.valueOf(PURGE_BATCH_SIZE));
+                try {
+                    rows = c.getCount();
+                    while (c.moveToNext()) {
+                        ids.append(ids.length() > 0 ? "," : "").append(c.getLong(0));
+                        if (!c.isNull(1)) {
+                            files.add(c.getString(1));
+                        }
+                    }
+                } finally {
+                    c.close();
+                }
+                if (rows > 0) {
+                    // The triggers drop the note's revisions and trigrams along with it.
+                    db.delete(NotePad.Notes.TABLE_NAME,
+                            NotePad.Notes._ID + " IN (" + ids + ")", null);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            for (String file : files) {
+                bodyStore.delete(file);
+            }
+            purged += rows;
+            if (rows < PURGE_BATCH_SIZE) {
+                return purged;
+            }
+        }
+    }
+}
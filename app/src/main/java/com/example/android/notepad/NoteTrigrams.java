@@ -0,0 +1,424 @@
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A trigram index over note titles and the start of note bodies, for typo-tolerant search.
+ *
+ * <p>Text is lowercased, everything but letters and digits becomes a word break, and each word
+ * is padded with a space on both sides; every run of three characters of a padded word is a
+ * gram. The index holds one row per distinct gram of a note. A search first picks the notes
+ * it looks in that share the most grams with the query, at most {@link #MAX_CANDIDATES} of
+ * them, and then ranks only those by {@link #distance(String, String, int)}, so its cost
+ * doesn't grow with the length of the notes.
+ *
+ * <p>The provider reindexes a note whenever its title or body is written, in the same
+ * transaction; a trigger removes the grams of deleted notes. Each indexed note also has a row
+ * with the empty gram, so notes that were never indexed can be found by
+ * {@link #backfill(SQLiteDatabase)}.
+ *
+ * <p>For an encrypted note only the title is indexed, since grams of the body would give away
+ * much of it; see {@link NoteBodyCodec#FLAG_ENCRYPT}. An encrypted title is indexed by the keyed
+ * hashes of its grams, see {@link NoteCipher#blindIndex(String)}, which a search looks up by
+ * hashing the query's grams the same way. The index then shows which encrypted titles share
+ * grams, but not what the grams are.
+ */
+final class NoteTrigrams {
+
+    static final String TABLE_NAME = "note_trigrams";
+
+    /**
+     * The number of chars of a body that are indexed, the same as is kept in the note column
+     * for a body stored in a file.
+     */
+    static final int INDEXED_LENGTH = NoteBodyStore.HEAD_LENGTH;
+
+    /**
+     * The shortest query, in chars, that is searched. Shorter ones share too few grams with
+     * anything for the candidates to mean much.
+     */
+    static final int MIN_QUERY_LENGTH = 3;
+
+    /**
+     * The most notes ranked by edit distance per search.
+     */
+    static final int MAX_CANDIDATES = 256;
+
+    private static final String COLUMN_GRAM = "gram";
+    private static final String COLUMN_NOTE_ID = "note_id";
+
+    // The gram of the row that marks a note as indexed.
+    private static final String MARKER = "";
+
+    /**
+     * The statements that {@link #reindex(SQLiteDatabase, long[], SQLiteStatement,
+     * SQLiteStatement)} takes compiled.
+     */
+    static final String DELETE_SQL = "DELETE FROM " + TABLE_NAME
+            + " WHERE " + COLUMN_NOTE_ID + " = ?";
+    static final String INSERT_SQL = "INSERT OR IGNORE INTO " + TABLE_NAME
+            + " (" + COLUMN_GRAM + ", " + COLUMN_NOTE_ID + ") VALUES (?, ?)";
+
+    // Notes indexed per transaction by backfill().
+    private static final int BACKFILL_BATCH_SIZE = 100;
+
+    private static final String[] NOTE_COLUMNS = new String[] {
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NoteBodyCodec.COLUMN_NAME_FORMAT
+    };
+
+    // This class cannot be instantiated
+    private NoteTrigrams() {
+    }
+
+    /**
+     * Creates the index table, and a trigger that drops a note's grams when the note is deleted.
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_NAME + " ("
+                + COLUMN_GRAM + " TEXT NOT NULL,"
+                + COLUMN_NOTE_ID + " INTEGER NOT NULL,"
+                + "PRIMARY KEY (" + COLUMN_GRAM + ", " + COLUMN_NOTE_ID + ")"
+                + ") WITHOUT ROWID;");
+        db.execSQL("CREATE INDEX " + TABLE_NAME + "_note ON " + TABLE_NAME
+                + " (" + COLUMN_NOTE_ID + ");");
+        db.execSQL("CREATE TRIGGER trigrams_note_delete AFTER DELETE ON "
+                + NotePad.Notes.TABLE_NAME + " BEGIN"
+                + " DELETE FROM " + TABLE_NAME
+                + " WHERE " + COLUMN_NOTE_ID + " = old." + NotePad.Notes._ID
+                + "; END;");
+    }
+
+    /**
+     * Replaces the grams of the given notes with those of their stored title and body. Expects
+     * to be called inside a transaction.
+     */
+    static void reindex(SQLiteDatabase db, long[] noteIds) {
+        SQLiteStatement delete = db.compileStatement(DELETE_SQL);
+        SQLiteStatement insert = db.compileStatement(INSERT_SQL);
+        try {
+            reindex(db, noteIds, delete, insert);
+        } finally {
+            delete.close();
+            insert.close();
+        }
+    }
+
+    /**
+     * Reindexes the given notes like {@link #reindex(SQLiteDatabase, long[])}, with statements
+     * compiled from {@link #DELETE_SQL} and {@link #INSERT_SQL} by the caller, who keeps them
+     * for the next call. Their bindings are cleared when done.
+     */
+    static void reindex(SQLiteDatabase db, long[] noteIds, SQLiteStatement delete,
+            SQLiteStatement insert) {
+        try {
+            for (long noteId : noteIds) {
+                delete.bindLong(1, noteId);
+                delete.executeUpdateDelete();
+
+                Cursor c = db.query(NotePad.Notes.TABLE_NAME, NOTE_COLUMNS,
+                        NotePad.Notes._ID + " = ?", new String[] { String.valueOf(noteId) },
+                        null, null, null);
+                Set<String> grams;
+                try {
+                    if (!c.moveToFirst()) {
+                        continue;
+                    }
+                    grams = grams(NoteBodyCodec.decodeTitle(c, 0));
+                    if (NoteBodyCodec.isSealedTitle(c, 0)) {
+                        grams = keyed(grams);
+                    }
+                    int format = c.getInt(2);
+                    if ((format & NoteBodyCodec.FLAG_ENCRYPT) == 0) {
+                        grams.addAll(grams(indexedText(NoteBodyCodec.decode(c, 1, format))));
+                    }
+                } finally {
+                    c.close();
+                }
+
+                grams.add(MARKER);
+                insert.bindLong(2, noteId);
+                for (String gram : grams) {
+                    insert.bindString(1, gram);
+                    insert.executeInsert();
+                }
+            }
+        } finally {
+            delete.clearBindings();
+            insert.clearBindings();
+        }
+    }
+
+    /**
+     * Indexes the notes that aren't indexed yet, a batch at a time.
+     *
+     * @return the number of notes indexed.
+     */
+    static int backfill(SQLiteDatabase db) {
+        String selection = NotePad.Notes._ID + " > ? AND " + NotePad.Notes._ID + " NOT IN"
+                + " (SELECT " + COLUMN_NOTE_ID + " FROM " + TABLE_NAME
+                + " WHERE " + COLUMN_GRAM + " = '" + MARKER + "')";
+        long lastId = 0;
+        int indexed = 0;
+        while (true) {
+            long[] ids;
+            Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] { NotePad.Notes._ID },
+                    selection, new String[] { String.valueOf(lastId) }, null, null,
+                    NotePad.Notes._ID + " ASC", String.valueOf(BACKFILL_BATCH_SIZE));
+            try {
+                ids = new long[c.getCount()];
+                for (int i = 0; c.moveToNext(); i++) {
+                    ids[i] = c.getLong(0);
+                }
+            } finally {
+                c.close();
+            }
+            if (ids.length == 0) {
+                return indexed;
+            }
+
+            db.beginTransaction();
+            try {
+                reindex(db, ids);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            indexed += ids.length;
+            lastId = ids[ids.length - 1];
+        }
+    }
+
+    /**
+     * Returns the ids of the notes outside the trash that pass the selection and share enough
+     * grams with the query to possibly match it within {@link #maxEdits(int)} edits, the ones
+     * sharing the most first, and at most {@link #MAX_CANDIDATES} of them. The selection may
+     * name any column of the notes table.
+     *
+     * @param sealedTitles whether to look for encrypted titles too, by their keyed grams.
+     */
+    static long[] candidates(SQLiteDatabase db, String query, String selection,
+            String[] selectionArgs, boolean sealedTitles) {
+        Set<String> grams = grams(query);
+        if (grams.isEmpty()) {
+            return new long[0];
+        }
+
+        // An edit changes at most three grams, and a match inside a word misses the two grams
+        // padded at the ends of the query. A note is indexed by plain or by keyed grams, never
+        // both, so looking for both forms doesn't change how many it shares.
+        int minShared = Math.max(1, grams.size() - 3 * maxEdits(normalize(query).length()) - 2);
+        List<String> args = new ArrayList<String>(grams);
+        if (sealedTitles) {
+            args.addAll(keyed(grams));
+        }
+        int gramCount = args.size();
+        StringBuilder sql = new StringBuilder("SELECT " + COLUMN_NOTE_ID + " FROM " + TABLE_NAME
+                + " JOIN " + NotePad.Notes.TABLE_NAME + " ON " + NotePad.Notes.TABLE_NAME + "."
+                + NotePad.Notes._ID + " = " + COLUMN_NOTE_ID
+                + " WHERE " + COLUMN_GRAM + " IN (");
+        for (int i = 0; i < gramCount; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        // Notes in the trash, and those the selection leaves out, are dropped before the limit
+        // so that they don't take the places of notes that are searched.
+        sql.append(") AND " + NoteTrash.NOT_IN_TRASH);
+        if (!TextUtils.isEmpty(selection)) {
+            sql.append(" AND (").append(selection).append(')');
+            if (selectionArgs != null) {
+                args.addAll(Arrays.asList(selectionArgs));
+            }
+        }
+        sql.append(" GROUP BY " + COLUMN_NOTE_ID + " HAVING COUNT(*) >= " + minShared
+                + " ORDER BY COUNT(*) DESC LIMIT " + MAX_CANDIDATES);
+
+        Cursor c = db.rawQuery(sql.toString(), args.toArray(new String[args.size()]));
+        try {
+            long[] ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Returns the ids of the notes outside the trash whose encrypted titles contain the term,
+     * ignoring case, which SQL can't tell from the stored ciphertext. Titles that have every
+     * gram inside the term's words are the only ones decrypted and looked into; a term too
+     * short to have such grams has every encrypted title looked into.
+     */
+    static long[] sealedTitlesContaining(SQLiteDatabase db, String term) {
+        // The grams padded at the ends of a word are left out: a title can hold the term in
+        // the middle of a longer word.
+        Set<String> grams = new LinkedHashSet<String>();
+        for (String word : normalize(term).split(" ")) {
+            for (int i = 0; i + 3 <= word.length(); i++) {
+                grams.add(word.substring(i, i + 3));
+            }
+        }
+        StringBuilder sql = new StringBuilder("SELECT " + NotePad.Notes._ID + ", "
+                + NotePad.Notes.COLUMN_NAME_TITLE + " FROM " + NotePad.Notes.TABLE_NAME
+                + " WHERE " + NoteBodyCodec.SEALED_TITLE + " AND " + NoteTrash.NOT_IN_TRASH);
+        List<String> args = new ArrayList<String>();
+        if (!grams.isEmpty()) {
+            args.addAll(keyed(grams));
+            sql.append(" AND " + NotePad.Notes._ID + " IN (SELECT " + COLUMN_NOTE_ID + " FROM "
+                    + TABLE_NAME + " WHERE " + COLUMN_GRAM + " IN (");
+            for (int i = 0; i < args.size(); i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            sql.append(") GROUP BY " + COLUMN_NOTE_ID + " HAVING COUNT(*) = " + args.size()
+                    + ")");
+        }
+
+        String lowerTerm = term.toLowerCase(Locale.ROOT);
+        Cursor c = db.rawQuery(sql.toString(), args.toArray(new String[args.size()]));
+        try {
+            long[] ids = new long[c.getCount()];
+            int count = 0;
+            while (c.moveToNext()) {
+                if (NoteBodyCodec.decodeTitle(c, 1).toLowerCase(Locale.ROOT)
+                        .contains(lowerTerm)) {
+                    ids[count++] = c.getLong(0);
+                }
+            }
+            return Arrays.copyOf(ids, count);
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Returns the number of edits that a match of a query of the given length may be off by.
+     */
+    static int maxEdits(int queryLength) {
+        if (queryLength <= 4) {
+            return 1;
+        }
+        return queryLength <= 8 ? 2 : 3;
+    }
+
+    /**
+     * Returns the part of a body that is indexed and ranked.
+     */
+    static String indexedText(String text) {
+        if (text == null || text.length() <= INDEXED_LENGTH) {
+            return text;
+        }
+        return NoteBodyStore.head(text);
+    }
+
+    /**
+     * Returns the fewest insertions, deletions, substitutions and transpositions of adjacent
+     * chars that turn the query into some part of the text, both normalized, or
+     * {@code Integer.MAX_VALUE} if that is more than {@code maxEdits}.
+     */
+    static int distance(String query, String text, int maxEdits) {
+        String p = normalize(query);
+        String t = normalize(text);
+        int m = p.length();
+        if (m == 0) {
+            return 0;
+        }
+
+        // Column j holds, for each prefix of the query, the fewest edits that turn it into a
+        // part of the text ending at j. A part may start anywhere, so row 0 is always 0.
+        int[] before = new int[m + 1];
+        int[] previous = new int[m + 1];
+        int[] current = new int[m + 1];
+        for (int i = 0; i <= m; i++) {
+            previous[i] = i;
+        }
+        int best = previous[m];
+        for (int j = 1; j <= t.length() && best > 0; j++) {
+            char tc = t.charAt(j - 1);
+            current[0] = 0;
+            for (int i = 1; i <= m; i++) {
+                char pc = p.charAt(i - 1);
+                int d = Math.min(previous[i] + 1, current[i - 1] + 1);
+                d = Math.min(d, previous[i - 1] + (pc == tc ? 0 : 1));
+                if (i > 1 && j > 1 && pc == t.charAt(j - 2) && p.charAt(i - 2) == tc) {
+                    d = Math.min(d, before[i - 2] + 1);
+                }
+                current[i] = d;
+            }
+            best = Math.min(best, current[m]);
+
+            int[] recycled = before;
+            before = previous;
+            previous = current;
+            current = recycled;
+        }
+        return best <= maxEdits ? best : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns the grams of the text.
+     */
+    static Set<String> grams(String text) {
+        Set<String> grams = new LinkedHashSet<String>();
+        String normalized = normalize(text);
+        if (normalized.isEmpty()) {
+            return grams;
+        }
+        for (String word : normalized.split(" ")) {
+            String padded = " " + word + " ";
+            for (int i = 0; i + 3 <= padded.length(); i++) {
+                grams.add(padded.substring(i, i + 3));
+            }
+        }
+        return grams;
+    }
+
+    /**
+     * Returns the keyed hashes of the grams, in the same order.
+     */
+    static Set<String> keyed(Set<String> grams) {
+        NoteCipher cipher = NoteCipher.get();
+        Set<String> keyed = new LinkedHashSet<String>();
+        for (String gram : grams) {
+            keyed.add(cipher.blindIndex(gram));
+        }
+        return keyed;
+    }
+
+    /**
+     * Lowercases the text and turns every run of chars other than letters and digits into a
+     * single space, without leading or trailing spaces.
+     */
+    static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        String lower = text.toLowerCase(Locale.ROOT);
+        StringBuilder normalized = new StringBuilder(lower.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < lower.length(); i++) {
+            char c = lower.charAt(i);
+            if (Character.isLetterOrDigit(c) || Character.isSurrogate(c)) {
+                if (pendingSpace) {
+                    normalized.append(' ');
+                    pendingSpace = false;
+                }
+                normalized.append(c);
+            } else {
+                pendingSpace = normalized.length() > 0;
+            }
+        }
+        return normalized.toString();
+    }
+}
@@ -1,27 +1,39 @@
 package com.example.android.notepad;
 
-import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.ContentUris;
+import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Editable;
+import android.text.SpannableString;
+import android.text.Spanned;
 import android.text.TextWatcher;
+import android.text.style.BackgroundColorSpan;
 import android.view.ContextMenu;
+import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.WindowManager;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.BaseExpandableListAdapter;
 import android.widget.EditText;
 import android.widget.ExpandableListView;
 import android.widget.LinearLayout;
+import android.widget.ListView;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
@@ -29,13 +41,19 @@ import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
 import androidx.fragment.app.Fragment;
 
+import com.google.android.material.snackbar.Snackbar;
+
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 public class NotesFragment extends Fragment implements ExpandableListView.OnChildClickListener {
 
@@ -47,22 +65,92 @@ public class NotesFragment extends Fragment implements ExpandableListView.OnChil
     private static final String[] NOTE_PROJECTION = new String[]{
             NotePad.Notes._ID,
             NotePad.Notes.COLUMN_NAME_TITLE,
-            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_SNIPPET
     };
 
     private static final String[] SEARCH_NOTE_PROJECTION = new String[]{
             NotePad.Notes._ID,
             NotePad.Notes.COLUMN_NAME_TITLE,
             NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
-            NotePad.Notes.COLUMN_NAME_CATEGORY
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+            NotePad.Notes.COLUMN_NAME_SNIPPET,
+            NotePad.Notes.COLUMN_NAME_TITLE_MATCH_START,
+            NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET,
+            NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET_START
+    };
+
+    private static final String[] FUZZY_SEARCH_NOTE_PROJECTION = new String[]{
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+            NotePad.Notes.COLUMN_NAME_SNIPPET
     };
 
     private ExpandableListView mExpandableListView;
     private NotesExpandableListAdapter mAdapter;
     private EditText mSearchEditText;
 
+    // Set when the notes changed while the fragment was not resumed, so onResume() reloads once.
+    private boolean mDirty = true;
+
+    private final ContentObserver mNotesObserver = new ContentObserver(new Handler(Looper.getMainLooper())) {
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            // Queued ahead of the refresh, so the refresh can't be served a stale search.
+            mAdapter.invalidateSearches(uri);
+            if (isResumed()) {
+                mAdapter.refresh();
+            } else {
+                mDirty = true;
+            }
+        }
+    };
+
+    // The notes list loaded by preload(), waiting to be picked up by the first refresh.
+    private static volatile Future<List<Group>> sPreloaded;
+
     private static final int REQUEST_CODE_EDIT_NOTE = 1;
 
+    /**
+     * Opens the database and loads the unfiltered notes list on the background thread, so the
+     * first refresh after launch finds it already loaded. Called from
+     * {@link NotePadApplication#onCreate()}.
+     */
+    static void preload(Context context) {
+        final Context appContext = context.getApplicationContext();
+        sPreloaded = AppExecutors.diskIO().submit(new Callable<List<Group>>() {
+            @Override
+            public List<Group> call() {
+                return NotesExpandableListAdapter.loadGroups(appContext, null, null);
+            }
+        });
+    }
+
+    /**
+     * Returns the preloaded notes list if there is one and it matches the requested filter.
+     * The preload is only ever used once. Must be called on the disk I/O thread, where the
+     * preload has already finished because that thread runs tasks in order.
+     */
+    private static List<Group> takePreloaded(String query, String categoryFilter) {
+        Future<List<Group>> preloaded = sPreloaded;
+        sPreloaded = null;
+        if (preloaded == null || (query != null && query.length() > 0) || categoryFilter != null) {
+            return null;
+        }
+        try {
+            return preloaded.get();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     @Nullable
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater, @Nullable ViewGroup container, @Nullable Bundle savedInstanceState) {
@@ -70,6 +158,12 @@ public class NotesFragment extends Fragment implements ExpandableListView.OnChil
 
         mExpandableListView = view.findViewById(R.id.expandable_list);
         mAdapter = new NotesExpandableListAdapter(getActivity());
+        mAdapter.setOnLoadedListener(new Runnable() {
+            @Override
+            public void run() {
+                StartupTrace.reportFullList(getActivity(), mAdapter.getNoteCount());
+            }
+        });
         mExpandableListView.setAdapter(mAdapter);
         mExpandableListView.setOnChildClickListener(this);
 
@@ -90,7 +184,10 @@ public class NotesFragment extends Fragment implements ExpandableListView.OnChil
         });
 
         registerForContextMenu(mExpandableListView);
-        mAdapter.refresh();
+
+        // The list is loaded in onResume(), and reloaded whenever the notes change.
+        getActivity().getContentResolver().registerContentObserver(
+                NotePad.Notes.CONTENT_URI, true, mNotesObserver);
 
         setHasOptionsMenu(true);
 
@@ -100,11 +197,19 @@ public class NotesFragment extends Fragment implements ExpandableListView.OnChil
     @Override
     public void onResume() {
         super.onResume();
-        if (mAdapter != null) {
+        if (mDirty) {
+            mDirty = false;
             mAdapter.refresh();
         }
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        getActivity().getContentResolver().unregisterContentObserver(mNotesObserver);
+        mDirty = true;
+    }
+
     @Override
     public void onCreateOptionsMenu(@NonNull Menu menu, @NonNull MenuInflater inflater) {
         inflater.inflate(R.menu.list_options_menu, menu);
@@ -119,6 +224,9 @@ public class NotesFragment extends Fragment implements ExpandableListView.OnChil
         if (item.getItemId() == R.id.menu_filter_by_category) {
             showCategoryFilterDialog();
             return true;
+        } else if (item.getItemId() == R.id.menu_quick_open) {
+            showQuickSwitcher();
+            return true;
         }
         return super.onOptionsItemSelected(item);
     }
@@ -156,27 +264,124 @@ public class NotesFragment extends Fragment implements ExpandableListView.OnChil
             startActivityForResult(intent, REQUEST_CODE_EDIT_NOTE);
             return true;
         } else if (id == R.id.context_delete) {
-            getActivity().getContentResolver().delete(noteUri, null, null);
-            mAdapter.refresh();
+            deleteNote(noteId);
             return true;
         }
         return super.onContextItemSelected(item);
     }
 
+    /**
+     * Moves the note to the trash, off the main thread, and offers to undo it. The observer
+     * reloads the list once the provider reports the change.
+     */
+    private void deleteNote(final long noteId) {
+        final ContentResolver resolver = getActivity().getContentResolver();
+        AppExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                resolver.delete(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                        noteId), null, null);
+            }
+        });
+        Snackbar.make(mExpandableListView, R.string.note_deleted, Snackbar.LENGTH_LONG)
+                .setAction(R.string.undo, new View.OnClickListener() {
+                    @Override
+                    public void onClick(View v) {
+                        AppExecutors.diskIO().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                ContentValues values = new ContentValues();
+                                values.putNull(NotePad.Notes.COLUMN_NAME_DELETED_AT);
+                                resolver.update(NotePad.Notes.getTrashUri(noteId), values,
+                                        null, null);
+                            }
+                        });
+                    }
+                })
+                .show();
+    }
+
     @Override
     public boolean onChildClick(ExpandableListView parent, View v, int groupPosition, int childPosition, long id) {
+        openNote(id);
+        return true;
+    }
+
+    /**
+     * Shows a dialog that lists the notes whose titles start with what is typed, and opens the
+     * one picked. Lookups go to the in-memory title index, so the list follows every keystroke.
+     */
+    private void showQuickSwitcher() {
+        final TitleIndex index = TitleIndex.get(getActivity());
+        View view = LayoutInflater.from(getActivity()).inflate(R.layout.quick_switcher, null);
+        final EditText input = view.findViewById(R.id.quick_switcher_input);
+        ListView list = view.findViewById(R.id.quick_switcher_list);
+        final ArrayAdapter<TitleIndex.Match> matches = new ArrayAdapter<>(getActivity(),
+                android.R.layout.simple_list_item_1);
+        list.setAdapter(matches);
+
+        // Also runs when the index finishes loading, or changes while the dialog is showing.
+        final Runnable update = new Runnable() {
+            @Override
+            public void run() {
+                matches.clear();
+                matches.addAll(index.lookup(input.getText().toString(), TitleIndex.MAX_MATCHES));
+            }
+        };
+        index.addListener(update);
+        input.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                update.run();
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+            }
+        });
+        update.run();
+
+        final AlertDialog dialog = new AlertDialog.Builder(getActivity())
+                .setTitle(R.string.menu_quick_open)
+                .setView(view)
+                .create();
+        dialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
+            @Override
+            public void onDismiss(DialogInterface d) {
+                index.removeListener(update);
+            }
+        });
+        list.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View v, int position, long id) {
+                openNote(matches.getItem(position).id);
+                dialog.dismiss();
+            }
+        });
+        input.setOnEditorActionListener(new TextView.OnEditorActionListener() {
+            @Override
+            public boolean onEditorAction(TextView v, int actionId, KeyEvent event) {
+                if (matches.isEmpty()) {
+                    return false;
+                }
+                openNote(matches.getItem(0).id);
+                dialog.dismiss();
+                return true;
+            }
+        });
+        dialog.getWindow().setSoftInputMode(WindowManager.LayoutParams.SOFT_INPUT_STATE_VISIBLE);
+        dialog.show();
+    }
+
+    private void openNote(long id) {
         Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id);
         Intent intent = new Intent(Intent.ACTION_EDIT, noteUri);
         intent.setClassName(getActivity(), "com.example.android.notepad.NoteEditor");
         startActivityForResult(intent, REQUEST_CODE_EDIT_NOTE);
-        return true;
-    }
-
-    @Override
-    public void onActivityResult(int requestCode, int resultCode, @Nullable Intent data) {
-        if (requestCode == REQUEST_CODE_EDIT_NOTE && resultCode == Activity.RESULT_OK) {
-            mAdapter.refresh();
-        }
     }
 
     private void showCategoryFilterDialog() {
@@ -210,47 +415,144 @@ public class NotesFragment extends Fragment implements ExpandableListView.OnChil
         builder.show();
     }
 
-    private class NotesExpandableListAdapter extends BaseExpandableListAdapter {
+    static class NotesExpandableListAdapter extends BaseExpandableListAdapter {
 
         private Context mContext;
         private List<Group> mGroups;
         private String mQuery;
         private String mCategoryFilter;
+        private Runnable mOnLoadedListener;
+
+        // Incremented by every refresh, so that a slow load can't replace the result of a newer one
+        private volatile int mGeneration;
+
+        // Searches run since the list was created. Only used on AppExecutors.diskIO().
+        private final SearchCache mSearchCache = new SearchCache();
 
         public NotesExpandableListAdapter(Context context) {
             mContext = context;
             mGroups = new ArrayList<>();
         }
 
+        /**
+         * Sets a callback that runs on the main thread every time a refresh has been applied.
+         */
+        public void setOnLoadedListener(Runnable listener) {
+            mOnLoadedListener = listener;
+        }
+
+        /**
+         * Reloads the list on the background thread and applies the result on the main thread.
+         */
         public void refresh() {
-            mGroups.clear();
+            final int generation = ++mGeneration;
+            final String query = mQuery;
+            final String categoryFilter = mCategoryFilter;
+            final Context context = mContext.getApplicationContext();
+            AppExecutors.diskIO().execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean search = query != null && query.length() > 0;
+                    List<Group> groups = search ? mSearchCache.get(query, categoryFilter)
+                            : takePreloaded(query, categoryFilter);
+                    if (groups != null) {
+                        apply(generation, groups);
+                        return;
+                    }
+                    groups = loadGroups(context, query, categoryFilter);
+                    apply(generation, groups);
+
+                    // A search then adds the notes that only match with a typo or two. The exact
+                    // matches are showing while those are ranked.
+                    if (search && NoteQuery.parse(query).text().length()
+                            >= NoteTrigrams.MIN_QUERY_LENGTH) {
+                        if (generation != mGeneration) {
+                            // Superseded; the exact matches alone aren't worth caching.
+                            return;
+                        }
+                        groups = addFuzzyMatches(context, groups, query, categoryFilter);
+                        apply(generation, groups);
+                    }
+                    if (search) {
+                        mSearchCache.put(query, categoryFilter, groups);
+                    }
+                }
+            });
+        }
 
-            // When searching, get all matching notes first, then group them
-            if (mQuery != null && mQuery.length() > 0) {
-                // Build selection criteria for all notes with search filter, excluding todo items
-                String todoFilter = " AND " + NotePad.Notes.COLUMN_NAME_CATEGORY + " NOT IN ('todo_pending', 'todo_completed')";
-                String selection = "(" + NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ? OR " + NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?)" + todoFilter;
-                String[] selectionArgs = new String[]{"%" + mQuery + "%", "%" + mQuery + "%"};
-
-                // Apply category filter if present
-                if (mCategoryFilter != null && !"All".equals(mCategoryFilter)) {
-                    if ("未分组".equals(mCategoryFilter)) {
-                        // For uncategorized filter, match null or empty categories
-                        selection = "(" + selection + ") AND (" + NotePad.Notes.COLUMN_NAME_CATEGORY + " IS NULL OR " + NotePad.Notes.COLUMN_NAME_CATEGORY + " = '')";
-                    } else {
-                        // For regular category filter, match exact category
-                        selection = "(" + selection + ") AND " + NotePad.Notes.COLUMN_NAME_CATEGORY + " = ?";
-                        selectionArgs = new String[]{"%" + mQuery + "%", "%" + mQuery + "%", mCategoryFilter};
+        /**
+         * Drops the cached searches that a change to the notes could have made stale, before any
+         * refresh that is started after this call. {@code uri} is the URI the change was
+         * notified for, or null if it isn't known.
+         */
+        public void invalidateSearches(final Uri uri) {
+            final ContentResolver resolver = mContext.getContentResolver();
+            AppExecutors.diskIO().execute(new Runnable() {
+                @Override
+                public void run() {
+                    mSearchCache.invalidate(resolver, uri);
+                }
+            });
+        }
+
+        /**
+         * Returns the cache of searches run in this list, for its hit and miss counts.
+         */
+        SearchCache getSearchCache() {
+            return mSearchCache;
+        }
+
+        /**
+         * Shows the result of a load on the main thread, unless a newer refresh has started.
+         */
+        private void apply(final int generation, final List<Group> result) {
+            AppExecutors.runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation == mGeneration) {
+                        mGroups = result;
+                        notifyDataSetChanged();
+                        if (mOnLoadedListener != null) {
+                            mOnLoadedListener.run();
+                        }
                     }
                 }
+            });
+        }
 
-                Cursor noteCursor = mContext.getContentResolver().query(
-                        NotePad.Notes.CONTENT_URI,
+        /**
+         * Returns the number of notes currently in the list.
+         */
+        public int getNoteCount() {
+            int count = 0;
+            for (Group group : mGroups) {
+                count += group.notes.size();
+            }
+            return count;
+        }
+
+        /**
+         * Queries the provider for the notes list, grouped by category. This does the actual
+         * work of a refresh and runs on the calling thread.
+         */
+        static List<Group> loadGroups(Context context, String query, String categoryFilter) {
+            List<Group> groups = new ArrayList<>();
+            ContentResolver resolver = context.getContentResolver();
+
+            // When searching, get all matching notes first, then group them
+            if (query != null && query.length() > 0) {
+                Cursor noteCursor = resolver.query(
+                        NotePad.Notes.getSearchUri(query),
                         SEARCH_NOTE_PROJECTION,
-                        selection,
-                        selectionArgs,
+                        searchSelection(categoryFilter),
+                        searchSelectionArgs(categoryFilter),
                         NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC");
 
+                // Matches of the first word or phrase are highlighted
+                String highlighted = NoteQuery.parse(query).firstTerm();
+                int matchLength = highlighted != null
+                        ? highlighted.codePointCount(0, highlighted.length()) : 0;
+
                 // Group notes by category
                 HashMap<String, List<Note>> tempNotes = new HashMap<>();
                 if (noteCursor != null) {
@@ -259,16 +561,19 @@ public class NotesFragment extends Fragment implements ExpandableListView.OnChil
                         String title = noteCursor.getString(1);
                         long modDate = noteCursor.getLong(2);
                         String category = noteCursor.getString(3); // category column
+                        String snippet = noteCursor.getString(4);
 
-                        String displayCategory = category;
-                        if (category == null || category.isEmpty()) {
-                            displayCategory = "未分组";
-                        }
+                        String displayCategory = displayCategory(category);
 
                         if (!tempNotes.containsKey(displayCategory)) {
                             tempNotes.put(displayCategory, new ArrayList<Note>());
                         }
-                        tempNotes.get(displayCategory).add(new Note(id, title, modDate));
+                        Note note = new Note(id, title, modDate, snippet);
+                        note.titleMatch = matchRange(title, noteCursor.getInt(5), matchLength);
+                        note.matchSnippet = noteCursor.getString(6);
+                        note.matchSnippetMatch = matchRange(note.matchSnippet,
+                                noteCursor.getInt(7), matchLength);
+                        tempNotes.get(displayCategory).add(note);
                     }
                     noteCursor.close();
                 }
@@ -277,7 +582,7 @@ public class NotesFragment extends Fragment implements ExpandableListView.OnChil
                 for (String category : tempNotes.keySet()) {
                     List<Note> notes = tempNotes.get(category);
                     if (notes != null && !notes.isEmpty()) {
-                        mGroups.add(new Group(category, notes));
+                        groups.add(new Group(category, notes));
                     }
                 }
             } else {
@@ -285,12 +590,12 @@ public class NotesFragment extends Fragment implements ExpandableListView.OnChil
                 String categorySelection = null;
                 String[] categorySelectionArgs = null;
 
-                if (mCategoryFilter != null && !"All".equals(mCategoryFilter)) {
+                if (categoryFilter != null && !"All".equals(categoryFilter)) {
                     categorySelection = NotePad.Notes.COLUMN_NAME_CATEGORY + " = ?";
-                    categorySelectionArgs = new String[]{mCategoryFilter};
+                    categorySelectionArgs = new String[]{categoryFilter};
                 }
 
-                Cursor categoryCursor = mContext.getContentResolver().query(
+                Cursor categoryCursor = resolver.query(
                         NotePad.Notes.CATEGORIES_URI,
                         CATEGORY_PROJECTION,
                         categorySelection,
@@ -320,7 +625,7 @@ public class NotesFragment extends Fragment implements ExpandableListView.OnChil
                             selectionArgs = new String[]{category};
                         }
 
-                        Cursor noteCursor = mContext.getContentResolver().query(
+                        Cursor noteCursor = resolver.query(
                                 NotePad.Notes.CONTENT_URI,
                                 NOTE_PROJECTION,
                                 selection,
@@ -329,22 +634,120 @@ public class NotesFragment extends Fragment implements ExpandableListView.OnChil
                         List<Note> notes = new ArrayList<>();
                         if (noteCursor != null) {
                             while (noteCursor.moveToNext()) {
-                                notes.add(new Note(noteCursor.getLong(0), noteCursor.getString(1), noteCursor.getLong(2)));
+                                notes.add(new Note(noteCursor.getLong(0), noteCursor.getString(1), noteCursor.getLong(2),
+                                        noteCursor.getString(3)));
                             }
                             noteCursor.close();
                         }
 
                         // Only add the group if it has notes
                         if (!notes.isEmpty()) {
-                            mGroups.add(new Group(displayCategory, notes));
+                            groups.add(new Group(displayCategory, notes));
                         }
                     }
                     categoryCursor.close();
                 }
             }
             
+            sortGroups(groups);
+            return groups;
+        }
+
+        /**
+         * Returns the selection of a search: everything but todo items, in the filtered
+         * category if there is one.
+         */
+        static String searchSelection(String categoryFilter) {
+            // The search URI does the matching; the selection only excludes todo items
+            String selection = NotePad.Notes.COLUMN_NAME_CATEGORY + " NOT IN ('todo_pending', 'todo_completed')";
+
+            // Apply category filter if present
+            if (categoryFilter != null && !"All".equals(categoryFilter)) {
+                if ("未分组".equals(categoryFilter)) {
+                    // For uncategorized filter, match null or empty categories
+                    selection = "(" + selection + ") AND (" + NotePad.Notes.COLUMN_NAME_CATEGORY + " IS NULL OR " + NotePad.Notes.COLUMN_NAME_CATEGORY + " = '')";
+                } else {
+                    // For regular category filter, match exact category
+                    selection = "(" + selection + ") AND " + NotePad.Notes.COLUMN_NAME_CATEGORY + " = ?";
+                }
+            }
+            return selection;
+        }
+
+        static String[] searchSelectionArgs(String categoryFilter) {
+            if (categoryFilter != null && !"All".equals(categoryFilter) && !"未分组".equals(categoryFilter)) {
+                return new String[]{categoryFilter};
+            }
+            return null;
+        }
+
+        /**
+         * Returns the name of the group that notes in the category are listed under.
+         */
+        static String displayCategory(String category) {
+            if (category == null || category.isEmpty()) {
+                return "未分组";
+            }
+            return category;
+        }
+
+        /**
+         * Returns the groups of a search with the notes that only match the query with a typo
+         * added, closest first, after the exact matches of their group.
+         */
+        static List<Group> addFuzzyMatches(Context context, List<Group> groups, String query,
+                String categoryFilter) {
+            HashSet<Long> listed = new HashSet<>();
+            LinkedHashMap<String, List<Note>> notesByGroup = new LinkedHashMap<>();
+            for (Group group : groups) {
+                notesByGroup.put(group.name, new ArrayList<>(group.notes));
+                for (Note note : group.notes) {
+                    listed.add(note.id);
+                }
+            }
+
+            Cursor cursor = context.getContentResolver().query(
+                    NotePad.Notes.getFuzzySearchUri(query),
+                    FUZZY_SEARCH_NOTE_PROJECTION,
+                    searchSelection(categoryFilter),
+                    searchSelectionArgs(categoryFilter),
+                    null);
+            if (cursor == null) {
+                return groups;
+            }
+            int added = 0;
+            try {
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(0);
+                    if (!listed.add(id)) {
+                        continue;
+                    }
+                    String displayCategory = displayCategory(cursor.getString(3));
+                    if (!notesByGroup.containsKey(displayCategory)) {
+                        notesByGroup.put(displayCategory, new ArrayList<Note>());
+                    }
+                    notesByGroup.get(displayCategory).add(new Note(id, cursor.getString(1),
+                            cursor.getLong(2), cursor.getString(4)));
+                    added++;
+                }
+            } finally {
+                cursor.close();
+            }
+            if (added == 0) {
+                return groups;
+            }
+
+            List<Group> merged = new ArrayList<>();
+            for (String name : notesByGroup.keySet()) {
+                merged.add(new Group(name, notesByGroup.get(name)));
+            }
+            sortGroups(merged);
+            return merged;
+        }
+
+        private static void sortGroups(List<Group> groups) {
             // Sort groups by timestamp (most recent note first) but keep 未分组 at top
-            Collections.sort(mGroups, new Comparator<Group>() {
+            Collections.sort(groups, new Comparator<Group>() {
                 @Override
                 public int compare(Group g1, Group g2) {
                     // "未分组" group should always be at the top
@@ -360,8 +763,32 @@ public class NotesFragment extends Fragment implements ExpandableListView.OnChil
                     return Long.compare(g2Timestamp, g1Timestamp); // Descending order
                 }
             });
-            
-            notifyDataSetChanged();
+        }
+
+        /**
+         * Turns a match reported by the search URI, in code points, into the start and end
+         * indexes of the match in the string. Returns null if there is no such match.
+         */
+        static int[] matchRange(String text, int start, int length) {
+            if (text == null || start < 0 || start + length > text.codePointCount(0, text.length())) {
+                return null;
+            }
+            int from = text.offsetByCodePoints(0, start);
+            return new int[]{from, text.offsetByCodePoints(from, length)};
+        }
+
+        /**
+         * Returns the text with the given range highlighted, or the text itself if there is no
+         * range.
+         */
+        private CharSequence highlight(String text, int[] range) {
+            if (range == null) {
+                return text;
+            }
+            SpannableString highlighted = new SpannableString(text);
+            highlighted.setSpan(new BackgroundColorSpan(ContextCompat.getColor(mContext, R.color.search_highlight)),
+                    range[0], range[1], Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            return highlighted;
         }
 
         public void filter(String query) {
@@ -451,6 +878,7 @@ public class NotesFragment extends Fragment implements ExpandableListView.OnChil
 
             TextView title = (TextView) convertView.findViewById(R.id.text1);
             TextView date = (TextView)convertView.findViewById(R.id.text2);
+            TextView snippet = (TextView) convertView.findViewById(R.id.snippet);
             View divider = convertView.findViewById(R.id.divider);
 
             if (isLastChild) {
@@ -460,7 +888,17 @@ public class NotesFragment extends Fragment implements ExpandableListView.OnChil
             }
 
             Note note = (Note) getChild(groupPosition, childPosition);
-            title.setText(note.title);
+            title.setText(highlight(note.title, note.titleMatch));
+            if (note.matchSnippet != null) {
+                // A search hit in the content shows where it is, rather than how the note starts.
+                snippet.setText(highlight(note.matchSnippet, note.matchSnippetMatch));
+                snippet.setVisibility(View.VISIBLE);
+            } else if (note.snippet == null || note.snippet.isEmpty()) {
+                snippet.setVisibility(View.GONE);
+            } else {
+                snippet.setText(note.snippet);
+                snippet.setVisibility(View.VISIBLE);
+            }
             date.setText(new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date(note.modificationDate)));
 
             return convertView;
@@ -472,7 +910,7 @@ public class NotesFragment extends Fragment implements ExpandableListView.OnChil
         }
     }
 
-    private static class Group {
+    static class Group {
         String name;
         List<Note> notes;
 
@@ -482,15 +920,23 @@ public class NotesFragment extends Fragment implements ExpandableListView.OnChil
         }
     }
 
-    private static class Note {
+    static class Note {
         long id;
         String title;
         long modificationDate;
+        String snippet;
+
+        // Set for search results only: the ranges of the first matches in the title and in
+        // matchSnippet, an excerpt of the content around its first match.
+        int[] titleMatch;
+        String matchSnippet;
+        int[] matchSnippetMatch;
 
-        public Note(long id, String title, long modificationDate) {
+        public Note(long id, String title, long modificationDate, String snippet) {
             this.id = id;
             this.title = title;
             this.modificationDate = modificationDate;
+            this.snippet = snippet;
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,141 @@
+package com.example.android.notepad;
+
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.content.ComponentName;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.Intent;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.util.Log;
+import android.view.View;
+import android.widget.RemoteViews;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The home-screen widget, listing the most recently modified notes and pending todos. It
+ * replaces the live folder for launchers that no longer support those.
+ *
+ * <p>The widget is drawn from {@link WidgetSnapshot} alone: the provider writes a new snapshot
+ * after the notes change and pushes it to the widgets, and {@link #onUpdate} only reads the
+ * file. The rows are fixed views rather than a collection, so the launcher keeps them without a
+ * service in this application to feed it.
+ */
+public class NotesWidgetProvider extends AppWidgetProvider {
+
+    private static final String TAG = "NotesWidgetProvider";
+
+    private static final int[] NOTE_ROWS = new int[] {
+            R.id.widget_note_1, R.id.widget_note_2, R.id.widget_note_3, R.id.widget_note_4
+    };
+
+    private static final int[] TODO_ROWS = new int[] {
+            R.id.widget_todo_1, R.id.widget_todo_2, R.id.widget_todo_3
+    };
+
+    @Override
+    public void onUpdate(final Context context, final AppWidgetManager manager,
+            final int[] appWidgetIds) {
+        // Read off the main thread, since opening an encrypted snapshot may derive the key.
+        final PendingResult result = goAsync();
+        AppExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    manager.updateAppWidget(appWidgetIds,
+                            views(context, WidgetSnapshot.readFrom(snapshotFile(context))));
+                } finally {
+                    result.finish();
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the snapshot of the notes in the database and, if it changed, redraws the
+     * widgets with it. Called by the provider on {@link AppExecutors#diskIO()}.
+     *
+     * @param encrypt whether notes are encrypted, and so the snapshot is.
+     */
+    static void update(Context context, SQLiteDatabase db, boolean encrypt) {
+        WidgetSnapshot snapshot = WidgetSnapshot.query(db);
+        try {
+            if (!snapshot.writeTo(snapshotFile(context), encrypt)) {
+                return;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't write the widget snapshot", e);
+            return;
+        }
+
+        // Not there in test contexts.
+        AppWidgetManager manager = AppWidgetManager.getInstance(context);
+        if (manager == null) {
+            return;
+        }
+        int[] appWidgetIds = manager.getAppWidgetIds(
+                new ComponentName(context, NotesWidgetProvider.class));
+        if (appWidgetIds.length > 0) {
+            manager.updateAppWidget(appWidgetIds, views(context, snapshot));
+        }
+    }
+
+    static File snapshotFile(Context context) {
+        return new File(context.getFilesDir(), WidgetSnapshot.FILE_NAME);
+    }
+
+    private static RemoteViews views(Context context, WidgetSnapshot snapshot) {
+        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget_notes);
+
+        PendingIntent openList = PendingIntent.getActivity(context, 0,
+                new Intent(context, NotesList.class), pendingIntentFlags());
+        views.setOnClickPendingIntent(R.id.widget_notes_header, openList);
+        views.setOnClickPendingIntent(R.id.widget_todos_header, openList);
+
+        bindRows(context, views, NOTE_ROWS, snapshot.notes, null);
+        bindRows(context, views, TODO_ROWS, snapshot.todos, openList);
+        views.setViewVisibility(R.id.widget_empty,
+                snapshot.notes.isEmpty() && snapshot.todos.isEmpty() ? View.VISIBLE : View.GONE);
+        views.setViewVisibility(R.id.widget_todos_header,
+                snapshot.todos.isEmpty() ? View.GONE : View.VISIBLE);
+        return views;
+    }
+
+    /**
+     * Shows an item in each row, and hides the rows left over. A note row opens the note in
+     * the editor; if {@code onClick} is given, every row opens that instead.
+     */
+    private static void bindRows(Context context, RemoteViews views, int[] rows,
+            List<WidgetSnapshot.Item> items, PendingIntent onClick) {
+        for (int i = 0; i < rows.length; i++) {
+            if (i >= items.size()) {
+                views.setViewVisibility(rows[i], View.GONE);
+                continue;
+            }
+            WidgetSnapshot.Item item = items.get(i);
+            views.setViewVisibility(rows[i], View.VISIBLE);
+            views.setTextViewText(rows[i], item.title);
+            PendingIntent click = onClick;
+            if (click == null) {
+                // The note URI makes each row's intent distinct.
+                Intent edit = new Intent(Intent.ACTION_EDIT, ContentUris.withAppendedId(
+                        NotePad.Notes.CONTENT_ID_URI_BASE, item.id), context, NoteEditor.class);
+                click = PendingIntent.getActivity(context, 0, edit, pendingIntentFlags());
+            }
+            views.setOnClickPendingIntent(rows[i], click);
+        }
+    }
+
+    private static int pendingIntentFlags() {
+        int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            flags |= PendingIntent.FLAG_IMMUTABLE;
+        }
+        return flags;
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.android.notepad;
+
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.ContentProviderClient;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.NotificationManagerCompat;
+
+import java.util.List;
+
+/**
+ * Shows the reminders of todos when the alarm armed by {@link TodoReminders} goes off, and
+ * arms it again for the next one. Alarms don't survive a reboot, so it also re-arms the alarm
+ * when the device starts or the app is updated.
+ */
+public class ReminderReceiver extends BroadcastReceiver {
+
+    private static final String CHANNEL_ID = "reminders";
+
+    @Override
+    public void onReceive(final Context context, final Intent intent) {
+        final PendingResult result = goAsync();
+        AppExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                ContentProviderClient client = context.getContentResolver()
+                        .acquireContentProviderClient(NotePad.AUTHORITY);
+                try {
+                    NotePadProvider provider = (NotePadProvider) client.getLocalContentProvider();
+                    if (TodoReminders.ACTION_REMIND.equals(intent.getAction())) {
+                        notify(context, provider.takeDueReminders());
+                    } else {
+                        provider.rearmReminders();
+                    }
+                } finally {
+                    client.release();
+                    result.finish();
+                }
+            }
+        });
+    }
+
+    private static void notify(Context context, List<TodoReminders.Reminder> reminders) {
+        if (reminders.isEmpty()) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            context.getSystemService(NotificationManager.class).createNotificationChannel(
+                    new NotificationChannel(CHANNEL_ID,
+                            context.getString(R.string.reminder_channel),
+                            NotificationManager.IMPORTANCE_HIGH));
+        }
+        int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            flags |= PendingIntent.FLAG_IMMUTABLE;
+        }
+        PendingIntent openList = PendingIntent.getActivity(context, 0,
+                new Intent(context, NotesList.class), flags);
+
+        // Without the permission, the reminders are cleared all the same.
+        NotificationManagerCompat manager = NotificationManagerCompat.from(context);
+        if (!manager.areNotificationsEnabled()) {
+            return;
+        }
+        for (TodoReminders.Reminder reminder : reminders) {
+            manager.notify((int) reminder.id, new NotificationCompat.Builder(context, CHANNEL_ID)
+                    .setSmallIcon(R.drawable.ic_todo_pending)
+                    .setContentTitle(context.getString(R.string.reminder_title))
+                    .setContentText(reminder.title)
+                    .setContentIntent(openList)
+                    .setAutoCancel(true)
+                    .setCategory(NotificationCompat.CATEGORY_REMINDER)
+                    .setPriority(NotificationCompat.PRIORITY_HIGH)
+                    .build());
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The most recently used search results of the notes list, keyed by query and category filter,
+ * so that going back to a search that was just shown doesn't run it again.
+ *
+ * <p>Entries are dropped when the notes change, but only those whose results the change could
+ * affect: for a change to a single note, the entries that list the note, and those whose query
+ * the note now matches. The note is read once and matched against every entry's parsed
+ * {@link NoteQuery} in memory, the same way the search and fuzzy search URIs match it, only
+ * more loosely, so that nothing they would find is missed. A change to more than one note drops
+ * everything.
+ *
+ * <p>The cache is filled and invalidated on {@link AppExecutors#diskIO()}, which runs one task at
+ * a time, so an invalidation queued before a refresh is always applied before that refresh
+ * looks up its query.
+ */
+final class SearchCache {
+
+    /**
+     * The most searches kept.
+     */
+    static final int MAX_ENTRIES = 16;
+
+    private static final String[] NOTE_PROJECTION = new String[] {
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+    };
+
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    if (size() > MAX_ENTRIES) {
+                        mEvictions++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    private int mHits;
+    private int mMisses;
+    private int mEvictions;
+    private int mInvalidations;
+
+    /**
+     * Returns the cached results of the search, or null if there are none.
+     */
+    synchronized List<NotesFragment.Group> get(String query, String categoryFilter) {
+        Entry entry = mEntries.get(key(query, categoryFilter));
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry.groups;
+    }
+
+    /**
+     * Caches the complete results of a search. The groups must not be modified afterwards.
+     */
+    synchronized void put(String query, String categoryFilter, List<NotesFragment.Group> groups) {
+        mEntries.put(key(query, categoryFilter), new Entry(query, categoryFilter, groups));
+    }
+
+    /**
+     * Drops the entries whose results could have been changed by the change notified for the
+     * URI. Reads the changed note if it is a note ID URI, so must not be called on the main
+     * thread.
+     */
+    void invalidate(ContentResolver resolver, Uri uri) {
+        long noteId = TitleIndex.noteId(uri);
+        if (noteId < 0) {
+            clear();
+            return;
+        }
+        synchronized (this) {
+            if (mEntries.isEmpty()) {
+                return;
+            }
+        }
+
+        // Null if the note was deleted, in which case only the entries that list it change.
+        Cursor note = null;
+        Cursor c = resolver.query(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                noteId), NOTE_PROJECTION, null, null, null);
+        if (c == null) {
+            clear();
+            return;
+        }
+        try {
+            if (c.moveToFirst()) {
+                note = c;
+            }
+            synchronized (this) {
+                for (Iterator<Entry> it = mEntries.values().iterator(); it.hasNext(); ) {
+                    Entry entry = it.next();
+                    if (entry.noteIds.contains(noteId)
+                            || (note != null && entry.couldMatch(note))) {
+                        it.remove();
+                        mInvalidations++;
+                    }
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Drops every entry.
+     */
+    synchronized void clear() {
+        mInvalidations += mEntries.size();
+        mEntries.clear();
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Returns the number of lookups that found their search cached.
+     */
+    synchronized int hitCount() {
+        return mHits;
+    }
+
+    /**
+     * Returns the number of lookups that didn't.
+     */
+    synchronized int missCount() {
+        return mMisses;
+    }
+
+    /**
+     * Returns the number of entries dropped to make room for newer ones.
+     */
+    synchronized int evictionCount() {
+        return mEvictions;
+    }
+
+    /**
+     * Returns the number of entries dropped because the notes changed.
+     */
+    synchronized int invalidationCount() {
+        return mInvalidations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SearchCache[size=" + mEntries.size() + ", hits=" + mHits + ", misses=" + mMisses
+                + ", evictions=" + mEvictions + ", invalidations=" + mInvalidations + "]";
+    }
+
+    private static String key(String query, String categoryFilter) {
+        // The filter can't contain a NUL, so this can't be mistaken for another key.
+        return (categoryFilter != null ? categoryFilter : "") + '\u0000' + query;
+    }
+
+    private static final class Entry {
+        final NoteQuery query;
+        final String categoryFilter;
+        final List<NotesFragment.Group> groups;
+        final Set<Long> noteIds = new HashSet<Long>();
+
+        Entry(String query, String categoryFilter, List<NotesFragment.Group> groups) {
+            this.query = NoteQuery.parse(query);
+            this.categoryFilter = categoryFilter;
+            this.groups = groups;
+            for (NotesFragment.Group group : groups) {
+                for (NotesFragment.Note note : group.notes) {
+                    noteIds.add(note.id);
+                }
+            }
+        }
+
+        /**
+         * Returns whether the note at the cursor's current row, read with
+         * {@link #NOTE_PROJECTION}, could be among the results of this search. Errs towards
+         * yes: it ignores that the search URI doesn't look into compressed bodies and that the
+         * fuzzy search only ranks its best candidates.
+         */
+        boolean couldMatch(Cursor note) {
+            String title = note.getString(0);
+            String text = note.getString(1);
+            String category = note.getString(2);
+            if (TodoRank.isTodo(category)) {
+                return false;
+            }
+            if (categoryFilter != null && !"All".equals(categoryFilter)) {
+                boolean uncategorized = category == null || category.isEmpty();
+                if (NoteQuery.UNCATEGORIZED.equals(categoryFilter) ? !uncategorized
+                        : !categoryFilter.equals(category)) {
+                    return false;
+                }
+            }
+            if (!query.matchesFilters(category, note.getLong(3), note.getLong(4))) {
+                return false;
+            }
+
+            if (query.containsTerms(title, text)) {
+                return true;
+            }
+            String fuzzy = query.text();
+            if (fuzzy.length() < NoteTrigrams.MIN_QUERY_LENGTH) {
+                return false;
+            }
+            int maxEdits = NoteTrigrams.maxEdits(NoteTrigrams.normalize(fuzzy).length());
+            return NoteTrigrams.distance(fuzzy, title, maxEdits) <= maxEdits
+                    || NoteTrigrams.distance(fuzzy, NoteTrigrams.indexedText(text), maxEdits)
+                            <= maxEdits;
+        }
+    }
+}
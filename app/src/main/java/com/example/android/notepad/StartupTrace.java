@@ -0,0 +1,77 @@
+package com.example.android.notepad;
+
+import android.app.Activity;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+/**
+ * Measures cold start. Reports, once per process, the time from process start to the first frame
+ * of {@link NotesList} and to the moment the notes list is populated. The numbers are written to
+ * logcat under the "NotePadStartup" tag, and the second one is also reported to the system
+ * through {@link Activity#reportFullyDrawn()}, so it shows up as "Fully drawn" in the
+ * ActivityManager log and in macrobenchmark results.
+ */
+final class StartupTrace {
+    private static final String TAG = "NotePadStartup";
+
+    private static long sStartUptime = -1;
+    private static boolean sFirstFrameReported;
+    private static boolean sFullListReported;
+
+    // This class cannot be instantiated
+    private StartupTrace() {
+    }
+
+    /**
+     * Records the start of the process. Called from {@link NotePadApplication#onCreate()}.
+     */
+    static void onApplicationCreate() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            sStartUptime = Process.getStartUptimeMillis();
+        } else {
+            sStartUptime = SystemClock.uptimeMillis();
+        }
+    }
+
+    /**
+     * Reports the time to first frame when the activity's window is first about to draw.
+     */
+    static void watchFirstFrame(Activity activity) {
+        if (sFirstFrameReported || sStartUptime < 0) {
+            return;
+        }
+        final View decorView = activity.getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+                    @Override
+                    public boolean onPreDraw() {
+                        decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+                        if (!sFirstFrameReported) {
+                            sFirstFrameReported = true;
+                            Log.i(TAG, "time to first frame: " + elapsed() + " ms");
+                        }
+                        return true;
+                    }
+                });
+    }
+
+    /**
+     * Reports the time to full list the first time the notes list is populated.
+     */
+    static void reportFullList(Activity activity, int noteCount) {
+        if (sFullListReported || sStartUptime < 0 || activity == null) {
+            return;
+        }
+        sFullListReported = true;
+        Log.i(TAG, "time to full list: " + elapsed() + " ms (" + noteCount + " notes)");
+        activity.reportFullyDrawn();
+    }
+
+    private static long elapsed() {
+        return SystemClock.uptimeMillis() - sStartUptime;
+    }
+}
@@ -0,0 +1,239 @@
+package com.example.android.notepad;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A batch of note changes as exchanged with the sync server, in either direction, and its wire
+ * form: a small binary record per change, deflated as a whole, so the titles and text of the
+ * notes in a batch compress against each other.
+ *
+ * <p>A client that encrypts its notes sends their titles and text sealed with its note key,
+ * see {@link Change#seal(NoteCipher)}, so the server, and anyone reading the batches, only
+ * sees ids, categories and dates. Only devices that share the key can open them. Sealed fields
+ * don't compress.
+ */
+final class SyncBatch {
+
+    // Version 1 had no sealed changes; it is still read.
+    private static final int VERSION = 2;
+    private static final int UNSEALED_VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The state of a note after a change: its fields, or that it was deleted.
+     */
+    static final class Change {
+        final String syncId;
+        final boolean deleted;
+        final String title;
+        final String note;
+        final String category;
+        final long created;
+        final long modified;
+
+        /**
+         * Whether the title and the note are only held sealed, in {@link #sealedTitle} and
+         * {@link #sealedNote}, which the server passes on as they are.
+         */
+        final boolean sealed;
+        final byte[] sealedTitle;
+        final byte[] sealedNote;
+
+        Change(String syncId, String title, String note, String category, long created,
+                long modified) {
+            this(syncId, false, title, note, null, null, category, created, modified);
+        }
+
+        private Change(String syncId, boolean sealed, String title, String note,
+                byte[] sealedTitle, byte[] sealedNote, String category, long created,
+                long modified) {
+            this.syncId = syncId;
+            this.deleted = false;
+            this.title = title;
+            this.note = note;
+            this.category = category;
+            this.created = created;
+            this.modified = modified;
+            this.sealed = sealed;
+            this.sealedTitle = sealedTitle;
+            this.sealedNote = sealedNote;
+        }
+
+        private Change(String syncId) {
+            this.syncId = syncId;
+            this.deleted = true;
+            this.title = null;
+            this.note = null;
+            this.category = null;
+            this.created = 0;
+            this.modified = 0;
+            this.sealed = false;
+            this.sealedTitle = null;
+            this.sealedNote = null;
+        }
+
+        static Change deletion(String syncId) {
+            return new Change(syncId);
+        }
+
+        /**
+         * Returns the change with its title and note sealed. A deletion has neither, and is
+         * returned as it is.
+         */
+        Change seal(NoteCipher cipher) {
+            if (deleted || sealed) {
+                return this;
+            }
+            return new Change(syncId, true, null, null, seal(cipher, title), seal(cipher, note),
+                    category, created, modified);
+        }
+
+        /**
+         * Returns the change with its title and note opened, if they are sealed.
+         *
+         * @throws IOException if they were sealed with another key, or changed on the way.
+         */
+        Change open(NoteCipher cipher) throws IOException {
+            if (!sealed) {
+                return this;
+            }
+            try {
+                return new Change(syncId, open(cipher, sealedTitle), open(cipher, sealedNote),
+                        category, created, modified);
+            } catch (IllegalStateException e) {
+                throw new IOException("Unable to open the change to " + syncId, e);
+            }
+        }
+
+        private static byte[] seal(NoteCipher cipher, String s) {
+            return s != null ? cipher.encrypt(s.getBytes(UTF_8)) : null;
+        }
+
+        private static String open(NoteCipher cipher, byte[] sealed) {
+            return sealed != null ? new String(cipher.decrypt(sealed), UTF_8) : null;
+        }
+    }
+
+    /**
+     * Where the batch ends: for a batch sent by the client, the sequence number of its last
+     * change; for one sent by the server, the position to ask for the next batch from.
+     */
+    final long cursor;
+
+    /**
+     * Whether the server has more changes after this batch.
+     */
+    final boolean more;
+
+    final List<Change> changes;
+
+    SyncBatch(long cursor, boolean more, List<Change> changes) {
+        this.cursor = cursor;
+        this.more = more;
+        this.changes = Collections.unmodifiableList(changes);
+    }
+
+    byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeflaterOutputStream deflater = new DeflaterOutputStream(bytes,
+                new Deflater(Deflater.BEST_SPEED));
+        DataOutputStream out = new DataOutputStream(deflater);
+        out.writeInt(VERSION);
+        out.writeLong(cursor);
+        out.writeBoolean(more);
+        out.writeInt(changes.size());
+        for (Change change : changes) {
+            writeString(out, change.syncId);
+            out.writeBoolean(change.deleted);
+            if (!change.deleted) {
+                out.writeBoolean(change.sealed);
+                if (change.sealed) {
+                    writeBytes(out, change.sealedTitle);
+                    writeBytes(out, change.sealedNote);
+                } else {
+                    writeString(out, change.title);
+                    writeString(out, change.note);
+                }
+                writeString(out, change.category);
+                out.writeLong(change.created);
+                out.writeLong(change.modified);
+            }
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws IOException if the bytes aren't a batch of this version.
+     */
+    static SyncBatch decode(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new InflaterInputStream(new ByteArrayInputStream(bytes)));
+        try {
+            int version = in.readInt();
+            if (version != VERSION && version != UNSEALED_VERSION) {
+                throw new IOException("Unknown sync batch version " + version);
+            }
+            long cursor = in.readLong();
+            boolean more = in.readBoolean();
+            int count = in.readInt();
+            List<Change> changes = new ArrayList<Change>(count);
+            for (int i = 0; i < count; i++) {
+                String syncId = readString(in);
+                if (in.readBoolean()) {
+                    changes.add(Change.deletion(syncId));
+                } else if (version != UNSEALED_VERSION && in.readBoolean()) {
+                    changes.add(new Change(syncId, true, null, null, readBytes(in),
+                            readBytes(in), readString(in), in.readLong(), in.readLong()));
+                } else {
+                    changes.add(new Change(syncId, readString(in), readString(in),
+                            readString(in), in.readLong(), in.readLong()));
+                }
+            }
+            return new SyncBatch(cursor, more, changes);
+        } finally {
+            in.close();
+        }
+    }
+
+    // Not writeUTF(), which is limited to 64 KB; notes can be larger.
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s != null ? s.getBytes(UTF_8) : null);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes != null ? new String(bytes, UTF_8) : null;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,23 @@
+package com.example.android.notepad;
+
+import java.io.IOException;
+
+/**
+ * Carries encoded {@link SyncBatch}es between the sync engine and a sync server. The engine
+ * doesn't care how; in the tests, {@code LocalSyncServer} stands in for a server in the same
+ * process.
+ */
+interface SyncTransport {
+
+    /**
+     * Sends a batch of this client's changes. Returns once the server has stored them all, at
+     * which point the client forgets them; throws if it may not have.
+     */
+    void push(String clientId, byte[] batch) throws IOException;
+
+    /**
+     * Returns a batch of at most {@code limit} changes made by other clients, stored after the
+     * given position, with the position to continue from.
+     */
+    byte[] pull(String clientId, long cursor, int limit) throws IOException;
+}
@@ -0,0 +1,100 @@
+package com.example.android.notepad;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Encodes the change between two versions of a note's text as a single splice: the text in
+ * between the longest common prefix and the longest common suffix is replaced. An editor save
+ * usually touches one region of the note, so the encoded size follows the size of the edit
+ * rather than the size of the note.
+ *
+ * <p>Format: varint start, varint number of chars removed, then the inserted text as UTF-8.
+ */
+final class TextDelta {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // This class cannot be instantiated
+    private TextDelta() {
+    }
+
+    /**
+     * Returns the delta that turns {@code from} into {@code to}.
+     */
+    static byte[] diff(String from, String to) {
+        int fromLength = from.length();
+        int toLength = to.length();
+        int max = Math.min(fromLength, toLength);
+
+        int prefix = 0;
+        while (prefix < max && from.charAt(prefix) == to.charAt(prefix)) {
+            prefix++;
+        }
+        // Never split a surrogate pair, or the inserted text can't be encoded as UTF-8.
+        if (prefix > 0 && Character.isHighSurrogate(from.charAt(prefix - 1))) {
+            prefix--;
+        }
+
+        int suffix = 0;
+        while (suffix < max - prefix
+                && from.charAt(fromLength - 1 - suffix) == to.charAt(toLength - 1 - suffix)) {
+            suffix++;
+        }
+        if (suffix > 0 && Character.isLowSurrogate(to.charAt(toLength - suffix))) {
+            suffix--;
+        }
+
+        byte[] inserted = to.substring(prefix, toLength - suffix).getBytes(UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(inserted.length + 10);
+        writeVarint(out, prefix);
+        writeVarint(out, fromLength - prefix - suffix);
+        out.write(inserted, 0, inserted.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Applies a delta produced by {@link #diff(String, String)} to the text it was computed from.
+     *
+     * @throws IllegalArgumentException if the delta doesn't fit the text.
+     */
+    static String apply(String base, byte[] delta) {
+        int[] position = new int[1];
+        int start = readVarint(delta, position);
+        int removed = readVarint(delta, position);
+        if (start < 0 || removed < 0 || start + removed > base.length()) {
+            throw new IllegalArgumentException("Delta does not apply to a text of length "
+                    + base.length());
+        }
+        String inserted = new String(delta, position[0], delta.length - position[0], UTF_8);
+        return new StringBuilder(base.length() - removed + inserted.length())
+                .append(base, 0, start)
+                .append(inserted)
+                .append(base, start + removed, base.length())
+                .toString();
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static int readVarint(byte[] data, int[] position) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            if (position[0] >= data.length || shift > 28) {
+                throw new IllegalArgumentException("Malformed delta");
+            }
+            byte b = data[position[0]++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+}
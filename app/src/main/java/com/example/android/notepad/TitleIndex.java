@@ -0,0 +1,421 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * An in-memory index of note titles, for jumping to a note by typing the start of its title or
+ * of any word in it. Lookups run on the calling thread, usually the main thread, and cost two
+ * binary searches over sorted arrays.
+ *
+ * <p>The index is loaded from the provider on first use, with only the ids and titles of the
+ * notes. From then on it follows the provider's change notifications: a change to a single note
+ * re-reads that note's title and merges it into a new copy of the arrays, anything else reloads
+ * the whole index. All loading happens on {@link AppExecutors#diskIO()}, and each result is
+ * published as a new immutable snapshot, so lookups never wait for a load.
+ */
+final class TitleIndex {
+
+    /**
+     * The most matches a lookup returns by default.
+     */
+    static final int MAX_MATCHES = 20;
+
+    private static final String[] PROJECTION = new String[] {
+            NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE
+    };
+
+    // Todo items are listed on their own tab, and aren't jumped to.
+    private static final String SELECTION = TodoRank.NOT_TODO;
+
+    private static TitleIndex sInstance;
+
+    private final ContentResolver mResolver;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Null until the first load completes. Replaced, never modified.
+    private volatile Snapshot mSnapshot;
+
+    // Only touched on the main thread.
+    private boolean mStarted;
+    private final List<Runnable> mListeners = new ArrayList<Runnable>();
+
+    private final ContentObserver mObserver = new ContentObserver(mMainHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, final Uri uri) {
+            AppExecutors.diskIO().execute(new Runnable() {
+                @Override
+                public void run() {
+                    long noteId = noteId(uri);
+                    Snapshot snapshot = mSnapshot;
+                    if (noteId < 0 || snapshot == null) {
+                        publish(load());
+                    } else {
+                        publish(snapshot.with(noteId, readTitle(noteId)));
+                    }
+                }
+            });
+        }
+    };
+
+    private TitleIndex(Context context) {
+        mResolver = context.getApplicationContext().getContentResolver();
+    }
+
+    /**
+     * Returns the index of the application's notes.
+     */
+    static synchronized TitleIndex get(Context context) {
+        if (sInstance == null) {
+            sInstance = new TitleIndex(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * A note whose title matches a lookup.
+     */
+    static final class Match {
+        final long id;
+        final String title;
+
+        Match(long id, String title) {
+            this.id = id;
+            this.title = title;
+        }
+
+        @Override
+        public String toString() {
+            return title;
+        }
+    }
+
+    /**
+     * Adds a callback that runs on the main thread whenever the index changes, including when
+     * it is first loaded. Must be called on the main thread.
+     */
+    void addListener(Runnable listener) {
+        mListeners.add(listener);
+    }
+
+    void removeListener(Runnable listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Returns whether the index has been loaded. Until then lookups return nothing.
+     */
+    boolean isLoaded() {
+        return mSnapshot != null;
+    }
+
+    /**
+     * Returns the notes whose title starts with the prefix, ignoring case, followed by those
+     * with a later word in the title that does, at most {@code limit} of them. Starts loading
+     * the index if it hasn't been, and returns nothing until it has. Must be called on the main
+     * thread.
+     */
+    List<Match> lookup(String prefix, int limit) {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            start();
+            return Collections.emptyList();
+        }
+        return snapshot.lookup(prefix, limit);
+    }
+
+    /**
+     * Loads the index in the background, and keeps it current from then on.
+     */
+    private void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mResolver.registerContentObserver(NotePad.Notes.CONTENT_URI, true, mObserver);
+        AppExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                publish(load());
+            }
+        });
+    }
+
+    private void publish(Snapshot snapshot) {
+        mSnapshot = snapshot;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Runnable listener : new ArrayList<Runnable>(mListeners)) {
+                    listener.run();
+                }
+            }
+        });
+    }
+
+    private Snapshot load() {
+        HashMap<Long, String> titles = new HashMap<Long, String>();
+        Cursor c = mResolver.query(NotePad.Notes.CONTENT_URI, PROJECTION, SELECTION, null, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    titles.put(c.getLong(0), c.getString(1) != null ? c.getString(1) : "");
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return new Snapshot(titles);
+    }
+
+    /**
+     * Returns the title of the note, or null if it doesn't exist or isn't indexed.
+     */
+    private String readTitle(long noteId) {
+        Cursor c = mResolver.query(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId),
+                PROJECTION, SELECTION, null, null);
+        if (c == null) {
+            return null;
+        }
+        try {
+            return c.moveToFirst() ? (c.getString(1) != null ? c.getString(1) : "") : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Returns the id of the note the URI identifies, or -1 if it isn't a note ID URI, such as
+     * the URI of a change notification for more than one note.
+     */
+    static long noteId(Uri uri) {
+        if (uri == null) {
+            return -1;
+        }
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 2 || !"notes".equals(segments.get(0))) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(segments.get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String key(String text) {
+        return text.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns the keys a title is found by: the whole title, and the rest of it from the start
+     * of each later word.
+     */
+    private static void keys(String title, List<String> starts, List<String> words) {
+        String key = key(title);
+        starts.add(key);
+        for (int i = 1; i < key.length(); i++) {
+            if (Character.isLetterOrDigit(key.charAt(i))
+                    && !Character.isLetterOrDigit(key.charAt(i - 1))) {
+                words.add(key.substring(i));
+            }
+        }
+    }
+
+    /**
+     * An immutable view of the index.
+     */
+    static final class Snapshot {
+        final HashMap<Long, String> titles;
+
+        // Keyed by whole titles, and by the rest of the titles from each later word.
+        final Entries starts;
+        final Entries words;
+
+        Snapshot(HashMap<Long, String> titles) {
+            this.titles = titles;
+            List<String> startKeys = new ArrayList<String>();
+            List<Long> startIds = new ArrayList<Long>();
+            List<String> wordKeys = new ArrayList<String>();
+            List<Long> wordIds = new ArrayList<Long>();
+            List<String> words = new ArrayList<String>();
+            for (Long id : titles.keySet()) {
+                words.clear();
+                keys(titles.get(id), startKeys, words);
+                startIds.add(id);
+                for (String word : words) {
+                    wordKeys.add(word);
+                    wordIds.add(id);
+                }
+            }
+            starts = Entries.sorted(startKeys, startIds);
+            this.words = Entries.sorted(wordKeys, wordIds);
+        }
+
+        private Snapshot(HashMap<Long, String> titles, Entries starts, Entries words) {
+            this.titles = titles;
+            this.starts = starts;
+            this.words = words;
+        }
+
+        /**
+         * Returns the notes whose title starts with the prefix, followed by those with a later
+         * word that does, at most {@code limit} of them.
+         */
+        List<Match> lookup(String prefix, int limit) {
+            String key = key(prefix);
+            Set<Long> ids = new LinkedHashSet<Long>();
+            starts.collect(key, limit, ids);
+            words.collect(key, limit, ids);
+            List<Match> matches = new ArrayList<Match>(ids.size());
+            for (long id : ids) {
+                matches.add(new Match(id, titles.get(id)));
+            }
+            return matches;
+        }
+
+        /**
+         * Returns a copy of this snapshot with the note's title replaced, or the note removed
+         * if the title is null.
+         */
+        Snapshot with(long id, String title) {
+            String oldTitle = titles.get(id);
+            List<String> oldStarts = new ArrayList<String>();
+            List<String> oldWords = new ArrayList<String>();
+            if (oldTitle != null) {
+                keys(oldTitle, oldStarts, oldWords);
+            }
+            List<String> newStarts = new ArrayList<String>();
+            List<String> newWords = new ArrayList<String>();
+            if (title != null) {
+                keys(title, newStarts, newWords);
+            }
+
+            HashMap<Long, String> newTitles = new HashMap<Long, String>(titles);
+            if (title != null) {
+                newTitles.put(id, title);
+            } else {
+                newTitles.remove(id);
+            }
+            return new Snapshot(newTitles, starts.replace(id, oldStarts, newStarts),
+                    words.replace(id, oldWords, newWords));
+        }
+    }
+
+    /**
+     * Keys and the ids of the notes they belong to, sorted by key and then by id.
+     */
+    static final class Entries {
+        final String[] keys;
+        final long[] ids;
+
+        private Entries(String[] keys, long[] ids) {
+            this.keys = keys;
+            this.ids = ids;
+        }
+
+        static Entries sorted(final List<String> keys, final List<Long> ids) {
+            Integer[] order = new Integer[keys.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    int byKey = keys.get(a).compareTo(keys.get(b));
+                    return byKey != 0 ? byKey : ids.get(a).compareTo(ids.get(b));
+                }
+            });
+            String[] sortedKeys = new String[order.length];
+            long[] sortedIds = new long[order.length];
+            for (int i = 0; i < order.length; i++) {
+                sortedKeys[i] = keys.get(order[i]);
+                sortedIds[i] = ids.get(order[i]);
+            }
+            return new Entries(sortedKeys, sortedIds);
+        }
+
+        /**
+         * Adds the ids of the entries whose key starts with the prefix, in key order, until
+         * there are {@code limit} ids.
+         */
+        void collect(String prefix, int limit, Set<Long> into) {
+            for (int i = lowerBound(prefix); i < keys.length && into.size() < limit
+                    && keys[i].startsWith(prefix); i++) {
+                into.add(ids[i]);
+            }
+        }
+
+        /**
+         * Returns a copy with the note's entries for the old keys replaced by entries for the
+         * new ones, in a single pass over the arrays.
+         */
+        Entries replace(long id, List<String> oldKeys, List<String> newKeys) {
+            Collections.sort(newKeys);
+            Set<String> removed = new HashSet<String>(oldKeys);
+            int size = keys.length + newKeys.size();
+            String[] mergedKeys = new String[size];
+            long[] mergedIds = new long[size];
+            int count = 0;
+            int next = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (ids[i] == id && removed.contains(keys[i])) {
+                    continue;
+                }
+                while (next < newKeys.size() && compare(newKeys.get(next), id, i) < 0) {
+                    mergedKeys[count] = newKeys.get(next++);
+                    mergedIds[count++] = id;
+                }
+                mergedKeys[count] = keys[i];
+                mergedIds[count++] = ids[i];
+            }
+            while (next < newKeys.size()) {
+                mergedKeys[count] = newKeys.get(next++);
+                mergedIds[count++] = id;
+            }
+            return new Entries(Arrays.copyOf(mergedKeys, count), Arrays.copyOf(mergedIds, count));
+        }
+
+        private int compare(String key, long id, int i) {
+            int byKey = key.compareTo(keys[i]);
+            return byKey != 0 ? byKey : Long.compare(id, ids[i]);
+        }
+
+        private int lowerBound(String key) {
+            int low = 0;
+            int high = keys.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid].compareTo(key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -1,19 +1,33 @@
 package com.example.android.notepad;
 
+import android.Manifest;
 import android.app.AlertDialog;
+import android.app.DatePickerDialog;
+import android.app.TimePickerDialog;
+import android.content.ClipData;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.text.format.DateFormat;
+import android.text.format.DateUtils;
+import android.view.DragEvent;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AdapterView;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.DatePicker;
 import android.widget.EditText;
 import android.widget.ExpandableListView;
 import android.widget.BaseExpandableListAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
+import android.widget.TimePicker;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -22,6 +36,7 @@ import androidx.fragment.app.Fragment;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -65,9 +80,17 @@ public class TodoFragment extends Fragment {
     }
     
     private void setupListView() {
-        mAdapter = new TodoExpandableListAdapter();
+        mAdapter = new TodoExpandableListAdapter(getActivity());
         mListTodos.setAdapter(mAdapter);
         
+        // 点击待办右侧的加号，在它下面添加子任务
+        mAdapter.setOnAddSubtaskListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                showAddTodoDialog((Long) v.getTag());
+            }
+        });
+        
         // 设置子项点击监听器
         mListTodos.setOnChildClickListener(new ExpandableListView.OnChildClickListener() {
             @Override
@@ -77,6 +100,108 @@ public class TodoFragment extends Fragment {
                 return true;
             }
         });
+        
+        // 长按待办开始拖动，在同一分组内调整顺序
+        mListTodos.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
+            @Override
+            public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+                long packed = mListTodos.getExpandableListPosition(position);
+                if (ExpandableListView.getPackedPositionType(packed)
+                        != ExpandableListView.PACKED_POSITION_TYPE_CHILD) {
+                    return false;
+                }
+                int[] from = new int[]{ExpandableListView.getPackedPositionGroup(packed),
+                        ExpandableListView.getPackedPositionChild(packed)};
+                ClipData data = ClipData.newPlainText("", "");
+                View.DragShadowBuilder shadow = new View.DragShadowBuilder(view);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                    view.startDragAndDrop(data, shadow, from, 0);
+                } else {
+                    view.startDrag(data, shadow, from, 0);
+                }
+                return true;
+            }
+        });
+        
+        mListTodos.setOnDragListener(new View.OnDragListener() {
+            @Override
+            public boolean onDrag(View v, DragEvent event) {
+                if (event.getAction() == DragEvent.ACTION_DRAG_STARTED) {
+                    return event.getLocalState() instanceof int[];
+                }
+                if (event.getAction() != DragEvent.ACTION_DROP) {
+                    return true;
+                }
+                int[] from = (int[]) event.getLocalState();
+                int position = mListTodos.pointToPosition((int) event.getX(), (int) event.getY());
+                if (position == AdapterView.INVALID_POSITION) {
+                    return false;
+                }
+                long packed = mListTodos.getExpandableListPosition(position);
+                if (ExpandableListView.getPackedPositionGroup(packed) != from[0]) {
+                    return false;
+                }
+                // 放在分组标题上则移到最前面
+                int to = ExpandableListView.getPackedPositionType(packed)
+                        == ExpandableListView.PACKED_POSITION_TYPE_CHILD
+                        ? ExpandableListView.getPackedPositionChild(packed) : 0;
+                moveTodo(from[0], from[1], to);
+                return true;
+            }
+        });
+    }
+    
+    /**
+     * 把分组中的一条待办移到新位置。新的排序键取在新位置前后两条之间，
+     * 所以只更新被移动的这一条，不用给整个列表重新编号。
+     * 待办只能在同一父任务的子任务之间移动，子任务随父任务一起移动。
+     */
+    private void moveTodo(int group, int from, int to) {
+        List<String> ranks = mAdapter.getChildRanks(group);
+        List<Long> parents = mAdapter.getChildParents(group);
+        if (from == to || ranks == null || !parents.get(from).equals(parents.get(to))) {
+            return;
+        }
+        long id = mAdapter.getChildId(group, from);
+        
+        // 只在兄弟待办之间取前后两条
+        Long parent = parents.get(from);
+        List<String> siblings = new ArrayList<>();
+        int fromSibling = 0;
+        int toSibling = 0;
+        for (int i = 0; i < parents.size(); i++) {
+            if (parents.get(i).equals(parent)) {
+                if (i == from) {
+                    fromSibling = siblings.size();
+                }
+                if (i == to) {
+                    toSibling = siblings.size();
+                }
+                siblings.add(ranks.get(i));
+            }
+        }
+        from = fromSibling;
+        to = toSibling;
+        int beforeIndex = from < to ? to : to - 1;
+        int afterIndex = beforeIndex + 1;
+        String before = beforeIndex >= 0 ? siblings.get(beforeIndex) : null;
+        String after = afterIndex < siblings.size() ? siblings.get(afterIndex) : null;
+        // 还没有排序键的待办（旧数据）在后台补上之前不能作为参照
+        if ((beforeIndex >= 0 && before == null)
+                || (afterIndex < siblings.size() && after == null)
+                || (before != null && after != null && before.compareTo(after) >= 0)) {
+            return;
+        }
+        
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_RANK, TodoRank.between(before, after));
+        getActivity().getContentResolver().update(
+                Uri.withAppendedPath(NotePad.Notes.CONTENT_ID_URI_BASE, String.valueOf(id)),
+                values,
+                null,
+                null
+        );
+        refreshTodos();
     }
     
     // 展开所有分组
@@ -90,6 +215,11 @@ public class TodoFragment extends Fragment {
     
     // 将此方法改为公共方法，以便从外部调用
     public void showAddTodoDialog() {
+        showAddTodoDialog(-1);
+    }
+    
+    // parentId 不小于 0 时添加为该待办的子任务
+    private void showAddTodoDialog(final long parentId) {
         // 加载自定义布局
         LayoutInflater inflater = getLayoutInflater();
         View dialogView = inflater.inflate(R.layout.dialog_add_todo, null);
@@ -98,11 +228,31 @@ public class TodoFragment extends Fragment {
         builder.setView(dialogView);
         
         EditText etTodoContent = dialogView.findViewById(R.id.et_todo_content);
+        Button btnDueDate = dialogView.findViewById(R.id.btn_due_date);
+        CheckBox cbRemind = dialogView.findViewById(R.id.cb_remind);
         Button btnCancel = dialogView.findViewById(R.id.btn_cancel);
         Button btnSave = dialogView.findViewById(R.id.btn_save);
         
         AlertDialog dialog = builder.create();
         
+        // 选中的截止时间，0 表示没有
+        final long[] dueDate = new long[1];
+        btnDueDate.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                pickDueDate(new DueDateListener() {
+                    @Override
+                    public void onDueDateSet(long time) {
+                        dueDate[0] = time;
+                        btnDueDate.setText(formatDueDate(getActivity(), time));
+                        // 设置了截止时间后默认到期提醒
+                        cbRemind.setEnabled(true);
+                        cbRemind.setChecked(true);
+                    }
+                });
+            }
+        });
+        
         btnCancel.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -115,7 +265,12 @@ public class TodoFragment extends Fragment {
             public void onClick(View v) {
                 String content = etTodoContent.getText().toString().trim();
                 if (!content.isEmpty()) {
-                    addTodo(content);
+                    boolean remind = cbRemind.isChecked()
+                            && dueDate[0] > System.currentTimeMillis();
+                    addTodo(content, dueDate[0], remind, parentId);
+                    if (remind) {
+                        requestNotificationPermission();
+                    }
                     dialog.dismiss();
                 }
             }
@@ -124,7 +279,49 @@ public class TodoFragment extends Fragment {
         dialog.show();
     }
     
-    private void addTodo(String content) {
+    // 截止时间选好后的回调
+    private interface DueDateListener {
+        void onDueDateSet(long time);
+    }
+    
+    // 依次选择日期和时间
+    private void pickDueDate(final DueDateListener listener) {
+        final Calendar calendar = Calendar.getInstance();
+        new DatePickerDialog(getActivity(), new DatePickerDialog.OnDateSetListener() {
+            @Override
+            public void onDateSet(DatePicker view, int year, int month, int dayOfMonth) {
+                calendar.set(year, month, dayOfMonth);
+                new TimePickerDialog(getActivity(), new TimePickerDialog.OnTimeSetListener() {
+                    @Override
+                    public void onTimeSet(TimePicker view, int hourOfDay, int minute) {
+                        calendar.set(Calendar.HOUR_OF_DAY, hourOfDay);
+                        calendar.set(Calendar.MINUTE, minute);
+                        calendar.set(Calendar.SECOND, 0);
+                        calendar.set(Calendar.MILLISECOND, 0);
+                        listener.onDueDateSet(calendar.getTimeInMillis());
+                    }
+                }, calendar.get(Calendar.HOUR_OF_DAY), calendar.get(Calendar.MINUTE),
+                        DateFormat.is24HourFormat(getActivity())).show();
+            }
+        }, calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH),
+                calendar.get(Calendar.DAY_OF_MONTH)).show();
+    }
+    
+    // Android 13 起需要用户允许才能显示提醒通知
+    private void requestNotificationPermission() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+                && getActivity().checkSelfPermission(Manifest.permission.POST_NOTIFICATIONS)
+                        != PackageManager.PERMISSION_GRANTED) {
+            requestPermissions(new String[]{Manifest.permission.POST_NOTIFICATIONS}, 0);
+        }
+    }
+    
+    private static String formatDueDate(Context context, long time) {
+        return DateUtils.formatDateTime(context, time, DateUtils.FORMAT_SHOW_DATE
+                | DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_ABBREV_MONTH);
+    }
+    
+    private void addTodo(String content, long dueDate, boolean remind, long parentId) {
         // 创建新的待办事项
         ContentValues values = new ContentValues();
         values.put(NotePad.Notes.COLUMN_NAME_TITLE, content);
@@ -132,6 +329,17 @@ public class TodoFragment extends Fragment {
         values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, System.currentTimeMillis());
         values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
         values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, TODO_STATUS_PENDING); // 默认为未完成状态
+        if (dueDate > 0) {
+            values.put(NotePad.Notes.COLUMN_NAME_DUE_DATE, dueDate);
+        }
+        if (remind) {
+            // 提醒时间有索引，提供者据此只为最早的一个提醒设置闹钟
+            values.put(NotePad.Notes.COLUMN_NAME_REMIND_AT, dueDate);
+        }
+        if (parentId >= 0) {
+            // 父任务的完成进度由提供者随之更新
+            values.put(NotePad.Notes.COLUMN_NAME_PARENT_ID, parentId);
+        }
         
         // 插入到数据库
         Uri uri = getActivity().getContentResolver().insert(NotePad.Notes.CONTENT_URI, values);
@@ -175,6 +383,7 @@ public class TodoFragment extends Fragment {
             ContentValues values = new ContentValues();
             values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, newCategory);
             values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+            // 已完成的待办不再提醒，由provider清除提醒时间
             
             getActivity().getContentResolver().update(
                     Uri.withAppendedPath(NotePad.Notes.CONTENT_ID_URI_BASE, String.valueOf(todoId)),
@@ -195,22 +404,31 @@ public class TodoFragment extends Fragment {
     /**
      * 自定义适配器，用于显示分组的待办事项列表
      */
-    private class TodoExpandableListAdapter extends BaseExpandableListAdapter {
+    static class TodoExpandableListAdapter extends BaseExpandableListAdapter {
+        private Context mContext;
         private List<GroupItem> groupItems;
         private Map<String, List<Map<String, String>>> childData;
         private Map<String, List<Long>> childIds;
+        private Map<String, List<String>> childRanks;
+        private Map<String, List<Long>> childParents;
+        private View.OnClickListener mOnAddSubtaskListener;
         
-        public TodoExpandableListAdapter() {
+        public TodoExpandableListAdapter(Context context) {
+            mContext = context;
             groupItems = new ArrayList<>();
             childData = new HashMap<>();
             childIds = new HashMap<>();
-            loadData();
+            childRanks = new HashMap<>();
+            childParents = new HashMap<>();
+            // Nothing is loaded until the tab is first shown; see refreshTodos() in onResume().
         }
         
         public void loadData() {
             groupItems.clear();
             childData.clear();
             childIds.clear();
+            childRanks.clear();
+            childParents.clear();
             
             // 查询未完成的待办事项
             int pendingCount = loadTodosForCategory(TODO_STATUS_PENDING, "未完成");
@@ -226,42 +444,77 @@ public class TodoFragment extends Fragment {
         private int loadTodosForCategory(String category, String groupName) {
             List<Map<String, String>> groupData = new ArrayList<>();
             List<Long> groupIds = new ArrayList<>();
+            List<String> groupRanks = new ArrayList<>();
+            List<Long> groupParents = new ArrayList<>();
             
-            Cursor cursor = getActivity().getContentResolver().query(
-                    NotePad.Notes.CONTENT_URI,
-                    new String[]{
-                            NotePad.Notes._ID,
-                            NotePad.Notes.COLUMN_NAME_TITLE,
-                            NotePad.Notes.COLUMN_NAME_CREATE_DATE
-                    },
-                    NotePad.Notes.COLUMN_NAME_CATEGORY + "=?",
-                    new String[]{category},
-                    NotePad.Notes.DEFAULT_SORT_ORDER
+            // 一次查询取出该状态的待办及其各级子任务，已按层级和用户排定的顺序排好
+            Cursor cursor = mContext.getContentResolver().query(
+                    NotePad.Notes.getTodoTreeUri(category),
+                    null,
+                    null,
+                    null,
+                    null
             );
             
             if (cursor != null) {
+                int idIndex = cursor.getColumnIndex(NotePad.Notes._ID);
+                int titleIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
+                int categoryIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY);
+                int dueIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_DUE_DATE);
+                int rankIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_RANK);
+                int parentIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_PARENT_ID);
+                int subtasksIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_SUBTASKS);
+                int doneIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_SUBTASKS_DONE);
+                int depthIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_DEPTH);
                 while (cursor.moveToNext()) {
-                    int idIndex = cursor.getColumnIndex(NotePad.Notes._ID);
-                    int titleIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
-                    
                     long id = cursor.getLong(idIndex);
                     String title = cursor.getString(titleIndex);
+                    int depth = cursor.getInt(depthIndex);
                     
                     Map<String, String> item = new HashMap<>();
                     item.put("TITLE", title);
-                    item.put("CATEGORY", category); // 添加类别信息
+                    // 子任务按自己的状态显示，可能与所在分组不同
+                    item.put("CATEGORY", cursor.getString(categoryIndex));
+                    item.put("DEPTH", String.valueOf(depth));
+                    if (!cursor.isNull(dueIndex)) {
+                        item.put("DUE", formatDueDate(mContext, cursor.getLong(dueIndex)));
+                    }
+                    int subtasks = cursor.getInt(subtasksIndex);
+                    if (subtasks > 0) {
+                        item.put("PROGRESS", cursor.getInt(doneIndex) + "/" + subtasks);
+                    }
                     groupData.add(item);
                     groupIds.add(id);
+                    groupRanks.add(cursor.getString(rankIndex));
+                    // 顶层的待办互为兄弟，父任务在回收站里的也算顶层
+                    groupParents.add(depth == 0 ? -1L : cursor.getLong(parentIndex));
                 }
                 cursor.close();
             }
             
             childData.put(groupName, groupData);
             childIds.put(groupName, groupIds);
+            childRanks.put(groupName, groupRanks);
+            childParents.put(groupName, groupParents);
             
             return groupData.size(); // 返回数量
         }
         
+        // 分组中各待办的排序键，与子项一一对应
+        List<String> getChildRanks(int groupPosition) {
+            return childRanks.get(groupItems.get(groupPosition).title);
+        }
+        
+        // 分组中各待办的父任务 ID，顶层为 -1
+        List<Long> getChildParents(int groupPosition) {
+            return childParents.get(groupItems.get(groupPosition).title);
+        }
+        
+        // 点击子项上的加号时调用，视图的 tag 是该待办的 ID
+        void setOnAddSubtaskListener(View.OnClickListener listener) {
+            mOnAddSubtaskListener = listener;
+        }
+        
         @Override
         public int getGroupCount() {
             return groupItems.size();
@@ -311,7 +564,7 @@ public class TodoFragment extends Fragment {
             GroupViewHolder holder;
             
             if (convertView == null) {
-                convertView = LayoutInflater.from(getActivity()).inflate(R.layout.list_group_todo, parent, false);
+                convertView = LayoutInflater.from(mContext).inflate(R.layout.list_group_todo, parent, false);
                 holder = new GroupViewHolder();
                 holder.title = convertView.findViewById(R.id.group_title);
                 holder.count = convertView.findViewById(R.id.group_count);
@@ -335,10 +588,15 @@ public class TodoFragment extends Fragment {
             ChildViewHolder holder;
             
             if (convertView == null) {
-                convertView = LayoutInflater.from(getActivity()).inflate(R.layout.list_item_todo, parent, false);
+                convertView = LayoutInflater.from(mContext).inflate(R.layout.list_item_todo, parent, false);
                 holder = new ChildViewHolder();
                 holder.icon = convertView.findViewById(R.id.todo_status_icon);
                 holder.title = convertView.findViewById(R.id.todo_title);
+                holder.due = convertView.findViewById(R.id.todo_due);
+                holder.progress = convertView.findViewById(R.id.todo_progress);
+                holder.addSubtask = convertView.findViewById(R.id.todo_add_subtask);
+                holder.paddingLeft = convertView.getPaddingLeft();
+                holder.addSubtask.setOnClickListener(mOnAddSubtaskListener);
                 convertView.setTag(holder);
             } else {
                 holder = (ChildViewHolder) convertView.getTag();
@@ -351,6 +609,22 @@ public class TodoFragment extends Fragment {
                 
                 holder.title.setText(title);
                 
+                // 显示截止时间
+                String due = child.get("DUE");
+                holder.due.setText(due);
+                holder.due.setVisibility(due != null ? View.VISIBLE : View.GONE);
+                
+                // 子任务按层级缩进，有子任务的显示完成进度
+                int indent = (int) (24 * mContext.getResources().getDisplayMetrics().density);
+                convertView.setPadding(holder.paddingLeft
+                                + indent * Integer.parseInt(child.get("DEPTH")),
+                        convertView.getPaddingTop(), convertView.getPaddingRight(),
+                        convertView.getPaddingBottom());
+                String progress = child.get("PROGRESS");
+                holder.progress.setText(progress);
+                holder.progress.setVisibility(progress != null ? View.VISIBLE : View.GONE);
+                holder.addSubtask.setTag(getChildId(groupPosition, childPosition));
+                
                 // 根据状态设置图标和颜色
                 if (TODO_STATUS_PENDING.equals(category)) {
                     holder.icon.setImageResource(R.drawable.ic_todo_pending);
@@ -392,6 +666,10 @@ public class TodoFragment extends Fragment {
         private class ChildViewHolder {
             ImageView icon;
             TextView title;
+            TextView due;
+            TextView progress;
+            ImageView addSubtask;
+            int paddingLeft;
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,199 @@
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * The order the user gives their todos. Each todo has a rank key, a string of base 62 digits
+ * compared as text, and the todos of a status are listed by it. A todo is moved by giving it a
+ * key between those of its new neighbours, see {@link #between}, so a move writes one row
+ * however long the list is.
+ *
+ * <p>Keys only grow when todos keep being moved into the same gap, about one digit per six
+ * moves. Once a key is longer than {@link #MAX_KEY_LENGTH}, {@link #rebalance} gives the todos
+ * evenly spaced keys of the shortest length that fits them again. It runs in the background,
+ * when the provider starts and from the maintenance job, and also gives keys to todos that have
+ * none, as those from before ranks or moved to a todo status by a bulk update.
+ */
+final class TodoRank {
+
+    /**
+     * The digits of a key, in the order SQLite compares them as text.
+     */
+    static final String DIGITS =
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+    /**
+     * The length of key beyond which the keys are rebalanced.
+     */
+    static final int MAX_KEY_LENGTH = 12;
+
+    /**
+     * The categories that hold todos, by their status.
+     */
+    static final String[] CATEGORIES = new String[] { "todo_pending", "todo_completed" };
+
+    /**
+     * Selects the notes that aren't todos, uncategorized ones included.
+     */
+    static final String NOT_TODO = "IFNULL(" + NotePad.Notes.COLUMN_NAME_CATEGORY
+            + ", '') NOT IN ('" + CATEGORIES[0] + "', '" + CATEGORIES[1] + "')";
+
+    private static final int BASE = DIGITS.length();
+
+    // The index of the todos of each status by rank. Served by any query with one category.
+    private static final String RANK_INDEX = "notes_rank";
+
+    // The lowest key of a status, for a todo that goes on top of it.
+    private static final String FIRST_SQL = "SELECT MIN(" + NotePad.Notes.COLUMN_NAME_RANK
+            + ") FROM " + NotePad.Notes.TABLE_NAME + " WHERE "
+            + NotePad.Notes.COLUMN_NAME_CATEGORY + " = ? AND " + NoteTrash.NOT_IN_TRASH;
+
+    private static final String TODOS = NotePad.Notes.COLUMN_NAME_CATEGORY + " IN ('"
+            + CATEGORIES[0] + "', '" + CATEGORIES[1] + "') AND " + NoteTrash.NOT_IN_TRASH;
+
+    // Whether any todo has no key, or one that is too long.
+    private static final String UNBALANCED_SQL = "SELECT EXISTS (SELECT 1 FROM "
+            + NotePad.Notes.TABLE_NAME + " WHERE " + TODOS + " AND ("
+            + NotePad.Notes.COLUMN_NAME_RANK + " IS NULL OR LENGTH("
+            + NotePad.Notes.COLUMN_NAME_RANK + ") > " + MAX_KEY_LENGTH + "))";
+
+    // This class cannot be instantiated
+    private TodoRank() {
+    }
+
+    /**
+     * Creates the index of the todos by rank. The column must exist.
+     */
+    static void createIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + RANK_INDEX + " ON " + NotePad.Notes.TABLE_NAME + " ("
+                + NotePad.Notes.COLUMN_NAME_CATEGORY + ", " + NotePad.Notes.COLUMN_NAME_RANK
+                + ") WHERE " + NoteTrash.NOT_IN_TRASH + ";");
+    }
+
+    /**
+     * Returns whether the category holds todos.
+     */
+    static boolean isTodo(String category) {
+        return CATEGORIES[0].equals(category) || CATEGORIES[1].equals(category);
+    }
+
+    /**
+     * Returns a key that puts a todo on top of the others of the category.
+     */
+    static String first(SQLiteDatabase db, String category) {
+        return between(null, DatabaseUtils.stringForQuery(db, FIRST_SQL,
+                new String[] { category }));
+    }
+
+    /**
+     * Returns the shortest key after {@code before} and before {@code after}, either of which
+     * may be null for no bound. No key ends in the lowest digit, so there is always room for
+     * another before it.
+     *
+     * @throws IllegalArgumentException if {@code before} doesn't come before {@code after}.
+     */
+    static String between(String before, String after) {
+        if (before != null && after != null && before.compareTo(after) >= 0) {
+            throw new IllegalArgumentException(before + " is not before " + after);
+        }
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; ; i++) {
+            int low = before != null && i < before.length() ? digit(before.charAt(i)) : 0;
+            int high = after != null && i < after.length() ? digit(after.charAt(i)) : BASE;
+            if (low == high) {
+                key.append(DIGITS.charAt(low));
+                continue;
+            }
+            int middle = (low + high) / 2;
+            if (middle > low) {
+                return key.append(DIGITS.charAt(middle)).toString();
+            }
+            // No digit fits between: whatever follows the lower one is below the upper bound.
+            key.append(DIGITS.charAt(low));
+            after = null;
+        }
+    }
+
+    /**
+     * Returns whether some todo has no key, or one longer than {@link #MAX_KEY_LENGTH}.
+     */
+    static boolean isUnbalanced(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, UNBALANCED_SQL, null) != 0;
+    }
+
+    /**
+     * Gives the todos evenly spaced keys of the same length, in their current order, with those
+     * without a key first, as they are listed. The keys run on from one status to the next, so
+     * no two todos share one, as subtasks of both statuses are ordered among each other. The
+     * todos are rekeyed in one transaction, so a move in between can't be lost.
+     *
+     * @return the number of todos rekeyed: every todo outside the trash, pending and completed
+     * together, since all of them are given new keys.
+     */
+    static int rebalance(SQLiteDatabase db) {
+        SQLiteStatement update = db.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME
+                + " SET " + NotePad.Notes.COLUMN_NAME_RANK + " = ? WHERE "
+                + NotePad.Notes._ID + " = ?");
+        db.beginTransaction();
+        try {
+            Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] { NotePad.Notes._ID },
+                    TODOS, null, null, null, NotePad.Notes.COLUMN_NAME_CATEGORY + " DESC, "
+                            + NotePad.Notes.COLUMN_NAME_RANK + " IS NOT NULL, "
+                            + NotePad.Notes.COLUMN_NAME_RANK + ", "
+                            + NotePad.Notes.DEFAULT_SORT_ORDER);
+            int count;
+            try {
+                count = c.getCount();
+                for (int i = 0; c.moveToNext(); i++) {
+                    update.bindString(1, spaced(i, count));
+                    update.bindLong(2, c.getLong(0));
+                    update.executeUpdateDelete();
+                }
+            } finally {
+                c.close();
+            }
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+            update.close();
+        }
+    }
+
+    /**
+     * Returns the key of the i-th of {@code count} evenly spaced keys, all of the shortest
+     * length that leaves a gap before the first, after the last, and between any two.
+     */
+    static String spaced(int i, int count) {
+        int length = 1;
+        for (long room = BASE; room <= 2L * count + 1; room *= BASE) {
+            length++;
+        }
+        long room = 1;
+        for (int d = 0; d < length; d++) {
+            room *= BASE;
+        }
+        // Keys are at least two apart, so one ending in the lowest digit can be moved up.
+        long value = (i + 1) * room / (count + 1);
+        if (value % BASE == 0) {
+            value++;
+        }
+        char[] key = new char[length];
+        for (int d = length - 1; d >= 0; d--) {
+            key[d] = DIGITS.charAt((int) (value % BASE));
+            value /= BASE;
+        }
+        return new String(key);
+    }
+
+    private static int digit(char c) {
+        int digit = DIGITS.indexOf(c);
+        if (digit < 0) {
+            throw new IllegalArgumentException("Not a rank key digit: " + c);
+        }
+        return digit;
+    }
+}
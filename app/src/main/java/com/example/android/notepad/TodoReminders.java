@@ -0,0 +1,153 @@
+package com.example.android.notepad;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The reminders of todos. However many todos have one, a single alarm is registered with the
+ * system, for the earliest: it is found through a partial index that holds only the reminders
+ * still to come, so finding it costs the same with ten todos as with ten thousand. When it
+ * goes off, {@link ReminderReceiver} shows every reminder that is due, clears them, and arms
+ * the alarm for the next one.
+ *
+ * <p>The provider re-arms the alarm after any change that can move the earliest reminder. The
+ * time armed last is remembered, so a change that doesn't move it costs one index lookup and
+ * no call to the alarm manager.
+ */
+final class TodoReminders {
+
+    /**
+     * The action of the alarm's intent.
+     */
+    static final String ACTION_REMIND = "com.example.android.notepad.action.REMIND";
+
+    /**
+     * Selects the reminders still to come of the notes that aren't in the trash. The index only
+     * serves a query that implies it, as a comparison on the reminder column does.
+     */
+    static final String PENDING = NotePad.Notes.COLUMN_NAME_REMIND_AT + " IS NOT NULL AND "
+            + NoteTrash.NOT_IN_TRASH;
+
+    // The index of the reminders still to come, by the time they are due.
+    private static final String REMINDER_INDEX = "notes_reminders";
+
+    // The time of the earliest reminder, or 0 if there is none; MIN() reads one index entry.
+    private static final String NEXT_SQL = "SELECT IFNULL(MIN("
+            + NotePad.Notes.COLUMN_NAME_REMIND_AT + "), 0) FROM " + NotePad.Notes.TABLE_NAME
+            + " WHERE " + PENDING;
+
+    private static final String DUE_WHERE = NotePad.Notes.COLUMN_NAME_REMIND_AT + " <= ? AND "
+            + NoteTrash.NOT_IN_TRASH;
+
+    // The time the alarm was last armed for, 0 if it was cancelled, or -1 if not known. A new
+    // process, as after a reboot, which drops alarms, arms it again.
+    private static long sArmedAt = -1;
+
+    // This class cannot be instantiated
+    private TodoReminders() {
+    }
+
+    /**
+     * A reminder that is due.
+     */
+    static final class Reminder {
+        final long id;
+        final String title;
+
+        Reminder(long id, String title) {
+            this.id = id;
+            this.title = title;
+        }
+    }
+
+    /**
+     * Creates the index of the reminders. The columns must exist.
+     */
+    static void createIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + REMINDER_INDEX + " ON " + NotePad.Notes.TABLE_NAME + " ("
+                + NotePad.Notes.COLUMN_NAME_REMIND_AT + ") WHERE " + PENDING + ";");
+    }
+
+    /**
+     * Returns the time of the earliest reminder still to come, or 0 if there is none.
+     */
+    static long next(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, NEXT_SQL, null);
+    }
+
+    /**
+     * Returns the reminders due by the given time, and clears them in the same transaction,
+     * so each is shown once.
+     */
+    static List<Reminder> takeDue(SQLiteDatabase db, long now) {
+        String[] args = new String[] { String.valueOf(now) };
+        List<Reminder> due = new ArrayList<Reminder>();
+        db.beginTransaction();
+        try {
+            Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] {
+                    NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE
+            }, DUE_WHERE, args, null, null, NotePad.Notes.COLUMN_NAME_REMIND_AT);
+            try {
+                while (c.moveToNext()) {
+                    due.add(new Reminder(c.getLong(0), NoteBodyCodec.decodeTitle(c, 1)));
+                }
+            } finally {
+                c.close();
+            }
+            if (!due.isEmpty()) {
+                db.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                        + NotePad.Notes.COLUMN_NAME_REMIND_AT + " = NULL WHERE " + DUE_WHERE,
+                        args);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return due;
+    }
+
+    /**
+     * Arms the alarm for the given time, replacing the one armed before, or cancels it if the
+     * time is 0. Does nothing if the alarm is already armed for that time.
+     */
+    static synchronized void arm(Context context, long at) {
+        if (at == sArmedAt) {
+            return;
+        }
+        AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        // Not there in test contexts.
+        if (alarms == null) {
+            return;
+        }
+        PendingIntent remind = PendingIntent.getBroadcast(context, 0,
+                new Intent(ACTION_REMIND).setClass(context, ReminderReceiver.class),
+                pendingIntentFlags());
+        if (at == 0) {
+            alarms.cancel(remind);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // Goes off in Doze too, if up to a few minutes late; an exact alarm would need the
+            // user to grant the app a special permission.
+            alarms.setAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, at, remind);
+        } else {
+            alarms.set(AlarmManager.RTC_WAKEUP, at, remind);
+        }
+        sArmedAt = at;
+    }
+
+    private static int pendingIntentFlags() {
+        int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            flags |= PendingIntent.FLAG_IMMUTABLE;
+        }
+        return flags;
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Subtasks: a todo may have a parent, set when it is added, and any number of subtasks, to any
+ * depth. Each todo caches how many subtasks it has below it, and how many of those are
+ * completed, so the progress of a whole project is read with the todo itself.
+ *
+ * <p>The caches are kept up to date as the todos change, in the transaction of the change.
+ * Adding a subtask, and ticking one off or reopening it, which are what a checklist mostly
+ * sees, update the todos above it by one, found with a recursive query up the parents. Moving
+ * todos to the trash or back recounts every todo with subtasks in one recursive query, see
+ * {@link #recount}.
+ *
+ * <p>All queries walk the tree through the index of the parent column, so a whole list of
+ * todos with their subtasks is read in one query, see {@link #TREE_SQL}.
+ */
+final class TodoTree {
+
+    /**
+     * The status of a completed todo.
+     */
+    static final String COMPLETED = TodoRank.CATEGORIES[1];
+
+    // The index of the subtasks by parent, which every walk down the tree goes through.
+    private static final String PARENT_INDEX = "notes_parent";
+
+    /**
+     * The todos of the status given as the only parameter that aren't subtasks of another todo
+     * outside the trash, each followed by its subtasks, depth first, all in the order of their
+     * ranks. The depth of each is in {@link NotePad.Notes#COLUMN_NAME_DEPTH}.
+     *
+     * <p>A path of the ranks from the top is built for each todo; the separator sorts before any
+     * digit, so every todo comes before its subtasks, and they before its next sibling.
+     */
+    static final String TREE_SQL = "WITH RECURSIVE tree(id, depth, path) AS ("
+            + "SELECT " + NotePad.Notes._ID + ", 0, IFNULL(" + NotePad.Notes.COLUMN_NAME_RANK
+            + ", '') FROM " + NotePad.Notes.TABLE_NAME + " WHERE "
+            + NotePad.Notes.COLUMN_NAME_CATEGORY + " = ? AND " + NoteTrash.NOT_IN_TRASH
+            + " AND (" + NotePad.Notes.COLUMN_NAME_PARENT_ID + " IS NULL OR NOT EXISTS (SELECT 1"
+            + " FROM " + NotePad.Notes.TABLE_NAME + " parent WHERE parent." + NotePad.Notes._ID
+            + " = " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_PARENT_ID
+            + " AND parent." + NoteTrash.NOT_IN_TRASH + "))"
+            + " UNION ALL SELECT child." + NotePad.Notes._ID + ", tree.depth + 1, tree.path"
+            + " || '/' || IFNULL(child." + NotePad.Notes.COLUMN_NAME_RANK + ", '') FROM "
+            + NotePad.Notes.TABLE_NAME + " child JOIN tree ON child."
+            + NotePad.Notes.COLUMN_NAME_PARENT_ID + " = tree.id WHERE child."
+            + NoteTrash.NOT_IN_TRASH + ")"
+            + " SELECT note." + NotePad.Notes._ID + ", note." + NotePad.Notes.COLUMN_NAME_TITLE
+            + ", note." + NotePad.Notes.COLUMN_NAME_CATEGORY
+            + ", note." + NotePad.Notes.COLUMN_NAME_DUE_DATE
+            + ", note." + NotePad.Notes.COLUMN_NAME_RANK
+            + ", note." + NotePad.Notes.COLUMN_NAME_PARENT_ID
+            + ", note." + NotePad.Notes.COLUMN_NAME_SUBTASKS
+            + ", note." + NotePad.Notes.COLUMN_NAME_SUBTASKS_DONE
+            + ", tree.depth AS " + NotePad.Notes.COLUMN_NAME_DEPTH + " FROM tree JOIN "
+            + NotePad.Notes.TABLE_NAME + " note ON note." + NotePad.Notes._ID + " = tree.id"
+            + " ORDER BY tree.path";
+
+    /**
+     * The index of the title column in the rows of {@link #TREE_SQL}.
+     */
+    static final int TITLE_INDEX = 1;
+
+    // The todos above the one given as the last parameter. The first step may be null.
+    private static final String ANCESTORS = "WITH RECURSIVE ancestors(id) AS (SELECT "
+            + NotePad.Notes.COLUMN_NAME_PARENT_ID + " FROM " + NotePad.Notes.TABLE_NAME
+            + " WHERE " + NotePad.Notes._ID + " = ? UNION SELECT "
+            + NotePad.Notes.COLUMN_NAME_PARENT_ID + " FROM " + NotePad.Notes.TABLE_NAME
+            + " JOIN ancestors ON " + NotePad.Notes._ID + " = ancestors.id) SELECT id FROM"
+            + " ancestors";
+
+    // Adds to the counts of the todos above one.
+    private static final String ADJUST_SQL = "UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+            + NotePad.Notes.COLUMN_NAME_SUBTASKS + " = " + NotePad.Notes.COLUMN_NAME_SUBTASKS
+            + " + ?, " + NotePad.Notes.COLUMN_NAME_SUBTASKS_DONE + " = "
+            + NotePad.Notes.COLUMN_NAME_SUBTASKS_DONE + " + ? WHERE " + NotePad.Notes._ID
+            + " IN (" + ANCESTORS + ")";
+
+    // Moves the subtasks below the todo given as the second parameter to the trash, at the
+    // time given as the first, along with it.
+    private static final String TRASH_SUBTASKS_SQL = "UPDATE " + NotePad.Notes.TABLE_NAME
+            + " SET " + NotePad.Notes.COLUMN_NAME_DELETED_AT + " = ?1 WHERE "
+            + NoteTrash.NOT_IN_TRASH + " AND " + NotePad.Notes._ID + " IN ("
+            + "WITH RECURSIVE subtasks(id) AS (SELECT " + NotePad.Notes._ID + " FROM "
+            + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes.COLUMN_NAME_PARENT_ID
+            + " = ?2 AND " + NoteTrash.NOT_IN_TRASH + " UNION ALL SELECT child."
+            + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME + " child JOIN subtasks"
+            + " ON child." + NotePad.Notes.COLUMN_NAME_PARENT_ID + " = subtasks.id WHERE child."
+            + NoteTrash.NOT_IN_TRASH + ") SELECT id FROM subtasks)";
+
+    // Puts back the subtasks below the todo given as the first parameter that went to the
+    // trash with it, at the time given as the second.
+    private static final String RESTORE_SUBTASKS_SQL = "UPDATE " + NotePad.Notes.TABLE_NAME
+            + " SET " + NotePad.Notes.COLUMN_NAME_DELETED_AT + " = NULL WHERE "
+            + NotePad.Notes._ID + " IN (WITH RECURSIVE subtasks(id) AS (SELECT "
+            + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME + " WHERE "
+            + NotePad.Notes.COLUMN_NAME_PARENT_ID + " = ?1 AND "
+            + NotePad.Notes.COLUMN_NAME_DELETED_AT + " = ?2 UNION ALL SELECT child."
+            + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME + " child JOIN subtasks"
+            + " ON child." + NotePad.Notes.COLUMN_NAME_PARENT_ID + " = subtasks.id WHERE child."
+            + NotePad.Notes.COLUMN_NAME_DELETED_AT + " = ?2) SELECT id FROM subtasks)";
+
+    // Whether any note has a parent.
+    private static final String NESTED_SQL = "SELECT EXISTS (SELECT 1 FROM "
+            + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes.COLUMN_NAME_PARENT_ID
+            + " IS NOT NULL)";
+
+    /*
+     * The counts of every todo with subtasks, from the pairs of each todo outside the trash and
+     * each todo above it, in one recursive query. A todo whose subtasks are all in the trash
+     * gets zeros.
+     */
+    private static final String RECOUNT_SQL = "WITH RECURSIVE below(ancestor, id) AS (SELECT "
+            + NotePad.Notes.COLUMN_NAME_PARENT_ID + ", " + NotePad.Notes._ID + " FROM "
+            + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes.COLUMN_NAME_PARENT_ID
+            + " IS NOT NULL AND " + NoteTrash.NOT_IN_TRASH + " UNION ALL SELECT note."
+            + NotePad.Notes.COLUMN_NAME_PARENT_ID + ", below.id FROM below JOIN "
+            + NotePad.Notes.TABLE_NAME + " note ON note." + NotePad.Notes._ID
+            + " = below.ancestor WHERE note." + NotePad.Notes.COLUMN_NAME_PARENT_ID
+            + " IS NOT NULL AND note." + NoteTrash.NOT_IN_TRASH + ")"
+            + " SELECT parents.id, COUNT(below.id), COUNT(CASE WHEN subtask."
+            + NotePad.Notes.COLUMN_NAME_CATEGORY + " = '" + COMPLETED + "' THEN 1 END) FROM"
+            + " (SELECT DISTINCT " + NotePad.Notes.COLUMN_NAME_PARENT_ID + " AS id FROM "
+            + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes.COLUMN_NAME_PARENT_ID
+            + " IS NOT NULL) parents LEFT JOIN below ON below.ancestor = parents.id LEFT JOIN "
+            + NotePad.Notes.TABLE_NAME + " subtask ON subtask." + NotePad.Notes._ID
+            + " = below.id GROUP BY parents.id";
+
+    // This class cannot be instantiated
+    private TodoTree() {
+    }
+
+    /**
+     * Creates the index of the subtasks by parent. The column must exist.
+     */
+    static void createIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + PARENT_INDEX + " ON " + NotePad.Notes.TABLE_NAME + " ("
+                + NotePad.Notes.COLUMN_NAME_PARENT_ID + ") WHERE "
+                + NotePad.Notes.COLUMN_NAME_PARENT_ID + " IS NOT NULL;");
+    }
+
+    /**
+     * Returns 1 if the status is that of a completed todo, 0 otherwise.
+     */
+    static int completed(String category) {
+        return COMPLETED.equals(category) ? 1 : 0;
+    }
+
+    /**
+     * Adds to the number of subtasks, and of completed ones, of every todo above the given one.
+     * Must be called in the transaction of the change.
+     */
+    static void adjust(SQLiteDatabase db, long noteId, int subtasks, int done) {
+        db.execSQL(ADJUST_SQL, new Object[] { subtasks, done, noteId });
+    }
+
+    /**
+     * Moves the subtasks below the todo to the trash with it, stamped with the same time so
+     * they are restored with it.
+     */
+    static void trashSubtasks(SQLiteDatabase db, long noteId, long now) {
+        db.execSQL(TRASH_SUBTASKS_SQL, new Object[] { now, noteId });
+    }
+
+    /**
+     * Puts back the subtasks that were moved to the trash with the todo.
+     */
+    static void restoreSubtasks(SQLiteDatabase db, long noteId, long deletedAt) {
+        db.execSQL(RESTORE_SUBTASKS_SQL, new Object[] { noteId, deletedAt });
+    }
+
+    /**
+     * Returns whether any note is a subtask, and so whether there are counts to keep.
+     */
+    static boolean hasSubtasks(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, NESTED_SQL, null) != 0;
+    }
+
+    /**
+     * Counts the subtasks, and the completed ones, of every todo with subtasks again. Must be
+     * called in the transaction of the change.
+     */
+    static void recount(SQLiteDatabase db) {
+        SQLiteStatement update = db.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME
+                + " SET " + NotePad.Notes.COLUMN_NAME_SUBTASKS + " = ?, "
+                + NotePad.Notes.COLUMN_NAME_SUBTASKS_DONE + " = ? WHERE " + NotePad.Notes._ID
+                + " = ?");
+        Cursor c = db.rawQuery(RECOUNT_SQL, null);
+        try {
+            while (c.moveToNext()) {
+                update.bindLong(1, c.getLong(1));
+                update.bindLong(2, c.getLong(2));
+                update.bindLong(3, c.getLong(0));
+                update.executeUpdateDelete();
+            }
+        } finally {
+            c.close();
+            update.close();
+        }
+    }
+}
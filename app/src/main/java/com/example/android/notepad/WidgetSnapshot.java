@@ -0,0 +1,222 @@
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What the home-screen widget shows, the most recently modified notes and pending todos,
+ * precomputed into a small file.
+ *
+ * <p>The provider rewrites the file after the notes change, on {@link AppExecutors#diskIO()},
+ * and the widget only ever reads it, so drawing the widget, when it is added or the launcher
+ * restarts, costs a read of a few hundred bytes instead of a database query. The file is only
+ * replaced when what it holds changed, so an edit that doesn't touch the shown titles wakes
+ * neither the file system nor the launcher.
+ *
+ * <p>While notes are encrypted, so is the file, like the titles it copies; see
+ * {@link NoteCipher}. It then holds {@link #SEALED_VERSION} followed by the sealed form of
+ * what it would hold otherwise.
+ */
+final class WidgetSnapshot {
+
+    private static final String TAG = "WidgetSnapshot";
+
+    /**
+     * The name of the file in the application's files directory.
+     */
+    static final String FILE_NAME = "widget_snapshot";
+
+    /**
+     * The most notes, and the most todos, kept. The widget has a row for each.
+     */
+    static final int MAX_NOTES = 4;
+    static final int MAX_TODOS = 3;
+
+    // Titles are cut to what a widget row could show.
+    private static final int MAX_TITLE_LENGTH = 80;
+
+    private static final int VERSION = 1;
+    private static final int SEALED_VERSION = 2;
+
+    private static final String NOTES_SQL = "SELECT " + NotePad.Notes._ID + ", "
+            + NotePad.Notes.COLUMN_NAME_TITLE + " FROM " + NotePad.Notes.TABLE_NAME
+            + " WHERE " + NoteTrash.NOT_IN_TRASH + " AND " + TodoRank.NOT_TODO + " ORDER BY "
+            + NotePad.Notes.DEFAULT_SORT_ORDER + " LIMIT " + MAX_NOTES;
+
+    private static final String TODOS_SQL = "SELECT " + NotePad.Notes._ID + ", "
+            + NotePad.Notes.COLUMN_NAME_TITLE + " FROM " + NotePad.Notes.TABLE_NAME
+            + " WHERE " + NoteTrash.NOT_IN_TRASH + " AND " + NotePad.Notes.COLUMN_NAME_CATEGORY
+            + " = '" + TodoRank.CATEGORIES[0] + "' ORDER BY " + NotePad.Notes.DEFAULT_SORT_ORDER
+            + " LIMIT " + MAX_TODOS;
+
+    /**
+     * A row of the widget.
+     */
+    static final class Item {
+        final long id;
+        final String title;
+
+        Item(long id, String title) {
+            this.id = id;
+            this.title = title;
+        }
+    }
+
+    final List<Item> notes;
+    final List<Item> todos;
+
+    WidgetSnapshot(List<Item> notes, List<Item> todos) {
+        this.notes = Collections.unmodifiableList(notes);
+        this.todos = Collections.unmodifiableList(todos);
+    }
+
+    /**
+     * Returns the snapshot of the notes in the database. Runs two queries that each read a
+     * handful of rows through the modification date.
+     */
+    static WidgetSnapshot query(SQLiteDatabase db) {
+        return new WidgetSnapshot(items(db, NOTES_SQL), items(db, TODOS_SQL));
+    }
+
+    private static List<Item> items(SQLiteDatabase db, String sql) {
+        List<Item> items = new ArrayList<Item>();
+        Cursor c = db.rawQuery(sql, null);
+        try {
+            while (c.moveToNext()) {
+                String title = c.isNull(1) ? "" : NoteBodyCodec.decodeTitle(c, 1);
+                if (title.length() > MAX_TITLE_LENGTH) {
+                    title = title.substring(0, MAX_TITLE_LENGTH);
+                }
+                items.add(new Item(c.getLong(0), title));
+            }
+        } finally {
+            c.close();
+        }
+        return items;
+    }
+
+    /**
+     * Writes the snapshot to the file, unless the file already holds it, stored the same way.
+     *
+     * @param encrypt whether to encrypt the file.
+     * @return whether the file was written.
+     */
+    boolean writeTo(File file, boolean encrypt) throws IOException {
+        byte[] bytes = toBytes();
+        AtomicFile atomicFile = new AtomicFile(file);
+        try {
+            // A sealed file is different every time it's written, so what it holds is compared.
+            byte[] stored = atomicFile.readFully();
+            if (isSealed(stored) == encrypt && Arrays.equals(bytes, open(stored))) {
+                return false;
+            }
+        } catch (FileNotFoundException e) {
+            // Not written yet.
+        } catch (IllegalStateException e) {
+            // Sealed with a key that's gone; replaced.
+        }
+
+        byte[] written = encrypt ? seal(bytes) : bytes;
+        FileOutputStream out = atomicFile.startWrite();
+        try {
+            out.write(written);
+            atomicFile.finishWrite(out);
+        } catch (IOException e) {
+            atomicFile.failWrite(out);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the snapshot from the file. Returns an empty snapshot if there is no file or it
+     * can't be read, as when it was written by another version.
+     */
+    static WidgetSnapshot readFrom(File file) {
+        List<Item> notes = new ArrayList<Item>();
+        List<Item> todos = new ArrayList<Item>();
+        try {
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(open(new AtomicFile(file).readFully())));
+            if (in.readInt() == VERSION) {
+                readItems(in, notes);
+                readItems(in, todos);
+            }
+        } catch (FileNotFoundException e) {
+            // No widget was ever updated.
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't read the widget snapshot", e);
+            notes.clear();
+            todos.clear();
+        } catch (IllegalStateException e) {
+            // Sealed with a key that's gone. The provider writes a new one.
+            Log.w(TAG, "Couldn't open the widget snapshot", e);
+            notes.clear();
+            todos.clear();
+        }
+        return new WidgetSnapshot(notes, todos);
+    }
+
+    private static boolean isSealed(byte[] stored) {
+        return stored.length >= 4 && ByteBuffer.wrap(stored).getInt() == SEALED_VERSION;
+    }
+
+    /**
+     * Returns the bytes of a file as {@link #toBytes()} made them, decrypting them if need be.
+     *
+     * @throws IllegalStateException if a sealed file was changed, or sealed with another key.
+     */
+    private static byte[] open(byte[] stored) {
+        if (!isSealed(stored)) {
+            return stored;
+        }
+        return NoteCipher.get().decrypt(Arrays.copyOfRange(stored, 4, stored.length));
+    }
+
+    private static byte[] seal(byte[] bytes) {
+        byte[] sealed = NoteCipher.get().encrypt(bytes);
+        return ByteBuffer.allocate(4 + sealed.length).putInt(SEALED_VERSION).put(sealed)
+                .array();
+    }
+
+    private byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(VERSION);
+        writeItems(out, notes);
+        writeItems(out, todos);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeItems(DataOutputStream out, List<Item> items) throws IOException {
+        out.writeInt(items.size());
+        for (Item item : items) {
+            out.writeLong(item.id);
+            out.writeUTF(item.title);
+        }
+    }
+
+    private static void readItems(DataInputStream in, List<Item> into) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            into.add(new Item(in.readLong(), in.readUTF()));
+        }
+    }
+}
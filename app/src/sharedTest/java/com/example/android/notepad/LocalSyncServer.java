@@ -0,0 +1,93 @@
+package com.example.android.notepad;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A sync server that runs in the same process, for the tests and benchmarks of the sync engine,
+ * which it lets run without a network.
+ *
+ * <p>It keeps the latest state of each note, under a sequence number of its own that grows with
+ * every change it stores. A change replaces the earlier one for the same note, so like the
+ * client's log, it holds one entry per note, and a client that pulls gets each note at most
+ * once however often it changed.
+ */
+final class LocalSyncServer implements SyncTransport {
+
+    private final TreeMap<Long, Stored> mChanges = new TreeMap<Long, Stored>();
+    private final Map<String, Long> mSequences = new HashMap<String, Long>();
+    private long mLastSequence;
+
+    private long mBytesReceived;
+    private long mBytesSent;
+
+    private static final class Stored {
+        final String clientId;
+        final SyncBatch.Change change;
+
+        Stored(String clientId, SyncBatch.Change change) {
+            this.clientId = clientId;
+            this.change = change;
+        }
+    }
+
+    @Override
+    public synchronized void push(String clientId, byte[] batch) throws IOException {
+        mBytesReceived += batch.length;
+        for (SyncBatch.Change change : SyncBatch.decode(batch).changes) {
+            Long previous = mSequences.get(change.syncId);
+            if (previous != null) {
+                mChanges.remove(previous);
+            }
+            mChanges.put(++mLastSequence, new Stored(clientId, change));
+            mSequences.put(change.syncId, mLastSequence);
+        }
+    }
+
+    @Override
+    public synchronized byte[] pull(String clientId, long cursor, int limit) throws IOException {
+        List<SyncBatch.Change> changes = new ArrayList<SyncBatch.Change>();
+        long last = cursor;
+        Iterator<Map.Entry<Long, Stored>> it = mChanges.tailMap(cursor, false).entrySet()
+                .iterator();
+        while (it.hasNext() && changes.size() < limit) {
+            Map.Entry<Long, Stored> entry = it.next();
+            // A client's own changes are skipped, but still move its position along.
+            if (!entry.getValue().clientId.equals(clientId)) {
+                changes.add(entry.getValue().change);
+            }
+            last = entry.getKey();
+        }
+        byte[] batch = new SyncBatch(last, it.hasNext(), changes).encode();
+        mBytesSent += batch.length;
+        return batch;
+    }
+
+    /**
+     * Returns the number of notes the server has a state for, deleted ones included.
+     */
+    synchronized int size() {
+        return mChanges.size();
+    }
+
+    /**
+     * Returns the latest state of the note with the sync id, or null if it was never sent.
+     */
+    synchronized SyncBatch.Change get(String syncId) {
+        Long sequence = mSequences.get(syncId);
+        return sequence != null ? mChanges.get(sequence).change : null;
+    }
+
+    synchronized long bytesReceived() {
+        return mBytesReceived;
+    }
+
+    synchronized long bytesSent() {
+        return mBytesSent;
+    }
+}
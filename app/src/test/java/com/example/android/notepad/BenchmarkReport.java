@@ -0,0 +1,153 @@
+package com.example.android.notepad;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Times benchmark operations and writes the results as JSON, one file per benchmark class, so a
+ * CI job can keep the files and compare them between commits.
+ */
+final class BenchmarkReport {
+
+    /**
+     * One benchmarked operation. The iteration number lets an operation pick a different row on
+     * every call, so that caches don't turn the benchmark into a no-op.
+     */
+    interface Op {
+        void run(int iteration) throws Exception;
+    }
+
+    /**
+     * The timings for one operation, in nanoseconds per call.
+     */
+    static final class Result {
+        final String name;
+        final int iterations;
+        final long minNs;
+        final long medianNs;
+        final long p90Ns;
+        final long maxNs;
+        final double meanNs;
+
+        Result(String name, long[] samples) {
+            long[] sorted = samples.clone();
+            Arrays.sort(sorted);
+            long total = 0;
+            for (long sample : sorted) {
+                total += sample;
+            }
+            this.name = name;
+            this.iterations = sorted.length;
+            this.minNs = sorted[0];
+            this.medianNs = sorted[sorted.length / 2];
+            this.p90Ns = sorted[Math.min(sorted.length - 1, (int) (sorted.length * 0.9))];
+            this.maxNs = sorted[sorted.length - 1];
+            this.meanNs = (double) total / sorted.length;
+        }
+
+        String toJson() {
+            return "{\"name\":\"" + name + "\""
+                    + ",\"iterations\":" + iterations
+                    + ",\"minNs\":" + minNs
+                    + ",\"medianNs\":" + medianNs
+                    + ",\"p90Ns\":" + p90Ns
+                    + ",\"maxNs\":" + maxNs
+                    + ",\"meanNs\":" + Math.round(meanNs) + "}";
+        }
+    }
+
+    private final String mSuite;
+    private final List<Result> mResults = new ArrayList<>();
+    private final Map<String, Long> mMetrics = new LinkedHashMap<>();
+
+    BenchmarkReport(String suite) {
+        mSuite = suite;
+    }
+
+    /**
+     * Returns the number of measured iterations per operation, from notepad.benchIterations.
+     */
+    static int iterations() {
+        return Integer.getInteger("notepad.benchIterations", 50);
+    }
+
+    /**
+     * Runs the operation a few times to warm up the JIT and SQLite's page cache, then times
+     * each of the measured iterations separately.
+     */
+    Result measure(String name, Op op) throws Exception {
+        int iterations = iterations();
+        int warmup = Math.max(5, iterations / 10);
+        for (int i = 0; i < warmup; i++) {
+            op.run(i);
+        }
+
+        long[] samples = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            op.run(warmup + i);
+            samples[i] = System.nanoTime() - start;
+        }
+
+        Result result = new Result(name, samples);
+        mResults.add(result);
+        System.out.println(mSuite + " " + result.toJson());
+        return result;
+    }
+
+    /**
+     * Records a value that isn't a timing, such as the size of the database, under the given
+     * name.
+     */
+    void record(String name, long value) {
+        mMetrics.put(name, value);
+        System.out.println(mSuite + " " + name + "=" + value);
+    }
+
+    /**
+     * Writes all results recorded so far to notepad.benchOut/&lt;suite&gt;.json.
+     */
+    void write(SyntheticDataset dataset) throws IOException {
+        File dir = new File(System.getProperty("notepad.benchOut", "build/benchmark-results"));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"suite\":\"").append(mSuite).append("\"");
+        json.append(",\"timestamp\":").append(System.currentTimeMillis());
+        json.append(",\"dataset\":").append(dataset.toJson());
+        json.append(",\"results\":[");
+        for (int i = 0; i < mResults.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(mResults.get(i).toJson());
+        }
+        json.append("],\"metrics\":{");
+        int index = 0;
+        for (Map.Entry<String, Long> metric : mMetrics.entrySet()) {
+            if (index++ > 0) {
+                json.append(',');
+            }
+            json.append('"').append(metric.getKey()).append("\":").append(metric.getValue());
+        }
+        json.append("}}\n");
+
+        Writer writer = new OutputStreamWriter(
+                new FileOutputStream(new File(dir, mSuite + ".json")), "UTF-8");
+        try {
+            writer.write(json.toString());
+        } finally {
+            writer.close();
+        }
+    }
+}
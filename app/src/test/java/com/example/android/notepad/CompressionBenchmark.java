@@ -0,0 +1,133 @@
+package com.example.android.notepad;
+
+import android.app.Application;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares storing note bodies as plain text with storing large bodies compressed: the size of
+ * the database, the time to migrate it, and the time to read notes with and without their body.
+ * Bodies default to 8000 chars here, since shorter ones are never compressed.
+ *
+ * ./gradlew :app:testDebugUnitTest -Pbenchmark --tests '*CompressionBenchmark'
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class)
+public class CompressionBenchmark {
+
+    private static final String[] LIST_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+    };
+
+    private static final String[] BODY_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_NOTE
+    };
+
+    private ContentResolver mResolver;
+    private NotePadProvider mProvider;
+    private SyntheticDataset mDataset;
+    private BenchmarkReport mReport;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.setupContentProvider(NotePadProvider.class, NotePad.AUTHORITY);
+        mProvider.setCompressLargeNotes(false);
+        mResolver = ApplicationProvider.getApplicationContext().getContentResolver();
+
+        mDataset = SyntheticDataset.fromSystemProperties(8000);
+        mDataset.populate(mProvider);
+        mReport = new BenchmarkReport("CompressionBenchmark");
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        String expected = readBody(1);
+        measure("plain");
+
+        mProvider.setCompressLargeNotes(true);
+        long start = System.nanoTime();
+        int migrated = mProvider.migrateNoteBodies();
+        mReport.record("migrate_ms", (System.nanoTime() - start) / 1000000);
+        mReport.record("migrated_notes", migrated);
+        assertEquals(expected, readBody(1));
+        measure("deflate");
+
+        mReport.write(mDataset);
+    }
+
+    private void measure(String mode) throws Exception {
+        SQLiteDatabase db = mProvider.getOpenHelperForTest().getWritableDatabase();
+        db.execSQL("VACUUM");
+        long pages = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+        long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+        mReport.record(mode + "_database_bytes", pages * pageSize);
+
+        // What the editor does when it opens a note.
+        mReport.measure(mode + "_read_note", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                readBody(1 + (iteration % mDataset.noteCount));
+            }
+        });
+
+        // The list doesn't project the body, so it should cost the same in both modes.
+        mReport.measure(mode + "_read_list", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                drain(mResolver.query(NotePad.Notes.CONTENT_URI, LIST_PROJECTION,
+                        null, null, null));
+            }
+        });
+
+        mReport.measure(mode + "_read_all_bodies", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                drain(mResolver.query(NotePad.Notes.CONTENT_URI, BODY_PROJECTION,
+                        null, null, null));
+            }
+        });
+    }
+
+    private String readBody(long id) {
+        Cursor cursor = mResolver.query(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id),
+                BODY_PROJECTION, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(1);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void drain(Cursor cursor) {
+        try {
+            int columns = cursor.getColumnCount();
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < columns; i++) {
+                    cursor.getString(i);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.android.notepad;
+
+import android.app.Application;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares storing note bodies as plain text with storing them encrypted: the cost of deriving
+ * the key, the time to migrate the database, and the time to show the notes list, which
+ * decrypts every snippet, and to open a single note, which decrypts its body.
+ *
+ * ./gradlew :app:testDebugUnitTest -Pbenchmark --tests '*EncryptionBenchmark'
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class)
+public class EncryptionBenchmark {
+
+    // What the notes list shows.
+    private static final String[] LIST_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_SNIPPET
+    };
+
+    private static final String[] BODY_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_NOTE
+    };
+
+    private ContentResolver mResolver;
+    private NotePadProvider mProvider;
+    private SyntheticDataset mDataset;
+    private BenchmarkReport mReport;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.setupContentProvider(NotePadProvider.class, NotePad.AUTHORITY);
+        mProvider.setEncryptNotes(false);
+        mResolver = ApplicationProvider.getApplicationContext().getContentResolver();
+
+        mDataset = SyntheticDataset.fromSystemProperties();
+        mDataset.populate(mProvider);
+        mReport = new BenchmarkReport("EncryptionBenchmark");
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        String expected = readBody(1);
+        measure("plain");
+
+        // Paid once per process, on the first note encrypted or decrypted.
+        long start = System.nanoTime();
+        NoteCipher.deriveKey(new byte[32], new byte[16]);
+        mReport.record("derive_key_ms", (System.nanoTime() - start) / 1000000);
+
+        mProvider.setEncryptNotes(true);
+        start = System.nanoTime();
+        int migrated = mProvider.migrateNoteBodies();
+        mReport.record("migrate_ms", (System.nanoTime() - start) / 1000000);
+        mReport.record("migrated_notes", migrated);
+        assertEquals(expected, readBody(1));
+        measure("encrypted");
+
+        mReport.write(mDataset);
+    }
+
+    private void measure(String mode) throws Exception {
+        SQLiteDatabase db = mProvider.getOpenHelperForTest().getWritableDatabase();
+        db.execSQL("VACUUM");
+        long pages = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+        long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+        mReport.record(mode + "_database_bytes", pages * pageSize);
+
+        mReport.measure(mode + "_read_list", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                drain(mResolver.query(NotePad.Notes.CONTENT_URI, LIST_PROJECTION,
+                        null, null, null));
+            }
+        });
+
+        // What the editor does when it opens a note.
+        mReport.measure(mode + "_read_note", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                readBody(1 + (iteration % mDataset.noteCount));
+            }
+        });
+
+        // What another app reading the note as a stream does.
+        mReport.measure(mode + "_open_body", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) throws Exception {
+                readStream(NotePad.Notes.getBodyUri(1 + (iteration % mDataset.noteCount)));
+            }
+        });
+    }
+
+    private String readBody(long id) {
+        Cursor cursor = mResolver.query(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id),
+                BODY_PROJECTION, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(1);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void readStream(Uri uri) throws IOException {
+        InputStream in = mResolver.openInputStream(uri);
+        try {
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) > 0) {
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void drain(Cursor cursor) {
+        try {
+            int columns = cursor.getColumnCount();
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < columns; i++) {
+                    cursor.getString(i);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.android.notepad;
+
+import android.app.Application;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures what the maintenance job gains after delete cycles: the synthetic data set is
+ * loaded, half the notes deleted, and the database measured and a few typical queries timed
+ * before and after each run.
+ * The first run rebuilds a database created before incremental vacuum; the second finds only
+ * the pages freed by another delete cycle.
+ *
+ * ./gradlew :app:testDebugUnitTest -Pbenchmark --tests '*MaintenanceBenchmark'
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class)
+public class MaintenanceBenchmark {
+
+    /*
+     * The queries timed before and after each run, standing in for the notes list, the category
+     * groups and a full scan of the notes table.
+     */
+    private static final String[][] PROBES = new String[][] {
+            { "list", "SELECT " + NotePad.Notes._ID + ", " + NotePad.Notes.COLUMN_NAME_TITLE
+                    + ", " + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                    + NotePad.Notes.COLUMN_NAME_SNIPPET + " FROM " + NotePad.Notes.TABLE_NAME
+                    + " WHERE " + NoteTrash.NOT_IN_TRASH + " ORDER BY "
+                    + NotePad.Notes.DEFAULT_SORT_ORDER + " LIMIT 100" },
+            { "categories", "SELECT " + NotePad.Notes.COLUMN_NAME_CATEGORY + ", COUNT(*) FROM "
+                    + NotePad.Notes.TABLE_NAME + " WHERE " + NoteTrash.NOT_IN_TRASH
+                    + " GROUP BY " + NotePad.Notes.COLUMN_NAME_CATEGORY },
+            { "scan", "SELECT COUNT(*) FROM " + NotePad.Notes.TABLE_NAME + " WHERE "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + " LIKE '%note%'" },
+    };
+
+    private NotePadProvider mProvider;
+    private SyntheticDataset mDataset;
+    private BenchmarkReport mReport;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.setupContentProvider(NotePadProvider.class, NotePad.AUTHORITY);
+        mDataset = SyntheticDataset.fromSystemProperties();
+        mDataset.populate(mProvider);
+        mReport = new BenchmarkReport("MaintenanceBenchmark");
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        SQLiteDatabase db = mProvider.getOpenHelperForTest().getWritableDatabase();
+
+        // As an upgraded database would be: without incremental vacuum.
+        db.execSQL("PRAGMA auto_vacuum = NONE");
+        db.execSQL("VACUUM");
+        deleteNotes(db, 2, 0);
+        measureProbes(db, "rebuild_before");
+        NoteMaintenance.Report rebuild = mProvider.runMaintenance();
+        assertTrue(rebuild.rebuilt);
+        assertTrue(rebuild.analyzed);
+        record("rebuild", rebuild);
+        measureProbes(db, "rebuild_after");
+
+        deleteNotes(db, 4, 1);
+        measureProbes(db, "incremental_before");
+        NoteMaintenance.Report incremental = mProvider.runMaintenance();
+        assertFalse(incremental.rebuilt);
+        assertEquals(0, incremental.after.freePages);
+        record("incremental", incremental);
+        measureProbes(db, "incremental_after");
+
+        mReport.write(mDataset);
+    }
+
+    private static void deleteNotes(SQLiteDatabase db, int modulus, int remainder) {
+        db.delete(NotePad.Notes.TABLE_NAME,
+                NotePad.Notes._ID + " % " + modulus + " = " + remainder, null);
+    }
+
+    private void record(String run, NoteMaintenance.Report report) {
+        mReport.record(run + "_ms", report.durationMillis);
+        mReport.record(run + "_pages_freed", report.pagesFreed);
+        record(run + "_before", report.before);
+        record(run + "_after", report.after);
+    }
+
+    private void record(String prefix, NoteMaintenance.Snapshot snapshot) {
+        mReport.record(prefix + "_file_bytes", snapshot.fileBytes);
+        mReport.record(prefix + "_wal_bytes", snapshot.walBytes);
+        mReport.record(prefix + "_free_pages", snapshot.freePages);
+    }
+
+    private void measureProbes(final SQLiteDatabase db, String prefix) throws Exception {
+        for (final String[] probe : PROBES) {
+            mReport.measure(prefix + "_" + probe[0], new BenchmarkReport.Op() {
+                @Override
+                public void run(int iteration) {
+                    Cursor c = db.rawQuery(probe[1], null);
+                    try {
+                        while (c.moveToNext()) {
+                            // Stepping through the rows is what is timed.
+                        }
+                    } finally {
+                        c.close();
+                    }
+                }
+            });
+        }
+    }
+}
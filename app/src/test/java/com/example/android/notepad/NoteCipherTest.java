@@ -0,0 +1,147 @@
+package com.example.android.notepad;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests {@link NoteCipher}: that what it seals opens again, whole and in chunks, and that any
+ * change to the sealed bytes is caught rather than decrypted into garbage.
+ */
+public class NoteCipherTest {
+
+    private final NoteCipher mCipher = new NoteCipher(new SecretKeySpec(new byte[32], "AES"));
+
+    @Test
+    public void valuesRoundTrip() {
+        byte[] plain = "Milk, eggs 鸡蛋 😀".getBytes();
+        byte[] sealed = mCipher.encrypt(plain);
+        assertArrayEquals(plain, mCipher.decrypt(sealed));
+        assertArrayEquals(new byte[0], mCipher.decrypt(mCipher.encrypt(new byte[0])));
+
+        // Each value gets an IV of its own, so equal texts don't look equal.
+        assertFalse(Arrays.equals(sealed, mCipher.encrypt(plain)));
+    }
+
+    @Test
+    public void changedValuesAreRejected() {
+        byte[] sealed = mCipher.encrypt("Milk, eggs".getBytes());
+        for (int i = 0; i < sealed.length; i++) {
+            byte[] changed = sealed.clone();
+            changed[i] ^= 1;
+            try {
+                mCipher.decrypt(changed);
+                fail("byte " + i + " changed unnoticed");
+            } catch (IllegalStateException expected) {
+            }
+        }
+        byte[] otherKey = new byte[32];
+        otherKey[0] = 1;
+        NoteCipher other = new NoteCipher(new SecretKeySpec(otherKey, "AES"));
+        try {
+            other.decrypt(sealed);
+            fail("opened with another key");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void blindIndexIsKeyed() {
+        String hash = mCipher.blindIndex("egg");
+        assertEquals(16, hash.length());
+        assertEquals(hash, mCipher.blindIndex("egg"));
+        assertFalse(hash.equals(mCipher.blindIndex("eg ")));
+
+        // Another key hashes the same text differently.
+        byte[] otherKey = new byte[32];
+        otherKey[0] = 1;
+        assertFalse(hash.equals(
+                new NoteCipher(new SecretKeySpec(otherKey, "AES")).blindIndex("egg")));
+    }
+
+    @Test
+    public void streamsRoundTripAtChunkBoundaries() throws IOException {
+        int chunk = NoteCipher.CHUNK_LENGTH;
+        Random random = new Random(0);
+        for (int length : new int[] { 0, 1, chunk - 1, chunk, chunk + 1, 3 * chunk + 17 }) {
+            byte[] plain = new byte[length];
+            random.nextBytes(plain);
+            assertArrayEquals("length " + length, plain, decrypt(encrypt(plain)));
+        }
+    }
+
+    @Test
+    public void streamsSealedInPiecesRoundTrip() throws IOException {
+        int chunk = NoteCipher.CHUNK_LENGTH;
+        byte[] plain = new byte[2 * chunk];
+        new Random(2).nextBytes(plain);
+
+        // Written in pieces that don't line up with the chunks, then as one exact chunk.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NoteCipher.SealingOutputStream sealed = mCipher.seal(out);
+        sealed.write(plain, 0, 100);
+        sealed.write(plain[100]);
+        sealed.write(plain, 101, chunk - 101);
+        sealed.write(plain, chunk, chunk);
+        sealed.finish();
+        assertArrayEquals(plain, decrypt(out.toByteArray()));
+        assertEquals(encrypt(plain).length, out.size());
+    }
+
+    @Test
+    public void changedStreamsAreRejected() throws IOException {
+        int chunk = NoteCipher.CHUNK_LENGTH;
+        byte[] plain = new byte[2 * chunk + 100];
+        new Random(1).nextBytes(plain);
+        byte[] sealed = encrypt(plain);
+        // A random prefix, then each chunk followed by its tag.
+        int prefix = 8;
+        int sealedChunk = chunk + 16;
+        assertEquals(prefix + 2 * sealedChunk + 100 + 16, sealed.length);
+
+        byte[] flipped = sealed.clone();
+        flipped[sealed.length / 2] ^= 1;
+        assertRejected("flipped bit", flipped);
+
+        // The last chunk dropped, leaving whole chunks.
+        assertRejected("dropped chunk", Arrays.copyOf(sealed, prefix + 2 * sealedChunk));
+
+        byte[] swapped = sealed.clone();
+        System.arraycopy(sealed, prefix + sealedChunk, swapped, prefix, sealedChunk);
+        System.arraycopy(sealed, prefix, swapped, prefix + sealedChunk, sealedChunk);
+        assertRejected("swapped chunks", swapped);
+
+        assertRejected("empty", new byte[0]);
+    }
+
+    private byte[] encrypt(byte[] plain) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mCipher.encrypt(plain, out);
+        return out.toByteArray();
+    }
+
+    private byte[] decrypt(byte[] sealed) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mCipher.decrypt(new ByteArrayInputStream(sealed), out);
+        return out.toByteArray();
+    }
+
+    private void assertRejected(String message, byte[] sealed) {
+        try {
+            decrypt(sealed);
+            fail(message + " unnoticed");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.example.android.notepad;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link NoteMerge} with hand-written cases and with randomized concurrent edit
+ * histories. Each randomized test runs a few hundred histories from fixed seeds, so a failure
+ * can be replayed.
+ */
+public class NoteMergeTest {
+
+    private static final int HISTORIES = 300;
+
+    @Test
+    public void oneSidedEdits() {
+        assertEquals("a\nb\n", NoteMerge.merge("a\n", "a\nb\n", "a\n"));
+        assertEquals("a\nb\n", NoteMerge.merge("a\n", "a\n", "a\nb\n"));
+        assertEquals("a\nb\n", NoteMerge.merge("a\n", "a\nb\n", "a\nb\n"));
+        assertEquals("", NoteMerge.merge("a\n", "", "a\n"));
+    }
+
+    @Test
+    public void editsOfTheSameLineMergeByWord() {
+        assertEquals("The quick red fox jumps\n", NoteMerge.merge(
+                "The quick brown fox\n", "The quick red fox\n", "The quick brown fox jumps\n"));
+        assertEquals("去超市买牛奶和鸡蛋", NoteMerge.merge("买牛奶", "买牛奶和鸡蛋", "去超市买牛奶"));
+    }
+
+    @Test
+    public void conflictingEditsKeepBothVersions() {
+        assertEquals("ours\ntheirs\n", NoteMerge.merge("base\n", "ours\n", "theirs\n"));
+        assertEquals("ours\ntheirs", NoteMerge.merge("base", "ours", "theirs"));
+    }
+
+    /*
+     * Both sides edit lines of their own, with an untouched line between any line of one and
+     * any line of the other, so the merge must be exactly the base with both sets of edits.
+     */
+    @Test
+    public void disjointEditsAreAllApplied() {
+        for (int seed = 0; seed < HISTORIES; seed++) {
+            Random random = new Random(seed);
+            List<String> base = baseLines(random, 3 + random.nextInt(60));
+            List<String> ours = new ArrayList<String>();
+            List<String> theirs = new ArrayList<String>();
+            List<String> expected = new ArrayList<String>();
+            for (int i = 0; i < base.size(); i++) {
+                // Lines 0 and 1 of every three belong to one side, alternately; line 2 is
+                // left alone by both.
+                boolean guard = i % 3 == 2;
+                boolean ourLine = !guard && (i / 3) % 2 == 0;
+                String line = base.get(i);
+                List<String> edited = guard
+                        ? single(line) : edit(random, line, ourLine ? "o" : "t");
+                ours.addAll(ourLine ? edited : single(line));
+                theirs.addAll(!guard && !ourLine ? edited : single(line));
+                expected.addAll(edited);
+            }
+            assertEquals("seed " + seed, join(expected),
+                    NoteMerge.merge(join(base), join(ours), join(theirs)));
+        }
+    }
+
+    /*
+     * Both sides make random edits anywhere, overlapping or not. Whatever the merge does where
+     * they overlap, every word either side typed must be in the result.
+     */
+    @Test
+    public void overlappingEditsLoseNothing() {
+        for (int seed = 0; seed < HISTORIES; seed++) {
+            Random random = new Random(seed);
+            String base = join(baseLines(random, 1 + random.nextInt(20)));
+            List<String> ourWords = new ArrayList<String>();
+            List<String> theirWords = new ArrayList<String>();
+            String ours = typeWords(random, base, "o", ourWords);
+            String theirs = typeWords(random, base, "t", theirWords);
+
+            String merged = NoteMerge.merge(base, ours, theirs);
+            for (String word : ourWords) {
+                assertTrue("seed " + seed + " lost " + word, merged.contains(word));
+            }
+            for (String word : theirWords) {
+                assertTrue("seed " + seed + " lost " + word, merged.contains(word));
+            }
+            assertEquals("seed " + seed, merged, NoteMerge.merge(base, ours, theirs));
+            assertEquals(ours, NoteMerge.merge(base, ours, base));
+            assertEquals(theirs, NoteMerge.merge(base, base, theirs));
+        }
+    }
+
+    /*
+     * A few edits at both ends of a large note.
+     */
+    @Test
+    public void largeNote() {
+        Random random = new Random(42);
+        List<String> base = baseLines(random, 50000);
+        List<String> ours = new ArrayList<String>(base);
+        List<String> theirs = new ArrayList<String>(base);
+        List<String> expected = new ArrayList<String>(base);
+        ours.set(10, "ours 10\n");
+        expected.set(10, "ours 10\n");
+        theirs.set(49990, "theirs 49990\n");
+        expected.set(49990, "theirs 49990\n");
+        theirs.add(25000, "theirs inserted\n");
+        expected.add(25000, "theirs inserted\n");
+
+        assertEquals(join(expected), NoteMerge.merge(join(base), join(ours), join(theirs)));
+    }
+
+    private static List<String> baseLines(Random random, int count) {
+        List<String> lines = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            lines.add("line " + i + " " + Long.toString(random.nextLong(), 36) + "\n");
+        }
+        return lines;
+    }
+
+    /**
+     * Returns what a side turns the line into: the line itself, a replacement, nothing, or
+     * the line with a new line before it.
+     */
+    private static List<String> edit(Random random, String line, String side) {
+        List<String> edited = new ArrayList<String>();
+        switch (random.nextInt(4)) {
+            case 0:
+                edited.add(line);
+                break;
+            case 1:
+                edited.add(side + " replaced " + Long.toString(random.nextLong(), 36) + "\n");
+                break;
+            case 2:
+                break;
+            default:
+                edited.add(side + " inserted " + Long.toString(random.nextLong(), 36) + "\n");
+                edited.add(line);
+                break;
+        }
+        return edited;
+    }
+
+    /**
+     * Types a few words of the side's own at random places in the text, and deletes a few
+     * random ranges between them, the way an editor session might.
+     */
+    private static String typeWords(Random random, String text, String side, List<String> words) {
+        StringBuilder edited = new StringBuilder(text);
+        int edits = 1 + random.nextInt(6);
+        for (int i = 0; i < edits; i++) {
+            if (edited.length() > 0 && random.nextInt(3) == 0) {
+                int start = random.nextInt(edited.length());
+                int end = Math.min(edited.length(), start + 1 + random.nextInt(10));
+                // Never delete a word typed earlier in this session.
+                boolean typed = false;
+                for (String word : words) {
+                    int at = edited.indexOf(word);
+                    typed |= at < end && at + word.length() > start;
+                }
+                if (!typed) {
+                    edited.delete(start, end);
+                }
+                continue;
+            }
+            String word = side + i + "x" + Long.toString(random.nextLong() & 0xFFFFFF, 36);
+            int at = random.nextInt(edited.length() + 1);
+            for (String typed : words) {
+                int typedAt = edited.indexOf(typed);
+                if (at > typedAt && at < typedAt + typed.length()) {
+                    at = typedAt;
+                }
+            }
+            edited.insert(at, random.nextBoolean() ? word : word + "\n");
+            words.add(word);
+        }
+        return edited.toString();
+    }
+
+    private static List<String> single(String line) {
+        List<String> lines = new ArrayList<String>(1);
+        lines.add(line);
+        return lines;
+    }
+
+    private static String join(List<String> lines) {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,372 @@
+package com.example.android.notepad;
+
+import android.app.Application;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Microbenchmarks for the provider and list hot paths, run on the JVM under Robolectric against
+ * a synthetic data set. Results are printed and written as JSON to build/benchmark-results.
+ *
+ * These are excluded from the normal unit test run. To run them:
+ * ./gradlew :app:testDebugUnitTest -Pbenchmark [-PbenchNotes=20000 -PbenchBodySize=2000 ...]
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class) // no startup preload racing the data set setup
+public class NotePadBenchmark {
+
+    private static final String[] NOTE_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_SNIPPET
+    };
+
+    private static final String[] EDITOR_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY
+    };
+
+    private static final String[] CATEGORY_PROJECTION = new String[] {
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+            "COUNT(*) AS count"
+    };
+
+    // The same projection and selection NotesFragment uses when the search box is not empty.
+    private static final String[] SEARCH_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+            NotePad.Notes.COLUMN_NAME_SNIPPET,
+            NotePad.Notes.COLUMN_NAME_TITLE_MATCH_START,
+            NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET,
+            NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET_START
+    };
+    private static final String SEARCH_SELECTION = NotePad.Notes.COLUMN_NAME_CATEGORY
+            + " NOT IN ('todo_pending', 'todo_completed')";
+
+    private Context mContext;
+    private ContentResolver mResolver;
+    private NotePadProvider mProvider;
+    private SyntheticDataset mDataset;
+    private BenchmarkReport mReport;
+
+    @Before
+    public void setUp() {
+        mContext = ApplicationProvider.getApplicationContext();
+        mProvider = Robolectric.setupContentProvider(NotePadProvider.class, NotePad.AUTHORITY);
+        mResolver = mContext.getContentResolver();
+
+        mDataset = SyntheticDataset.fromSystemProperties();
+        mDataset.populate(mProvider);
+        mReport = new BenchmarkReport("NotePadBenchmark");
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        measureQueries();
+        measureWrites();
+        measureSearch();
+        measureTitleIndex();
+        measureLists();
+        measureSync();
+        mReport.write(mDataset);
+    }
+
+    private void measureQueries() throws Exception {
+        mReport.measure("query_notes", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                drain(mResolver.query(NotePad.Notes.CONTENT_URI, NOTE_PROJECTION,
+                        null, null, null));
+            }
+        });
+
+        mReport.measure("query_note_id", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                drain(mResolver.query(noteUri(iteration), EDITOR_PROJECTION, null, null, null));
+            }
+        });
+
+        // A note that doesn't exist, so SQLite does next to nothing and what is measured is
+        // the provider's own overhead per query.
+        final Uri missingNoteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                Integer.MAX_VALUE);
+        mReport.measure("query_note_id_missing", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                drain(mResolver.query(missingNoteUri, EDITOR_PROJECTION, null, null, null));
+            }
+        });
+
+        mReport.measure("query_revisions", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                drain(mResolver.query(NotePad.Revisions.getContentUri(
+                        1 + (iteration % mDataset.noteCount)), null, null, null, null));
+            }
+        });
+
+        mReport.measure("query_live_folder", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                drain(mResolver.query(NotePad.Notes.LIVE_FOLDER_URI, null, null, null, null));
+            }
+        });
+
+        mReport.measure("query_categories", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                drain(mResolver.query(NotePad.Notes.CATEGORIES_URI, CATEGORY_PROJECTION,
+                        null, null, null));
+            }
+        });
+    }
+
+    private void measureWrites() throws Exception {
+        final Random random = new Random(mDataset.seed);
+        final long now = System.currentTimeMillis();
+
+        mReport.measure("insert", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                mResolver.insert(NotePad.Notes.CONTENT_URI,
+                        mDataset.nextNote(random, iteration, now));
+            }
+        });
+
+        mReport.measure("update_note", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                ContentValues values = new ContentValues();
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, mDataset.body(random));
+                values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now + iteration);
+                mResolver.update(noteUri(iteration), values, null, null);
+            }
+        });
+
+        mReport.measure("update_title", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                ContentValues values = new ContentValues();
+                values.put(NotePad.Notes.COLUMN_NAME_TITLE, "title " + iteration);
+                mResolver.update(noteUri(iteration), values, null, null);
+            }
+        });
+    }
+
+    private void measureSearch() throws Exception {
+        mReport.measure("search_selective", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                search(SyntheticDataset.NEEDLE);
+            }
+        });
+
+        mReport.measure("search_common", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                search("meeting");
+            }
+        });
+
+        // A common word in one category, in the last month, so the filters select through the
+        // (category, modified) index before the text is matched.
+        final String lastMonth = new SimpleDateFormat("yyyy-MM-dd", Locale.ROOT).format(
+                new Date(System.currentTimeMillis() - 30L * 24 * 60 * 60 * 1000));
+        mReport.measure("search_structured", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                search("cat:" + mDataset.category(1) + " modified:>" + lastMonth + " meeting");
+            }
+        });
+
+        // The needle with two letters swapped, as a typo.
+        mReport.measure("search_fuzzy", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                drain(mResolver.query(NotePad.Notes.getFuzzySearchUri("zehpyr"), null,
+                        SEARCH_SELECTION, null, null));
+            }
+        });
+    }
+
+    private void measureTitleIndex() throws Exception {
+        final HashMap<Long, String> titles = new HashMap<Long, String>();
+        Cursor cursor = mResolver.query(NotePad.Notes.CONTENT_URI, new String[] {
+                NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE
+        }, SEARCH_SELECTION, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                titles.put(cursor.getLong(0),
+                        cursor.getString(1) != null ? cursor.getString(1) : "");
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Building the index from the titles, as it is once they have been read.
+        final TitleIndex.Snapshot[] snapshot = new TitleIndex.Snapshot[1];
+        mReport.measure("title_index_build", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                snapshot[0] = new TitleIndex.Snapshot(titles);
+            }
+        });
+
+        // A prefix of a word most titles have, and one only the needle notes have later on.
+        mReport.measure("title_index_lookup_common", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                snapshot[0].lookup("mee", TitleIndex.MAX_MATCHES);
+            }
+        });
+        mReport.measure("title_index_lookup_word", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                snapshot[0].lookup(SyntheticDataset.NEEDLE.substring(0, 3),
+                        TitleIndex.MAX_MATCHES);
+            }
+        });
+        List<TitleIndex.Match> matches = snapshot[0].lookup(SyntheticDataset.NEEDLE,
+                TitleIndex.MAX_MATCHES);
+        assertFalse(matches.isEmpty());
+        mReport.record("title_index_lookup_word_matches", matches.size());
+
+        // What a title edited in the editor costs: one note merged into a new copy.
+        mReport.measure("title_index_rename", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                snapshot[0] = snapshot[0].with(1 + (iteration % mDataset.noteCount),
+                        "renamed " + iteration);
+            }
+        });
+    }
+
+    private void measureLists() throws Exception {
+        // NotesExpandableListAdapter.refresh() runs loadGroups() on the background thread and
+        // only swaps the result in on the main thread, so the load is what gets measured.
+        mReport.measure("notes_adapter_refresh", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                NotesFragment.NotesExpandableListAdapter.loadGroups(mContext, null, null);
+            }
+        });
+        assertFalse(NotesFragment.NotesExpandableListAdapter
+                .loadGroups(mContext, null, null).isEmpty());
+
+        mReport.measure("notes_adapter_filter", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                NotesFragment.NotesExpandableListAdapter.loadGroups(
+                        mContext, SyntheticDataset.NEEDLE, null);
+            }
+        });
+
+        // Toggling between two searches, the way the list's search cache sees it: after the
+        // first two loads every refresh is a hit.
+        final SearchCache searches = new SearchCache();
+        mReport.measure("notes_adapter_filter_cached", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                String query = iteration % 2 == 0 ? SyntheticDataset.NEEDLE : "meeting";
+                if (searches.get(query, null) == null) {
+                    searches.put(query, null, NotesFragment.NotesExpandableListAdapter
+                            .loadGroups(mContext, query, null));
+                }
+            }
+        });
+        mReport.record("search_cache_hits", searches.hitCount());
+        mReport.record("search_cache_misses", searches.missCount());
+
+        final TodoFragment.TodoExpandableListAdapter todos =
+                new TodoFragment.TodoExpandableListAdapter(mContext);
+
+        mReport.measure("todo_adapter_load", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                todos.loadData();
+            }
+        });
+    }
+
+    private void measureSync() throws Exception {
+        final LocalSyncServer server = new LocalSyncServer();
+        final NoteSync sync = mProvider.newSync(server);
+
+        // The first push sends the whole library; every later sync only what changed since.
+        long start = System.nanoTime();
+        mReport.record("sync_initial_notes", sync.push());
+        mReport.record("sync_initial_ms", (System.nanoTime() - start) / 1000000);
+        mReport.record("sync_initial_bytes", server.bytesReceived());
+
+        final long bytesBefore = server.bytesReceived();
+        final int[] syncs = new int[1];
+        mReport.measure("sync_ten_edits", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) throws Exception {
+                for (int i = 0; i < 10; i++) {
+                    ContentValues values = new ContentValues();
+                    values.put(NotePad.Notes.COLUMN_NAME_TITLE, "synced " + iteration);
+                    mResolver.update(noteUri(iteration * 10 + i), values, null, null);
+                }
+                sync.sync();
+                syncs[0]++;
+            }
+        });
+        mReport.record("sync_ten_edits_bytes", (server.bytesReceived() - bytesBefore) / syncs[0]);
+    }
+
+    private void search(String query) {
+        drain(mResolver.query(NotePad.Notes.getSearchUri(query), SEARCH_PROJECTION,
+                SEARCH_SELECTION, null, NotePad.Notes.DEFAULT_SORT_ORDER));
+    }
+
+    private Uri noteUri(int iteration) {
+        return ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                1 + (iteration % mDataset.noteCount));
+    }
+
+    /**
+     * Reads every column of every row, so the query is fully executed and the row data is
+     * actually copied out, the way a list or the editor would.
+     */
+    private static void drain(Cursor cursor) {
+        try {
+            int columns = cursor.getColumnCount();
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < columns; i++) {
+                    cursor.getString(i);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.android.notepad;
+
+import android.app.Application;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures smart folders on the synthetic data set: filling a folder when it is saved, opening
+ * it, compared with running its search text through the search URI, and what keeping the
+ * folders current adds to writing a note.
+ *
+ * ./gradlew :app:testDebugUnitTest -Pbenchmark -PbenchNotes=100000 \
+ *     --tests '*SmartFolderBenchmark'
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class)
+public class SmartFolderBenchmark {
+
+    private static final String[] NOTE_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+    };
+
+    // The notes list leaves the todos out of a search.
+    private static final String SEARCH_SELECTION = NotePad.Notes.COLUMN_NAME_CATEGORY
+            + " NOT IN ('todo_pending', 'todo_completed')";
+
+    private NotePadProvider mProvider;
+    private SyntheticDataset mDataset;
+    private BenchmarkReport mReport;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.setupContentProvider(NotePadProvider.class, NotePad.AUTHORITY);
+        mDataset = SyntheticDataset.fromSystemProperties();
+        mDataset.populate(mProvider);
+        mReport = new BenchmarkReport("SmartFolderBenchmark");
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        // The writes are measured without folders first, then with them.
+        measureWrites("no_folders");
+
+        String lastMonth = new SimpleDateFormat("yyyy-MM-dd", Locale.ROOT).format(
+                new Date(System.currentTimeMillis() - 30L * 24 * 60 * 60 * 1000));
+        measureFolder("selective", SyntheticDataset.NEEDLE);
+        measureFolder("common", "meeting");
+        measureFolder("structured",
+                "cat:" + mDataset.category(1) + " modified:>" + lastMonth + " meeting");
+
+        measureWrites("three_folders");
+        mReport.write(mDataset);
+    }
+
+    private void measureFolder(String name, final String query) throws Exception {
+        long start = System.nanoTime();
+        ContentValues values = new ContentValues();
+        values.put(NotePad.SmartFolders.COLUMN_NAME_NAME, name);
+        values.put(NotePad.SmartFolders.COLUMN_NAME_QUERY, query);
+        final Uri notesUri = NotePad.SmartFolders.getNotesUri(ContentUris.parseId(
+                mProvider.insert(NotePad.SmartFolders.CONTENT_URI, values)));
+        mReport.record("fill_" + name + "_ms", (System.nanoTime() - start) / 1000000);
+
+        // The folder holds what the search finds, the bodies being stored as plain text.
+        final Uri searchUri = NotePad.Notes.getSearchUri(query);
+        assertEquals(count(searchUri, SEARCH_SELECTION), count(notesUri, null));
+        mReport.record("folder_" + name + "_notes", count(notesUri, null));
+
+        mReport.measure("folder_" + name, new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                drain(mProvider.query(notesUri, NOTE_PROJECTION, null, null, null));
+            }
+        });
+        mReport.measure("search_" + name, new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                drain(mProvider.query(searchUri, NOTE_PROJECTION, SEARCH_SELECTION, null,
+                        null));
+            }
+        });
+    }
+
+    private void measureWrites(String suffix) throws Exception {
+        final Random random = new Random(mDataset.seed);
+        final long now = System.currentTimeMillis();
+
+        mReport.measure("insert_" + suffix, new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                mProvider.insert(NotePad.Notes.CONTENT_URI,
+                        mDataset.nextNote(random, iteration, now));
+            }
+        });
+        mReport.measure("update_note_" + suffix, new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                ContentValues values = new ContentValues();
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, mDataset.body(random));
+                values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now + iteration);
+                mProvider.update(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                        1 + (iteration % mDataset.noteCount)), values, null, null);
+            }
+        });
+    }
+
+    private int count(Uri uri, String selection) {
+        Cursor cursor = mProvider.query(uri, NOTE_PROJECTION, selection, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Reads every column of every row, as a list would.
+     */
+    private static void drain(Cursor cursor) {
+        try {
+            int columns = cursor.getColumnCount();
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < columns; i++) {
+                    cursor.getString(i);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.Random;
+
+/**
+ * Generates a repeatable set of notes and todos for the benchmarks. The shape of the data set is
+ * read from system properties (see app/build.gradle), so the same code can be run against a few
+ * hundred notes on a laptop or against a library the size of a heavy user's.
+ *
+ * The same seed always produces the same rows, in the same order, so two runs of the suite are
+ * comparable.
+ */
+final class SyntheticDataset {
+
+    /**
+     * A word that is sprinkled into roughly one note in a hundred, so search benchmarks have a
+     * selective term to look for.
+     */
+    static final String NEEDLE = "zephyr";
+
+    private static final String[] WORDS = {
+            "meeting", "draft", "budget", "travel", "idea", "review", "garden", "recipe",
+            "invoice", "project", "weekend", "call", "summary", "launch", "book", "design",
+            "market", "fix", "plan", "notes", "android", "release", "family", "health",
+            "reading", "list", "morning", "report", "question", "answer", "music", "train",
+    };
+
+    final int noteCount;
+    final int bodySize;
+    final int categoryCount;
+    final double todoRatio;
+    final int tagCount;
+    final long seed;
+
+    SyntheticDataset(int noteCount, int bodySize, int categoryCount, double todoRatio,
+            int tagCount, long seed) {
+        this.noteCount = noteCount;
+        this.bodySize = bodySize;
+        this.categoryCount = categoryCount;
+        this.todoRatio = todoRatio;
+        this.tagCount = tagCount;
+        this.seed = seed;
+    }
+
+    /**
+     * Reads the data set shape from the notepad.bench* system properties, falling back to a
+     * small data set that runs in a few seconds.
+     */
+    static SyntheticDataset fromSystemProperties() {
+        return fromSystemProperties(400);
+    }
+
+    /**
+     * Same as {@link #fromSystemProperties()}, for a benchmark that needs longer or shorter
+     * bodies than the default unless notepad.benchBodySize says otherwise.
+     */
+    static SyntheticDataset fromSystemProperties(int defaultBodySize) {
+        return new SyntheticDataset(
+                Integer.getInteger("notepad.benchNotes", 2000),
+                Integer.getInteger("notepad.benchBodySize", defaultBodySize),
+                Integer.getInteger("notepad.benchCategories", 12),
+                Double.parseDouble(System.getProperty("notepad.benchTodoRatio", "0.2")),
+                Integer.getInteger("notepad.benchTags", 100),
+                Long.getLong("notepad.benchSeed", 20071107L));
+    }
+
+    /**
+     * Returns the name of the category used for the given index. Index 0 is left uncategorized,
+     * the same way notes created without a category are.
+     */
+    String category(int index) {
+        return index == 0 ? "" : "category" + index;
+    }
+
+    /**
+     * Inserts the data set through the provider, so that everything the provider maintains on
+     * write is populated exactly as it would be for real notes. All inserts run in a single
+     * transaction to keep setup time down.
+     */
+    void populate(NotePadProvider provider) {
+        Random random = new Random(seed);
+        long now = System.currentTimeMillis();
+        SQLiteDatabase db = provider.getOpenHelperForTest().getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < noteCount; i++) {
+                provider.insert(NotePad.Notes.CONTENT_URI, nextNote(random, i, now));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the name of the tag with the given index, from 1. The lower the index, the more
+     * notes have the tag.
+     */
+    String tag(int index) {
+        return "tag" + index;
+    }
+
+    /**
+     * Gives each note of a populated data set up to four tags, through the provider, in a single
+     * transaction. How many notes a tag is on falls off steeply with its index, as with real
+     * tags: the first is on a large share of the notes, most are on a handful.
+     */
+    void populateTags(NotePadProvider provider) {
+        Random random = new Random(seed + 1);
+        ContentValues values = new ContentValues();
+        SQLiteDatabase db = provider.getOpenHelperForTest().getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 1; i <= noteCount; i++) {
+                for (int tags = random.nextInt(5); tags > 0; tags--) {
+                    int index = Math.min(tagCount, (int) Math.pow(tagCount, random.nextDouble()));
+                    values.put(NotePad.Tags.COLUMN_NAME_NAME, tag(index));
+                    provider.insert(NotePad.Tags.getContentUri(i), values);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Builds the values for one note. Todos get an empty body and one of the two todo states as
+     * their category, the same way TodoFragment stores them.
+     */
+    ContentValues nextNote(Random random, int index, long now) {
+        ContentValues values = new ContentValues();
+        long modified = now - (long) random.nextInt(365 * 24 * 60) * 60 * 1000;
+        values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, modified);
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, modified);
+
+        if (random.nextDouble() < todoRatio) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, sentence(random, 4));
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY,
+                    random.nextBoolean() ? "todo_pending" : "todo_completed");
+            return values;
+        }
+
+        String title = sentence(random, 3);
+        if (index % 100 == 0) {
+            title = title + " " + NEEDLE;
+        }
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body(random));
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY,
+                category(categoryCount > 0 ? random.nextInt(categoryCount) : 0));
+        return values;
+    }
+
+    /**
+     * Returns a body of roughly {@link #bodySize} characters made of words and line breaks.
+     */
+    String body(Random random) {
+        StringBuilder sb = new StringBuilder(bodySize + 16);
+        while (sb.length() < bodySize) {
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+            sb.append(random.nextInt(12) == 0 ? '\n' : ' ');
+        }
+        return sb.toString();
+    }
+
+    private static String sentence(Random random, int words) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Describes the data set as a JSON object, for the benchmark report.
+     */
+    String toJson() {
+        return "{\"notes\":" + noteCount
+                + ",\"bodySize\":" + bodySize
+                + ",\"categories\":" + categoryCount
+                + ",\"todoRatio\":" + todoRatio
+                + ",\"tags\":" + tagCount
+                + ",\"seed\":" + seed + "}";
+    }
+}
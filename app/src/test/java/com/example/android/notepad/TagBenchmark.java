@@ -0,0 +1,142 @@
+package com.example.android.notepad;
+
+import android.app.Application;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures filtering notes by tags, on the synthetic data set with its tags. The tags compared
+ * are the two most common, whose lists are long, and one of the many rare ones. The filters
+ * that need all the tags are also run the plain way, counting each note's matches over all the
+ * lists, for comparison.
+ *
+ * ./gradlew :app:testDebugUnitTest -Pbenchmark -PbenchNotes=100000 -PbenchTags=1000 \
+ *     --tests '*TagBenchmark'
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class)
+public class TagBenchmark {
+
+    private static final String[] NOTE_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+    };
+
+    private NotePadProvider mProvider;
+    private SyntheticDataset mDataset;
+    private BenchmarkReport mReport;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.setupContentProvider(NotePadProvider.class, NotePad.AUTHORITY);
+        mDataset = SyntheticDataset.fromSystemProperties();
+        mDataset.populate(mProvider);
+        mDataset.populateTags(mProvider);
+        mReport = new BenchmarkReport("TagBenchmark");
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        SQLiteDatabase db = mProvider.getOpenHelperForTest().getReadableDatabase();
+        mReport.record("postings", DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(*) FROM " + NoteTags.TABLE_NAME, null));
+
+        String common = mDataset.tag(1);
+        String second = mDataset.tag(2);
+        String rare = mDataset.tag(mDataset.tagCount / 2);
+
+        mReport.measure("tags_list", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                drain(mProvider.query(NotePad.Tags.CONTENT_URI, null, null, null, null));
+            }
+        });
+        measureTagged("tagged_one_common", true, common);
+        measureTagged("tagged_all_common", true, common, second);
+        measureTagged("tagged_all_common_rare", true, common, second, rare);
+        measureTagged("tagged_any_common", false, common, second);
+        measureTagged("tagged_any_rare", false, rare, mDataset.tag(mDataset.tagCount / 2 + 1));
+
+        // The same notes, found by counting the matches of each note over every list.
+        assertEquals(count(true, common, second, rare), countGroupedBy(db, common, second, rare));
+        mReport.measure("tagged_all_common_rare_grouped", new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                countGroupedBy(db, common, second, rare);
+            }
+        });
+
+        mReport.write(mDataset);
+    }
+
+    private void measureTagged(String name, final boolean all, final String... tags)
+            throws Exception {
+        mReport.record(name + "_notes", count(all, tags));
+        mReport.measure(name, new BenchmarkReport.Op() {
+            @Override
+            public void run(int iteration) {
+                drain(mProvider.query(NotePad.Notes.getTaggedUri(all, tags), NOTE_PROJECTION,
+                        null, null, null));
+            }
+        });
+    }
+
+    private int count(boolean all, String... tags) {
+        Cursor cursor = mProvider.query(NotePad.Notes.getTaggedUri(all, tags), NOTE_PROJECTION,
+                null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static int countGroupedBy(SQLiteDatabase db, String... tags) {
+        Cursor cursor = db.rawQuery("SELECT " + NotePad.Notes._ID + ", "
+                + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " FROM "
+                + NotePad.Notes.TABLE_NAME + " WHERE " + NoteTrash.NOT_IN_TRASH + " AND "
+                + NotePad.Notes._ID + " IN (SELECT note_id FROM " + NoteTags.TABLE_NAME
+                + " WHERE tag_id IN (SELECT " + NotePad.Tags._ID + " FROM "
+                + NotePad.Tags.TABLE_NAME + " WHERE " + NotePad.Tags.COLUMN_NAME_NAME
+                + " IN (?, ?, ?)) GROUP BY note_id HAVING COUNT(*) = 3) ORDER BY "
+                + NotePad.Notes.DEFAULT_SORT_ORDER, tags);
+        try {
+            int count = 0;
+            while (cursor.moveToNext()) {
+                cursor.getString(1);
+                count++;
+            }
+            return count;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Reads every column of every row, as a list would.
+     */
+    private static void drain(Cursor cursor) {
+        try {
+            int columns = cursor.getColumnCount();
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < columns; i++) {
+                    cursor.getString(i);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.android.notepad;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link TitleIndex}'s snapshots: what a prefix finds, and that merging a single note's
+ * change into a snapshot gives the same index as building it again from all the titles.
+ */
+public class TitleIndexTest {
+
+    @Test
+    public void emptyIndexFindsNothing() {
+        TitleIndex.Snapshot empty = new TitleIndex.Snapshot(new HashMap<Long, String>());
+        assertTrue(empty.lookup("", TitleIndex.MAX_MATCHES).isEmpty());
+        assertTrue(empty.lookup("a", TitleIndex.MAX_MATCHES).isEmpty());
+
+        // Removing a note that isn't there leaves it empty.
+        assertTrue(empty.with(1, null).lookup("", TitleIndex.MAX_MATCHES).isEmpty());
+        assertEquals(Arrays.asList(1L), ids(empty.with(1, "Alpha").lookup("al", 5)));
+    }
+
+    @Test
+    public void prefixesMatchTitlesThenLaterWords() {
+        TitleIndex.Snapshot snapshot = snapshot(
+                1L, "Shopping list",
+                2L, "Weekend shopping",
+                3L, "Show times",
+                4L, "  Meeting notes, 2024-05-01",
+                5L, "Notes");
+
+        // Whole titles come first, then titles with a later word that matches.
+        assertEquals(Arrays.asList(1L, 3L, 2L), ids(snapshot.lookup("sho", 10)));
+        assertEquals(Arrays.asList(1L, 2L), ids(snapshot.lookup("SHOPPING", 10)));
+        assertEquals(Arrays.asList(5L, 4L), ids(snapshot.lookup(" notes ", 10)));
+        assertEquals(Arrays.asList(4L), ids(snapshot.lookup("05", 10)));
+        assertTrue(snapshot.lookup("opping", 10).isEmpty());
+
+        // A later word is keyed with the rest of the title, so a prefix can run across words.
+        assertEquals(Arrays.asList(4L), ids(snapshot.lookup("notes, 2024", 10)));
+
+        // At most the limit, each note once.
+        assertEquals(Arrays.asList(1L, 3L), ids(snapshot.lookup("sho", 2)));
+        assertEquals(5, snapshot.lookup("", 10).size());
+        assertEquals("Show times", snapshot.lookup("show", 10).get(0).title);
+    }
+
+    @Test
+    public void renamedNoteIsReplaced() {
+        TitleIndex.Snapshot snapshot = snapshot(
+                1L, "Shopping list",
+                2L, "Weekend shopping",
+                3L, "Show times");
+        TitleIndex.Snapshot renamed = snapshot.with(2, "Weekend hiking trip");
+
+        assertEquals(Arrays.asList(1L), ids(renamed.lookup("shopping", 10)));
+        assertEquals(Arrays.asList(2L), ids(renamed.lookup("hik", 10)));
+        assertEquals("Weekend hiking trip", renamed.lookup("trip", 10).get(0).title);
+        assertSameIndex(snapshot(
+                1L, "Shopping list",
+                2L, "Weekend hiking trip",
+                3L, "Show times"), renamed);
+
+        // The snapshot it came from is left as it was.
+        assertEquals(Arrays.asList(1L, 2L), ids(snapshot.lookup("shopping", 10)));
+
+        // Added notes, and titles that share keys with other notes, merge the same way.
+        assertSameIndex(snapshot(
+                1L, "Shopping list",
+                2L, "Weekend hiking trip",
+                3L, "Show times",
+                4L, "Shopping list"), renamed.with(4, "Shopping list"));
+        assertSameIndex(snapshot(
+                1L, "Shopping list",
+                2L, "Weekend hiking trip",
+                3L, "Show times list"), renamed.with(3, "Show times list"));
+    }
+
+    @Test
+    public void deletedNoteIsRemoved() {
+        TitleIndex.Snapshot snapshot = snapshot(
+                1L, "Shopping list",
+                2L, "Weekend shopping",
+                3L, "Show times");
+        TitleIndex.Snapshot deleted = snapshot.with(1, null);
+
+        assertEquals(Arrays.asList(3L, 2L), ids(deleted.lookup("sho", 10)));
+        assertTrue(deleted.lookup("list", 10).isEmpty());
+        assertSameIndex(snapshot(
+                2L, "Weekend shopping",
+                3L, "Show times"), deleted);
+        assertSameIndex(new TitleIndex.Snapshot(new HashMap<Long, String>()),
+                deleted.with(2, null).with(3, null));
+    }
+
+    private static TitleIndex.Snapshot snapshot(Object... idsAndTitles) {
+        HashMap<Long, String> titles = new HashMap<Long, String>();
+        for (int i = 0; i < idsAndTitles.length; i += 2) {
+            titles.put((Long) idsAndTitles[i], (String) idsAndTitles[i + 1]);
+        }
+        return new TitleIndex.Snapshot(titles);
+    }
+
+    private static void assertSameIndex(TitleIndex.Snapshot expected,
+            TitleIndex.Snapshot actual) {
+        assertEquals(expected.titles, actual.titles);
+        assertArrayEquals(expected.starts.keys, actual.starts.keys);
+        assertArrayEquals(expected.starts.ids, actual.starts.ids);
+        assertArrayEquals(expected.words.keys, actual.words.keys);
+        assertArrayEquals(expected.words.ids, actual.words.ids);
+    }
+
+    private static List<Long> ids(List<TitleIndex.Match> matches) {
+        List<Long> ids = new ArrayList<Long>(matches.size());
+        for (TitleIndex.Match match : matches) {
+            ids.add(match.id);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.android.notepad.baselineprofile;
+
+import androidx.benchmark.macro.junit4.BaselineProfileRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import kotlin.Unit;
+
+/**
+ * Generates the baseline profile, and the startup profile used for dex layout, for the journey
+ * in {@link NotePadJourney}. Copy the resulting -baseline-prof.txt over
+ * app/src/main/baseline-prof.txt.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BaselineProfileGenerator {
+
+    @Rule
+    public BaselineProfileRule mBaselineProfileRule = new BaselineProfileRule();
+
+    private int mIteration;
+
+    @Test
+    public void generate() {
+        mBaselineProfileRule.collect(
+                NotePadJourney.TARGET_PACKAGE,
+                15,      // maxIterations
+                3,       // stableIterations
+                null,    // outputFilePrefix
+                true,    // includeInStartupProfile
+                false,   // strictStability
+                name -> Boolean.TRUE,
+                scope -> {
+                    NotePadJourney.startNotesList(scope);
+                    NotePadJourney.createAndReopenNote(scope, mIteration++);
+                    return Unit.INSTANCE;
+                });
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.android.notepad.baselineprofile;
+
+import androidx.benchmark.macro.MacrobenchmarkScope;
+import androidx.test.uiautomator.By;
+import androidx.test.uiautomator.UiDevice;
+import androidx.test.uiautomator.UiObject2;
+import androidx.test.uiautomator.Until;
+
+/**
+ * The user journey the baseline profile is generated from: launch into the notes list, open the
+ * editor for a new note, type a note and save it, then open the saved note from the list. This
+ * runs NotesList, NotesFragment, NoteEditor and the query, insert and update paths of
+ * NotePadProvider.
+ */
+final class NotePadJourney {
+
+    static final String TARGET_PACKAGE = "com.example.android.notepad";
+
+    private static final long TIMEOUT_MS = 5000;
+
+    // This class cannot be instantiated
+    private NotePadJourney() {
+    }
+
+    /**
+     * Cold starts the app and waits until the notes list is on screen.
+     */
+    static void startNotesList(MacrobenchmarkScope scope) {
+        scope.pressHome();
+        scope.startActivityAndWait();
+        scope.getDevice().wait(Until.hasObject(By.res(TARGET_PACKAGE, "expandable_list")),
+                TIMEOUT_MS);
+    }
+
+    /**
+     * Runs the list, editor and save part of the journey. Expects the notes list to be showing.
+     */
+    static void createAndReopenNote(MacrobenchmarkScope scope, int iteration) {
+        UiDevice device = scope.getDevice();
+
+        device.findObject(By.res(TARGET_PACKAGE, "fab_add_note")).click();
+        device.wait(Until.hasObject(By.res(TARGET_PACKAGE, "note")), TIMEOUT_MS);
+
+        device.findObject(By.res(TARGET_PACKAGE, "title")).setText("Profile " + iteration);
+        device.findObject(By.res(TARGET_PACKAGE, "note"))
+                .setText("Written by the baseline profile generator, run " + iteration);
+        device.findObject(By.res(TARGET_PACKAGE, "fab_save_note")).click();
+
+        device.wait(Until.hasObject(By.res(TARGET_PACKAGE, "expandable_list")), TIMEOUT_MS);
+        device.waitForIdle();
+
+        // Opens the note that was just saved; it is the most recent one in its group.
+        UiObject2 saved = device.wait(Until.findObject(By.text("Profile " + iteration)),
+                TIMEOUT_MS);
+        if (saved != null) {
+            saved.click();
+            device.wait(Until.hasObject(By.res(TARGET_PACKAGE, "note")), TIMEOUT_MS);
+            device.pressBack();
+            device.wait(Until.hasObject(By.res(TARGET_PACKAGE, "expandable_list")), TIMEOUT_MS);
+        }
+    }
+}